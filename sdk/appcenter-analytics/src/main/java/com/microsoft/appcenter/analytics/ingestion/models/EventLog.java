@@ -5,6 +5,10 @@
 
 package com.microsoft.appcenter.analytics.ingestion.models;
 
+import android.util.JsonReader;
+
+import androidx.annotation.NonNull;
+
 import com.microsoft.appcenter.ingestion.models.json.JSONUtils;
 import com.microsoft.appcenter.ingestion.models.properties.TypedProperty;
 import com.microsoft.appcenter.ingestion.models.properties.TypedPropertyUtils;
@@ -13,6 +17,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.UUID;
 
@@ -85,6 +90,20 @@ public class EventLog extends LogWithNameAndProperties {
         setTypedProperties(TypedPropertyUtils.read(object));
     }
 
+    @Override
+    public boolean readField(@NonNull String name, @NonNull JsonReader reader) throws IOException, JSONException {
+        switch (name) {
+            case ID:
+                setId(UUID.fromString(reader.nextString()));
+                return true;
+            case TYPED_PROPERTIES:
+                setTypedProperties(TypedPropertyUtils.read(reader));
+                return true;
+            default:
+                return super.readField(name, reader);
+        }
+    }
+
     @Override
     public void write(JSONStringer writer) throws JSONException {
         super.write(writer);
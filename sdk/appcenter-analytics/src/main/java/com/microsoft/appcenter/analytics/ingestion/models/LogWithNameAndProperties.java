@@ -5,12 +5,18 @@
 
 package com.microsoft.appcenter.analytics.ingestion.models;
 
+import android.util.JsonReader;
+
+import androidx.annotation.NonNull;
+
 import com.microsoft.appcenter.ingestion.models.LogWithProperties;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
+
 import static com.microsoft.appcenter.ingestion.models.CommonProperties.NAME;
 
 public abstract class LogWithNameAndProperties extends LogWithProperties {
@@ -44,6 +50,17 @@ public abstract class LogWithNameAndProperties extends LogWithProperties {
         setName(object.getString(NAME));
     }
 
+    @Override
+    public boolean readField(@NonNull String name, @NonNull JsonReader reader) throws IOException, JSONException {
+        switch (name) {
+            case NAME:
+                setName(reader.nextString());
+                return true;
+            default:
+                return super.readField(name, reader);
+        }
+    }
+
     @Override
     public void write(JSONStringer writer) throws JSONException {
         super.write(writer);
@@ -23,6 +23,11 @@ public class EventLogFactory extends AbstractLogFactory {
         return new EventLog();
     }
 
+    @Override
+    public boolean isFieldReaderSupported() {
+        return true;
+    }
+
     @Override
     public Collection<CommonSchemaLog> toCommonSchemaLogs(Log log) {
         Collection<CommonSchemaLog> commonSchemaLogs = new LinkedList<>();
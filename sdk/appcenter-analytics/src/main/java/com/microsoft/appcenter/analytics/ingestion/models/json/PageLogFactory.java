@@ -14,4 +14,9 @@ public class PageLogFactory extends AbstractLogFactory {
     public PageLog create() {
         return new PageLog();
     }
+
+    @Override
+    public boolean isFieldReaderSupported() {
+        return true;
+    }
 }
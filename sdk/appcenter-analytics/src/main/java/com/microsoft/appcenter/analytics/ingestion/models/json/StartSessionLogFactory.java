@@ -14,4 +14,9 @@ public class StartSessionLogFactory extends AbstractLogFactory {
     public StartSessionLog create() {
         return new StartSessionLog();
     }
+
+    @Override
+    public boolean isFieldReaderSupported() {
+        return true;
+    }
 }
@@ -5,8 +5,10 @@
 
 package com.microsoft.appcenter.crashes.ingestion.models;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
 import android.util.Base64;
+import android.util.JsonReader;
 
 import com.microsoft.appcenter.ingestion.models.AbstractLog;
 import com.microsoft.appcenter.ingestion.models.json.JSONUtils;
@@ -15,6 +17,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.UUID;
@@ -222,6 +225,33 @@ public class ErrorAttachmentLog extends AbstractLog {
         }
     }
 
+    @Override
+    public boolean readField(@NonNull String name, @NonNull JsonReader reader) throws IOException, JSONException {
+        switch (name) {
+            case ID:
+                setId(UUID.fromString(reader.nextString()));
+                return true;
+            case ERROR_ID:
+                setErrorId(UUID.fromString(reader.nextString()));
+                return true;
+            case CONTENT_TYPE:
+                setContentType(reader.nextString());
+                return true;
+            case FILE_NAME:
+                setFileName(JSONUtils.readString(reader));
+                return true;
+            case DATA:
+                try {
+                    setData(Base64.decode(reader.nextString(), Base64.DEFAULT));
+                } catch (IllegalArgumentException e) {
+                    throw new JSONException(e.getMessage());
+                }
+                return true;
+            default:
+                return super.readField(name, reader);
+        }
+    }
+
     @Override
     public void write(JSONStringer writer) throws JSONException {
         super.write(writer);
@@ -5,15 +5,21 @@
 
 package com.microsoft.appcenter.crashes.ingestion.models;
 
+import android.util.JsonReader;
+
+import androidx.annotation.NonNull;
+
 import com.microsoft.appcenter.crashes.ingestion.models.json.ExceptionFactory;
 import com.microsoft.appcenter.crashes.ingestion.models.json.StackFrameFactory;
 import com.microsoft.appcenter.ingestion.models.Model;
+import com.microsoft.appcenter.ingestion.models.json.FieldReader;
 import com.microsoft.appcenter.ingestion.models.json.JSONUtils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
 import java.util.List;
 
 import static com.microsoft.appcenter.ingestion.models.CommonProperties.FRAMES;
@@ -22,7 +28,7 @@ import static com.microsoft.appcenter.ingestion.models.CommonProperties.TYPE;
 /**
  * The Exception model.
  */
-public class Exception implements Model {
+public class Exception implements Model, FieldReader {
 
     private static final String MESSAGE = "message";
 
@@ -211,6 +217,35 @@ public class Exception implements Model {
         setMinidumpFilePath(object.optString(MINIDUMP_FILE_PATH, null));
     }
 
+    @Override
+    public boolean readField(@NonNull String name, @NonNull JsonReader reader) throws IOException, JSONException {
+        switch (name) {
+            case TYPE:
+                setType(JSONUtils.readString(reader));
+                return true;
+            case MESSAGE:
+                setMessage(JSONUtils.readString(reader));
+                return true;
+            case STACK_TRACE:
+                setStackTrace(JSONUtils.readString(reader));
+                return true;
+            case FRAMES:
+                setFrames(JSONUtils.readArray(reader, StackFrameFactory.getInstance()));
+                return true;
+            case INNER_EXCEPTIONS:
+                setInnerExceptions(JSONUtils.readArray(reader, ExceptionFactory.getInstance()));
+                return true;
+            case WRAPPER_SDK_NAME:
+                setWrapperSdkName(JSONUtils.readString(reader));
+                return true;
+            case MINIDUMP_FILE_PATH:
+                setMinidumpFilePath(JSONUtils.readString(reader));
+                return true;
+            default:
+                return false;
+        }
+    }
+
     @Override
     public void write(JSONStringer writer) throws JSONException {
         JSONUtils.write(writer, TYPE, getType());
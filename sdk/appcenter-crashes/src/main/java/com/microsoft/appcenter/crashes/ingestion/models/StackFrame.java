@@ -5,17 +5,24 @@
 
 package com.microsoft.appcenter.crashes.ingestion.models;
 
+import android.util.JsonReader;
+
+import androidx.annotation.NonNull;
+
 import com.microsoft.appcenter.ingestion.models.Model;
+import com.microsoft.appcenter.ingestion.models.json.FieldReader;
 import com.microsoft.appcenter.ingestion.models.json.JSONUtils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
+
 /**
  * The StackFrame model.
  */
-public class StackFrame implements Model {
+public class StackFrame implements Model, FieldReader {
 
     private static final String CLASS_NAME = "className";
 
@@ -129,6 +136,26 @@ public class StackFrame implements Model {
         setFileName(object.optString(FILE_NAME, null));
     }
 
+    @Override
+    public boolean readField(@NonNull String name, @NonNull JsonReader reader) throws IOException, JSONException {
+        switch (name) {
+            case CLASS_NAME:
+                setClassName(JSONUtils.readString(reader));
+                return true;
+            case METHOD_NAME:
+                setMethodName(JSONUtils.readString(reader));
+                return true;
+            case LINE_NUMBER:
+                setLineNumber(JSONUtils.readInteger(reader));
+                return true;
+            case FILE_NAME:
+                setFileName(JSONUtils.readString(reader));
+                return true;
+            default:
+                return false;
+        }
+    }
+
     @Override
     public void write(JSONStringer writer) throws JSONException {
         JSONUtils.write(writer, CLASS_NAME, getClassName());
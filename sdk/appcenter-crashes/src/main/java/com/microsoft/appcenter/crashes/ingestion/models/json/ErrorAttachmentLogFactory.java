@@ -23,4 +23,9 @@ public class ErrorAttachmentLogFactory extends AbstractLogFactory {
     public ErrorAttachmentLog create() {
         return new ErrorAttachmentLog();
     }
+
+    @Override
+    public boolean isFieldReaderSupported() {
+        return true;
+    }
 }
@@ -23,4 +23,9 @@ public class HandledErrorLogFactory extends AbstractLogFactory {
     public HandledErrorLog create() {
         return new HandledErrorLog();
     }
+
+    @Override
+    public boolean isFieldReaderSupported() {
+        return true;
+    }
 }
@@ -23,4 +23,9 @@ public class ManagedErrorLogFactory extends AbstractLogFactory {
     public ManagedErrorLog create() {
         return new ManagedErrorLog();
     }
+
+    @Override
+    public boolean isFieldReaderSupported() {
+        return true;
+    }
 }
@@ -14,4 +14,9 @@ public class DistributionStartSessionLogFactory extends AbstractLogFactory {
     public DistributionStartSessionLog create() {
         return new DistributionStartSessionLog();
     }
+
+    @Override
+    public boolean isFieldReaderSupported() {
+        return true;
+    }
 }
@@ -8,7 +8,12 @@ package com.microsoft.appcenter.ingestion.models.json;
 import org.json.JSONException;
 import org.junit.Test;
 
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
 
 import static org.junit.Assert.assertEquals;
 
@@ -30,6 +35,37 @@ public class JSONDateUtilsAndroidTest {
         assertEquals(date, dateParsed);
     }
 
+    @Test
+    public void sameAsDateFormat() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Random random = new Random();
+        long[] times = new long[1000];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = (long) (random.nextDouble() * JSONDateUtils.MAX_TIME);
+        }
+
+        /* Include day, leap year and range boundaries, before 1970 falls back to date format. */
+        long[] boundaries = {0, 86399999, 86400000, 951782400000L, 951868799999L, JSONDateUtils.MAX_TIME, JSONDateUtils.MAX_TIME + 1, -1, -12219292800001L};
+        System.arraycopy(boundaries, 0, times, 0, boundaries.length);
+        for (long time : times) {
+            String expected = dateFormat.format(new Date(time));
+            assertEquals(expected, JSONDateUtils.toString(time));
+            assertEquals(dateFormat.parse(expected).getTime(), JSONDateUtils.toTime(expected));
+        }
+    }
+
+    @Test
+    public void parseLenientDates() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        /* Dates not in the exact layout are still parsed like before. */
+        for (String date : new String[]{"2017-02-30T00:00:00.000Z", "2017-07-07T24:00:00.000Z", "2017-07-07T17:43:56.123Z+extra", "1969-12-31T23:59:59.999Z"}) {
+            assertEquals(dateFormat.parse(date).getTime(), JSONDateUtils.toTime(date));
+        }
+    }
+
     @SuppressWarnings("ResultOfMethodCallIgnored")
     @Test(expected = JSONException.class)
     public void formatNullDate() throws JSONException {
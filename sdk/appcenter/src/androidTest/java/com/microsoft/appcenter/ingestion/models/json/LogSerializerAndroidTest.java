@@ -14,6 +14,8 @@ import org.json.JSONException;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -25,6 +27,8 @@ import java.util.UUID;
 import static com.microsoft.appcenter.ingestion.models.json.MockLog.MOCK_LOG_TYPE;
 import static com.microsoft.appcenter.test.TestUtils.TAG;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
@@ -54,6 +58,113 @@ public class LogSerializerAndroidTest {
         assertEquals(expectedContainer.hashCode(), actualContainer.hashCode());
     }
 
+    @Test
+    public void rawLogs() throws JSONException {
+        LogContainer expectedContainer = AndroidTestUtils.generateMockLogContainer();
+        LogSerializer serializer = new DefaultLogSerializer();
+        serializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+
+        /* Serialized logs are spliced in the same body as the logs themselves. */
+        List<String> rawLogs = new ArrayList<>();
+        for (Log log : expectedContainer.getLogs()) {
+            rawLogs.add(serializer.serializeLog(log));
+        }
+        LogContainer rawContainer = new LogContainer();
+        rawContainer.setRawLogs(rawLogs);
+        String payload = serializer.serializeContainer(rawContainer);
+        assertEquals(serializer.serializeContainer(expectedContainer), payload);
+        assertEquals(expectedContainer, serializer.deserializeContainer(payload, null));
+
+        /* Empty batch. */
+        rawContainer.setRawLogs(Collections.<String>emptyList());
+        assertEquals("{\"logs\":[]}", serializer.serializeContainer(rawContainer));
+    }
+
+    @Test
+    public void streamContainer() throws JSONException, IOException {
+        LogContainer container = AndroidTestUtils.generateMockLogContainer();
+        LogSerializer serializer = new DefaultLogSerializer();
+        serializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+
+        /* Streamed body is the same as the built one. */
+        StringWriter writer = new StringWriter();
+        serializer.serializeContainer(container, writer);
+        assertEquals(serializer.serializeContainer(container), writer.toString());
+
+        /* Same for raw logs. */
+        List<String> rawLogs = new ArrayList<>();
+        for (Log log : container.getLogs()) {
+            rawLogs.add(serializer.serializeLog(log));
+        }
+        LogContainer rawContainer = new LogContainer();
+        rawContainer.setRawLogs(rawLogs);
+        writer = new StringWriter();
+        serializer.serializeContainer(rawContainer, writer);
+        assertEquals(serializer.serializeContainer(container), writer.toString());
+    }
+
+    @Test
+    public void deviceCache() throws JSONException {
+        LogSerializer serializer = new DefaultLogSerializer();
+        serializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+
+        /* Device is spliced from cache, logs are the same once read back. */
+        MockLog log = AndroidTestUtils.generateMockLog();
+        String payload = serializer.serializeLog(log);
+        assertEquals(payload, serializer.serializeLog(log));
+        Log firstLog = serializer.deserializeLog(payload, null);
+        Log secondLog = serializer.deserializeLog(payload, null);
+        assertEquals(log, firstLog);
+
+        /* Logs read back do not share their device, modifying one does not affect the others. */
+        assertNotSame(firstLog.getDevice(), secondLog.getDevice());
+        firstLog.getDevice().setAppVersion("0.0.1");
+        assertEquals(log, secondLog);
+        assertEquals(log, serializer.deserializeLog(payload, null));
+
+        /* A modified device is not served from cache. */
+        log.getDevice().setAppVersion("9.9.9");
+        Log updatedLog = serializer.deserializeLog(serializer.serializeLog(log), null);
+        assertEquals("9.9.9", updatedLog.getDevice().getAppVersion());
+        assertEquals(log, updatedLog);
+
+        /* Invalidating does not change the payloads. */
+        serializer.invalidateDeviceCache();
+        assertEquals(serializer.serializeLog(log), serializer.serializeLog(log));
+
+        /* Logs without device are written as before. */
+        log.setDevice(null);
+        assertEquals(log, serializer.deserializeLog(serializer.serializeLog(log), null));
+    }
+
+    @Test
+    public void readFieldsInAnyLayout() throws JSONException {
+        MockLog log = AndroidTestUtils.generateMockLog();
+        log.setProperties(Collections.singletonMap("key", "value"));
+        LogSerializer serializer = new DefaultLogSerializer();
+        serializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        String payload = serializer.serializeLog(log);
+        String typeField = "\"type\":\"" + MOCK_LOG_TYPE + "\",";
+        assertTrue(payload.startsWith("{" + typeField));
+
+        /* Unknown fields are skipped. */
+        String extraPayload = payload.replace(typeField, typeField + "\"extra\":{\"a\":[1,{\"b\":null}]},");
+        assertEquals(log, serializer.deserializeLog(extraPayload, null));
+
+        /* Type not first is read from JSONObject. */
+        String movedPayload = "{" + payload.substring(typeField.length() + 1, payload.length() - 1) + "," + typeField.substring(0, typeField.length() - 1) + "}";
+        assertEquals(log, serializer.deserializeLog(movedPayload, null));
+        assertEquals(log, serializer.deserializeLog(movedPayload, MOCK_LOG_TYPE));
+    }
+
+    @Test(expected = JSONException.class)
+    public void readFieldsInvalidType() throws JSONException {
+        LogSerializer serializer = new DefaultLogSerializer();
+        serializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        serializer.addLogFactory(StartServiceLog.TYPE, new StartServiceLogFactory());
+        serializer.deserializeLog(serializer.serializeLog(AndroidTestUtils.generateMockLog()), StartServiceLog.TYPE);
+    }
+
     @Test(expected = JSONException.class)
     public void deserializeUnknownType() throws JSONException {
         MockLog log = AndroidTestUtils.generateMockLog();
@@ -24,6 +24,11 @@ public class MockLogFactory implements LogFactory, ModelFactory<Log> {
         return null;
     }
 
+    @Override
+    public boolean isFieldReaderSupported() {
+        return true;
+    }
+
     @Override
     public List<Log> createList(int capacity) {
         return new ArrayList<>(capacity);
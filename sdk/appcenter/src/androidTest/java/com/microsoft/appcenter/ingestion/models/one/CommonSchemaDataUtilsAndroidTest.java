@@ -15,6 +15,7 @@ import com.microsoft.appcenter.ingestion.models.properties.TypedProperty;
 
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONStringer;
 import org.junit.Test;
 
 import java.util.ArrayList;
@@ -34,6 +35,16 @@ import static org.junit.Assert.assertTrue;
 
 public class CommonSchemaDataUtilsAndroidTest {
 
+    private static String writeDataAndMetadata(CommonSchemaLog log) throws JSONException {
+        JSONStringer writer = new JSONStringer();
+        writer.object().key("data").object();
+        log.getData().write(writer);
+        writer.endObject().key("metadata").object();
+        log.getExt().getMetadata().write(writer);
+        writer.endObject().endObject();
+        return writer.toString();
+    }
+
     private static StringTypedProperty typedProperty(String key, String value) {
         StringTypedProperty stringTypedProperty = new StringTypedProperty();
         stringTypedProperty.setName(key);
@@ -569,4 +580,33 @@ public class CommonSchemaDataUtilsAndroidTest {
         assertEquals("Some.Type", log.getData().getProperties().optString("baseType"));
         assertNull(log.getExt().getMetadata());
     }
+
+    @Test
+    public void writeWithoutJSONObjects() throws JSONException {
+        List<TypedProperty> properties = new ArrayList<>();
+        properties.add(typedProperty("baseType", "Some.Type"));
+        properties.add(typedProperty("baseData.a", "b"));
+        LongTypedProperty a = new LongTypedProperty();
+        a.setName("p.a");
+        a.setValue(1);
+        properties.add(a);
+        DoubleTypedProperty b = new DoubleTypedProperty();
+        b.setName("p.b.c");
+        b.setValue(2.5);
+        properties.add(b);
+        properties.add(typedProperty("p.c", "d"));
+
+        /* Write a log converted from properties. */
+        MockCommonSchemaLog log = new MockCommonSchemaLog();
+        CommonSchemaDataUtils.addCommonSchemaData(properties, log);
+        String json = writeDataAndMetadata(log);
+
+        /* It's the same as writing the JSON objects. */
+        MockCommonSchemaLog expectedLog = new MockCommonSchemaLog();
+        CommonSchemaDataUtils.addCommonSchemaData(properties, expectedLog);
+        assertNotNull(expectedLog.getData().getProperties());
+        assertNotNull(expectedLog.getExt().getMetadata().getMetadata());
+        assertEquals(writeDataAndMetadata(expectedLog), json);
+        assertEquals(expectedLog, log);
+    }
 }
@@ -5,6 +5,7 @@
 
 package com.microsoft.appcenter.ingestion.models.one;
 
+import com.microsoft.appcenter.AndroidTestUtils;
 import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.ingestion.models.json.DefaultLogSerializer;
 import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
@@ -18,6 +19,7 @@ import java.util.Date;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -161,6 +163,23 @@ public class CommonSchemaLogSerializerTest {
         }
     }
 
+    @Test
+    public void serializeWithDevice() throws JSONException {
+        LogSerializer serializer = new DefaultLogSerializer();
+        serializer.addLogFactory(MockCommonSchemaLog.TYPE, new MockCommonSchemaLogFactory());
+        MockCommonSchemaLog log = new MockCommonSchemaLog();
+        log.setVer("3.0");
+        log.setName("test");
+        log.setTimestamp(new Date());
+
+        /* The channel sets a device on every log, Common Schema logs do not write it. */
+        log.setDevice(AndroidTestUtils.generateMockLog().getDevice());
+        String payload = serializer.serializeLog(log);
+        assertFalse(new JSONObject(payload).has("device"));
+        log.setDevice(null);
+        assertEquals(payload, serializer.serializeLog(log));
+    }
+
     /**
      * Verify JSON error as long as required fields (required as per SDK) are missing.
      */
@@ -15,6 +15,7 @@ import org.mockito.InOrder;
 
 import static com.microsoft.appcenter.test.TestUtils.checkEquals;
 import static com.microsoft.appcenter.test.TestUtils.checkNotEquals;
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
@@ -42,6 +43,24 @@ public class DataTest {
         checkEquals(a, b);
     }
 
+    @Test
+    public void equalsHashCodeDoNotConvertPropertyNode() throws JSONException {
+
+        /* Compare properties not converted yet with the same JSON properties. */
+        PropertyNode propertyNode = new PropertyNode();
+        propertyNode.put("a", "b", null);
+        Data a = new Data();
+        a.setPropertyNode(propertyNode);
+        Data b = new Data();
+        b.getProperties().put("a", "b");
+        checkEquals(a, b);
+
+        /* The node is still the one to convert. */
+        propertyNode.put("c", "d", null);
+        checkNotEquals(a, b);
+        assertEquals("d", a.getProperties().getString("c"));
+    }
+
     @Test
     public void serializeOrder() throws JSONException {
 
@@ -8,10 +8,12 @@ package com.microsoft.appcenter.ingestion.models.one;
 import com.microsoft.appcenter.test.TestUtils;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.Test;
 
 import static com.microsoft.appcenter.test.TestUtils.checkEquals;
 import static com.microsoft.appcenter.test.TestUtils.checkNotEquals;
+import static org.junit.Assert.assertEquals;
 
 public class MetadataExtensionTest {
 
@@ -34,4 +36,22 @@ public class MetadataExtensionTest {
         b.getMetadata().put("a", "b");
         checkEquals(a, b);
     }
+
+    @Test
+    public void equalsHashCodeDoNotConvertPropertyNode() throws JSONException {
+
+        /* Compare metadata not converted yet with the same JSON metadata. */
+        PropertyNode propertyNode = new PropertyNode();
+        propertyNode.put("a", 1L, 4);
+        MetadataExtension a = new MetadataExtension();
+        a.setPropertyNode(propertyNode);
+        MetadataExtension b = new MetadataExtension();
+        b.getMetadata().put("f", new JSONObject().put("a", 4));
+        checkEquals(a, b);
+
+        /* The node is still the one to convert. */
+        propertyNode.put("c", 2.0, 6);
+        checkNotEquals(a, b);
+        assertEquals(6, a.getMetadata().getJSONObject("f").getInt("c"));
+    }
 }
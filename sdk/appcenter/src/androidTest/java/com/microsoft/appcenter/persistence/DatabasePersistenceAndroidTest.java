@@ -9,6 +9,7 @@ import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import androidx.annotation.NonNull;
 
@@ -84,6 +85,27 @@ public class DatabasePersistenceAndroidTest {
      */
     private static final int MAX_STORAGE_SIZE_IN_BYTES = 32 * 1024;
 
+    /**
+     * Logs table as created before the target identifier column.
+     */
+    private static final String CREATE_LOGS_WITHOUT_TARGET_ID_SQL = CREATE_LOGS_SQL.replace(",`target_id` INTEGER", "");
+
+    /**
+     * Logs table as created before the storage time column.
+     */
+    private static final String CREATE_LOGS_WITHOUT_STORED_AT_SQL = CREATE_LOGS_WITHOUT_TARGET_ID_SQL.replace(",`stored_at` INTEGER", "");
+
+    /**
+     * Log counts table of {@link DatabasePersistence#VERSION_DELETED_COUNT_COLUMNS}.
+     */
+    private static final String CREATE_LOG_COUNTS_WITHOUT_DELETED_COUNTS_SQL = "CREATE TABLE IF NOT EXISTS `log_counts`" +
+            "(`persistence_group` TEXT NOT NULL," +
+            "`target_key` TEXT NOT NULL," +
+            "`log_count` INTEGER NOT NULL," +
+            "`total_payload_size` INTEGER NOT NULL DEFAULT 0," +
+            "`large_payload_count` INTEGER NOT NULL DEFAULT 0," +
+            "PRIMARY KEY (`persistence_group`, `target_key`))";
+
     /**
      * Context instance.
      */
@@ -117,6 +139,23 @@ public class DatabasePersistenceAndroidTest {
         return values;
     }
 
+    @NonNull
+    private String getEncryptedTargetToken(DatabasePersistence persistence, Long targetId) {
+        assertNotNull(targetId);
+        SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+        builder.appendWhere(DatabaseManager.PRIMARY_KEY + " = ?");
+        Cursor cursor = persistence.mDatabaseManager.getCursor(DatabasePersistence.TABLE_TARGETS, builder, null, new String[]{String.valueOf(targetId)}, null);
+        try {
+            ContentValues values = persistence.mDatabaseManager.nextValues(cursor);
+            assertNotNull(values);
+            String token = values.getAsString(DatabasePersistence.COLUMN_TARGET_TOKEN);
+            assertNotNull(token);
+            return token;
+        } finally {
+            cursor.close();
+        }
+    }
+
     private void putLog(int inputFlags, Integer persistedPriorityFlag) throws PersistenceException {
 
         /* Initialize database persistence. */
@@ -173,6 +212,84 @@ public class DatabasePersistenceAndroidTest {
         putLog(Flags.CRITICAL | 0x0300, Flags.CRITICAL);
     }
 
+    @Test
+    public void getLogsWithByteBudget() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Generate logs and persist, they all have the same size. */
+            Log firstLog = AndroidTestUtils.generateMockLog();
+            persistence.putLog(firstLog, "test-p1", NORMAL);
+            for (int i = 0; i < 9; i++) {
+                persistence.putLog(AndroidTestUtils.generateMockLog(), "test-p1", NORMAL);
+            }
+            ContentValues contentValues = getContentValues(persistence, "test-p1");
+            long payloadSize = contentValues.getAsLong(DatabasePersistence.COLUMN_PAYLOAD_SIZE);
+            assertTrue(payloadSize > 0);
+
+            /* Get logs with a budget of 3 logs and a half. */
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", Collections.<String>emptyList(), 10, payloadSize * 7 / 2, outputLogs);
+            assertEquals(3, outputLogs.size());
+            assertEquals(firstLog, outputLogs.get(0));
+
+            /* A budget smaller than a single log still returns that log. */
+            outputLogs.clear();
+            persistence.getLogs("test-p1", Collections.<String>emptyList(), 10, 1, outputLogs);
+            assertEquals(1, outputLogs.size());
+
+            /* No budget limit returns the remaining logs. */
+            outputLogs.clear();
+            persistence.getLogs("test-p1", Collections.<String>emptyList(), 10, outputLogs);
+            assertEquals(6, outputLogs.size());
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void getLogsWithByteBudgetWithoutSizeColumn() throws PersistenceException, JSONException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Store non ASCII logs as text without size, like previous versions did. */
+            persistence.setPayloadEncodingEnabled(false);
+            char[] model = new char[100];
+            Arrays.fill(model, '\u00e9');
+            long budget = -1;
+            for (int i = 0; i < 2; i++) {
+                Log log = AndroidTestUtils.generateMockLog();
+                log.getDevice().setModel(new String(model));
+                persistence.putLog(log, "test-p1", NORMAL);
+                budget += DatabasePersistence.getUtf8Length(logSerializer.serializeLog(log));
+            }
+            ContentValues values = new ContentValues();
+            values.putNull(DatabasePersistence.COLUMN_PAYLOAD_SIZE);
+            persistence.mDatabaseManager.update(values, null, null);
+
+            /* Sizes are counted in bytes, not characters. */
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", Collections.<String>emptyList(), 10, budget, outputLogs);
+            assertEquals(1, outputLogs.size());
+        } finally {
+            persistence.close();
+        }
+    }
+
     @Test
     public void putLargeLogAndDeleteAll() throws PersistenceException {
 
@@ -230,6 +347,54 @@ public class DatabasePersistenceAndroidTest {
         }
     }
 
+    @Test
+    public void putLogs() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Generate regular logs and a large log. */
+            List<Log> logs = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                logs.add(AndroidTestUtils.generateMockLog());
+            }
+            LogWithProperties largeLog = AndroidTestUtils.generateMockLog();
+            int size = 2 * 1024 * 1024;
+            StringBuilder largeValue = new StringBuilder(size);
+            for (int i = 0; i < size; i++) {
+                largeValue.append("x");
+            }
+            Map<String, String> properties = new HashMap<>();
+            properties.put("key", largeValue.toString());
+            largeLog.setProperties(properties);
+            logs.add(largeLog);
+
+            /* Persist all logs at once. */
+            long[] ids = persistence.putLogs(logs, "test-p1", NORMAL);
+            assertEquals(4, ids.length);
+            for (long id : ids) {
+                assertTrue(id > 0);
+            }
+            assertEquals(4, persistence.countLogs("test-p1"));
+            assertTrue(persistence.getLargePayloadFile(persistence.getLargePayloadGroupDirectory("test-p1"), ids[3]).exists());
+
+            /* Get logs in the same order. */
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", Collections.<String>emptyList(), 4, outputLogs);
+            assertEquals(logs, outputLogs);
+        } finally {
+
+            /* Close. */
+            persistence.close();
+        }
+    }
+
     @Test
     public void putLargeLogFails() {
 
@@ -393,6 +558,7 @@ public class DatabasePersistenceAndroidTest {
             /* When eviction happened it can be 1 or more logs, but deleted logs should be first ones. */
             int databaseCount = persistence.countLogs(group);
             List<Log> expectedLogs = allLogs.subList(allLogs.size() - databaseCount, allLogs.size());
+            assertEquals(allLogs.size() - databaseCount, persistence.getEvictedLogCount(group));
 
             /* Get logs from persistence and check we have all the most recent logs. */
             List<Log> actualLogs = new ArrayList<>();
@@ -804,15 +970,12 @@ public class DatabasePersistenceAndroidTest {
             persistence.getLogs("test-p3", Collections.<String>emptyList(), 5, outputLogs);
 
             /* Verify. */
-            Map<String, List<Long>> pendingGroups = persistence.mPendingDbIdentifiersGroups;
-            assertNull(pendingGroups.get("test-p1" + id1));
-            List<Long> p2Logs = pendingGroups.get("test-p2" + id2);
-            assertNotNull(p2Logs);
-            assertEquals(1, p2Logs.size());
-            assertEquals(1, pendingGroups.size());
             assertEquals(0, outputLogs.size());
             assertEquals(1, persistence.mDatabaseManager.getRowCount());
 
+            /* The remaining log is still leased to its batch. */
+            assertNull(persistence.getLogs("test-p2", Collections.<String>emptyList(), 5, outputLogs));
+
             /* Verify one log still persists in the database. */
             persistence.clearPendingLogState();
             outputLogs.clear();
@@ -873,6 +1036,292 @@ public class DatabasePersistenceAndroidTest {
         }
     }
 
+    @Test
+    public void clearPendingLogStateOfBatch() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Persist logs in 2 groups. */
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test-p1", NORMAL);
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test-p1", NORMAL);
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test-p2", NORMAL);
+
+            /* Get a batch in each group. */
+            List<Log> outputLogs = new ArrayList<>();
+            String id1 = persistence.getLogs("test-p1", Collections.<String>emptyList(), 1, outputLogs);
+            String id2 = persistence.getLogs("test-p2", Collections.<String>emptyList(), 1, outputLogs);
+            assertNotNull(id1);
+            assertNotNull(id2);
+
+            /* Release the first batch only. */
+            persistence.clearPendingLogState("test-p1", id1);
+
+            /* Released logs can be returned again, the other batch stays pending. */
+            outputLogs.clear();
+            assertNotNull(persistence.getLogs("test-p1", Collections.<String>emptyList(), 5, outputLogs));
+            assertEquals(2, outputLogs.size());
+            outputLogs.clear();
+            assertNull(persistence.getLogs("test-p2", Collections.<String>emptyList(), 5, outputLogs));
+            assertEquals(0, outputLogs.size());
+
+            /* Unknown batch is ignored. */
+            persistence.clearPendingLogState("test-p1", "unknown");
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void putCompressedAndPlainLogs() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Logs are compressed by default. */
+            Log compressedLog = AndroidTestUtils.generateMockLog();
+            persistence.putLog(compressedLog, "test-p1", NORMAL);
+            ContentValues values = getContentValues(persistence, "test-p1");
+            assertNull(values.getAsString(DatabasePersistence.COLUMN_LOG));
+            assertNotNull(values.getAsByteArray(DatabasePersistence.COLUMN_COMPRESSED_LOG));
+
+            /* Plain JSON when compression is disabled. */
+            persistence.setPayloadEncodingEnabled(false);
+            Log plainLog = AndroidTestUtils.generateMockLog();
+            persistence.putLog(plainLog, "test-p2", NORMAL);
+            values = getContentValues(persistence, "test-p2");
+            assertNotNull(values.getAsString(DatabasePersistence.COLUMN_LOG));
+            assertNull(values.getAsByteArray(DatabasePersistence.COLUMN_COMPRESSED_LOG));
+
+            /* Both can be read back. */
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", Collections.<String>emptyList(), 1, outputLogs);
+            persistence.getLogs("test-p2", Collections.<String>emptyList(), 1, outputLogs);
+            assertEquals(Arrays.asList(compressedLog, plainLog), outputLogs);
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void convertStoredLogs() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Store plain logs as previous versions did. */
+            persistence.setPayloadEncodingEnabled(false);
+            Log firstLog = AndroidTestUtils.generateMockLog();
+            persistence.putLog(firstLog, "test-p1", NORMAL);
+            Log secondLog = AndroidTestUtils.generateMockLog();
+            persistence.putLog(secondLog, "test-p2", NORMAL);
+
+            /* Logs are not converted while encoding is disabled. */
+            persistence.performMaintenance();
+            assertNotNull(getContentValues(persistence, "test-p1").getAsString(DatabasePersistence.COLUMN_LOG));
+
+            /* Both are converted by maintenance once enabled. */
+            persistence.setPayloadEncodingEnabled(true);
+            persistence.performMaintenance();
+            for (String group : new String[]{"test-p1", "test-p2"}) {
+                ContentValues values = getContentValues(persistence, group);
+                assertNull(values.getAsString(DatabasePersistence.COLUMN_LOG));
+                assertEquals(PayloadEncoder.FORMAT_VERSION, values.getAsByteArray(DatabasePersistence.COLUMN_COMPRESSED_LOG)[0]);
+            }
+
+            /* And read back. */
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", Collections.<String>emptyList(), 1, outputLogs);
+            persistence.getLogs("test-p2", Collections.<String>emptyList(), 1, outputLogs);
+            assertEquals(Arrays.asList(firstLog, secondLog), outputLogs);
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void getRawLogs() throws PersistenceException, JSONException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Persist a compressed and a plain log. */
+            assertTrue(persistence.isRawLogsSupported());
+            Log compressedLog = AndroidTestUtils.generateMockLog();
+            persistence.putLog(compressedLog, "test-p1", NORMAL);
+            persistence.setPayloadEncodingEnabled(false);
+            Log plainLog = AndroidTestUtils.generateMockLog();
+            persistence.putLog(plainLog, "test-p1", NORMAL);
+
+            /* Payloads are returned as stored. */
+            List<String> payloads = new ArrayList<>();
+            String id = persistence.getRawLogs("test-p1", Collections.<String>emptyList(), 2, Long.MAX_VALUE, payloads);
+            assertNotNull(id);
+            assertEquals(Arrays.asList(logSerializer.serializeLog(compressedLog), logSerializer.serializeLog(plainLog)), payloads);
+
+            /* Logs are leased like typed batches. */
+            List<Log> outputLogs = new ArrayList<>();
+            assertNull(persistence.getLogs("test-p1", Collections.<String>emptyList(), 2, outputLogs));
+            persistence.deleteLogs("test-p1", id);
+            assertEquals(0, persistence.countLogs("test-p1"));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void getLogsWithPayloads() throws PersistenceException, JSONException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Persist 2 logs. */
+            Log log1 = AndroidTestUtils.generateMockLog();
+            Log log2 = AndroidTestUtils.generateMockLog();
+            persistence.putLog(log1, "test-p1", NORMAL);
+            persistence.putLog(log2, "test-p1", NORMAL);
+
+            /* Logs and their payloads are returned in the same order. */
+            List<Log> outputLogs = new ArrayList<>();
+            List<String> payloads = new ArrayList<>();
+            String id = persistence.getLogsWithPayloads("test-p1", Collections.<String>emptyList(), 2, Long.MAX_VALUE, outputLogs, payloads);
+            assertNotNull(id);
+            assertEquals(Arrays.asList(log1, log2), outputLogs);
+            assertEquals(Arrays.asList(logSerializer.serializeLog(log1), logSerializer.serializeLog(log2)), payloads);
+
+            /* Logs are leased like other batches. */
+            assertNull(persistence.getRawLogs("test-p1", Collections.<String>emptyList(), 2, Long.MAX_VALUE, new ArrayList<String>()));
+            persistence.deleteLogs("test-p1", id);
+            assertEquals(0, persistence.countLogs("test-p1"));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void countLogsPerTargetKey() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        logSerializer.addLogFactory(MockCommonSchemaLog.TYPE, new MockCommonSchemaLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Persist logs of 2 target keys and a log without target key. */
+            for (String targetToken : new String[]{"key1-token", "key1-token", "key2-token"}) {
+                MockCommonSchemaLog log = new MockCommonSchemaLog();
+                log.setName("test");
+                log.setIKey("o:" + targetToken.split("-")[0]);
+                log.setTimestamp(new Date());
+                log.setVer("3.0");
+                log.addTransmissionTarget(targetToken);
+                persistence.putLog(log, "test/one", NORMAL);
+            }
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test/one", NORMAL);
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test-p2", NORMAL);
+
+            /* Counts exclude paused target keys. */
+            assertEquals(4, persistence.countLogs("test/one"));
+            assertEquals(2, persistence.countLogs("test/one", Collections.singletonList("key1")));
+            assertEquals(1, persistence.countLogs("test/one", Arrays.asList("key1", "key2")));
+            assertEquals(1, persistence.countLogs("test-p2"));
+            assertEquals(0, persistence.countLogs("test-p3"));
+
+            /* Counts follow deletions. */
+            List<Log> outputLogs = new ArrayList<>();
+            String id = persistence.getLogs("test/one", Collections.singletonList("key2"), 2, outputLogs);
+            assertNotNull(id);
+            persistence.deleteLogs("test/one", id);
+            assertEquals(2, persistence.countLogs("test/one"));
+            persistence.deleteLogs("test/one");
+            assertEquals(0, persistence.countLogs("test/one"));
+            assertEquals(1, persistence.countLogs("test-p2"));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void leasedLogsAreReclaimedOnRestart() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        String id;
+        try {
+
+            /* Persist 3 logs and lease 2 of them to a batch. */
+            for (int i = 0; i < 3; i++) {
+                persistence.putLog(AndroidTestUtils.generateMockLog(), "test", NORMAL);
+            }
+            List<Log> outputLogs = new ArrayList<>();
+            id = persistence.getLogs("test", Collections.<String>emptyList(), 2, outputLogs);
+            assertNotNull(id);
+            assertEquals(2, outputLogs.size());
+
+            /* Lease is stored in the database. */
+            assertEquals(id, getContentValues(persistence, "test").getAsString(DatabasePersistence.COLUMN_BATCH_ID));
+        } finally {
+            persistence.close();
+        }
+
+        /* After a restart, the batch is available again on the first read. */
+        persistence = new DatabasePersistence(sContext);
+        persistence.setLogSerializer(logSerializer);
+        try {
+            assertEquals(id, getContentValues(persistence, "test").getAsString(DatabasePersistence.COLUMN_BATCH_ID));
+            List<Log> outputLogs = new ArrayList<>();
+            String newId = persistence.getLogs("test", Collections.<String>emptyList(), 5, outputLogs);
+            assertEquals(3, outputLogs.size());
+
+            /* Deleting the old batch has no effect, deleting the new one removes its logs. */
+            persistence.deleteLogs("test", id);
+            assertEquals(3, persistence.countLogs("test"));
+            persistence.deleteLogs("test", newId);
+            assertEquals(0, persistence.countLogs("test"));
+        } finally {
+            persistence.close();
+        }
+    }
+
     private void getAllLogs(DatabasePersistence persistence, int numberOfLogs, int sizeForGetLogs) {
         List<Log> outputLogs = new ArrayList<>();
         int expected = 0;
@@ -1102,6 +1551,434 @@ public class DatabasePersistenceAndroidTest {
         }
     }
 
+    @Test
+    public void upgradeCountsExistingLogs() throws PersistenceException {
+
+        /* Initialize database with the version before log counts, without the triggers. */
+        ContentValues schema = new ContentValues(SCHEMA);
+        DatabaseManager databaseManager = new DatabaseManager(sContext, DatabasePersistence.DATABASE, DatabasePersistence.TABLE, DatabasePersistence.VERSION_LOG_COUNTS_TABLE, schema, CREATE_LOGS_WITHOUT_STORED_AT_SQL, mock(DatabaseManager.Listener.class));
+        try {
+            for (String targetKey : new String[]{"key1", "key1", null}) {
+                ContentValues contentValues = new ContentValues();
+                contentValues.put(DatabasePersistence.COLUMN_GROUP, "test");
+                contentValues.put(DatabasePersistence.COLUMN_TARGET_KEY, targetKey);
+                databaseManager.put(contentValues, DatabasePersistence.COLUMN_PRIORITY);
+            }
+        } finally {
+            databaseManager.close();
+        }
+
+        /* Upgrade. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+        try {
+            assertEquals(3, persistence.countLogs("test"));
+            assertEquals(1, persistence.countLogs("test", Collections.singletonList("key1")));
+
+            /* Triggers maintain the counts from now on. */
+            persistence.deleteLogs("test");
+            assertEquals(0, persistence.countLogs("test"));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void deleteExpiredLogs() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Persist 4 logs, including a large one, and lease the first one to a batch. */
+            List<Log> logs = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                Log log = AndroidTestUtils.generateMockLog();
+                logs.add(log);
+                persistence.putLog(log, "test", NORMAL);
+            }
+            LogWithProperties largeLog = AndroidTestUtils.generateMockLog();
+            Map<String, String> properties = new HashMap<>();
+            properties.put("key", generateString(2 * 1024 * 1024, 'x'));
+            largeLog.setProperties(properties);
+            logs.add(largeLog);
+            long largeLogId = persistence.putLog(largeLog, "test", NORMAL);
+            File largeLogFile = persistence.getLargePayloadFile(persistence.getLargePayloadGroupDirectory("test"), largeLogId);
+            assertTrue(largeLogFile.exists());
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "other", NORMAL);
+            List<Log> outputLogs = new ArrayList<>();
+            assertNotNull(persistence.getLogs("test", Collections.<String>emptyList(), 1, outputLogs));
+
+            /* Nothing was stored before that time. */
+            outputLogs.clear();
+            assertEquals(0, persistence.deleteExpiredLogs("test", 0, 10, outputLogs));
+            assertEquals(0, outputLogs.size());
+
+            /* Expired logs are returned in storage order, leased logs don't expire. */
+            long storedBefore = System.currentTimeMillis() + 1000;
+            assertEquals(1, persistence.deleteExpiredLogs("test", storedBefore, 1, outputLogs));
+            assertEquals(Collections.singletonList(logs.get(1)), outputLogs);
+            assertEquals(3, persistence.countLogs("test"));
+
+            /* Bulk delete the others, including the large payload file. */
+            assertEquals(2, persistence.deleteExpiredLogs("test", storedBefore, 1, null));
+            assertEquals(1, persistence.countLogs("test"));
+            assertEquals(1, persistence.countLogs("other"));
+            assertFalse(largeLogFile.exists());
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void getStats() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        logSerializer.addLogFactory(MockCommonSchemaLog.TYPE, new MockCommonSchemaLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Persist a regular log, a large one and 2 logs of a target key. */
+            long start = System.currentTimeMillis();
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test", NORMAL);
+            LogWithProperties largeLog = AndroidTestUtils.generateMockLog();
+            Map<String, String> properties = new HashMap<>();
+            properties.put("key", generateString(2 * 1024 * 1024, 'x'));
+            largeLog.setProperties(properties);
+            persistence.putLog(largeLog, "test", NORMAL);
+            for (int i = 0; i < 2; i++) {
+                MockCommonSchemaLog log = new MockCommonSchemaLog();
+                log.setName("test");
+                log.setIKey("o:key");
+                log.setTimestamp(new Date());
+                log.setVer("3.0");
+                log.addTransmissionTarget("key-secret");
+                persistence.putLog(log, "test", NORMAL);
+            }
+            long end = System.currentTimeMillis();
+
+            /* Check group totals and target key statistics. */
+            PersistenceStats.GroupStats groupStats = persistence.getStats().getGroup("test");
+            assertNotNull(groupStats);
+            assertEquals(4, groupStats.getLogCount());
+            assertEquals(1, groupStats.getLargePayloadCount());
+            assertTrue(groupStats.getPayloadSize() > 2 * 1024 * 1024);
+            assertTrue(groupStats.getOldestStoredAt() >= start);
+            assertTrue(groupStats.getNewestStoredAt() <= end);
+            assertTrue(groupStats.getOldestStoredAt() <= groupStats.getNewestStoredAt());
+            assertEquals(Collections.singleton("key"), groupStats.getTargetKeys().keySet());
+            PersistenceStats.LogStats targetKeyStats = groupStats.getTargetKeys().get("key");
+            assertEquals(2, targetKeyStats.getLogCount());
+            assertEquals(0, targetKeyStats.getLargePayloadCount());
+            assertTrue(targetKeyStats.getPayloadSize() > 0);
+            assertTrue(targetKeyStats.getOldestStoredAt() >= start);
+            assertTrue(targetKeyStats.getNewestStoredAt() <= end);
+            assertTrue(targetKeyStats.getOldestStoredAt() <= targetKeyStats.getNewestStoredAt());
+
+            /* Expired logs are counted and no longer reported as stored. */
+            assertEquals(4, persistence.deleteExpiredLogs("test", end + 1000, 1, null));
+            groupStats = persistence.getStats().getGroup("test");
+            assertNotNull(groupStats);
+            assertEquals(0, groupStats.getLogCount());
+            assertEquals(0, groupStats.getPayloadSize());
+            assertEquals(0, groupStats.getOldestStoredAt());
+            assertEquals(4, groupStats.getExpiredLogCount());
+            assertTrue(groupStats.getTargetKeys().isEmpty());
+        } finally {
+            persistence.close();
+        }
+
+        /* Deletion counters are kept in the database. */
+        persistence = new DatabasePersistence(sContext);
+        try {
+            PersistenceStats.GroupStats groupStats = persistence.getStats().getGroup("test");
+            assertNotNull(groupStats);
+            assertEquals(0, groupStats.getLogCount());
+            assertEquals(4, groupStats.getExpiredLogCount());
+            assertEquals(0, persistence.countLogs("test"));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void upgradeAddsDeletedCountColumns() throws PersistenceException {
+
+        /* Initialize database with the version before deletion counters, including its log counts table. */
+        ContentValues schema = new ContentValues(SCHEMA);
+        DatabaseManager databaseManager = new DatabaseManager(sContext, DatabasePersistence.DATABASE, DatabasePersistence.TABLE, DatabasePersistence.VERSION_DELETED_COUNT_COLUMNS, schema, CREATE_LOGS_SQL, new DatabaseManager.Listener() {
+
+            @Override
+            public void onCreate(SQLiteDatabase db) {
+                db.execSQL(CREATE_LOG_COUNTS_WITHOUT_DELETED_COUNTS_SQL);
+            }
+
+            @Override
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            }
+
+            @Override
+            public void onEvicted(SQLiteDatabase db, @NonNull Map<String, Long> evictedCounts) {
+            }
+        });
+        try {
+            databaseManager.getRowCount();
+        } finally {
+            databaseManager.close();
+        }
+
+        /* Upgrade, expired logs are counted. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+            persistence.putLog(AndroidTestUtils.generateMockLog(), "test", NORMAL);
+            assertEquals(1, persistence.countLogs("test"));
+            assertEquals(1, persistence.deleteExpiredLogs("test", System.currentTimeMillis() + 1000, 10, null));
+            PersistenceStats.GroupStats groupStats = persistence.getStats().getGroup("test");
+            assertNotNull(groupStats);
+            assertEquals(0, groupStats.getLogCount());
+            assertEquals(1, groupStats.getExpiredLogCount());
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void upgradeSetsStorageTimeOfExistingLogs() throws PersistenceException {
+
+        /* Initialize database with the version before storage time. */
+        ContentValues schema = new ContentValues(SCHEMA);
+        DatabaseManager databaseManager = new DatabaseManager(sContext, DatabasePersistence.DATABASE, DatabasePersistence.TABLE, DatabasePersistence.VERSION_STORED_AT_COLUMN, schema, CREATE_LOGS_WITHOUT_STORED_AT_SQL, mock(DatabaseManager.Listener.class));
+        try {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(DatabasePersistence.COLUMN_GROUP, "test");
+            databaseManager.put(contentValues, DatabasePersistence.COLUMN_PRIORITY);
+        } finally {
+            databaseManager.close();
+        }
+
+        /* Existing logs are considered stored at upgrade time. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+        try {
+            assertEquals(0, persistence.deleteExpiredLogs("test", System.currentTimeMillis() - 60000, 10, null));
+            assertEquals(1, persistence.deleteExpiredLogs("test", System.currentTimeMillis() + 1000, 10, null));
+            assertEquals(0, persistence.countLogs("test"));
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void targetTokensAreStoredOnce() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MockCommonSchemaLog.TYPE, new MockCommonSchemaLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        List<Log> logs = new ArrayList<>();
+        try {
+
+            /* Store logs for 2 tokens. */
+            for (int i = 0; i < 4; i++) {
+                MockCommonSchemaLog log = new MockCommonSchemaLog();
+                log.setName("test");
+                log.setIKey("o:key" + i % 2);
+                log.setTimestamp(new Date());
+                log.setVer("3.0");
+                log.addTransmissionTarget("key" + i % 2 + "-secret");
+                logs.add(log);
+                persistence.putLog(log, "test", NORMAL);
+            }
+            Cursor cursor = persistence.mDatabaseManager.getCursor(DatabasePersistence.TABLE_TARGETS, null, null, null, null);
+            try {
+                assertEquals(2, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            persistence.close();
+        }
+
+        /* Tokens are restored after restart. */
+        persistence = new DatabasePersistence(sContext);
+        persistence.setLogSerializer(logSerializer);
+        try {
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test", Collections.<String>emptyList(), 10, outputLogs);
+            assertEquals(logs, outputLogs);
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void unusedTargetTokensAreDeletedByMaintenance() throws PersistenceException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MockCommonSchemaLog.TYPE, new MockCommonSchemaLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+
+            /* Store a log for 2 tokens in 2 groups. */
+            for (int i = 0; i < 2; i++) {
+                MockCommonSchemaLog log = new MockCommonSchemaLog();
+                log.setName("test");
+                log.setIKey("o:key" + i);
+                log.setTimestamp(new Date());
+                log.setVer("3.0");
+                log.addTransmissionTarget("key" + i + "-secret");
+                persistence.putLog(log, "test" + i, NORMAL);
+            }
+
+            /* Only the token of deleted logs is deleted. */
+            persistence.deleteLogs("test0");
+            persistence.performMaintenance();
+            Cursor cursor = persistence.mDatabaseManager.getCursor(DatabasePersistence.TABLE_TARGETS, null, new String[]{DatabasePersistence.COLUMN_TARGET_KEY}, null, null);
+            try {
+                assertEquals(1, cursor.getCount());
+                assertTrue(cursor.moveToNext());
+                assertEquals("key1", cursor.getString(0));
+            } finally {
+                cursor.close();
+            }
+
+            /* The deleted token is stored again with a new log and both logs can be read. */
+            MockCommonSchemaLog log = new MockCommonSchemaLog();
+            log.setName("test");
+            log.setIKey("o:key0");
+            log.setTimestamp(new Date());
+            log.setVer("3.0");
+            log.addTransmissionTarget("key0-secret");
+            persistence.putLog(log, "test1", NORMAL);
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test1", Collections.<String>emptyList(), 10, outputLogs);
+            assertEquals(2, outputLogs.size());
+            assertEquals(Collections.singleton("key0-secret"), outputLogs.get(1).getTransmissionTargetTokens());
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void getLogsQueryUsesGroupIndex() throws PersistenceException {
+
+        /* Initialize database persistence with logs of several groups and priorities. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+        try {
+            for (int i = 0; i < 4; i++) {
+                persistence.putLog(AndroidTestUtils.generateMockLog(), "test" + i % 2, i % 2 == 0 ? NORMAL : CRITICAL);
+            }
+        } finally {
+            persistence.close();
+        }
+
+        /* Explain the query of getLogs, with and without paused target keys. */
+        SQLiteDatabase database = sContext.openOrCreateDatabase(DatabasePersistence.DATABASE, Context.MODE_PRIVATE, null);
+        try {
+            assertGetLogsQueryUsesGroupIndex(database, Collections.<String>emptyList());
+            assertGetLogsQueryUsesGroupIndex(database, Arrays.asList("key1", "key2"));
+        } finally {
+            database.close();
+        }
+    }
+
+    private static void assertGetLogsQueryUsesGroupIndex(SQLiteDatabase database, List<String> pausedTargetKeys) {
+
+        /* Build the query the same way as getLogs. */
+        SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+        builder.setTables(DatabasePersistence.TABLE);
+        builder.appendWhere(DatabasePersistence.COLUMN_GROUP + " = ?");
+        builder.appendWhere(" AND ");
+        builder.appendWhere(DatabasePersistence.COLUMN_BATCH_ID + " IS NULL");
+        List<String> selectionArgs = new ArrayList<>();
+        selectionArgs.add("test0");
+        if (!pausedTargetKeys.isEmpty()) {
+            StringBuilder filter = new StringBuilder();
+            for (int i = 0; i < pausedTargetKeys.size(); i++) {
+                filter.append("?,");
+            }
+            filter.deleteCharAt(filter.length() - 1);
+            builder.appendWhere(" AND ");
+            builder.appendWhere(DatabasePersistence.COLUMN_TARGET_KEY + " NOT IN (" + filter + ")");
+            selectionArgs.addAll(pausedTargetKeys);
+        }
+        String query = builder.buildQuery(DatabasePersistence.LOG_COLUMNS, null, null, null, DatabasePersistence.GET_SORT_ORDER, "10");
+
+        /* The group index is used and provides the order. */
+        boolean usesGroupIndex = false;
+        Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + query, selectionArgs.toArray(new String[0]));
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                String detail = cursor.getString(detailIndex);
+                usesGroupIndex |= detail.contains("ix_logs_group");
+                assertFalse(detail, detail.contains("USE TEMP B-TREE FOR ORDER BY"));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertTrue("Query plan of " + query + " does not use ix_logs_group", usesGroupIndex);
+    }
+
+    @Test
+    public void upgradeKeepsLegacyTargetTokens() throws PersistenceException, JSONException {
+
+        /* Initialize database with the version before the targets table. */
+        ContentValues schema = new ContentValues(SCHEMA);
+        DatabaseManager databaseManager = new DatabaseManager(sContext, DatabasePersistence.DATABASE, DatabasePersistence.TABLE, DatabasePersistence.VERSION_TARGETS_TABLE, schema, CREATE_LOGS_WITHOUT_TARGET_ID_SQL, mock(DatabaseManager.Listener.class));
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MockCommonSchemaLog.TYPE, new MockCommonSchemaLogFactory());
+        MockCommonSchemaLog log = new MockCommonSchemaLog();
+        log.setName("test");
+        log.setIKey("o:key");
+        log.setTimestamp(new Date());
+        log.setVer("3.0");
+        try {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(DatabasePersistence.COLUMN_GROUP, "test");
+            contentValues.put(DatabasePersistence.COLUMN_LOG, logSerializer.serializeLog(log));
+            contentValues.put(DatabasePersistence.COLUMN_TARGET_TOKEN, CryptoUtils.getInstance(sContext).encrypt("key-secret"));
+            contentValues.put(DatabasePersistence.COLUMN_TARGET_KEY, "key");
+            contentValues.put(DatabasePersistence.COLUMN_PRIORITY, NORMAL);
+            databaseManager.put(contentValues, DatabasePersistence.COLUMN_PRIORITY);
+        } finally {
+            databaseManager.close();
+        }
+
+        /* Upgrade, the log is read with its own encrypted token. */
+        DatabasePersistence persistence = new DatabasePersistence(sContext);
+        persistence.setLogSerializer(logSerializer);
+        try {
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test", Collections.<String>emptyList(), 1, outputLogs);
+            assertEquals(1, outputLogs.size());
+            assertEquals(Collections.singleton("key-secret"), outputLogs.get(0).getTransmissionTargetTokens());
+        } finally {
+            persistence.close();
+        }
+    }
+
     @Test
     public void upgradeFromVersion5to6() throws PersistenceException, JSONException {
 
@@ -1161,10 +2038,10 @@ public class DatabasePersistenceAndroidTest {
             assertEquals(1, outputLogs.size());
             assertEquals(commonSchemaLog, outputLogs.get(0));
 
-            /* Verify target token is encrypted. */
+            /* Verify target token is encrypted in the targets table. */
             ContentValues values = getContentValues(persistence, "test/one");
-            String token = values.getAsString(DatabasePersistence.COLUMN_TARGET_TOKEN);
-            assertNotNull(token);
+            assertNull(values.getAsString(DatabasePersistence.COLUMN_TARGET_TOKEN));
+            String token = getEncryptedTargetToken(persistence, values.getAsLong(DatabasePersistence.COLUMN_TARGET_ID));
             assertNotEquals("test-guid", token);
             assertEquals("test-guid", CryptoUtils.getInstance(sContext).decrypt(token).getDecryptedData());
 
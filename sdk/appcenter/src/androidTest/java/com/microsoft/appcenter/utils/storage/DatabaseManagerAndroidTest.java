@@ -9,6 +9,7 @@ import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 
@@ -278,6 +279,40 @@ public class DatabaseManagerAndroidTest {
         }
     }
 
+    @Test
+    public void performMaintenance() {
+
+        /* Get instance to access database. */
+        DatabaseManager databaseManager = new DatabaseManager(sContext, DATABASE_NAME, "databaseManager", 1, mSchema, CREATE_TEST_SQL, mock(DatabaseManager.Listener.class));
+
+        //noinspection TryFinallyCanBeTryWithResources (try with resources statement is API >= 19)
+        try {
+
+            /* New database is created with WAL and incremental auto vacuum. */
+            SQLiteDatabase db = databaseManager.getDatabase();
+            assertTrue(db.isWriteAheadLoggingEnabled());
+            assertEquals(DatabaseManager.AUTO_VACUUM_INCREMENTAL, DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+            assertEquals(DatabaseManager.PAGE_SIZE, db.getPageSize());
+
+            /* Fill pages then delete everything. */
+            for (int i = 0; i < 50; i++) {
+                ContentValues values = generateContentValues();
+                values.put("COL_BYTE_ARRAY", new byte[2048]);
+                assertTrue(databaseManager.put(values, "COL_INTEGER") >= 0);
+            }
+            databaseManager.clear();
+            assertTrue(DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) > 0);
+
+            /* Maintenance releases free pages. */
+            databaseManager.performMaintenance();
+            assertEquals(0, DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null));
+        } finally {
+
+            /* Close. */
+            databaseManager.close();
+        }
+    }
+
     @SuppressWarnings("TryFinallyCanBeTryWithResources")
     private boolean checkTableExists(DatabaseManager databaseManager, String tableName) {
         SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
@@ -27,6 +27,7 @@ import com.microsoft.appcenter.ingestion.models.json.DefaultLogSerializer;
 import com.microsoft.appcenter.ingestion.models.json.LogFactory;
 import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
 import com.microsoft.appcenter.ingestion.models.json.StartServiceLogFactory;
+import com.microsoft.appcenter.persistence.PersistenceStats;
 import com.microsoft.appcenter.utils.AppCenterLog;
 import com.microsoft.appcenter.utils.ApplicationLifecycleListener;
 import com.microsoft.appcenter.utils.DeviceInfoHelper;
@@ -211,6 +212,16 @@ public class AppCenter {
      */
     private long mMaxStorageSizeInBytes = DEFAULT_MAX_STORAGE_SIZE_IN_BYTES;
 
+    /**
+     * Number of logs buffered in memory before being written to storage, 0 if disabled.
+     */
+    private int mLogBufferSize;
+
+    /**
+     * True to store logs in segment files instead of the database.
+     */
+    private boolean mSegmentedFileStorageEnabled;
+
     /**
      * AppCenterFuture of set maximum storage size.
      */
@@ -489,6 +500,72 @@ public class AppCenter {
         return getInstance().setInstanceMaxStorageSizeAsync(storageSizeInBytes);
     }
 
+    /**
+     * Get statistics of the logs waiting in storage to be sent: number of logs, size, oldest and
+     * newest storage time per service group and per transmission target key, along with the number
+     * of logs deleted because storage was full or because they expired since the storage was created.
+     * Can be used to choose a value for {@link #setMaxStorageSize(long)}.
+     * <p>
+     * AppCenter must be configured or started before this API can be used.
+     *
+     * @return future with the statistics, or null if App Center is disabled or the storage does not support statistics.
+     * @see AppCenterFuture
+     */
+    public static AppCenterFuture<PersistenceStats> getStorageStats() {
+        return getInstance().getInstanceStorageStatsAsync();
+    }
+
+    /**
+     * Set the number of normal priority logs buffered in memory before being written to storage.
+     * Buffering reduces storage writes when many logs are tracked in bursts, but buffered logs
+     * are lost if the process is killed before they are written (within 1 second).
+     * Critical logs are never buffered. Buffering is disabled by default.
+     * Can only be called before AppCenter.start(...).
+     *
+     * @param logBufferSize number of logs to buffer, 0 to disable buffering.
+     */
+    public static void setLogBufferSize(@IntRange(from = 0) int logBufferSize) {
+        getInstance().setInstanceLogBufferSize(logBufferSize);
+    }
+
+    /**
+     * {@link #setLogBufferSize(int)} implementation at instance level.
+     */
+    private synchronized void setInstanceLogBufferSize(int logBufferSize) {
+        if (mHandler != null) {
+            AppCenterLog.error(LOG_TAG, "setLogBufferSize may not be called after App Center has been configured.");
+            return;
+        }
+        if (logBufferSize < 0) {
+            AppCenterLog.error(LOG_TAG, "Log buffer size cannot be negative.");
+            return;
+        }
+        mLogBufferSize = logBufferSize;
+    }
+
+    /**
+     * Store logs in append-only segment files instead of the SQLite database.
+     * Segment files reduce write costs when many logs are tracked, logs already stored in the
+     * other storage are not migrated. Disabled by default.
+     * Can only be called before AppCenter.start(...).
+     *
+     * @param enabled true to use segment files, false to use the database.
+     */
+    public static void setSegmentedFileStorageEnabled(boolean enabled) {
+        getInstance().setInstanceSegmentedFileStorageEnabled(enabled);
+    }
+
+    /**
+     * {@link #setSegmentedFileStorageEnabled(boolean)} implementation at instance level.
+     */
+    private synchronized void setInstanceSegmentedFileStorageEnabled(boolean enabled) {
+        if (mHandler != null) {
+            AppCenterLog.error(LOG_TAG, "setSegmentedFileStorageEnabled may not be called after App Center has been configured.");
+            return;
+        }
+        mSegmentedFileStorageEnabled = enabled;
+    }
+
     /**
      * {@link #setUserId(String)} implementation at instance level.
      */
@@ -851,7 +928,7 @@ public class AppCenter {
         /* Init channel. */
         mLogSerializer = new DefaultLogSerializer();
         mLogSerializer.addLogFactory(StartServiceLog.TYPE, new StartServiceLogFactory());
-        mChannel = new DefaultChannel(mApplication, mAppSecret, mLogSerializer, httpClient, mHandler);
+        mChannel = new DefaultChannel(mApplication, mAppSecret, mLogSerializer, httpClient, mHandler, mLogBufferSize, mSegmentedFileStorageEnabled);
 
         /* Complete set maximum storage size future if starting from app. */
         if (configureFromApp) {
@@ -1203,6 +1280,31 @@ public class AppCenter {
         return future;
     }
 
+    /**
+     * Implements {@link #getStorageStats()}.
+     */
+    private synchronized AppCenterFuture<PersistenceStats> getInstanceStorageStatsAsync() {
+        final DefaultAppCenterFuture<PersistenceStats> future = new DefaultAppCenterFuture<>();
+        if (checkPrecondition()) {
+            mAppCenterHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    future.complete(mChannel.getStorageStats());
+                }
+            }, new Runnable() {
+
+                @Override
+                public void run() {
+                    future.complete(null);
+                }
+            });
+        } else {
+            future.complete(null);
+        }
+        return future;
+    }
+
     /**
      * Set the user identifier for logs sent for the default target token when the secret
      * passed in {@link AppCenter#start(Application, String, Class[])} contains "target={targetToken}".
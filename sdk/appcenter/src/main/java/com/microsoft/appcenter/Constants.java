@@ -32,6 +32,12 @@ public class Constants {
      */
     static final int DEFAULT_TRIGGER_MAX_PARALLEL_REQUESTS = 3;
 
+    /**
+     * Maximum total size in bytes of the persisted logs sent in a single request.
+     * A log larger than this value is still sent, alone in its request.
+     */
+    public static final long DEFAULT_MAX_BYTES_PER_BATCH = 1024 * 1024;
+
     /**
      * Common schema prefix separator used in various field values.
      */
@@ -51,4 +51,8 @@ public class AbstractChannelListener implements Channel.Listener {
     @Override
     public void onResumed(@NonNull String groupName, String targetToken) {
     }
+
+    @Override
+    public void onBatchingUpdated(@NonNull String groupName, int maxLogsPerBatch, int maxParallelBatches, long roundTripTime, float failureRate) {
+    }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Adjusts the batch size and the number of parallel batches of a group from the outcome of each
+ * ingestion call, using additive increase and multiplicative decrease.
+ * <p>
+ * Fast and full batches grow the limits, slow or failed batches halve them.
+ */
+class AdaptiveBatchController {
+
+    /**
+     * Round trip time (in ms) under which a batch is considered fast.
+     */
+    @VisibleForTesting
+    static final long FAST_ROUND_TRIP_TIME = 2000;
+
+    /**
+     * Round trip time (in ms) from which a batch is considered slow.
+     */
+    @VisibleForTesting
+    static final long SLOW_ROUND_TRIP_TIME = 10000;
+
+    /**
+     * Factor applied to the configured log count per batch to get the upper bound.
+     */
+    @VisibleForTesting
+    static final int MAX_LOGS_PER_BATCH_FACTOR = 10;
+
+    /**
+     * Failure rate above which parallelism is not increased.
+     */
+    @VisibleForTesting
+    static final float MAX_FAILURE_RATE_TO_INCREASE_PARALLELISM = 0.1f;
+
+    /**
+     * Weight of the last call in the smoothed failure rate.
+     */
+    private static final float FAILURE_RATE_SMOOTHING = 0.2f;
+
+    /**
+     * Configured log count per batch.
+     */
+    private final int mConfiguredMaxLogsPerBatch;
+
+    /**
+     * Upper bound of log count per batch.
+     */
+    private final int mMaxLogsPerBatchUpperBound;
+
+    /**
+     * Upper bound of parallel batches.
+     */
+    private final int mMaxParallelBatchesUpperBound;
+
+    /**
+     * Log count added to the limit after a fast batch.
+     */
+    private final int mLogsPerBatchIncrement;
+
+    /**
+     * Current maximum log count per batch.
+     */
+    private int mMaxLogsPerBatch;
+
+    /**
+     * Current maximum number of batches in parallel.
+     */
+    private int mMaxParallelBatches;
+
+    /**
+     * Smoothed failure rate, between 0 and 1.
+     */
+    private float mFailureRate;
+
+    /**
+     * Round trip time of the last ingestion call, in ms.
+     */
+    private long mLastRoundTripTime;
+
+    /**
+     * Init with the configured values of the group, used as starting point.
+     *
+     * @param maxLogsPerBatch    configured maximum log count per batch.
+     * @param maxParallelBatches configured maximum number of batches in parallel, also used as upper bound.
+     */
+    AdaptiveBatchController(int maxLogsPerBatch, int maxParallelBatches) {
+        mMaxLogsPerBatch = Math.max(1, maxLogsPerBatch);
+        mMaxParallelBatches = Math.max(1, maxParallelBatches);
+        mConfiguredMaxLogsPerBatch = mMaxLogsPerBatch;
+        mMaxLogsPerBatchUpperBound = mMaxLogsPerBatch * MAX_LOGS_PER_BATCH_FACTOR;
+        mMaxParallelBatchesUpperBound = mMaxParallelBatches;
+        mLogsPerBatchIncrement = Math.max(1, mMaxLogsPerBatch / 2);
+    }
+
+    /**
+     * Get the maximum log count to use for the next batch.
+     *
+     * @return maximum log count per batch.
+     */
+    int getMaxLogsPerBatch() {
+        return mMaxLogsPerBatch;
+    }
+
+    /**
+     * Get the maximum number of batches to send in parallel.
+     *
+     * @return maximum number of batches in parallel.
+     */
+    int getMaxParallelBatches() {
+        return mMaxParallelBatches;
+    }
+
+    /**
+     * Get the smoothed failure rate.
+     *
+     * @return failure rate between 0 and 1.
+     */
+    float getFailureRate() {
+        return mFailureRate;
+    }
+
+    /**
+     * Get the round trip time of the last ingestion call.
+     *
+     * @return round trip time in ms.
+     */
+    long getLastRoundTripTime() {
+        return mLastRoundTripTime;
+    }
+
+    /**
+     * Update limits after a batch was sent successfully.
+     *
+     * @param batchSize     log count of the batch.
+     * @param roundTripTime time between sending the batch and receiving the response, in ms.
+     */
+    void onBatchSucceeded(int batchSize, long roundTripTime) {
+        mLastRoundTripTime = roundTripTime;
+        mFailureRate *= 1 - FAILURE_RATE_SMOOTHING;
+        if (roundTripTime >= SLOW_ROUND_TRIP_TIME) {
+            decrease();
+        } else if (roundTripTime <= FAST_ROUND_TRIP_TIME && batchSize >= mMaxLogsPerBatch) {
+
+            /* Only a full batch tells that the network can handle more. */
+            mMaxLogsPerBatch = Math.min(mMaxLogsPerBatchUpperBound, mMaxLogsPerBatch + mLogsPerBatchIncrement);
+            if (mFailureRate <= MAX_FAILURE_RATE_TO_INCREASE_PARALLELISM) {
+                mMaxParallelBatches = Math.min(mMaxParallelBatchesUpperBound, mMaxParallelBatches + 1);
+            }
+        }
+    }
+
+    /**
+     * Update limits after a batch failed to be sent.
+     *
+     * @param roundTripTime time between sending the batch and receiving the failure, in ms.
+     */
+    void onBatchFailed(long roundTripTime) {
+        mLastRoundTripTime = roundTripTime;
+        mFailureRate = mFailureRate * (1 - FAILURE_RATE_SMOOTHING) + FAILURE_RATE_SMOOTHING;
+        decrease();
+    }
+
+    /**
+     * Restore the configured limits and forget past observations.
+     */
+    void reset() {
+        mMaxLogsPerBatch = mConfiguredMaxLogsPerBatch;
+        mMaxParallelBatches = mMaxParallelBatchesUpperBound;
+        mFailureRate = 0;
+        mLastRoundTripTime = 0;
+    }
+
+    private void decrease() {
+        mMaxLogsPerBatch = Math.max(1, mMaxLogsPerBatch / 2);
+        mMaxParallelBatches = Math.max(1, mMaxParallelBatches / 2);
+    }
+}
@@ -7,9 +7,13 @@ package com.microsoft.appcenter.channel;
 
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.microsoft.appcenter.ingestion.Ingestion;
 import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.persistence.PersistenceStats;
+
+import java.util.List;
 
 import static com.microsoft.appcenter.Flags.CRITICAL;
 import static com.microsoft.appcenter.Flags.NORMAL;
@@ -35,6 +39,14 @@ public interface Channel {
      */
     boolean setMaxStorageSize(long maxStorageSizeInBytes);
 
+    /**
+     * Get statistics of the stored logs.
+     *
+     * @return statistics per group and target key, or null if the storage does not support them.
+     */
+    @Nullable
+    PersistenceStats getStorageStats();
+
     /**
      * Add a group for logs to be persisted and sent.
      *
@@ -47,6 +59,35 @@ public interface Channel {
      */
     void addGroup(String groupName, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, Ingestion ingestion, GroupListener groupListener);
 
+    /**
+     * Add a group for logs to be persisted and sent, with a size budget per batch.
+     *
+     * @param groupName          the name of a group.
+     * @param maxLogsPerBatch    maximum log count per batch.
+     * @param maxBytesPerBatch   maximum total size in bytes of the persisted logs per batch, a batch always contains at least one log.
+     * @param batchTimeInterval  time interval for a next batch.
+     * @param maxParallelBatches maximum number of batches in parallel.
+     * @param ingestion          ingestion for the channel. If null then the default ingestion will be used.
+     * @param groupListener      a listener for a service.
+     */
+    void addGroup(String groupName, int maxLogsPerBatch, long maxBytesPerBatch, long batchTimeInterval, int maxParallelBatches, Ingestion ingestion, GroupListener groupListener);
+
+    /**
+     * Add a group for logs to be persisted and sent, with a size budget per batch and an expiry for stored logs.
+     * Expired logs are deleted when the group is idle, and reported to {@link GroupListener#onFailure(Log, Exception)}
+     * with a {@link LogExpiredException}.
+     *
+     * @param groupName          the name of a group.
+     * @param maxLogsPerBatch    maximum log count per batch.
+     * @param maxBytesPerBatch   maximum total size in bytes of the persisted logs per batch, a batch always contains at least one log.
+     * @param batchTimeInterval  time interval for a next batch.
+     * @param maxParallelBatches maximum number of batches in parallel.
+     * @param logTimeToLive      time in ms after which a stored log that was not sent is deleted, 0 to keep logs until sent.
+     * @param ingestion          ingestion for the channel. If null then the default ingestion will be used.
+     * @param groupListener      a listener for a service.
+     */
+    void addGroup(String groupName, int maxLogsPerBatch, long maxBytesPerBatch, long batchTimeInterval, int maxParallelBatches, long logTimeToLive, Ingestion ingestion, GroupListener groupListener);
+
     /**
      * Remove a group for logs.
      *
@@ -81,6 +122,18 @@ public interface Channel {
                  @NonNull String groupName,
                  @IntRange(from = NORMAL, to = CRITICAL) int flags);
 
+    /**
+     * Add logs to queue to be persisted and sent. Logs are persisted in a single operation
+     * and ingestion is scheduled once for the whole list.
+     *
+     * @param logs      the logs to be enqueued.
+     * @param groupName the group to use.
+     * @param flags     the flags for these logs.
+     */
+    void enqueueAll(@NonNull List<Log> logs,
+                    @NonNull String groupName,
+                    @IntRange(from = NORMAL, to = CRITICAL) int flags);
+
     /**
      * Check whether channel is enabled or disabled.
      *
@@ -219,6 +272,17 @@ public interface Channel {
          * @param targetToken The target token is resumed, or null when the entire group is resumed.
          */
         void onResumed(@NonNull String groupName, String targetToken);
+
+        /**
+         * Called when the batching limits of a group have been updated after an ingestion call.
+         *
+         * @param groupName          The group name.
+         * @param maxLogsPerBatch    The maximum log count of the next batches.
+         * @param maxParallelBatches The maximum number of batches sent in parallel.
+         * @param roundTripTime      The round trip time of the last ingestion call, in milliseconds.
+         * @param failureRate        The smoothed ingestion failure rate, between 0 and 1.
+         */
+        void onBatchingUpdated(@NonNull String groupName, int maxLogsPerBatch, int maxParallelBatches, long roundTripTime, float failureRate);
     }
 
     /**
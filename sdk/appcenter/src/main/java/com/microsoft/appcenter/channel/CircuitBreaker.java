@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker stopping the ingestion of a group after a recoverable failure.
+ * <p>
+ * The circuit opens after a failure, then allows a single probe batch once the backoff elapsed.
+ * The probe closes the circuit on success or reopens it with a doubled backoff on failure.
+ */
+class CircuitBreaker {
+
+    /**
+     * Backoff after the first failure, in ms.
+     */
+    @VisibleForTesting
+    static final long INITIAL_BACKOFF = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Maximum backoff, in ms.
+     */
+    @VisibleForTesting
+    static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * Closed state: batches are sent normally.
+     */
+    @VisibleForTesting
+    static final int CLOSED = 0;
+
+    /**
+     * Open state: no batch is sent until the backoff elapsed.
+     */
+    @VisibleForTesting
+    static final int OPEN = 1;
+
+    /**
+     * Half open state: a single probe batch is being sent.
+     */
+    @VisibleForTesting
+    static final int HALF_OPEN = 2;
+
+    /**
+     * Current state.
+     */
+    private int mState = CLOSED;
+
+    /**
+     * Backoff to use on next failure.
+     */
+    private long mBackoff = INITIAL_BACKOFF;
+
+    /**
+     * Time at which the circuit can be half opened, in ms.
+     */
+    private long mRetryTime;
+
+    /**
+     * Get the current state.
+     *
+     * @return {@link #CLOSED}, {@link #OPEN} or {@link #HALF_OPEN}.
+     */
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * Check if a batch can be sent, either because the circuit is closed or because the backoff
+     * elapsed and a probe can be sent.
+     *
+     * @param now current time in ms.
+     * @return true if a batch can be sent.
+     */
+    boolean allowRequest(long now) {
+        return mState == CLOSED || (mState == OPEN && now >= mRetryTime);
+    }
+
+    /**
+     * Notify that a batch is being sent. If the circuit was open, this batch is the probe
+     * and no other batch is allowed until its result.
+     */
+    void onRequestSent() {
+        if (mState == OPEN) {
+            mState = HALF_OPEN;
+        }
+    }
+
+    /**
+     * Get the remaining time before a probe can be sent.
+     *
+     * @param now current time in ms.
+     * @return delay in ms, 0 if not waiting.
+     */
+    long getRetryDelay(long now) {
+        return mState == OPEN ? Math.max(0, mRetryTime - now) : 0;
+    }
+
+    /**
+     * Close the circuit after a batch was sent successfully.
+     */
+    void onSuccess() {
+        mState = CLOSED;
+        mBackoff = INITIAL_BACKOFF;
+    }
+
+    /**
+     * Open the circuit after a recoverable failure.
+     *
+     * @param now current time in ms.
+     * @return delay in ms before a probe can be sent.
+     */
+    long onFailure(long now) {
+        long delay;
+
+        /* Don't increase the backoff for batches that were already in flight when the circuit opened. */
+        if (mState == OPEN) {
+            delay = Math.max(0, mRetryTime - now);
+        } else {
+            delay = mBackoff;
+            mBackoff = Math.min(MAX_BACKOFF, mBackoff * 2);
+            mRetryTime = now + delay;
+            mState = OPEN;
+        }
+        return delay;
+    }
+
+    /**
+     * Close the circuit and forget past failures.
+     */
+    void reset() {
+        mState = CLOSED;
+        mBackoff = INITIAL_BACKOFF;
+        mRetryTime = 0;
+    }
+}
@@ -9,6 +9,7 @@ import android.content.Context;
 import android.os.Handler;
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 
@@ -24,8 +25,11 @@ import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.ingestion.models.LogContainer;
 import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
 import com.microsoft.appcenter.ingestion.models.one.PartAUtils;
+import com.microsoft.appcenter.persistence.BufferedPersistence;
 import com.microsoft.appcenter.persistence.DatabasePersistence;
 import com.microsoft.appcenter.persistence.Persistence;
+import com.microsoft.appcenter.persistence.PersistenceStats;
+import com.microsoft.appcenter.persistence.SegmentedFilePersistence;
 import com.microsoft.appcenter.utils.AppCenterLog;
 import com.microsoft.appcenter.utils.DeviceInfoHelper;
 import com.microsoft.appcenter.utils.IdHelper;
@@ -46,11 +50,12 @@ import java.util.Set;
 import java.util.UUID;
 
 import static com.microsoft.appcenter.AppCenter.LOG_TAG;
+import static com.microsoft.appcenter.Constants.DEFAULT_MAX_BYTES_PER_BATCH;
 
 public class DefaultChannel implements Channel {
 
     /**
-     * Persistence batch size for {@link Persistence#getLogs(String, Collection, int, List)} when clearing.
+     * Persistence batch size for {@link Persistence#getLogs(String, Collection, int, long, List)} when clearing.
      */
     @VisibleForTesting
     static final int CLEAR_BATCH_SIZE = 100;
@@ -66,6 +71,18 @@ public class DefaultChannel implements Channel {
      */
     private static final long MINIMUM_TRANSMISSION_INTERVAL = 3000;
 
+    /**
+     * Minimum interval between 2 deletions of expired logs of a group, in ms.
+     */
+    @VisibleForTesting
+    static final long EXPIRED_LOGS_PURGE_INTERVAL = 60 * 1000;
+
+    /**
+     * Time without logs being stored or deleted before storage maintenance runs, in ms.
+     */
+    @VisibleForTesting
+    static final long STORAGE_MAINTENANCE_IDLE_DELAY = 30 * 1000;
+
     /**
      * Application context.
      */
@@ -127,12 +144,38 @@ public class DefaultChannel implements Channel {
      */
     private Device mDevice;
 
+    /**
+     * Log serializer, whose serialized devices are invalidated with device properties. Null when persistence is injected.
+     */
+    private LogSerializer mLogSerializer;
+
     /**
      * State checker. If this counter changes during an async call, we have to ignore the result in the callback.
      * Cancelling a database call would be unreliable, and if it's too fast you could still have the callback being called.
      */
     private int mCurrentState;
 
+    /**
+     * Time logs were last stored or deleted, in ms.
+     */
+    private long mLastStorageActivityTime;
+
+    /**
+     * True if storage maintenance is scheduled.
+     */
+    private boolean mStorageMaintenanceScheduled;
+
+    /**
+     * Storage maintenance, runs once storage has been idle for {@link #STORAGE_MAINTENANCE_IDLE_DELAY}.
+     */
+    private final Runnable mStorageMaintenanceRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            performStorageMaintenance();
+        }
+    };
+
     /**
      * Creates and initializes a new instance.
      *
@@ -143,7 +186,37 @@ public class DefaultChannel implements Channel {
      * @param appCenterHandler App Center looper thread handler.
      */
     public DefaultChannel(@NonNull Context context, String appSecret, @NonNull LogSerializer logSerializer, @NonNull HttpClient httpClient, @NonNull Handler appCenterHandler) {
-        this(context, appSecret, buildDefaultPersistence(context, logSerializer), new AppCenterIngestion(httpClient, logSerializer), appCenterHandler);
+        this(context, appSecret, logSerializer, httpClient, appCenterHandler, 0);
+    }
+
+    /**
+     * Creates and initializes a new instance.
+     *
+     * @param context          The context.
+     * @param appSecret        The application secret.
+     * @param logSerializer    The log serializer.
+     * @param httpClient       The HTTP client instance.
+     * @param appCenterHandler App Center looper thread handler.
+     * @param logBufferSize    Number of normal priority logs to buffer in memory before writing them to storage, 0 to disable buffering.
+     */
+    public DefaultChannel(@NonNull Context context, String appSecret, @NonNull LogSerializer logSerializer, @NonNull HttpClient httpClient, @NonNull Handler appCenterHandler, int logBufferSize) {
+        this(context, appSecret, logSerializer, httpClient, appCenterHandler, logBufferSize, false);
+    }
+
+    /**
+     * Creates and initializes a new instance.
+     *
+     * @param context              The context.
+     * @param appSecret            The application secret.
+     * @param logSerializer        The log serializer.
+     * @param httpClient           The HTTP client instance.
+     * @param appCenterHandler     App Center looper thread handler.
+     * @param logBufferSize        Number of normal priority logs to buffer in memory before writing them to storage, 0 to disable buffering.
+     * @param segmentedFileStorage True to store logs in segment files instead of the database.
+     */
+    public DefaultChannel(@NonNull Context context, String appSecret, @NonNull LogSerializer logSerializer, @NonNull HttpClient httpClient, @NonNull Handler appCenterHandler, int logBufferSize, boolean segmentedFileStorage) {
+        this(context, appSecret, buildDefaultPersistence(context, logSerializer, appCenterHandler, logBufferSize, segmentedFileStorage), new AppCenterIngestion(httpClient, logSerializer), appCenterHandler);
+        mLogSerializer = logSerializer;
     }
 
     /**
@@ -168,13 +241,27 @@ public class DefaultChannel implements Channel {
         mIngestions.add(mIngestion);
         mAppCenterHandler = appCenterHandler;
         mEnabled = true;
+
+        /* Buffered logs are counted as pending before being written, correct that if the write fails. */
+        if (persistence instanceof BufferedPersistence) {
+            ((BufferedPersistence) persistence).setWriteFailureListener(new BufferedPersistence.WriteFailureListener() {
+
+                @Override
+                public void onWriteFailure(@NonNull String group, @NonNull Log log) {
+                    failBufferedLog(group, log);
+                }
+            });
+        }
     }
 
     /**
      * Init Persistence for default constructor.
      */
-    private static Persistence buildDefaultPersistence(@NonNull Context context, @NonNull LogSerializer logSerializer) {
-        Persistence persistence = new DatabasePersistence(context);
+    private static Persistence buildDefaultPersistence(@NonNull Context context, @NonNull LogSerializer logSerializer, @NonNull Handler appCenterHandler, int logBufferSize, boolean segmentedFileStorage) {
+        Persistence persistence = segmentedFileStorage ? new SegmentedFilePersistence(context) : new DatabasePersistence(context);
+        if (logBufferSize > 0) {
+            persistence = new BufferedPersistence(persistence, appCenterHandler, logBufferSize);
+        }
         persistence.setLogSerializer(logSerializer);
         return persistence;
     }
@@ -185,6 +272,13 @@ public class DefaultChannel implements Channel {
         return mPersistence.setMaxStorageSize(maxStorageSizeInBytes);
     }
 
+    @WorkerThread
+    @Nullable
+    @Override
+    public PersistenceStats getStorageStats() {
+        return mPersistence.getStats();
+    }
+
     /**
      * Call this after every async (such as database/ingestion) callback and stop processing if it returns false.
      * That means either the groupState was removed (or removed/added again),
@@ -217,13 +311,23 @@ public class DefaultChannel implements Channel {
     }
 
     @Override
-    public void addGroup(final String groupName, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, Ingestion ingestion, GroupListener groupListener) {
+    public void addGroup(String groupName, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, Ingestion ingestion, GroupListener groupListener) {
+        addGroup(groupName, maxLogsPerBatch, DEFAULT_MAX_BYTES_PER_BATCH, batchTimeInterval, maxParallelBatches, ingestion, groupListener);
+    }
+
+    @Override
+    public void addGroup(String groupName, int maxLogsPerBatch, long maxBytesPerBatch, long batchTimeInterval, int maxParallelBatches, Ingestion ingestion, GroupListener groupListener) {
+        addGroup(groupName, maxLogsPerBatch, maxBytesPerBatch, batchTimeInterval, maxParallelBatches, 0, ingestion, groupListener);
+    }
+
+    @Override
+    public void addGroup(final String groupName, int maxLogsPerBatch, long maxBytesPerBatch, long batchTimeInterval, int maxParallelBatches, long logTimeToLive, Ingestion ingestion, GroupListener groupListener) {
 
         /* Init group. */
         AppCenterLog.debug(LOG_TAG, "addGroup(" + groupName + ")");
         ingestion = ingestion == null ? mIngestion : ingestion;
         mIngestions.add(ingestion);
-        final GroupState groupState = new GroupState(groupName, maxLogsPerBatch, batchTimeInterval, maxParallelBatches, ingestion, groupListener);
+        final GroupState groupState = new GroupState(groupName, maxLogsPerBatch, maxBytesPerBatch, batchTimeInterval, maxParallelBatches, logTimeToLive, ingestion, groupListener);
         mGroupStates.put(groupName, groupState);
 
         /* Count pending logs. */
@@ -292,13 +396,11 @@ public class DefaultChannel implements Channel {
 
                     /*
                      * Log count can be 0 in memory because of the partial pause, but we might have
-                     * logs in storage for this key, a simple fix is to reevaluate log count and check
-                     * for logs again. This might create a batch with fewer logs than expected as
-                     * the log count does not exclude logs with paused keys, this would be an optimization
-                     * that does not seem necessary for now.
+                     * logs in storage for this key, so reevaluate log count and check for logs again.
+                     * Logs of keys that are still paused are not counted.
                      */
                     AppCenterLog.debug(LOG_TAG, "resumeGroup(" + groupName + ", " + targetKey + ")");
-                    groupState.mPendingLogCount = mPersistence.countLogs(groupName);
+                    groupState.mPendingLogCount = mPersistence.countLogs(groupName, groupState.mPausedTargetKeys);
                     checkPendingLogs(groupState);
                 }
             } else if (groupState.mPaused) {
@@ -339,6 +441,10 @@ public class DefaultChannel implements Channel {
                 ingestion.reopen();
             }
             for (GroupState groupState : mGroupStates.values()) {
+
+                /* Network conditions observed before suspending are outdated. */
+                groupState.mBatchController.reset();
+                groupState.mCircuitBreaker.reset();
                 checkPendingLogs(groupState);
             }
         } else {
@@ -369,6 +475,7 @@ public class DefaultChannel implements Channel {
         }
         AppCenterLog.debug(LOG_TAG, "clear(" + groupName + ")");
         mPersistence.deleteLogs(groupName);
+        scheduleStorageMaintenance();
 
         /* Call listeners so that they can react on group clearing. */
         for (Listener listener : mListeners) {
@@ -379,6 +486,9 @@ public class DefaultChannel implements Channel {
     @Override
     public void invalidateDeviceCache() {
         mDevice = null;
+        if (mLogSerializer != null) {
+            mLogSerializer.invalidateDeviceCache();
+        }
     }
 
     /**
@@ -394,13 +504,13 @@ public class DefaultChannel implements Channel {
             cancelTimer(groupState);
 
             /* Delete all other batches and call callback method that are currently in progress. */
-            for (Iterator<Map.Entry<String, List<Log>>> iterator = groupState.mSendingBatches.entrySet().iterator(); iterator.hasNext(); ) {
-                Map.Entry<String, List<Log>> entry = iterator.next();
+            for (Iterator<Map.Entry<String, LogContainer>> iterator = groupState.mSendingBatches.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, LogContainer> entry = iterator.next();
                 iterator.remove();
                 if (deleteLogs) {
                     GroupListener groupListener = groupState.mListener;
-                    if (groupListener != null) {
-                        for (Log log : entry.getValue()) {
+                    if (groupListener != null && entry.getValue().getLogs() != null) {
+                        for (Log log : entry.getValue().getLogs()) {
                             groupListener.onFailure(log, exception);
                         }
                     }
@@ -425,7 +535,7 @@ public class DefaultChannel implements Channel {
 
     private void deleteLogsOnSuspended(final GroupState groupState) {
         final List<Log> logs = new ArrayList<>();
-        mPersistence.getLogs(groupState.mName, Collections.<String>emptyList(), CLEAR_BATCH_SIZE, logs);
+        mPersistence.getLogs(groupState.mName, Collections.<String>emptyList(), CLEAR_BATCH_SIZE, Long.MAX_VALUE, logs);
         if (logs.size() > 0 && groupState.mListener != null) {
             for (Log log : logs) {
                 groupState.mListener.onBeforeSending(log);
@@ -436,6 +546,7 @@ public class DefaultChannel implements Channel {
             deleteLogsOnSuspended(groupState);
         } else {
             mPersistence.deleteLogs(groupState.mName);
+            scheduleStorageMaintenance();
         }
     }
 
@@ -464,23 +575,62 @@ public class DefaultChannel implements Channel {
             AppCenterLog.debug(LOG_TAG, "SDK is in offline mode.");
             return;
         }
+
+        /* Wait for the circuit breaker backoff if the ingestion of this group is failing. */
+        long now = System.currentTimeMillis();
+        if (!groupState.mCircuitBreaker.allowRequest(now)) {
+            long retryDelay = groupState.mCircuitBreaker.getRetryDelay(now);
+            AppCenterLog.debug(LOG_TAG, "Ingestion of " + groupState.mName + " is failing, next try in " + retryDelay + " ms.");
+            if (retryDelay > 0 && !groupState.mScheduled) {
+                groupState.mScheduled = true;
+                mAppCenterHandler.postDelayed(groupState.mRunnable, retryDelay);
+            }
+            return;
+        }
         int pendingLogCount = groupState.mPendingLogCount;
-        int maxFetch = Math.min(pendingLogCount, groupState.mMaxLogsPerBatch);
+        int maxFetch = Math.min(pendingLogCount, groupState.mBatchController.getMaxLogsPerBatch());
         AppCenterLog.debug(LOG_TAG, "triggerIngestion(" + groupState.mName + ") pendingLogCount=" + pendingLogCount);
         cancelTimer(groupState);
 
         /* Check if we have reached the maximum number of pending batches, log to LogCat and don't trigger another sending. */
-        if (groupState.mSendingBatches.size() == groupState.mMaxParallelBatches) {
-            AppCenterLog.debug(LOG_TAG, "Already sending " + groupState.mMaxParallelBatches + " batches of analytics data to the server.");
+        int maxParallelBatches = groupState.mBatchController.getMaxParallelBatches();
+        if (groupState.mSendingBatches.size() >= maxParallelBatches) {
+            AppCenterLog.debug(LOG_TAG, "Already sending " + maxParallelBatches + " batches of analytics data to the server.");
             return;
         }
 
-        /* Get a batch from Persistence. */
-        final List<Log> batch = new ArrayList<>(maxFetch);
-        final String batchId = mPersistence.getLogs(groupState.mName, groupState.mPausedTargetKeys, maxFetch, batch);
+        /*
+         * Get a batch from Persistence. When no listener needs the logs, the stored payloads are
+         * spliced in the request body without deserializing them. Otherwise the stored payloads
+         * are still sent as is along with the logs, so that they are not serialized again.
+         */
+        LogContainer logContainer = new LogContainer();
+        String batchId;
+        int batchSize;
+        if (isRawBatchEnabled(groupState)) {
+            List<String> rawBatch = new ArrayList<>(maxFetch);
+            batchId = mPersistence.getRawLogs(groupState.mName, groupState.mPausedTargetKeys, maxFetch, groupState.mMaxBytesPerBatch, rawBatch);
+            logContainer.setRawLogs(rawBatch);
+            batchSize = rawBatch.size();
+        } else if (mPersistence.isRawLogsSupported()) {
+            List<Log> batch = new ArrayList<>(maxFetch);
+            List<String> rawBatch = new ArrayList<>(maxFetch);
+            batchId = mPersistence.getLogsWithPayloads(groupState.mName, groupState.mPausedTargetKeys, maxFetch, groupState.mMaxBytesPerBatch, batch, rawBatch);
+            logContainer.setLogs(batch);
+            logContainer.setRawLogs(rawBatch);
+            batchSize = batch.size();
+        } else {
+            List<Log> batch = new ArrayList<>(maxFetch);
+            batchId = mPersistence.getLogs(groupState.mName, groupState.mPausedTargetKeys, maxFetch, groupState.mMaxBytesPerBatch, batch);
+            logContainer.setLogs(batch);
+            batchSize = batch.size();
+        }
 
-        /* Decrement counter. */
-        groupState.mPendingLogCount -= maxFetch;
+        /*
+         * Decrement counter. If the batch was cut by the byte budget, the remaining logs are still pending.
+         * If nothing was returned, pending logs were either paused or not readable.
+         */
+        groupState.mPendingLogCount -= batchSize == 0 ? maxFetch : Math.min(batchSize, maxFetch);
 
         /* Nothing more to do if no logs. */
         if (batchId == null) {
@@ -490,14 +640,37 @@ public class DefaultChannel implements Channel {
 
         /* Call group listener before sending logs to ingestion service. */
         if (groupState.mListener != null) {
-            for (Log log : batch) {
+            for (Log log : logContainer.getLogs()) {
                 groupState.mListener.onBeforeSending(log);
             }
         }
 
         /* Remember this batch. */
-        groupState.mSendingBatches.put(batchId, batch);
-        sendLogs(groupState, mCurrentState, batch, batchId);
+        groupState.mCircuitBreaker.onRequestSent();
+        groupState.mSendingBatches.put(batchId, logContainer);
+        sendLogs(groupState, mCurrentState, logContainer, batchId);
+    }
+
+    /**
+     * Check whether logs of a group can be sent as stored, without materializing {@link Log} objects.
+     * This requires a persistence able to return stored payloads, no group listener (as it needs the logs)
+     * and the App Center ingestion (other ingestions read logs, e.g. for headers).
+     *
+     * @param groupState the group state.
+     * @return true to send stored payloads, false to send logs.
+     */
+    private boolean isRawBatchEnabled(@NonNull GroupState groupState) {
+        return groupState.mListener == null && groupState.mIngestion == mIngestion && mPersistence.isRawLogsSupported();
+    }
+
+    /**
+     * Get the number of logs in a batch.
+     *
+     * @param logContainer the batch.
+     * @return the number of logs.
+     */
+    private static int getLogCount(@NonNull LogContainer logContainer) {
+        return logContainer.getRawLogs() != null ? logContainer.getRawLogs().size() : logContainer.getLogs().size();
     }
 
     /**
@@ -505,35 +678,36 @@ public class DefaultChannel implements Channel {
      *
      * @param groupState   The group state.
      * @param currentState The current state.
-     * @param batch        The log batch.
+     * @param logContainer The log batch.
      * @param batchId      The batch ID.
      */
     @MainThread
-    private void sendLogs(final GroupState groupState, final int currentState, List<Log> batch, final String batchId) {
+    private void sendLogs(final GroupState groupState, final int currentState, LogContainer logContainer, final String batchId) {
 
         /* Send logs. */
-        LogContainer logContainer = new LogContainer();
-        logContainer.setLogs(batch);
+        final long sendTime = System.currentTimeMillis();
         groupState.mIngestion.sendAsync(mAppSecret, mInstallId, logContainer, new ServiceCallback() {
 
             @Override
             public void onCallSucceeded(HttpResponse httpResponse) {
+                final long roundTripTime = System.currentTimeMillis() - sendTime;
                 mAppCenterHandler.post(new Runnable() {
 
                     @Override
                     public void run() {
-                        handleSendingSuccess(groupState, batchId);
+                        handleSendingSuccess(groupState, batchId, roundTripTime);
                     }
                 });
             }
 
             @Override
             public void onCallFailed(final Exception e) {
+                final long roundTripTime = System.currentTimeMillis() - sendTime;
                 mAppCenterHandler.post(new Runnable() {
 
                     @Override
                     public void run() {
-                        handleSendingFailure(groupState, batchId, e);
+                        handleSendingFailure(groupState, batchId, roundTripTime, e);
                     }
                 });
             }
@@ -558,16 +732,21 @@ public class DefaultChannel implements Channel {
     /**
      * The actual implementation to react to sending a batch to the server successfully.
      *
-     * @param groupState The group state.
-     * @param batchId    The batch ID.
+     * @param groupState    The group state.
+     * @param batchId       The batch ID.
+     * @param roundTripTime The time it took to send the batch, in ms.
      */
-    private void handleSendingSuccess(@NonNull GroupState groupState, @NonNull String batchId) {
-        List<Log> removedLogsForBatchId = groupState.mSendingBatches.remove(batchId);
+    private void handleSendingSuccess(@NonNull GroupState groupState, @NonNull String batchId, long roundTripTime) {
+        LogContainer removedLogsForBatchId = groupState.mSendingBatches.remove(batchId);
         if (removedLogsForBatchId != null) {
+            groupState.mCircuitBreaker.onSuccess();
+            groupState.mBatchController.onBatchSucceeded(getLogCount(removedLogsForBatchId), roundTripTime);
+            notifyBatchingUpdated(groupState);
             mPersistence.deleteLogs(groupState.mName, batchId);
+            scheduleStorageMaintenance();
             GroupListener groupListener = groupState.mListener;
-            if (groupListener != null) {
-                for (Log log : removedLogsForBatchId) {
+            if (groupListener != null && removedLogsForBatchId.getLogs() != null) {
+                for (Log log : removedLogsForBatchId.getLogs()) {
                     groupListener.onSuccess(log);
                 }
             }
@@ -577,31 +756,57 @@ public class DefaultChannel implements Channel {
 
     /**
      * The actual implementation to react to not being able to send a batch to the server.
-     * Will disable the sender in case of a recoverable error.
-     * Will delete batch of data in case of a non-recoverable error.
+     * Will stop sending logs of the group for a while in case of a recoverable error.
+     * Will disable the sender and delete data in case of a non-recoverable error.
      *
-     * @param groupState the group state
-     * @param batchId    the batch ID
-     * @param e          the exception
+     * @param groupState    the group state
+     * @param batchId       the batch ID
+     * @param roundTripTime the time it took to fail sending the batch, in ms
+     * @param e             the exception
      */
-    private void handleSendingFailure(@NonNull GroupState groupState, @NonNull String batchId, @NonNull Exception e) {
+    private void handleSendingFailure(@NonNull GroupState groupState, @NonNull String batchId, long roundTripTime, @NonNull Exception e) {
         String groupName = groupState.mName;
-        List<Log> removedLogsForBatchId = groupState.mSendingBatches.remove(batchId);
+        LogContainer removedLogsForBatchId = groupState.mSendingBatches.remove(batchId);
         if (removedLogsForBatchId != null) {
             AppCenterLog.error(LOG_TAG, "Sending logs groupName=" + groupName + " id=" + batchId + " failed", e);
-            boolean recoverableError = HttpUtils.isRecoverableError(e);
-            if (recoverableError) {
-                groupState.mPendingLogCount += removedLogsForBatchId.size();
+            groupState.mBatchController.onBatchFailed(roundTripTime);
+            notifyBatchingUpdated(groupState);
+            if (HttpUtils.isRecoverableError(e)) {
+
+                /* Only stop this group: release the logs and wait before probing ingestion again. */
+                groupState.mPendingLogCount += getLogCount(removedLogsForBatchId);
+                mPersistence.clearPendingLogState(groupName, batchId);
+                long retryDelay = groupState.mCircuitBreaker.onFailure(System.currentTimeMillis());
+                AppCenterLog.warn(LOG_TAG, "Ingestion of " + groupName + " suspended for " + retryDelay + " ms.");
+                cancelTimer(groupState);
+                groupState.mScheduled = true;
+                mAppCenterHandler.postDelayed(groupState.mRunnable, retryDelay);
             } else {
                 GroupListener groupListener = groupState.mListener;
-                if (groupListener != null) {
-                    for (Log log : removedLogsForBatchId) {
+                if (groupListener != null && removedLogsForBatchId.getLogs() != null) {
+                    for (Log log : removedLogsForBatchId.getLogs()) {
                         groupListener.onFailure(log, e);
                     }
                 }
+                mEnabled = false;
+                suspend(true, e);
             }
-            mEnabled = false;
-            suspend(!recoverableError, e);
+        }
+    }
+
+    /**
+     * Notify listeners of the batching limits computed from the last ingestion call.
+     *
+     * @param groupState the group state.
+     */
+    private void notifyBatchingUpdated(@NonNull GroupState groupState) {
+        AdaptiveBatchController controller = groupState.mBatchController;
+        AppCenterLog.debug(LOG_TAG, "Batching updated for " + groupState.mName + ": maxLogsPerBatch=" + controller.getMaxLogsPerBatch() +
+                " maxParallelBatches=" + controller.getMaxParallelBatches() + " roundTripTime=" + controller.getLastRoundTripTime() +
+                " failureRate=" + controller.getFailureRate());
+        for (Listener listener : mListeners) {
+            listener.onBatchingUpdated(groupState.mName, controller.getMaxLogsPerBatch(), controller.getMaxParallelBatches(),
+                    controller.getLastRoundTripTime(), controller.getFailureRate());
         }
     }
 
@@ -617,14 +822,137 @@ public class DefaultChannel implements Channel {
 
         /* Check if disabled with discarding logs. */
         if (mDiscardLogs) {
-            AppCenterLog.warn(LOG_TAG, "Channel is disabled, the log is discarded.");
+            discardLog(groupState, log);
+            return;
+        }
+
+        /* Decorate and filter the log. */
+        if (!prepareLog(groupState, log, flags)) {
+            return;
+        }
+        try {
+
+            /* Persist log. */
+            mPersistence.putLog(log, groupName, flags);
+            mLastStorageActivityTime = System.currentTimeMillis();
+        } catch (Persistence.PersistenceException e) {
+            AppCenterLog.error(LOG_TAG, "Error persisting log", e);
             if (groupState.mListener != null) {
                 groupState.mListener.onBeforeSending(log);
-                groupState.mListener.onFailure(log, new CancellationException());
+                groupState.mListener.onFailure(log, e);
             }
             return;
         }
 
+        /* Nothing more to do if the log is from a paused transmission target. */
+        if (isTargetPaused(groupState, log)) {
+            return;
+        }
+
+        /* Increment counters and schedule ingestion if we are enabled. */
+        groupState.mPendingLogCount++;
+        AppCenterLog.debug(LOG_TAG, "enqueue(" + groupState.mName + ") pendingLogCount=" + groupState.mPendingLogCount);
+        checkPendingLogsAfterEnqueue(groupState);
+    }
+
+    @Override
+    public void enqueueAll(@NonNull List<Log> logs, @NonNull String groupName, int flags) {
+
+        /* Check group name is registered. */
+        GroupState groupState = mGroupStates.get(groupName);
+        if (groupState == null) {
+            AppCenterLog.error(LOG_TAG, "Invalid group name:" + groupName);
+            return;
+        }
+
+        /* Check if disabled with discarding logs. */
+        if (mDiscardLogs) {
+            for (Log log : logs) {
+                discardLog(groupState, log);
+            }
+            return;
+        }
+
+        /* Decorate and filter the logs. */
+        List<Log> preparedLogs = new ArrayList<>(logs.size());
+        for (Log log : logs) {
+            if (prepareLog(groupState, log, flags)) {
+                preparedLogs.add(log);
+            }
+        }
+        if (preparedLogs.isEmpty()) {
+            return;
+        }
+
+        /* Persist all logs at once. */
+        long[] ids = mPersistence.putLogs(preparedLogs, groupName, flags);
+        mLastStorageActivityTime = System.currentTimeMillis();
+        int pendingLogCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            Log log = preparedLogs.get(i);
+            if (ids[i] == -1) {
+                if (groupState.mListener != null) {
+                    groupState.mListener.onBeforeSending(log);
+                    groupState.mListener.onFailure(log, new Persistence.PersistenceException("Failed to persist log."));
+                }
+            } else if (!isTargetPaused(groupState, log)) {
+                pendingLogCount++;
+            }
+        }
+
+        /* Update counters and schedule ingestion only once for the whole list. */
+        if (pendingLogCount > 0) {
+            groupState.mPendingLogCount += pendingLogCount;
+            AppCenterLog.debug(LOG_TAG, "enqueueAll(" + groupState.mName + ") pendingLogCount=" + groupState.mPendingLogCount);
+            checkPendingLogsAfterEnqueue(groupState);
+        }
+    }
+
+    /**
+     * Report a log as failed because the channel is disabled.
+     *
+     * @param groupState group state.
+     * @param log        log to discard.
+     */
+    private void discardLog(@NonNull GroupState groupState, @NonNull Log log) {
+        AppCenterLog.warn(LOG_TAG, "Channel is disabled, the log is discarded.");
+        if (groupState.mListener != null) {
+            groupState.mListener.onBeforeSending(log);
+            groupState.mListener.onFailure(log, new CancellationException());
+        }
+    }
+
+    /**
+     * Report a log that was counted as pending but could not be written by the buffered persistence.
+     *
+     * @param groupName group name.
+     * @param log       log that is lost.
+     */
+    private void failBufferedLog(@NonNull String groupName, @NonNull Log log) {
+        GroupState groupState = mGroupStates.get(groupName);
+        if (groupState == null) {
+            return;
+        }
+        if (!isTargetPaused(groupState, log) && groupState.mPendingLogCount > 0) {
+            groupState.mPendingLogCount--;
+        }
+        if (groupState.mListener != null) {
+            groupState.mListener.onBeforeSending(log);
+            groupState.mListener.onFailure(log, new Persistence.PersistenceException("Failed to persist log."));
+        }
+    }
+
+    /**
+     * Let listeners decorate and filter a log before persisting it.
+     *
+     * @param groupState group state.
+     * @param log        log to prepare.
+     * @param flags      persistence flags.
+     * @return true if the log has to be persisted, false if it was filtered out or cannot be sent.
+     */
+    private boolean prepareLog(@NonNull GroupState groupState, @NonNull Log log, int flags) {
+        String groupName = groupState.mName;
+
         /* Call listeners so that they can decorate the log. */
         for (Listener listener : mListeners) {
             listener.onPreparingLog(log, groupName);
@@ -639,7 +967,7 @@ public class DefaultChannel implements Channel {
                     mDevice = DeviceInfoHelper.getDeviceInfo(mContext);
                 } catch (DeviceInfoHelper.DeviceInfoException e) {
                     AppCenterLog.error(LOG_TAG, "Device log cannot be generated", e);
-                    return;
+                    return false;
                 }
             }
 
@@ -666,42 +994,44 @@ public class DefaultChannel implements Channel {
         /* If filtered out, nothing more to do. */
         if (filteredOut) {
             AppCenterLog.debug(LOG_TAG, "Log of type '" + log.getType() + "' was filtered out by listener(s)");
-        } else {
-            if (mAppSecret == null && groupState.mIngestion == mIngestion) {
-
-                /* Log was not filtered out but no app secret has been provided. Do nothing in this case. */
-                AppCenterLog.debug(LOG_TAG, "Log of type '" + log.getType() + "' was not filtered out by listener(s) but no app secret was provided. Not persisting/sending the log.");
-                return;
-            }
-            try {
+            return false;
+        }
+        if (mAppSecret == null && groupState.mIngestion == mIngestion) {
 
-                /* Persist log. */
-                mPersistence.putLog(log, groupName, flags);
-            } catch (Persistence.PersistenceException e) {
-                AppCenterLog.error(LOG_TAG, "Error persisting log", e);
-                if (groupState.mListener != null) {
-                    groupState.mListener.onBeforeSending(log);
-                    groupState.mListener.onFailure(log, e);
-                }
-                return;
-            }
+            /* Log was not filtered out but no app secret has been provided. Do nothing in this case. */
+            AppCenterLog.debug(LOG_TAG, "Log of type '" + log.getType() + "' was not filtered out by listener(s) but no app secret was provided. Not persisting/sending the log.");
+            return false;
+        }
+        return true;
+    }
 
-            /* Nothing more to do if the log is from a paused transmission target. */
-            Iterator<String> targetKeys = log.getTransmissionTargetTokens().iterator();
-            String targetKey = targetKeys.hasNext() ? PartAUtils.getTargetKey(targetKeys.next()) : null;
-            if (groupState.mPausedTargetKeys.contains(targetKey)) {
-                AppCenterLog.debug(LOG_TAG, "Transmission target ikey=" + targetKey + " is paused.");
-                return;
-            }
+    /**
+     * Check if a persisted log belongs to a paused transmission target.
+     *
+     * @param groupState group state.
+     * @param log        persisted log.
+     * @return true if the target of the log is paused.
+     */
+    private boolean isTargetPaused(@NonNull GroupState groupState, @NonNull Log log) {
+        Iterator<String> targetKeys = log.getTransmissionTargetTokens().iterator();
+        String targetKey = targetKeys.hasNext() ? PartAUtils.getTargetKey(targetKeys.next()) : null;
+        if (groupState.mPausedTargetKeys.contains(targetKey)) {
+            AppCenterLog.debug(LOG_TAG, "Transmission target ikey=" + targetKey + " is paused.");
+            return true;
+        }
+        return false;
+    }
 
-            /* Increment counters and schedule ingestion if we are enabled. */
-            groupState.mPendingLogCount++;
-            AppCenterLog.debug(LOG_TAG, "enqueue(" + groupState.mName + ") pendingLogCount=" + groupState.mPendingLogCount);
-            if (mEnabled) {
-                checkPendingLogs(groupState);
-            } else {
-                AppCenterLog.debug(LOG_TAG, "Channel is temporarily disabled, log was saved to disk.");
-            }
+    /**
+     * Schedule ingestion after logs were added to the pending count, if we are enabled.
+     *
+     * @param groupState group state.
+     */
+    private void checkPendingLogsAfterEnqueue(@NonNull GroupState groupState) {
+        if (mEnabled) {
+            checkPendingLogs(groupState);
+        } else {
+            AppCenterLog.debug(LOG_TAG, "Channel is temporarily disabled, log was saved to disk.");
         }
     }
 
@@ -712,6 +1042,7 @@ public class DefaultChannel implements Channel {
      */
     @VisibleForTesting
     void checkPendingLogs(@NonNull GroupState groupState) {
+        deleteExpiredLogs(groupState);
         AppCenterLog.debug(LOG_TAG, String.format("checkPendingLogs(%s) pendingLogCount=%s batchTimeInterval=%s",
                 groupState.mName, groupState.mPendingLogCount, groupState.mBatchTimeInterval));
         Long batchTimeInterval = resolveTriggerInterval(groupState);
@@ -733,6 +1064,77 @@ public class DefaultChannel implements Channel {
         }
     }
 
+    /**
+     * Delete logs stored for longer than the time to live of the group, if the group has one.
+     * This runs at most once per {@link #EXPIRED_LOGS_PURGE_INTERVAL} and only while no batch is being sent.
+     * Without group listener, expired logs are deleted in one statement. Otherwise they are read and reported by chunks.
+     *
+     * @param groupState the group state.
+     */
+    private void deleteExpiredLogs(@NonNull GroupState groupState) {
+        if (groupState.mLogTimeToLive <= 0 || !groupState.mSendingBatches.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now < groupState.mNextExpiredLogsPurgeTime) {
+            return;
+        }
+        groupState.mNextExpiredLogsPurgeTime = now + Math.min(groupState.mLogTimeToLive, EXPIRED_LOGS_PURGE_INTERVAL);
+        long storedBefore = now - groupState.mLogTimeToLive;
+        int deletedCount;
+        if (groupState.mListener == null) {
+            deletedCount = mPersistence.deleteExpiredLogs(groupState.mName, storedBefore, CLEAR_BATCH_SIZE, null);
+        } else {
+            deletedCount = 0;
+            List<Log> logs = new ArrayList<>(CLEAR_BATCH_SIZE);
+            int chunkCount;
+            do {
+                logs.clear();
+                chunkCount = mPersistence.deleteExpiredLogs(groupState.mName, storedBefore, CLEAR_BATCH_SIZE, logs);
+                deletedCount += chunkCount;
+                if (!logs.isEmpty()) {
+                    Exception exception = new LogExpiredException(groupState.mLogTimeToLive);
+                    for (Log log : logs) {
+                        groupState.mListener.onBeforeSending(log);
+                        groupState.mListener.onFailure(log, exception);
+                    }
+                }
+            } while (chunkCount >= CLEAR_BATCH_SIZE);
+        }
+        if (deletedCount > 0) {
+            AppCenterLog.debug(LOG_TAG, "Deleted " + deletedCount + " expired logs of " + groupState.mName);
+            groupState.mPendingLogCount = Math.max(0, groupState.mPendingLogCount - deletedCount);
+            scheduleStorageMaintenance();
+        }
+    }
+
+    /**
+     * Schedule storage maintenance after logs were deleted.
+     * Maintenance waits for storage to be idle for {@link #STORAGE_MAINTENANCE_IDLE_DELAY}, storing logs postpones it.
+     */
+    private void scheduleStorageMaintenance() {
+        mLastStorageActivityTime = System.currentTimeMillis();
+        if (!mStorageMaintenanceScheduled) {
+            mStorageMaintenanceScheduled = true;
+            mAppCenterHandler.postDelayed(mStorageMaintenanceRunnable, STORAGE_MAINTENANCE_IDLE_DELAY);
+        }
+    }
+
+    /**
+     * Perform storage maintenance if storage has been idle long enough, otherwise wait for the remaining time.
+     */
+    @VisibleForTesting
+    void performStorageMaintenance() {
+        long idleTime = System.currentTimeMillis() - mLastStorageActivityTime;
+        if (idleTime < STORAGE_MAINTENANCE_IDLE_DELAY) {
+            mAppCenterHandler.postDelayed(mStorageMaintenanceRunnable, STORAGE_MAINTENANCE_IDLE_DELAY - idleTime);
+            return;
+        }
+        mStorageMaintenanceScheduled = false;
+        AppCenterLog.debug(LOG_TAG, "Performing storage maintenance.");
+        mPersistence.performMaintenance();
+    }
+
     /**
      * Calculate remaining interval to trigger ingestion based on initial batch interval and stored start value.
      *
@@ -777,7 +1179,10 @@ public class DefaultChannel implements Channel {
     }
 
     private Long resolveDefaultTriggerInterval(@NonNull GroupState groupState) {
-        if (groupState.mPendingLogCount >= groupState.mMaxLogsPerBatch) {
+
+        /* Do not wait for more logs than what the network currently handles in a batch. */
+        int triggerCount = Math.min(groupState.mMaxLogsPerBatch, groupState.mBatchController.getMaxLogsPerBatch());
+        if (groupState.mPendingLogCount >= triggerCount) {
             return 0L;
         }
         return groupState.mPendingLogCount > 0 ? groupState.mBatchTimeInterval : null;
@@ -809,6 +1214,7 @@ public class DefaultChannel implements Channel {
         if (isAllowed) {
             mCurrentState++;
             for (GroupState groupState : mGroupStates.values()) {
+                groupState.mCircuitBreaker.reset();
                 checkPendingLogs(groupState);
             }
         } else {
@@ -829,24 +1235,49 @@ public class DefaultChannel implements Channel {
         final String mName;
 
         /**
-         * Maximum log count per batch.
+         * Configured maximum log count per batch.
          */
         final int mMaxLogsPerBatch;
 
+        /**
+         * Maximum total size in bytes of the persisted logs per batch.
+         */
+        final long mMaxBytesPerBatch;
+
         /**
          * Time to wait before 2 batches, in ms.
          */
         final long mBatchTimeInterval;
 
         /**
-         * Maximum number of batches in parallel.
+         * Configured maximum number of batches in parallel.
          */
         final int mMaxParallelBatches;
 
+        /**
+         * Adaptive batch size and parallelism, initialized from the configured values.
+         */
+        final AdaptiveBatchController mBatchController;
+
+        /**
+         * Circuit breaker for recoverable ingestion failures.
+         */
+        final CircuitBreaker mCircuitBreaker = new CircuitBreaker();
+
         /**
          * Batches being currently sent to ingestion.
          */
-        final Map<String, List<Log>> mSendingBatches = new HashMap<>();
+        final Map<String, LogContainer> mSendingBatches = new HashMap<>();
+
+        /**
+         * Time in ms after which a stored log that was not sent is deleted, 0 if logs never expire.
+         */
+        final long mLogTimeToLive;
+
+        /**
+         * Time of the next deletion of expired logs.
+         */
+        long mNextExpiredLogsPurgeTime;
 
         /**
          * Ingestion for the group state.
@@ -896,16 +1327,21 @@ public class DefaultChannel implements Channel {
          *
          * @param name               group name.
          * @param maxLogsPerBatch    max batch size.
+         * @param maxBytesPerBatch   max batch size in bytes.
          * @param batchTimeInterval  batch interval in ms.
          * @param maxParallelBatches max number of parallel batches.
+         * @param logTimeToLive      time to live of stored logs in ms, 0 if logs never expire.
          * @param ingestion          ingestion for the group state.
          * @param listener           listener for a service.
          */
-        GroupState(String name, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, Ingestion ingestion, GroupListener listener) {
+        GroupState(String name, int maxLogsPerBatch, long maxBytesPerBatch, long batchTimeInterval, int maxParallelBatches, long logTimeToLive, Ingestion ingestion, GroupListener listener) {
             mName = name;
             mMaxLogsPerBatch = maxLogsPerBatch;
+            mMaxBytesPerBatch = maxBytesPerBatch;
             mBatchTimeInterval = batchTimeInterval;
             mMaxParallelBatches = maxParallelBatches;
+            mLogTimeToLive = logTimeToLive;
+            mBatchController = new AdaptiveBatchController(maxLogsPerBatch, maxParallelBatches);
             mIngestion = ingestion;
             mListener = listener;
         }
@@ -0,0 +1,17 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+/**
+ * Reported to {@link Channel.GroupListener#onFailure} for a log deleted because it was stored for
+ * longer than the time to live of its group without being sent.
+ */
+public class LogExpiredException extends Exception {
+
+    public LogExpiredException(long logTimeToLive) {
+        super("Log was not sent within " + logTimeToLive + " ms.");
+    }
+}
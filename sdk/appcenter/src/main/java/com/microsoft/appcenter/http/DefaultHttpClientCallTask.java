@@ -11,6 +11,7 @@ import android.util.Log;
 
 import com.microsoft.appcenter.utils.AppCenterLog;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
@@ -18,7 +19,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.Writer;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.List;
@@ -57,6 +60,11 @@ class DefaultHttpClientCallTask extends AsyncTask<Void, Void, Object> {
      */
     private static final int MIN_GZIP_LENGTH = 1400;
 
+    /**
+     * Chunk length in bytes when the payload is streamed, also used as compression buffer size.
+     */
+    private static final int STREAMING_CHUNK_LENGTH = 8 * 1024;
+
     /**
      * Maximum payload length to use prettify for logging.
      */
@@ -122,6 +130,50 @@ class DefaultHttpClientCallTask extends AsyncTask<Void, Void, Object> {
         }
     }
 
+    /**
+     * Stream payload to the connection, sending headers once the payload length decides whether to compress it.
+     */
+    private void writeStreamingPayload(HttpsURLConnection httpsURLConnection, URL url) throws IOException, JSONException {
+        StreamingPayloadOutputStream out = new StreamingPayloadOutputStream(httpsURLConnection, url);
+        Writer writer = new OutputStreamWriter(out, CHARSET_NAME);
+
+        //noinspection TryFinallyCanBeTryWithResources
+        try {
+            ((HttpClient.StreamingCallTemplate) mCallTemplate).writeRequestBody(writer);
+        } finally {
+            writer.close();
+        }
+        byte[] loggedPayload = out.getLoggedPayload();
+        if (loggedPayload != null) {
+            logRequestPayload(new String(loggedPayload, CHARSET_NAME));
+        }
+    }
+
+    /**
+     * Send the headers and call back before the payload is sent.
+     */
+    private void sendHeaders(HttpsURLConnection httpsURLConnection, URL url) {
+        for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+            httpsURLConnection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (mCallTemplate != null) {
+            mCallTemplate.onBeforeCalling(url, mHeaders);
+        }
+    }
+
+    /**
+     * Log request payload, hiding tokens.
+     */
+    private void logRequestPayload(String payload) throws JSONException {
+        if (payload.length() < MAX_PRETTIFY_LOG_LENGTH) {
+            payload = TOKEN_REGEX_URL_ENCODED.matcher(payload).replaceAll("token=***");
+            if (CONTENT_TYPE_VALUE.equals(mHeaders.get(CONTENT_TYPE_KEY))) {
+                payload = new JSONObject(payload).toString(2);
+            }
+        }
+        AppCenterLog.verbose(LOG_TAG, payload);
+    }
+
     /**
      * Dump response stream to a string.
      */
@@ -165,13 +217,19 @@ class DefaultHttpClientCallTask extends AsyncTask<Void, Void, Object> {
             String payload = null;
             byte[] binaryPayload = null;
             boolean shouldCompress = false;
+            boolean shouldStream = false;
             boolean isPost = mMethod.equals(METHOD_POST);
             if (isPost && mCallTemplate != null) {
 
-                /* Get bytes, check if large enough to compress. */
-                payload = mCallTemplate.buildRequestBody();
-                binaryPayload = payload.getBytes(CHARSET_NAME);
-                shouldCompress = mCompressionEnabled && binaryPayload.length >= MIN_GZIP_LENGTH;
+                /* Stream payload of unknown length, whether to compress it is decided while writing. */
+                shouldStream = mCallTemplate instanceof HttpClient.StreamingCallTemplate;
+                if (!shouldStream) {
+
+                    /* Get bytes, check if large enough to compress. */
+                    payload = mCallTemplate.buildRequestBody();
+                    binaryPayload = payload.getBytes(CHARSET_NAME);
+                    shouldCompress = mCompressionEnabled && binaryPayload.length >= MIN_GZIP_LENGTH;
+                }
 
                 /* If no content type specified, assume json. */
                 if (!mHeaders.containsKey(CONTENT_TYPE_KEY)) {
@@ -183,32 +241,21 @@ class DefaultHttpClientCallTask extends AsyncTask<Void, Void, Object> {
             if (shouldCompress) {
                 mHeaders.put(CONTENT_ENCODING_KEY, CONTENT_ENCODING_VALUE);
             }
-
-            /* Send headers. */
-            for (Map.Entry<String, String> header : mHeaders.entrySet()) {
-                httpsURLConnection.setRequestProperty(header.getKey(), header.getValue());
-            }
             if (isCancelled()) {
                 return null;
             }
 
-            /* Call back before the payload is sent. */
-            if (mCallTemplate != null) {
-                mCallTemplate.onBeforeCalling(url, mHeaders);
+            /* Send headers, a streamed payload sends them once it knows whether it is compressed. */
+            if (shouldStream) {
+                writeStreamingPayload(httpsURLConnection, url);
+            } else {
+                sendHeaders(httpsURLConnection, url);
             }
-
-            /* Send payload. */
             if (binaryPayload != null) {
 
                 /* Log payload. */
                 if (AppCenterLog.getLogLevel() <= Log.VERBOSE) {
-                    if (payload.length() < MAX_PRETTIFY_LOG_LENGTH) {
-                        payload = TOKEN_REGEX_URL_ENCODED.matcher(payload).replaceAll("token=***");
-                        if (CONTENT_TYPE_VALUE.equals(mHeaders.get(CONTENT_TYPE_KEY))) {
-                            payload = new JSONObject(payload).toString(2);
-                        }
-                    }
-                    AppCenterLog.verbose(LOG_TAG, payload);
+                    logRequestPayload(payload);
                 }
 
                 /* Compress payload if large enough to be worth it. */
@@ -330,4 +377,102 @@ class DefaultHttpClientCallTask extends AsyncTask<Void, Void, Object> {
          */
         void onFinish(DefaultHttpClientCallTask task);
     }
+
+    /**
+     * Output stream of a streamed payload. The beginning of the payload is buffered so that it is only compressed
+     * when at least {@link #MIN_GZIP_LENGTH} bytes long, like payloads built in memory. Small payloads are sent
+     * with a fixed length once complete, larger ones are sent in chunks as they are written.
+     */
+    private class StreamingPayloadOutputStream extends OutputStream {
+
+        /**
+         * Connection to send the payload to.
+         */
+        private final HttpsURLConnection mHttpsURLConnection;
+
+        /**
+         * Request URL.
+         */
+        private final URL mUrl;
+
+        /**
+         * Beginning of the payload, until it is known whether it is compressed.
+         */
+        private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(MIN_GZIP_LENGTH);
+
+        /**
+         * Copy of the payload to log it, null if verbose logging is disabled.
+         */
+        private final ByteArrayOutputStream mLoggedPayload;
+
+        /**
+         * Connection output stream, null until headers are sent.
+         */
+        private OutputStream mOut;
+
+        StreamingPayloadOutputStream(HttpsURLConnection httpsURLConnection, URL url) {
+            mHttpsURLConnection = httpsURLConnection;
+            mUrl = url;
+            mLoggedPayload = AppCenterLog.getLogLevel() <= Log.VERBOSE ? new ByteArrayOutputStream() : null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mLoggedPayload != null) {
+                mLoggedPayload.write(b, off, len);
+            }
+            if (mOut == null) {
+                if (mBuffer.size() + len < MIN_GZIP_LENGTH) {
+                    mBuffer.write(b, off, len);
+                    return;
+                }
+                open(true);
+            }
+            mOut.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mOut == null) {
+                open(false);
+            }
+            mOut.close();
+        }
+
+        /**
+         * Send headers and the buffered beginning of the payload.
+         *
+         * @param large true if the payload is large enough to be compressed, false if it is complete.
+         */
+        private void open(boolean large) throws IOException {
+            boolean compress = large && mCompressionEnabled;
+            if (compress) {
+                mHeaders.put(CONTENT_ENCODING_KEY, CONTENT_ENCODING_VALUE);
+            }
+            sendHeaders(mHttpsURLConnection, mUrl);
+            mHttpsURLConnection.setDoOutput(true);
+            if (large) {
+                mHttpsURLConnection.setChunkedStreamingMode(STREAMING_CHUNK_LENGTH);
+            } else {
+                mHttpsURLConnection.setFixedLengthStreamingMode(mBuffer.size());
+            }
+            OutputStream out = mHttpsURLConnection.getOutputStream();
+            mOut = compress ? new GZIPOutputStream(out, STREAMING_CHUNK_LENGTH) : out;
+            mBuffer.writeTo(mOut);
+        }
+
+        /**
+         * Get the payload to log.
+         *
+         * @return payload bytes, null if verbose logging is disabled.
+         */
+        byte[] getLoggedPayload() {
+            return mLoggedPayload != null ? mLoggedPayload.toByteArray() : null;
+        }
+    }
 }
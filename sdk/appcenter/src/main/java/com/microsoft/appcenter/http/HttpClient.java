@@ -8,6 +8,8 @@ package com.microsoft.appcenter.http;
 import org.json.JSONException;
 
 import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
 import java.net.URL;
 import java.util.Map;
 
@@ -50,6 +52,23 @@ public interface HttpClient extends Closeable {
         void onBeforeCalling(URL url, Map<String, String> headers);
     }
 
+    /**
+     * Call callbacks writing the request body directly to the connection instead of building it in memory.
+     * {@link #buildRequestBody()} is still implemented for clients that need the whole body in memory.
+     */
+    interface StreamingCallTemplate extends CallTemplate {
+
+        /**
+         * Called when the method is POST to write request body.
+         * May be called again if the call is retried.
+         *
+         * @param writer writer encoding the request body in UTF-8 to the connection.
+         * @throws JSONException callback can throw this to make the call fail if a JSON error occurs.
+         * @throws IOException   if writing to the connection fails.
+         */
+        void writeRequestBody(Writer writer) throws JSONException, IOException;
+    }
+
     /**
      * Make this client active again after closing.
      */
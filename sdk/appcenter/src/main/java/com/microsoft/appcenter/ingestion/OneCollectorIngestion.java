@@ -24,7 +24,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -171,7 +173,7 @@ public class OneCollectorIngestion extends AbstractAppCenterIngestion {
     /**
      * Call template implementation for One Collector.
      */
-    private static class IngestionCallTemplate implements HttpClient.CallTemplate {
+    private static class IngestionCallTemplate implements HttpClient.StreamingCallTemplate {
 
         /**
          * Log serializer.
@@ -194,10 +196,24 @@ public class OneCollectorIngestion extends AbstractAppCenterIngestion {
         @Override
         public String buildRequestBody() throws JSONException {
 
-            /* Serialize payload. */
-            StringBuilder jsonStream = new StringBuilder();
-            for (Log log : mLogContainer.getLogs()) {
-                jsonStream.append(mLogSerializer.serializeLog(log));
+            /* Serialize logs one by one, raw logs were already written by the log serializer. */
+            List<String> rawLogs = mLogContainer.getRawLogs();
+            if (rawLogs == null) {
+                List<Log> logs = mLogContainer.getLogs();
+                rawLogs = new ArrayList<>(logs.size());
+                for (Log log : logs) {
+                    rawLogs.add(mLogSerializer.serializeLog(log));
+                }
+            }
+
+            /* Join them in a buffer of the final size. */
+            int length = 0;
+            for (String rawLog : rawLogs) {
+                length += rawLog.length() + 1;
+            }
+            StringBuilder jsonStream = new StringBuilder(length);
+            for (String rawLog : rawLogs) {
+                jsonStream.append(rawLog);
 
                 /* We have to use a different delimiter specific to OneCollector. */
                 jsonStream.append('\n');
@@ -205,6 +221,18 @@ public class OneCollectorIngestion extends AbstractAppCenterIngestion {
             return jsonStream.toString();
         }
 
+        @Override
+        public void writeRequestBody(Writer writer) throws JSONException, IOException {
+
+            /* Same as the built body, one log at a time. */
+            List<String> rawLogs = mLogContainer.getRawLogs();
+            int count = rawLogs != null ? rawLogs.size() : mLogContainer.getLogs().size();
+            for (int i = 0; i < count; i++) {
+                writer.write(rawLogs != null ? rawLogs.get(i) : mLogSerializer.serializeLog(mLogContainer.getLogs().get(i)));
+                writer.write('\n');
+            }
+        }
+
         @Override
         public void onBeforeCalling(URL url, Map<String, String> headers) {
             if (AppCenterLog.getLogLevel() <= VERBOSE) {
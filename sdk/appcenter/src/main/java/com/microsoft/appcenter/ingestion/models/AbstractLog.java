@@ -5,9 +5,13 @@
 
 package com.microsoft.appcenter.ingestion.models;
 
+import android.util.JsonReader;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
 
+import com.microsoft.appcenter.ingestion.models.json.DeviceExcludingJSONStringer;
+import com.microsoft.appcenter.ingestion.models.json.FieldReader;
 import com.microsoft.appcenter.ingestion.models.json.JSONDateUtils;
 import com.microsoft.appcenter.ingestion.models.json.JSONUtils;
 
@@ -15,6 +19,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashSet;
@@ -26,7 +31,7 @@ import static com.microsoft.appcenter.ingestion.models.CommonProperties.TYPE;
 /**
  * The AbstractLog model.
  */
-public abstract class AbstractLog implements Log {
+public abstract class AbstractLog implements Log, FieldReader {
 
     /**
      * timestamp property.
@@ -167,9 +172,13 @@ public abstract class AbstractLog implements Log {
         JSONUtils.write(writer, DISTRIBUTION_GROUP_ID, getDistributionGroupId());
         JSONUtils.write(writer, USER_ID, getUserId());
         if (getDevice() != null) {
-            writer.key(DEVICE).object();
-            getDevice().write(writer);
-            writer.endObject();
+            if (writer instanceof DeviceExcludingJSONStringer) {
+                ((DeviceExcludingJSONStringer) writer).excludeDevice();
+            } else {
+                writer.key(DEVICE).object();
+                getDevice().write(writer);
+                writer.endObject();
+            }
         }
     }
 
@@ -191,6 +200,36 @@ public abstract class AbstractLog implements Log {
         }
     }
 
+    @Override
+    public boolean readField(@NonNull String name, @NonNull JsonReader reader) throws IOException, JSONException {
+        switch (name) {
+            case TYPE:
+                if (!reader.nextString().equals(getType())) {
+                    throw new JSONException("Invalid type");
+                }
+                return true;
+            case TIMESTAMP:
+                setTimestamp(JSONDateUtils.toDate(reader.nextString()));
+                return true;
+            case SID:
+                setSid(UUID.fromString(reader.nextString()));
+                return true;
+            case DISTRIBUTION_GROUP_ID:
+                setDistributionGroupId(JSONUtils.readString(reader));
+                return true;
+            case USER_ID:
+                setUserId(JSONUtils.readString(reader));
+                return true;
+            case DEVICE:
+                Device device = new Device();
+                JSONUtils.readObject(reader, device);
+                setDevice(device);
+                return true;
+            default:
+                return false;
+        }
+    }
+
     @SuppressWarnings("EqualsReplaceableByObjectsCall")
     @Override
     public boolean equals(Object o) {
@@ -5,12 +5,18 @@
 
 package com.microsoft.appcenter.ingestion.models;
 
+import android.util.JsonReader;
+
+import androidx.annotation.NonNull;
+
 import com.microsoft.appcenter.ingestion.models.json.JSONUtils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
+
 /**
  * Device characteristic log.
  */
@@ -439,6 +445,62 @@ public class Device extends WrapperSdk {
         setAppNamespace(object.optString(APP_NAMESPACE, null));
     }
 
+    @Override
+    public boolean readField(@NonNull String name, @NonNull JsonReader reader) throws IOException, JSONException {
+        switch (name) {
+            case SDK_NAME:
+                setSdkName(JSONUtils.readString(reader));
+                return true;
+            case SDK_VERSION:
+                setSdkVersion(JSONUtils.readString(reader));
+                return true;
+            case MODEL:
+                setModel(JSONUtils.readString(reader));
+                return true;
+            case OEM_NAME:
+                setOemName(JSONUtils.readString(reader));
+                return true;
+            case OS_NAME:
+                setOsName(JSONUtils.readString(reader));
+                return true;
+            case OS_VERSION:
+                setOsVersion(JSONUtils.readString(reader));
+                return true;
+            case OS_BUILD:
+                setOsBuild(JSONUtils.readString(reader));
+                return true;
+            case OS_API_LEVEL:
+                setOsApiLevel(JSONUtils.readInteger(reader));
+                return true;
+            case LOCALE:
+                setLocale(JSONUtils.readString(reader));
+                return true;
+            case TIME_ZONE_OFFSET:
+                setTimeZoneOffset(JSONUtils.readInteger(reader));
+                return true;
+            case SCREEN_SIZE:
+                setScreenSize(JSONUtils.readString(reader));
+                return true;
+            case APP_VERSION:
+                setAppVersion(JSONUtils.readString(reader));
+                return true;
+            case CARRIER_NAME:
+                setCarrierName(JSONUtils.readString(reader));
+                return true;
+            case CARRIER_COUNTRY:
+                setCarrierCountry(JSONUtils.readString(reader));
+                return true;
+            case APP_BUILD:
+                setAppBuild(JSONUtils.readString(reader));
+                return true;
+            case APP_NAMESPACE:
+                setAppNamespace(JSONUtils.readString(reader));
+                return true;
+            default:
+                return super.readField(name, reader);
+        }
+    }
+
     @Override
     public void write(JSONStringer writer) throws JSONException {
         super.write(writer);
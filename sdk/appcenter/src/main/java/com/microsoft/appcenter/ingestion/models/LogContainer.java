@@ -17,6 +17,11 @@ public class LogContainer {
      */
     private List<Log> logs;
 
+    /**
+     * The list of serialized logs, sent instead of {@link #logs} when set.
+     */
+    private List<String> rawLogs;
+
     /**
      * Get the logs value.
      *
@@ -35,6 +40,25 @@ public class LogContainer {
         this.logs = logs;
     }
 
+    /**
+     * Get the serialized logs value.
+     *
+     * @return the serialized logs value
+     */
+    public List<String> getRawLogs() {
+        return this.rawLogs;
+    }
+
+    /**
+     * Set the serialized logs value. When set, the logs are written as is in the request body
+     * instead of serializing {@link #getLogs()}, which can still be set for other uses such as headers.
+     *
+     * @param rawLogs the serialized logs value to set
+     */
+    public void setRawLogs(List<String> rawLogs) {
+        this.rawLogs = rawLogs;
+    }
+
     @SuppressWarnings("EqualsReplaceableByObjectsCall")
     @Override
     public boolean equals(Object o) {
@@ -45,11 +69,16 @@ public class LogContainer {
             return false;
         }
         LogContainer container = (LogContainer) o;
-        return logs != null ? logs.equals(container.logs) : container.logs == null;
+        if (logs != null ? !logs.equals(container.logs) : container.logs != null) {
+            return false;
+        }
+        return rawLogs != null ? rawLogs.equals(container.rawLogs) : container.rawLogs == null;
     }
 
     @Override
     public int hashCode() {
-        return logs != null ? logs.hashCode() : 0;
+        int result = logs != null ? logs.hashCode() : 0;
+        result = 31 * result + (rawLogs != null ? rawLogs.hashCode() : 0);
+        return result;
     }
 }
@@ -5,12 +5,17 @@
 
 package com.microsoft.appcenter.ingestion.models;
 
+import android.util.JsonReader;
+
+import androidx.annotation.NonNull;
+
 import com.microsoft.appcenter.ingestion.models.json.JSONUtils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -76,6 +81,20 @@ public class StartServiceLog extends AbstractLog {
         oneCollectorEnabled(JSONUtils.readBoolean(object, IS_ONE_COLLECTOR_ENABLED));
     }
 
+    @Override
+    public boolean readField(@NonNull String name, @NonNull JsonReader reader) throws IOException, JSONException {
+        switch (name) {
+            case SERVICES:
+                setServices(JSONUtils.readStringArray(reader));
+                return true;
+            case IS_ONE_COLLECTOR_ENABLED:
+                oneCollectorEnabled(JSONUtils.readBoolean(reader));
+                return true;
+            default:
+                return super.readField(name, reader);
+        }
+    }
+
     @Override
     public void write(JSONStringer writer) throws JSONException {
         super.write(writer);
@@ -5,13 +5,20 @@
 
 package com.microsoft.appcenter.ingestion.models;
 
+import android.util.JsonReader;
+
+import androidx.annotation.NonNull;
+
+import com.microsoft.appcenter.ingestion.models.json.FieldReader;
 import com.microsoft.appcenter.ingestion.models.json.JSONUtils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
-public class WrapperSdk implements Model {
+import java.io.IOException;
+
+public class WrapperSdk implements Model, FieldReader {
 
     private static final String WRAPPER_SDK_VERSION = "wrapperSdkVersion";
 
@@ -178,6 +185,32 @@ public class WrapperSdk implements Model {
         setLiveUpdatePackageHash(object.optString(LIVE_UPDATE_PACKAGE_HASH, null));
     }
 
+    @Override
+    public boolean readField(@NonNull String name, @NonNull JsonReader reader) throws IOException, JSONException {
+        switch (name) {
+            case WRAPPER_SDK_VERSION:
+                setWrapperSdkVersion(JSONUtils.readString(reader));
+                return true;
+            case WRAPPER_SDK_NAME:
+                setWrapperSdkName(JSONUtils.readString(reader));
+                return true;
+            case WRAPPER_RUNTIME_VERSION:
+                setWrapperRuntimeVersion(JSONUtils.readString(reader));
+                return true;
+            case LIVE_UPDATE_RELEASE_LABEL:
+                setLiveUpdateReleaseLabel(JSONUtils.readString(reader));
+                return true;
+            case LIVE_UPDATE_DEPLOYMENT_KEY:
+                setLiveUpdateDeploymentKey(JSONUtils.readString(reader));
+                return true;
+            case LIVE_UPDATE_PACKAGE_HASH:
+                setLiveUpdatePackageHash(JSONUtils.readString(reader));
+                return true;
+            default:
+                return false;
+        }
+    }
+
     @Override
     public void write(JSONStringer writer) throws JSONException {
         JSONUtils.write(writer, WRAPPER_SDK_VERSION, getWrapperSdkVersion());
@@ -17,5 +17,10 @@ public abstract class AbstractLogFactory implements LogFactory {
     public Collection<CommonSchemaLog> toCommonSchemaLogs(Log log) {
         return Collections.emptyList();
     }
+
+    @Override
+    public boolean isFieldReaderSupported() {
+        return false;
+    }
 }
 
@@ -5,8 +5,14 @@
 
 package com.microsoft.appcenter.ingestion.models.json;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
+import com.microsoft.appcenter.ingestion.models.Device;
 import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.ingestion.models.LogContainer;
 import com.microsoft.appcenter.ingestion.models.one.CommonSchemaLog;
@@ -16,9 +22,13 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -28,14 +38,81 @@ public class DefaultLogSerializer implements LogSerializer {
 
     private static final String LOGS = "logs";
 
+    /**
+     * Device property of logs, must match the one written by the log models.
+     */
+    private static final String DEVICE = "device";
+
+    /**
+     * Maximum number of distinct devices kept in the cache.
+     */
+    @VisibleForTesting
+    static final int DEVICE_CACHE_SIZE = 8;
+
     private final Map<String, LogFactory> mLogFactories = new HashMap<>();
 
+    /**
+     * Serialized devices. Keys are private copies so that they are never modified, and
+     * devices are looked up by value so that a cached fragment is never used for a device that changed since.
+     */
+    private final Map<Device, String> mDeviceFragments = new DeviceCache();
+
     @NonNull
-    private JSONStringer writeLog(JSONStringer writer, Log log) throws JSONException {
+    private String writeLog(Log log) throws JSONException {
+        Device device = log.getDevice();
+        if (device == null) {
+            JSONStringer writer = new JSONStringer();
+            writer.object();
+            log.write(writer);
+            writer.endObject();
+            return writer.toString();
+        }
+
+        /* Write the log without its device, then append the cached device if the log writes one. */
+        DeviceExcludingJSONStringer writer = new DeviceExcludingJSONStringer();
         writer.object();
         log.write(writer);
         writer.endObject();
-        return writer;
+        String json = writer.toString();
+        if (!writer.isDeviceExcluded()) {
+            return json;
+        }
+        String deviceFragment = getDeviceFragment(device);
+        int end = json.length() - 1;
+        StringBuilder builder = new StringBuilder(json.length() + DEVICE.length() + deviceFragment.length() + 4);
+        builder.append(json, 0, end);
+        if (json.charAt(end - 1) != '{') {
+            builder.append(',');
+        }
+        builder.append('"').append(DEVICE).append("\":").append(deviceFragment).append('}');
+        return builder.toString();
+    }
+
+    @NonNull
+    private String getDeviceFragment(Device device) throws JSONException {
+        synchronized (mDeviceFragments) {
+            String deviceFragment = mDeviceFragments.get(device);
+            if (deviceFragment != null) {
+                return deviceFragment;
+            }
+        }
+        JSONStringer writer = new JSONStringer();
+        writer.object();
+        device.write(writer);
+        writer.endObject();
+        String deviceFragment = writer.toString();
+
+        /* Key by a copy that no log can modify, devices missing required properties are not cached. */
+        Device key = new Device();
+        try {
+            key.read(new JSONObject(deviceFragment));
+        } catch (JSONException e) {
+            return deviceFragment;
+        }
+        synchronized (mDeviceFragments) {
+            mDeviceFragments.put(key, deviceFragment);
+        }
+        return deviceFragment;
     }
 
     @NonNull
@@ -55,12 +132,59 @@ public class DefaultLogSerializer implements LogSerializer {
     @NonNull
     @Override
     public String serializeLog(@NonNull Log log) throws JSONException {
-        return writeLog(new JSONStringer(), log).toString();
+        return writeLog(log);
+    }
+
+    /**
+     * Read a log in a single pass, without building a {@link JSONObject}.
+     *
+     * @param json JSON payload.
+     * @param type log type, null to read it from the payload.
+     * @return log, or null if the log type does not support it or if the payload must be parsed as a {@link JSONObject}.
+     */
+    @Nullable
+    private Log readLogFields(String json, String type) {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        try {
+            reader.beginObject();
+
+            /* The type is written first, if it's elsewhere the payload is read from JSONObject. */
+            if (type == null) {
+                if (!reader.hasNext() || !TYPE.equals(reader.nextName())) {
+                    return null;
+                }
+                type = reader.nextString();
+            }
+            LogFactory logFactory = mLogFactories.get(type);
+            if (logFactory == null || !logFactory.isFieldReaderSupported()) {
+                return null;
+            }
+            Log log = logFactory.create();
+            FieldReader fieldReader = (FieldReader) log;
+            while (reader.hasNext()) {
+                if (!fieldReader.readField(reader.nextName(), reader)) {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            /* Let JSONObject report invalid payloads. */
+            if (reader.peek() != JsonToken.END_DOCUMENT || log.getTimestamp() == null) {
+                return null;
+            }
+            return log;
+        } catch (IOException | JSONException | RuntimeException e) {
+            return null;
+        }
     }
 
     @NonNull
     @Override
     public Log deserializeLog(@NonNull String json, String type) throws JSONException {
+        Log log = readLogFields(json, type);
+        if (log != null) {
+            return log;
+        }
         return readLog(new JSONObject(json), type);
     }
 
@@ -73,18 +197,48 @@ public class DefaultLogSerializer implements LogSerializer {
     @Override
     public String serializeContainer(@NonNull LogContainer logContainer) throws JSONException {
 
-        /* Init JSON serializer. */
-        JSONStringer writer = new JSONStringer();
+        /* Serialize logs one by one, raw logs were already written by this serializer. */
+        List<String> rawLogs = logContainer.getRawLogs();
+        if (rawLogs == null) {
+            List<Log> logs = logContainer.getLogs();
+            rawLogs = new ArrayList<>(logs.size());
+            for (Log log : logs) {
+                rawLogs.add(writeLog(log));
+            }
+        }
 
-        /* Start writing JSON. */
-        writer.object();
-        writer.key(LOGS).array();
-        for (Log log : logContainer.getLogs()) {
-            writeLog(writer, log);
+        /* Splice them in the envelope. */
+        int length = 0;
+        for (String rawLog : rawLogs) {
+            length += rawLog.length() + 1;
         }
-        writer.endArray();
-        writer.endObject();
-        return writer.toString();
+        StringBuilder builder = new StringBuilder(length + LOGS.length() + 8);
+        builder.append("{\"").append(LOGS).append("\":[");
+        for (int i = 0; i < rawLogs.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(rawLogs.get(i));
+        }
+        return builder.append("]}").toString();
+    }
+
+    @Override
+    public void serializeContainer(@NonNull LogContainer logContainer, @NonNull Writer writer) throws JSONException, IOException {
+
+        /* Write the envelope by hand so that only one log at a time is held as a string. */
+        writer.write("{\"");
+        writer.write(LOGS);
+        writer.write("\":[");
+        List<String> rawLogs = logContainer.getRawLogs();
+        int count = rawLogs != null ? rawLogs.size() : logContainer.getLogs().size();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(rawLogs != null ? rawLogs.get(i) : serializeLog(logContainer.getLogs().get(i)));
+        }
+        writer.write("]}");
     }
 
     @NonNull
@@ -103,8 +257,30 @@ public class DefaultLogSerializer implements LogSerializer {
         return container;
     }
 
+    @Override
+    public void invalidateDeviceCache() {
+        synchronized (mDeviceFragments) {
+            mDeviceFragments.clear();
+        }
+    }
+
     @Override
     public void addLogFactory(@NonNull String logType, @NonNull LogFactory logFactory) {
         mLogFactories.put(logType, logFactory);
     }
+
+    /**
+     * Map of serialized devices that only keeps the most recently used ones.
+     */
+    private static class DeviceCache extends LinkedHashMap<Device, String> {
+
+        DeviceCache() {
+            super(DEVICE_CACHE_SIZE, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Device, String> eldest) {
+            return size() > DEVICE_CACHE_SIZE;
+        }
+    }
 }
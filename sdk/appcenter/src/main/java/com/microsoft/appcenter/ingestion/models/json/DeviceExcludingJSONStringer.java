@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.ingestion.models.json;
+
+import org.json.JSONStringer;
+
+/**
+ * JSON stringer that logs write themselves to without their device,
+ * the serialized device being appended afterwards by {@link DefaultLogSerializer} from its cache.
+ */
+public class DeviceExcludingJSONStringer extends JSONStringer {
+
+    /**
+     * Whether a log skipped writing its device to this stringer.
+     */
+    private boolean mDeviceExcluded;
+
+    /**
+     * Record that the log skipped writing its device, so that the serializer appends it.
+     * Logs that never write a device must not call this.
+     */
+    public void excludeDevice() {
+        mDeviceExcluded = true;
+    }
+
+    /**
+     * Check whether the device has to be appended.
+     *
+     * @return true if a log skipped writing its device.
+     */
+    boolean isDeviceExcluded() {
+        return mDeviceExcluded;
+    }
+}
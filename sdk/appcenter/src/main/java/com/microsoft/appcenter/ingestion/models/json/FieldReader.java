@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.ingestion.models.json;
+
+import android.util.JsonReader;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * Model that can be read field by field from a pull parser, without building a {@link org.json.JSONObject} first.
+ */
+public interface FieldReader {
+
+    /**
+     * Read the value of a field.
+     *
+     * @param name   field name.
+     * @param reader reader positioned on the field value.
+     * @return true if the value was read, false if the field is unknown and its value must be skipped.
+     * @throws IOException   if the value cannot be read.
+     * @throws JSONException if the value is invalid.
+     */
+    boolean readField(@NonNull String name, @NonNull JsonReader reader) throws IOException, JSONException;
+}
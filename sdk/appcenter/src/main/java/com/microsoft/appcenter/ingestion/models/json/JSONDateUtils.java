@@ -5,6 +5,8 @@
 
 package com.microsoft.appcenter.ingestion.models.json;
 
+import androidx.annotation.VisibleForTesting;
+
 import org.json.JSONException;
 
 import java.text.DateFormat;
@@ -22,7 +24,29 @@ import java.util.TimeZone;
 public final class JSONDateUtils {
 
     /**
-     * Date formatter.
+     * Length of a formatted date, e.g. 2017-07-07T17:43:56.123Z.
+     */
+    private static final int DATE_LENGTH = 24;
+
+    /**
+     * Length of the date part of a formatted date, including the 'T' separator.
+     */
+    private static final int DAY_LENGTH = 11;
+
+    /**
+     * Number of milliseconds in a day.
+     */
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Last time formatted or parsed without {@link SimpleDateFormat}: 9999-12-31T23:59:59.999Z.
+     * Earlier bound is epoch since {@link SimpleDateFormat} switches to the Julian calendar before 1582.
+     */
+    @VisibleForTesting
+    static final long MAX_TIME = 253402300799999L;
+
+    /**
+     * Date formatter, used for dates outside of the fast path range or layout.
      */
     private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
 
@@ -34,6 +58,12 @@ public final class JSONDateUtils {
         }
     };
 
+    /**
+     * Last day formatted or parsed. Logs are mostly from the same day so the calendar computation is rarely needed.
+     * Days are immutable so that threads can replace this without locking.
+     */
+    private static volatile Day sLastDay = new Day(0);
+
     /**
      * Check date parameter is null.
      *
@@ -55,7 +85,32 @@ public final class JSONDateUtils {
      */
     public static String toString(Date date) throws JSONException {
         checkNull(date);
-        return DATE_FORMAT.get().format(date);
+        return toString(date.getTime());
+    }
+
+    /**
+     * Convert time to string.
+     *
+     * @param time time in milliseconds since epoch.
+     * @return string.
+     */
+    public static String toString(long time) {
+        if (time < 0 || time > MAX_TIME) {
+            return DATE_FORMAT.get().format(new Date(time));
+        }
+        Day day = getDay(time / DAY_MILLIS);
+        int millisOfDay = (int) (time - day.mStart);
+        char[] buffer = new char[DATE_LENGTH];
+        System.arraycopy(day.mPrefix, 0, buffer, 0, DAY_LENGTH);
+        writeDigits(buffer, 11, 2, millisOfDay / 3600000);
+        buffer[13] = ':';
+        writeDigits(buffer, 14, 2, millisOfDay / 60000 % 60);
+        buffer[16] = ':';
+        writeDigits(buffer, 17, 2, millisOfDay / 1000 % 60);
+        buffer[19] = '.';
+        writeDigits(buffer, 20, 3, millisOfDay % 1000);
+        buffer[23] = 'Z';
+        return new String(buffer);
     }
 
     /**
@@ -66,11 +121,192 @@ public final class JSONDateUtils {
      * @throws JSONException if string has a wrong format or is null.
      */
     public static Date toDate(String date) throws JSONException {
+        return new Date(toTime(date));
+    }
+
+    /**
+     * Convert string to time.
+     *
+     * @param date date.
+     * @return time in milliseconds since epoch.
+     * @throws JSONException if string has a wrong format or is null.
+     */
+    public static long toTime(String date) throws JSONException {
         checkNull(date);
+        long time = parseTime(date);
+        if (time >= 0) {
+            return time;
+        }
         try {
-            return DATE_FORMAT.get().parse(date);
+            return DATE_FORMAT.get().parse(date).getTime();
         } catch (ParseException e) {
             throw new JSONException(e.getMessage());
         }
     }
+
+    /**
+     * Parse a date in the exact layout written by {@link #toString(long)}.
+     *
+     * @param date date.
+     * @return time in milliseconds since epoch, or -1 if the date must be parsed by {@link SimpleDateFormat}.
+     */
+    private static long parseTime(String date) {
+        if (date.length() != DATE_LENGTH || date.charAt(4) != '-' || date.charAt(7) != '-' || date.charAt(10) != 'T'
+                || date.charAt(13) != ':' || date.charAt(16) != ':' || date.charAt(19) != '.' || date.charAt(23) != 'Z') {
+            return -1;
+        }
+        int hours = readDigits(date, 11, 2);
+        int minutes = readDigits(date, 14, 2);
+        int seconds = readDigits(date, 17, 2);
+        int millis = readDigits(date, 20, 3);
+        if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59 || seconds < 0 || seconds > 59 || millis < 0) {
+            return -1;
+        }
+        long millisOfDay = ((hours * 60L + minutes) * 60 + seconds) * 1000 + millis;
+
+        /* Reuse the last day if the date part matches. */
+        Day day = sLastDay;
+        if (!date.regionMatches(0, day.mPrefixString, 0, DAY_LENGTH)) {
+            int year = readDigits(date, 0, 4);
+            int month = readDigits(date, 5, 2);
+            int dayOfMonth = readDigits(date, 8, 2);
+            if (year < 1970 || month < 1 || month > 12 || dayOfMonth < 1 || dayOfMonth > daysInMonth(year, month)) {
+                return -1;
+            }
+            day = getDay(toEpochDay(year, month, dayOfMonth));
+        }
+        return day.mStart + millisOfDay;
+    }
+
+    /**
+     * Get a day, from cache if it's the last one used.
+     *
+     * @param epochDay number of days since epoch.
+     * @return day.
+     */
+    private static Day getDay(long epochDay) {
+        Day day = sLastDay;
+        if (day.mStart != epochDay * DAY_MILLIS) {
+            day = new Day(epochDay);
+            sLastDay = day;
+        }
+        return day;
+    }
+
+    /**
+     * Write a positive number as a fixed number of digits.
+     *
+     * @param buffer buffer to write to.
+     * @param offset position of the first digit.
+     * @param length number of digits.
+     * @param value  number to write.
+     */
+    private static void writeDigits(char[] buffer, int offset, int length, int value) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Read a fixed number of digits.
+     *
+     * @param string string to read from.
+     * @param offset position of the first digit.
+     * @param length number of digits.
+     * @return the number, or -1 if a character is not a digit.
+     */
+    private static int readDigits(String string, int offset, int length) {
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int digit = string.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Get the number of days of a month in the Gregorian calendar.
+     *
+     * @param year  year.
+     * @param month month, from 1 to 12.
+     * @return number of days.
+     */
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    /**
+     * Count days since epoch in the Gregorian calendar, for years since 1970.
+     *
+     * @param year       year.
+     * @param month      month, from 1 to 12.
+     * @param dayOfMonth day of month, from 1.
+     * @return number of days since epoch.
+     */
+    private static long toEpochDay(int year, int month, int dayOfMonth) {
+        if (month <= 2) {
+            year--;
+        }
+        int era = year / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + dayOfMonth - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    /**
+     * A day with its formatted date part.
+     */
+    private static class Day {
+
+        /**
+         * Start of the day in milliseconds since epoch.
+         */
+        final long mStart;
+
+        /**
+         * Formatted date part, e.g. 2017-07-07T.
+         */
+        final char[] mPrefix;
+
+        /**
+         * Formatted date part as a string, to compare with parsed dates.
+         */
+        final String mPrefixString;
+
+        /**
+         * Init.
+         *
+         * @param epochDay number of days since epoch, positive.
+         */
+        Day(long epochDay) {
+            mStart = epochDay * DAY_MILLIS;
+
+            /* Convert to the Gregorian calendar with eras of 400 years starting on March 1st. */
+            long shiftedDay = epochDay + 719468;
+            long era = shiftedDay / 146097;
+            int dayOfEra = (int) (shiftedDay - era * 146097);
+            int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            int shiftedMonth = (5 * dayOfYear + 2) / 153;
+            int dayOfMonth = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+            int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+            int year = (int) (era * 400) + yearOfEra + (month <= 2 ? 1 : 0);
+            mPrefix = new char[DAY_LENGTH];
+            writeDigits(mPrefix, 0, 4, year);
+            mPrefix[4] = '-';
+            writeDigits(mPrefix, 5, 2, month);
+            mPrefix[7] = '-';
+            writeDigits(mPrefix, 8, 2, dayOfMonth);
+            mPrefix[10] = 'T';
+            mPrefixString = new String(mPrefix);
+        }
+    }
 }
@@ -5,6 +5,9 @@
 
 package com.microsoft.appcenter.ingestion.models.json;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import androidx.annotation.VisibleForTesting;
 
 import com.microsoft.appcenter.ingestion.models.Model;
@@ -14,6 +17,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -22,6 +26,11 @@ import java.util.Map;
 
 public class JSONUtils {
 
+    /**
+     * Initial capacity of arrays read from a pull parser, whose size is unknown.
+     */
+    private static final int ARRAY_CAPACITY = 10;
+
     @VisibleForTesting
     JSONUtils() {
     }
@@ -88,6 +97,81 @@ public class JSONUtils {
         return array;
     }
 
+    public static void readObject(JsonReader reader, FieldReader fieldReader) throws IOException, JSONException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!fieldReader.readField(reader.nextName(), reader)) {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static boolean nextNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return true;
+        }
+        return false;
+    }
+
+    public static String readString(JsonReader reader) throws IOException {
+        return nextNull(reader) ? null : reader.nextString();
+    }
+
+    public static Integer readInteger(JsonReader reader) throws IOException {
+        return nextNull(reader) ? null : reader.nextInt();
+    }
+
+    public static Long readLong(JsonReader reader) throws IOException {
+        return nextNull(reader) ? null : reader.nextLong();
+    }
+
+    public static Boolean readBoolean(JsonReader reader) throws IOException {
+        return nextNull(reader) ? null : reader.nextBoolean();
+    }
+
+    public static Map<String, String> readMap(JsonReader reader) throws IOException {
+        if (nextNull(reader)) {
+            return null;
+        }
+        Map<String, String> properties = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            properties.put(reader.nextName(), reader.nextString());
+        }
+        reader.endObject();
+        return properties;
+    }
+
+    public static <M extends Model & FieldReader> List<M> readArray(JsonReader reader, ModelFactory<M> factory) throws IOException, JSONException {
+        if (nextNull(reader)) {
+            return null;
+        }
+        List<M> array = factory.createList(ARRAY_CAPACITY);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            M model = factory.create();
+            readObject(reader, model);
+            array.add(model);
+        }
+        reader.endArray();
+        return array;
+    }
+
+    public static List<String> readStringArray(JsonReader reader) throws IOException {
+        if (nextNull(reader)) {
+            return null;
+        }
+        List<String> array = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            array.add(reader.nextString());
+        }
+        reader.endArray();
+        return array;
+    }
+
     public static void write(JSONStringer writer, String key, Object value) throws JSONException {
         if (value != null) {
             writer.key(key).value(value);
@@ -15,4 +15,11 @@ public interface LogFactory {
     Log create();
 
     Collection<CommonSchemaLog> toCommonSchemaLogs(Log log);
+
+    /**
+     * Check if created logs implement {@link FieldReader} for all their fields, so that they can be read in a single pass.
+     *
+     * @return true to read logs with {@link FieldReader}, false to read them from a {@link org.json.JSONObject}.
+     */
+    boolean isFieldReaderSupported();
 }
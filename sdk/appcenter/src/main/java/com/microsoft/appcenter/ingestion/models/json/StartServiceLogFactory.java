@@ -14,4 +14,9 @@ public class StartServiceLogFactory extends AbstractLogFactory {
     public Log create() {
         return new StartServiceLog();
     }
+
+    @Override
+    public boolean isFieldReaderSupported() {
+        return true;
+    }
 }
@@ -17,10 +17,10 @@ import com.microsoft.appcenter.ingestion.models.properties.TypedProperty;
 import com.microsoft.appcenter.utils.AppCenterLog;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.microsoft.appcenter.ingestion.models.one.Data.BASE_DATA;
 import static com.microsoft.appcenter.ingestion.models.one.Data.BASE_TYPE;
@@ -44,6 +44,23 @@ public class CommonSchemaDataUtils {
     @VisibleForTesting
     static final int DATA_TYPE_DATETIME = 9;
 
+    /**
+     * Maximum number of property keys with their split key path cached.
+     */
+    @VisibleForTesting
+    static final int KEY_PATH_CACHE_SIZE = 256;
+
+    /**
+     * Property keys split by dot, most recently used last. Apps use the same few keys for all their events.
+     */
+    private static final Map<String, String[]> sKeyPaths = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > KEY_PATH_CACHE_SIZE;
+        }
+    };
+
     /**
      * Adds part B and part C properties to a log and Part A metadata.
      *
@@ -56,12 +73,14 @@ public class CommonSchemaDataUtils {
         }
         try {
 
-            /* Part B and C are mixed into the same top level data property. */
+            /*
+             * Part B and C are mixed into the same top level data property.
+             * Part A metadata extension is derived from the same properties when written.
+             */
             Data data = new Data();
+            PropertyNode root = new PropertyNode();
+            data.setPropertyNode(root);
             dest.setData(data);
-
-            /* We also build Part A metadata extension at the same time to reflect the data. */
-            MetadataExtension metadata = new MetadataExtension();
             for (TypedProperty property : properties) {
 
                 /* Validate property and get type. */
@@ -76,68 +95,36 @@ public class CommonSchemaDataUtils {
                 /* Get metadata type. */
                 Integer metadataType = getMetadataType(property);
 
-                /* Split property name by dot. */
-                String key = property.getName();
-                String[] keys = key.split("\\.", -1);
+                /* Handle all intermediate keys, then the last one with the value. */
+                String[] keys = getKeyPath(property.getName());
                 int lastIndex = keys.length - 1;
-
-                /* Handle all intermediate keys. */
-                JSONObject destProperties = data.getProperties();
-                JSONObject destMetadata = metadata.getMetadata();
+                PropertyNode destProperties = root;
                 for (int i = 0; i < lastIndex; i++) {
-
-                    /* Add data sub object. */
-                    String subKey = keys[i];
-                    JSONObject subDataObject = destProperties.optJSONObject(subKey);
-                    if (subDataObject == null) {
-                        if (destProperties.has(subKey)) {
-                            AppCenterLog.warn(LOG_TAG, "Property key '" + subKey + "' already has a value, the old value will be overridden.");
-                        }
-
-                        /* Add sub data intermediate object. */
-                        subDataObject = new JSONObject();
-                        destProperties.put(subKey, subDataObject);
-                    }
-                    destProperties = subDataObject;
-
-                    /* Handle metadata. */
-                    destMetadata = addIntermediateMetadata(destMetadata, subKey);
+                    destProperties = destProperties.getOrAddNode(keys[i]);
                 }
-
-                /* Handle the last key for data, the leaf. */
-                String lastKey = keys[lastIndex];
-                if (destProperties.has(lastKey)) {
-                    AppCenterLog.warn(LOG_TAG, "Property key '" + lastKey + "' already has a value, the old value will be overridden.");
-                }
-                destProperties.put(lastKey, value);
-
-                /* Handle the last key for meta-data, the leaf. */
-                addLeafMetadata(metadataType, destMetadata, lastKey);
+                destProperties.put(keys[lastIndex], value, metadataType);
             }
 
             /* Warn/cleanup if baseData and baseType are not paired. */
-            JSONObject dataObject = data.getProperties();
-            String baseType = dataObject.optString(BASE_TYPE, null);
-            JSONObject baseData = dataObject.optJSONObject(BASE_DATA);
-            if (baseType == null && baseData != null) {
+            Object baseType = root.getValue(BASE_TYPE);
+            boolean hasBaseData = root.hasNode(BASE_DATA);
+            if (baseType == null && hasBaseData) {
 
-                /* Discard unpaired data and metadata. */
+                /* Discard unpaired data and its metadata. */
                 AppCenterLog.warn(LOG_TAG, "baseData was set but baseType is missing.");
-                dataObject.remove(BASE_DATA);
-                JSONObject baseMetaData = metadata.getMetadata().optJSONObject(METADATA_FIELDS);
-
-                /* baseMetaData is always non null as baseData has at least 1 sub object and not cleaned up yet if empty. */
-                baseMetaData.remove(BASE_DATA);
+                root.remove(BASE_DATA);
             }
-            if (baseType != null && baseData == null) {
+            if (baseType != null && !hasBaseData) {
 
                 /* Discard unpaired base type. */
                 AppCenterLog.warn(LOG_TAG, "baseType was set but baseData is missing.");
-                dataObject.remove(BASE_TYPE);
+                root.remove(BASE_TYPE);
             }
 
-            /* Add metadata extension only if not empty after cleanup. */
-            if (!cleanUpEmptyObjectsInMetadata(metadata.getMetadata())) {
+            /* Add metadata extension only if a property needs it. */
+            if (root.hasMetadata()) {
+                MetadataExtension metadata = new MetadataExtension();
+                metadata.setPropertyNode(root);
                 if (dest.getExt() == null) {
                     dest.setExt(new Extensions());
                 }
@@ -145,7 +132,24 @@ public class CommonSchemaDataUtils {
             }
         } catch (JSONException ignore) {
 
-            /* Can only happen with NaN or Infinite but this is already checked before. */
+            /* Can only happen with a null date but this is already checked before. */
+        }
+    }
+
+    /**
+     * Split a property key by dot, using the cache.
+     *
+     * @param key property key.
+     * @return key path, must not be modified.
+     */
+    private static String[] getKeyPath(String key) {
+        synchronized (sKeyPaths) {
+            String[] keys = sKeyPaths.get(key);
+            if (keys == null) {
+                keys = key.split("\\.", -1);
+                sKeyPaths.put(key, keys);
+            }
+            return keys;
         }
     }
 
@@ -223,76 +227,4 @@ public class CommonSchemaDataUtils {
         }
         return null;
     }
-
-    /**
-     * Add the last level of metadata.
-     *
-     * @param metadataType metadata type.
-     * @param destMetadata the parent metadata object.
-     * @param lastKey      the last key from the dot split.
-     * @throws JSONException if JSON put fails.
-     */
-    private static void addLeafMetadata(Integer metadataType, JSONObject destMetadata, String lastKey) throws JSONException {
-        JSONObject fields = destMetadata.optJSONObject(METADATA_FIELDS);
-        if (metadataType != null) {
-            if (fields == null) {
-                fields = new JSONObject();
-                destMetadata.put(METADATA_FIELDS, fields);
-            }
-            fields.put(lastKey, metadataType);
-        }
-
-        /* If we override a key that needs metadata with a key that doesn't, cleanup. */
-        else if (fields != null) {
-            fields.remove(lastKey);
-        }
-    }
-
-    /**
-     * Add a level of metadata nesting or return the existing intermediate object.
-     *
-     * @param destMetadata the parent metadata object.
-     * @param subKey       the intermediate key from the dot split.
-     * @return metadata object on next level.
-     * @throws JSONException if JSON put fails.
-     */
-    private static JSONObject addIntermediateMetadata(JSONObject destMetadata, String subKey) throws JSONException {
-        JSONObject fields = destMetadata.optJSONObject(METADATA_FIELDS);
-        if (fields == null) {
-            fields = new JSONObject();
-            destMetadata.put(METADATA_FIELDS, fields);
-        }
-        JSONObject subMetadataObject = fields.optJSONObject(subKey);
-        if (subMetadataObject == null) {
-            subMetadataObject = new JSONObject();
-            fields.put(subKey, subMetadataObject);
-        }
-        return subMetadataObject;
-    }
-
-    /**
-     * Remove all empty children from JSON object.
-     * <p>
-     * For example, if a property is {"a.b.c": 3}, the metadata contains {"f": {"a": {"f": {"b": {"f": {"c":4}}}}}}.
-     * When {"a.b": "a"} property overrides the metadata JSON object (since string type doesn't require metadata),
-     * it would remove "b" but {"f": {"a": {"f": {}}}} remains in the metadata.
-     * <p>
-     * This method cleans up empty child objects in the given JSON object that were created while
-     * building metadata but remained after its properties were overridden.
-     *
-     * @param object Parent JSON object.
-     * @return true if the object has no children and safe to be removed from its parent.
-     */
-    private static boolean cleanUpEmptyObjectsInMetadata(JSONObject object) {
-        for (Iterator<String> iterator = object.keys(); iterator.hasNext(); ) {
-            String childKey = iterator.next();
-            JSONObject child = object.optJSONObject(childKey);
-            if (child != null) {
-                if (cleanUpEmptyObjectsInMetadata(child)) {
-                    iterator.remove();
-                }
-            }
-        }
-        return object.length() == 0;
-    }
 }
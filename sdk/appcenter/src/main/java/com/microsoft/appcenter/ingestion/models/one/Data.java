@@ -33,15 +33,39 @@ public class Data implements Model {
      */
     private final JSONObject mProperties = new JSONObject();
 
+    /**
+     * Properties built by {@link CommonSchemaDataUtils} and not copied to {@link #mProperties} yet.
+     */
+    private PropertyNode mPropertyNode;
+
     /**
      * Get Part C properties.
      *
      * @return properties.
      */
     public JSONObject getProperties() {
+        if (mPropertyNode != null) {
+            PropertyNode propertyNode = mPropertyNode;
+            mPropertyNode = null;
+            try {
+                propertyNode.copyTo(mProperties);
+            } catch (JSONException ignore) {
+
+                /* Can only happen with NaN or Infinite but this is already checked before. */
+            }
+        }
         return mProperties;
     }
 
+    /**
+     * Set properties, written as is until {@link #getProperties()} is called.
+     *
+     * @param propertyNode properties.
+     */
+    void setPropertyNode(PropertyNode propertyNode) {
+        mPropertyNode = propertyNode;
+    }
+
     @Override
     public void read(JSONObject object) throws JSONException {
 
@@ -55,8 +79,37 @@ public class Data implements Model {
         }
     }
 
+    /**
+     * Get Part C properties to compare, without converting {@link #mPropertyNode} that may be written concurrently.
+     *
+     * @return properties.
+     */
+    private JSONObject peekProperties() {
+        PropertyNode propertyNode = mPropertyNode;
+        if (propertyNode != null) {
+            JSONObject properties = new JSONObject();
+            try {
+                propertyNode.copyTo(properties);
+            } catch (JSONException ignore) {
+
+                /* Can only happen with NaN or Infinite but this is already checked before. */
+            }
+            return properties;
+        }
+        return mProperties;
+    }
+
     @Override
     public void write(JSONStringer writer) throws JSONException {
+        PropertyNode propertyNode = mPropertyNode;
+        if (propertyNode != null) {
+
+            /* Serialize part B before, then part C. */
+            propertyNode.writeEntry(writer, BASE_TYPE);
+            propertyNode.writeEntry(writer, BASE_DATA);
+            propertyNode.writeEntries(writer, BASE_TYPE, BASE_DATA);
+            return;
+        }
 
         /* Serialize part B before. */
         JSONUtils.write(writer, BASE_TYPE, mProperties.optString(BASE_TYPE, null));
@@ -81,11 +134,11 @@ public class Data implements Model {
 
         Data data = (Data) o;
 
-        return mProperties.toString().equals(data.mProperties.toString());
+        return peekProperties().toString().equals(data.peekProperties().toString());
     }
 
     @Override
     public int hashCode() {
-        return mProperties.toString().hashCode();
+        return peekProperties().toString().hashCode();
     }
 }
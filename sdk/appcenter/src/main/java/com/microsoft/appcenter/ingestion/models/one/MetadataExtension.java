@@ -23,22 +23,70 @@ public class MetadataExtension implements Model {
      */
     private JSONObject mMetadata = new JSONObject();
 
+    /**
+     * Properties built by {@link CommonSchemaDataUtils} to describe, until converted to {@link #mMetadata}.
+     */
+    private PropertyNode mPropertyNode;
+
     /**
      * Get metadata.
      *
      * @return metadata.
      */
     public JSONObject getMetadata() {
+        if (mPropertyNode != null) {
+            PropertyNode propertyNode = mPropertyNode;
+            mPropertyNode = null;
+            try {
+                mMetadata = propertyNode.toMetadata();
+            } catch (JSONException ignore) {
+
+                /* Metadata types are integers, this cannot happen. */
+            }
+        }
         return mMetadata;
     }
 
+    /**
+     * Set the properties to describe, written as is until {@link #getMetadata()} is called.
+     *
+     * @param propertyNode properties.
+     */
+    void setPropertyNode(PropertyNode propertyNode) {
+        mPropertyNode = propertyNode;
+    }
+
     @Override
     public void read(JSONObject object) {
         mMetadata = object;
+        mPropertyNode = null;
+    }
+
+    /**
+     * Get metadata to compare, without converting {@link #mPropertyNode} that may be written concurrently.
+     *
+     * @return metadata.
+     */
+    private JSONObject peekMetadata() {
+        PropertyNode propertyNode = mPropertyNode;
+        if (propertyNode != null) {
+            try {
+                return propertyNode.toMetadata();
+            } catch (JSONException ignore) {
+
+                /* Metadata types are integers, this cannot happen. */
+            }
+        }
+        return mMetadata;
     }
 
     @Override
     public void write(JSONStringer writer) throws JSONException {
+        PropertyNode propertyNode = mPropertyNode;
+        if (propertyNode != null) {
+            propertyNode.writeMetadata(writer);
+            return;
+        }
         for (Iterator<String> iterator = mMetadata.keys(); iterator.hasNext(); ) {
             String key = iterator.next();
             writer.key(key).value(mMetadata.get(key));
@@ -52,11 +100,11 @@ public class MetadataExtension implements Model {
 
         MetadataExtension metadataExtension = (MetadataExtension) o;
 
-        return mMetadata.toString().equals(metadataExtension.mMetadata.toString());
+        return peekMetadata().toString().equals(metadataExtension.peekMetadata().toString());
     }
 
     @Override
     public int hashCode() {
-        return mMetadata.toString().hashCode();
+        return peekMetadata().toString().hashCode();
     }
 }
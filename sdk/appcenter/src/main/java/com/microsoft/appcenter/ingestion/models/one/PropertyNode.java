@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.ingestion.models.one;
+
+import com.microsoft.appcenter.utils.AppCenterLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.microsoft.appcenter.ingestion.models.one.CommonSchemaDataUtils.METADATA_FIELDS;
+import static com.microsoft.appcenter.utils.AppCenterLog.LOG_TAG;
+
+/**
+ * Part B and Part C properties nested by the dots of their keys, with the metadata type of each value.
+ * <p>
+ * {@link Data} and {@link MetadataExtension} write it directly to JSON,
+ * JSON objects are only built if their properties or metadata are requested.
+ */
+class PropertyNode {
+
+    /**
+     * Children in insertion order, either a {@link PropertyNode} or a {@link Leaf}.
+     */
+    private final Map<String, Object> mChildren = new LinkedHashMap<>();
+
+    /**
+     * Get the child node of a key, replacing a value if any.
+     *
+     * @param key key.
+     * @return child node.
+     */
+    PropertyNode getOrAddNode(String key) {
+        Object child = mChildren.get(key);
+        if (child instanceof PropertyNode) {
+            return (PropertyNode) child;
+        }
+        if (child != null) {
+            AppCenterLog.warn(LOG_TAG, "Property key '" + key + "' already has a value, the old value will be overridden.");
+        }
+        PropertyNode node = new PropertyNode();
+        mChildren.put(key, node);
+        return node;
+    }
+
+    /**
+     * Set the value of a key, replacing a value or a child node if any.
+     *
+     * @param key          key.
+     * @param value        value.
+     * @param metadataType metadata type or null if the type is a default one.
+     */
+    void put(String key, Object value, Integer metadataType) {
+        if (mChildren.containsKey(key)) {
+            AppCenterLog.warn(LOG_TAG, "Property key '" + key + "' already has a value, the old value will be overridden.");
+        }
+        mChildren.put(key, new Leaf(value, metadataType));
+    }
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key key.
+     * @return value or null if the key is missing or has a child node.
+     */
+    Object getValue(String key) {
+        Object child = mChildren.get(key);
+        return child instanceof Leaf ? ((Leaf) child).mValue : null;
+    }
+
+    /**
+     * Check whether a key has a child node.
+     *
+     * @param key key.
+     * @return true if the key has a child node.
+     */
+    boolean hasNode(String key) {
+        return mChildren.get(key) instanceof PropertyNode;
+    }
+
+    /**
+     * Remove a key.
+     *
+     * @param key key.
+     */
+    void remove(String key) {
+        mChildren.remove(key);
+    }
+
+    /**
+     * Check whether a value of this node or a child node has a metadata type.
+     *
+     * @return true if metadata must be sent.
+     */
+    boolean hasMetadata() {
+        for (Object child : mChildren.values()) {
+            if (child instanceof Leaf ? ((Leaf) child).mMetadataType != null : ((PropertyNode) child).hasMetadata()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write a single key if present.
+     *
+     * @param writer JSON writer, in an object.
+     * @param key    key.
+     * @throws JSONException if JSON write fails.
+     */
+    void writeEntry(JSONStringer writer, String key) throws JSONException {
+        Object child = mChildren.get(key);
+        if (child != null) {
+            writeEntry(writer, key, child);
+        }
+    }
+
+    /**
+     * Write keys and values.
+     *
+     * @param writer       JSON writer, in an object.
+     * @param excludedKeys keys to skip.
+     * @throws JSONException if JSON write fails.
+     */
+    void writeEntries(JSONStringer writer, String... excludedKeys) throws JSONException {
+        for (Map.Entry<String, Object> entry : mChildren.entrySet()) {
+            if (!contains(excludedKeys, entry.getKey())) {
+                writeEntry(writer, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static boolean contains(String[] keys, String key) {
+        for (String candidate : keys) {
+            if (candidate.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeEntry(JSONStringer writer, String key, Object child) throws JSONException {
+        writer.key(key);
+        if (child instanceof Leaf) {
+            writer.value(((Leaf) child).mValue);
+        } else {
+            writer.object();
+            ((PropertyNode) child).writeEntries(writer);
+            writer.endObject();
+        }
+    }
+
+    /**
+     * Write metadata fields of values and child nodes having a metadata type.
+     *
+     * @param writer JSON writer, in an object.
+     * @throws JSONException if JSON write fails.
+     */
+    void writeMetadata(JSONStringer writer) throws JSONException {
+        writer.key(METADATA_FIELDS).object();
+        for (Map.Entry<String, Object> entry : mChildren.entrySet()) {
+            Object child = entry.getValue();
+            if (child instanceof Leaf) {
+                Integer metadataType = ((Leaf) child).mMetadataType;
+                if (metadataType != null) {
+                    writer.key(entry.getKey()).value(metadataType);
+                }
+            } else if (((PropertyNode) child).hasMetadata()) {
+                writer.key(entry.getKey()).object();
+                ((PropertyNode) child).writeMetadata(writer);
+                writer.endObject();
+            }
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Copy keys and values to a JSON object.
+     *
+     * @param object destination.
+     * @throws JSONException if JSON put fails.
+     */
+    void copyTo(JSONObject object) throws JSONException {
+        for (Map.Entry<String, Object> entry : mChildren.entrySet()) {
+            Object child = entry.getValue();
+            if (child instanceof Leaf) {
+                object.put(entry.getKey(), ((Leaf) child).mValue);
+            } else {
+                JSONObject childObject = new JSONObject();
+                ((PropertyNode) child).copyTo(childObject);
+                object.put(entry.getKey(), childObject);
+            }
+        }
+    }
+
+    /**
+     * Convert metadata to a JSON object, in the same layout as {@link #writeMetadata(JSONStringer)}.
+     *
+     * @return metadata JSON object.
+     * @throws JSONException if JSON put fails.
+     */
+    JSONObject toMetadata() throws JSONException {
+        JSONObject fields = new JSONObject();
+        for (Map.Entry<String, Object> entry : mChildren.entrySet()) {
+            Object child = entry.getValue();
+            if (child instanceof Leaf) {
+                Integer metadataType = ((Leaf) child).mMetadataType;
+                if (metadataType != null) {
+                    fields.put(entry.getKey(), metadataType);
+                }
+            } else if (((PropertyNode) child).hasMetadata()) {
+                fields.put(entry.getKey(), ((PropertyNode) child).toMetadata());
+            }
+        }
+        JSONObject metadata = new JSONObject();
+        metadata.put(METADATA_FIELDS, fields);
+        return metadata;
+    }
+
+    /**
+     * A property value.
+     */
+    private static class Leaf {
+
+        /**
+         * Value.
+         */
+        final Object mValue;
+
+        /**
+         * Metadata type or null if the type is a default one.
+         */
+        final Integer mMetadataType;
+
+        Leaf(Object value, Integer metadataType) {
+            mValue = value;
+            mMetadataType = metadataType;
+        }
+    }
+}
@@ -5,12 +5,17 @@
 
 package com.microsoft.appcenter.ingestion.models.properties;
 
+import android.util.JsonReader;
+
+import androidx.annotation.NonNull;
+
 import com.microsoft.appcenter.ingestion.models.json.JSONDateUtils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
 import java.util.Date;
 
 import static com.microsoft.appcenter.ingestion.models.CommonProperties.VALUE;
@@ -53,6 +58,17 @@ public class DateTimeTypedProperty extends TypedProperty {
         setValue(JSONDateUtils.toDate(object.getString(VALUE)));
     }
 
+    @Override
+    public boolean readField(@NonNull String name, @NonNull JsonReader reader) throws IOException, JSONException {
+        switch (name) {
+            case VALUE:
+                setValue(JSONDateUtils.toDate(reader.nextString()));
+                return true;
+            default:
+                return super.readField(name, reader);
+        }
+    }
+
     @Override
     public void write(JSONStringer writer) throws JSONException {
         super.write(writer);
@@ -5,16 +5,23 @@
 
 package com.microsoft.appcenter.ingestion.models.properties;
 
+import android.util.JsonReader;
+
+import androidx.annotation.NonNull;
+
 import com.microsoft.appcenter.ingestion.models.Model;
+import com.microsoft.appcenter.ingestion.models.json.FieldReader;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
+
 import static com.microsoft.appcenter.ingestion.models.CommonProperties.NAME;
 import static com.microsoft.appcenter.ingestion.models.CommonProperties.TYPE;
 
-public abstract class TypedProperty implements Model {
+public abstract class TypedProperty implements Model, FieldReader {
 
     /**
      * Property name.
@@ -54,6 +61,22 @@ public abstract class TypedProperty implements Model {
         setName(object.getString(NAME));
     }
 
+    @Override
+    public boolean readField(@NonNull String name, @NonNull JsonReader reader) throws IOException, JSONException {
+        switch (name) {
+            case TYPE:
+                if (!reader.nextString().equals(getType())) {
+                    throw new JSONException("Invalid type");
+                }
+                return true;
+            case NAME:
+                setName(reader.nextString());
+                return true;
+            default:
+                return false;
+        }
+    }
+
     @Override
     public void write(JSONStringer writer) throws JSONException {
         writer.key(TYPE).value(getType());
@@ -5,12 +5,16 @@
 
 package com.microsoft.appcenter.ingestion.models.properties;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import androidx.annotation.NonNull;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -49,4 +53,31 @@ public class TypedPropertyUtils {
         }
         return null;
     }
+
+    public static List<TypedProperty> read(JsonReader reader) throws IOException, JSONException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        List<TypedProperty> array = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+
+            /* Type comes first as it is written first, other layouts are read from JSONObject. */
+            reader.beginObject();
+            if (!TYPE.equals(reader.nextName())) {
+                throw new JSONException("Typed property type must be the first field.");
+            }
+            TypedProperty typedProperty = TypedPropertyUtils.create(reader.nextString());
+            while (reader.hasNext()) {
+                if (!typedProperty.readField(reader.nextName(), reader)) {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            array.add(typedProperty);
+        }
+        reader.endArray();
+        return array;
+    }
 }
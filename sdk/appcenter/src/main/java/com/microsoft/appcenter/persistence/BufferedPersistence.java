@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import android.os.Handler;
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+import com.microsoft.appcenter.utils.AppCenterLog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.microsoft.appcenter.AppCenter.LOG_TAG;
+
+/**
+ * Persistence decorator staging normal priority logs in memory and writing them to the decorated
+ * persistence in bulk, either when the buffer is full or after {@link #FLUSH_INTERVAL}.
+ * <p>
+ * Critical logs are written through immediately, after flushing the buffer.
+ * Any read or count flushes the buffer first, so buffered logs are never missed by ingestion.
+ * Buffered logs are lost if the process is killed before a flush, and {@link #putLog} returns 0
+ * for them as their identifier is known only after the flush. Logs that the flush fails to write
+ * are reported to the {@link WriteFailureListener}.
+ * All methods must be called from the thread of the handler passed to the constructor.
+ */
+public class BufferedPersistence extends Persistence {
+
+    /**
+     * Maximum time logs stay in the buffer, in ms.
+     */
+    @VisibleForTesting
+    static final long FLUSH_INTERVAL = 1000;
+
+    /**
+     * Decorated persistence.
+     */
+    private final Persistence mPersistence;
+
+    /**
+     * Handler used to schedule time based flushes.
+     */
+    private final Handler mHandler;
+
+    /**
+     * Maximum number of buffered logs.
+     */
+    private final int mCapacity;
+
+    /**
+     * Buffered logs in insertion order.
+     */
+    private final List<BufferedLog> mBuffer;
+
+    /**
+     * Listener of logs that could not be written, if any.
+     */
+    private WriteFailureListener mWriteFailureListener;
+
+    /**
+     * Time based flush.
+     */
+    private final Runnable mFlushRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Init.
+     *
+     * @param persistence decorated persistence.
+     * @param handler     handler of the thread using this persistence.
+     * @param capacity    maximum number of buffered logs.
+     */
+    public BufferedPersistence(@NonNull Persistence persistence, @NonNull Handler handler, @IntRange(from = 1) int capacity) {
+        mPersistence = persistence;
+        mHandler = handler;
+        mCapacity = capacity;
+        mBuffer = new ArrayList<>(capacity);
+    }
+
+    /**
+     * Set the listener of buffered logs that could not be written.
+     *
+     * @param writeFailureListener listener or null to remove it.
+     */
+    public void setWriteFailureListener(@Nullable WriteFailureListener writeFailureListener) {
+        mWriteFailureListener = writeFailureListener;
+    }
+
+    @Override
+    public long putLog(@NonNull Log log, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) throws PersistenceException {
+
+        /* Write through critical logs. */
+        if (Flags.getPersistenceFlag(flags, false) == Flags.CRITICAL) {
+            flush();
+            return mPersistence.putLog(log, group, flags);
+        }
+        mBuffer.add(new BufferedLog(log, group, flags));
+        if (mBuffer.size() >= mCapacity) {
+            flush();
+        } else if (mBuffer.size() == 1) {
+            mHandler.postDelayed(mFlushRunnable, FLUSH_INTERVAL);
+        }
+        return 0;
+    }
+
+    @NonNull
+    @Override
+    public long[] putLogs(@NonNull List<Log> logs, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) {
+        flush();
+        return mPersistence.putLogs(logs, group, flags);
+    }
+
+    @Override
+    public void deleteLogs(@NonNull String group, @NonNull String batchId) {
+        mPersistence.deleteLogs(group, batchId);
+    }
+
+    @Override
+    public void deleteLogs(String group) {
+
+        /* Buffered logs of the group don't need to be written. */
+        for (Iterator<BufferedLog> iterator = mBuffer.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().mGroup.equals(group)) {
+                iterator.remove();
+            }
+        }
+        mPersistence.deleteLogs(group);
+    }
+
+    @Override
+    public int countLogs(@NonNull String group) {
+        flush();
+        return mPersistence.countLogs(group);
+    }
+
+    @Override
+    public int countLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys) {
+        flush();
+        return mPersistence.countLogs(group, pausedTargetKeys);
+    }
+
+    @Override
+    public int deleteExpiredLogs(@NonNull String group, long storedBefore, @IntRange(from = 1) int limit, @Nullable List<Log> outLogs) {
+
+        /* Buffered logs are at most a few seconds old, no need to flush them. */
+        return mPersistence.deleteExpiredLogs(group, storedBefore, limit, outLogs);
+    }
+
+    @Nullable
+    @Override
+    public String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @IntRange(from = 1) long maxBytes, @NonNull List<Log> outLogs) {
+        flush();
+        return mPersistence.getLogs(group, pausedTargetKeys, limit, maxBytes, outLogs);
+    }
+
+    @Override
+    public boolean isRawLogsSupported() {
+        return mPersistence.isRawLogsSupported();
+    }
+
+    @Nullable
+    @Override
+    public String getRawLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @IntRange(from = 1) long maxBytes, @NonNull List<String> outPayloads) {
+        flush();
+        return mPersistence.getRawLogs(group, pausedTargetKeys, limit, maxBytes, outPayloads);
+    }
+
+    @Nullable
+    @Override
+    public String getLogsWithPayloads(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @IntRange(from = 1) long maxBytes, @NonNull List<Log> outLogs, @NonNull List<String> outPayloads) {
+        flush();
+        return mPersistence.getLogsWithPayloads(group, pausedTargetKeys, limit, maxBytes, outLogs, outPayloads);
+    }
+
+    @Override
+    public void clearPendingLogState() {
+        flush();
+        mPersistence.clearPendingLogState();
+    }
+
+    @Override
+    public void clearPendingLogState(@NonNull String group, @NonNull String batchId) {
+        mPersistence.clearPendingLogState(group, batchId);
+    }
+
+    @Nullable
+    @Override
+    public PersistenceStats getStats() {
+        flush();
+        return mPersistence.getStats();
+    }
+
+    @Override
+    public void performMaintenance() {
+        mPersistence.performMaintenance();
+    }
+
+    @Override
+    public void setLogSerializer(@NonNull LogSerializer logSerializer) {
+        super.setLogSerializer(logSerializer);
+        mPersistence.setLogSerializer(logSerializer);
+    }
+
+    @Override
+    public boolean setMaxStorageSize(long maxStorageSizeInBytes) {
+        flush();
+        return mPersistence.setMaxStorageSize(maxStorageSizeInBytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        mPersistence.close();
+    }
+
+    /**
+     * Write all buffered logs to the decorated persistence, with one bulk write per group and flags.
+     */
+    @VisibleForTesting
+    void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mBuffer.isEmpty()) {
+            return;
+        }
+        AppCenterLog.debug(LOG_TAG, "Flushing " + mBuffer.size() + " buffered logs.");
+        Map<String, List<BufferedLog>> batches = new LinkedHashMap<>();
+        for (BufferedLog bufferedLog : mBuffer) {
+            String key = bufferedLog.mFlags + bufferedLog.mGroup;
+            List<BufferedLog> batch = batches.get(key);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                batches.put(key, batch);
+            }
+            batch.add(bufferedLog);
+        }
+        mBuffer.clear();
+        for (List<BufferedLog> batch : batches.values()) {
+            List<Log> logs = new ArrayList<>(batch.size());
+            for (BufferedLog bufferedLog : batch) {
+                logs.add(bufferedLog.mLog);
+            }
+            BufferedLog first = batch.get(0);
+            long[] ids = mPersistence.putLogs(logs, first.mGroup, first.mFlags);
+            List<Log> failedLogs = new ArrayList<>();
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == -1) {
+                    failedLogs.add(logs.get(i));
+                }
+            }
+            if (!failedLogs.isEmpty()) {
+                AppCenterLog.error(LOG_TAG, "Failed to write " + failedLogs.size() + " buffered logs of " + first.mGroup + ".");
+                notifyWriteFailures(first.mGroup, failedLogs);
+            }
+        }
+    }
+
+    /**
+     * Report logs that could not be written to the listener.
+     *
+     * @param group group of the logs.
+     * @param logs  logs that could not be written.
+     */
+    private void notifyWriteFailures(@NonNull final String group, @NonNull final List<Log> logs) {
+
+        /* Notify after the current operation, as the caller may be enqueuing or reading logs of the group. */
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                WriteFailureListener writeFailureListener = mWriteFailureListener;
+                if (writeFailureListener != null) {
+                    for (Log log : logs) {
+                        writeFailureListener.onWriteFailure(group, log);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the number of buffered logs.
+     *
+     * @return number of logs not yet written.
+     */
+    @VisibleForTesting
+    int getBufferedLogCount() {
+        return mBuffer.size();
+    }
+
+    /**
+     * Listener of buffered logs that could not be written.
+     */
+    public interface WriteFailureListener {
+
+        /**
+         * Called on the handler thread for each buffered log that could not be written and is lost.
+         * {@link #putLog} already returned successfully for this log.
+         *
+         * @param group group of the log.
+         * @param log   log that could not be written.
+         */
+        void onWriteFailure(@NonNull String group, @NonNull Log log);
+    }
+
+    /**
+     * Log waiting to be written.
+     */
+    private static class BufferedLog {
+
+        /**
+         * Log.
+         */
+        final Log mLog;
+
+        /**
+         * Group.
+         */
+        final String mGroup;
+
+        /**
+         * Flags.
+         */
+        final int mFlags;
+
+        BufferedLog(Log log, String group, int flags) {
+            mLog = log;
+            mGroup = group;
+            mFlags = flags;
+        }
+    }
+}
@@ -8,6 +8,7 @@ package com.microsoft.appcenter.persistence;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import androidx.annotation.IntRange;
@@ -23,7 +24,9 @@ import com.microsoft.appcenter.ingestion.models.one.PartAUtils;
 import com.microsoft.appcenter.utils.AppCenterLog;
 import com.microsoft.appcenter.utils.crypto.CryptoUtils;
 import com.microsoft.appcenter.utils.storage.DatabaseManager;
+import com.microsoft.appcenter.utils.storage.EvictionPolicy;
 import com.microsoft.appcenter.utils.storage.FileManager;
+import com.microsoft.appcenter.utils.storage.RowReader;
 import com.microsoft.appcenter.utils.storage.SQLiteUtils;
 
 import org.json.JSONException;
@@ -32,13 +35,11 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 
 import static com.microsoft.appcenter.AppCenter.LOG_TAG;
@@ -66,6 +67,12 @@ public class DatabasePersistence extends Persistence {
     @VisibleForTesting
     static final String COLUMN_LOG = "log";
 
+    /**
+     * Name of the encoded log column in the table, used instead of {@link #COLUMN_LOG} when payload encoding is enabled.
+     */
+    @VisibleForTesting
+    static final String COLUMN_COMPRESSED_LOG = "compressed_log";
+
     /**
      * Name of target token column in the table.
      */
@@ -80,10 +87,73 @@ public class DatabasePersistence extends Persistence {
     @VisibleForTesting
     static final int VERSION_TIMESTAMP_COLUMN = 5;
 
+    /**
+     * Last version without the payload size column. When upgrading from that version, the column
+     * is added and filled from the stored payloads instead of recreating the table.
+     */
+    @VisibleForTesting
+    static final int VERSION_PAYLOAD_SIZE_COLUMN = 6;
+
+    /**
+     * Last version without the batch identifier column. When upgrading from that version or an
+     * older one, the column and its index are added.
+     */
+    @VisibleForTesting
+    static final int VERSION_BATCH_ID_COLUMN = 7;
+
+    /**
+     * Last version without the index to select logs of a group. When upgrading from that version
+     * or an older one, the index is created.
+     */
+    @VisibleForTesting
+    static final int VERSION_GROUP_INDEX = 8;
+
+    /**
+     * Last version without the compressed log column. When upgrading from that version or an
+     * older one, the column is added. Existing logs stay plain JSON until converted by maintenance.
+     */
+    @VisibleForTesting
+    static final int VERSION_COMPRESSED_LOG_COLUMN = 9;
+
+    /**
+     * Last version without the log counts table. When upgrading from that version or an older one,
+     * the table and the triggers maintaining it are created and the table is filled from existing logs.
+     */
+    @VisibleForTesting
+    static final int VERSION_LOG_COUNTS_TABLE = 10;
+
+    /**
+     * Last version without the storage time column. When upgrading from that version or an older one,
+     * the column and its index are added and existing logs are considered stored at upgrade time.
+     */
+    @VisibleForTesting
+    static final int VERSION_STORED_AT_COLUMN = 11;
+
+    /**
+     * Last version without the targets table. When upgrading from that version or an older one,
+     * the table and the target identifier column are added. Existing logs keep their encrypted target token.
+     */
+    @VisibleForTesting
+    static final int VERSION_TARGETS_TABLE = 12;
+
+    /**
+     * Last version without the size columns of the log counts table. When upgrading from that version
+     * or an older one, the table and its triggers are created again and filled from existing logs.
+     */
+    @VisibleForTesting
+    static final int VERSION_LOG_STATS_COLUMNS = 13;
+
+    /**
+     * Last version without the deletion counter columns of the log counts table and the storage time index per target key.
+     * When upgrading from that version, the columns are added, the triggers are created again and the index is created.
+     */
+    @VisibleForTesting
+    static final int VERSION_DELETED_COUNT_COLUMNS = 14;
+
     /**
      * Current version of the schema.
      */
-    private static final int VERSION = 6;
+    private static final int VERSION = 15;
 
     /**
      * Project identifier part of the target token in clear text (the target token key).
@@ -102,6 +172,30 @@ public class DatabasePersistence extends Persistence {
      */
     private static final String COLUMN_DATA_TYPE = "type";
 
+    /**
+     * Size in bytes of the serialized log payload, either stored in the table or in a large payload file.
+     */
+    @VisibleForTesting
+    static final String COLUMN_PAYLOAD_SIZE = "payload_size";
+
+    /**
+     * Identifier of the batch a log is leased to while being sent, null when the log is available.
+     */
+    @VisibleForTesting
+    static final String COLUMN_BATCH_ID = "batch_id";
+
+    /**
+     * Time in milliseconds since epoch when the log was stored, to delete expired logs.
+     */
+    @VisibleForTesting
+    static final String COLUMN_STORED_AT = "stored_at";
+
+    /**
+     * Identifier of the target token of the log in {@link #TABLE_TARGETS}.
+     */
+    @VisibleForTesting
+    static final String COLUMN_TARGET_ID = "target_id";
+
     /**
      * Database name.
      */
@@ -112,12 +206,48 @@ public class DatabasePersistence extends Persistence {
      * Table schema for Persistence.
      */
     @VisibleForTesting
-    static final ContentValues SCHEMA = getContentValues("", "", "", "", "", 0);
+    static final ContentValues SCHEMA = getContentValues("", "", new byte[0], "", 0L, "", "", 0, 0L, 0L);
+
+    /**
+     * Columns needed to read logs.
+     */
+    @VisibleForTesting
+    static final String[] LOG_COLUMNS = {PRIMARY_KEY, COLUMN_LOG, COLUMN_COMPRESSED_LOG, COLUMN_PAYLOAD_SIZE, COLUMN_DATA_TYPE, COLUMN_TARGET_ID, COLUMN_TARGET_TOKEN};
 
     /**
      * Order by clause to select logs.
      */
-    private static final String GET_SORT_ORDER = COLUMN_PRIORITY + " DESC, " + PRIMARY_KEY;
+    @VisibleForTesting
+    static final String GET_SORT_ORDER = COLUMN_PRIORITY + " DESC, " + PRIMARY_KEY;
+
+    /**
+     * Columns needed to convert stored logs.
+     */
+    private static final String[] CONVERSION_COLUMNS = {PRIMARY_KEY, COLUMN_LOG};
+
+    /**
+     * Maximum number of stored logs converted to {@link PayloadEncoder} format at each maintenance.
+     */
+    @VisibleForTesting
+    static final int CONVERSION_BATCH_SIZE = 100;
+
+    /**
+     * Maximum number of logs deleted at once when the database is full.
+     */
+    @VisibleForTesting
+    static final int EVICTION_MAX_LOGS = 100;
+
+    /**
+     * Number of payload bytes freed at once when the database is full.
+     */
+    @VisibleForTesting
+    static final long EVICTION_TARGET_BYTES = 64 * 1024;
+
+    /**
+     * Number of bytes the payload of a log takes in the database, which is smaller than {@link #COLUMN_PAYLOAD_SIZE} once encoded.
+     * Large payloads are stored in files and take no space in the database.
+     */
+    private static final String STORED_SIZE_EXPRESSION = "IFNULL(LENGTH(" + COLUMN_COMPRESSED_LOG + "), IFNULL(LENGTH(CAST(" + COLUMN_LOG + " AS BLOB)), 0))";
 
     /**
      * Size limit (in bytes) for a database row log payload.
@@ -146,7 +276,12 @@ public class DatabasePersistence extends Persistence {
             "`priority` INTEGER," +
             "`log` TEXT," +
             "`persistence_group` TEXT," +
-            "`target_key` TEXT);";
+            "`target_key` TEXT," +
+            "`payload_size` INTEGER," +
+            "`batch_id` TEXT," +
+            "`compressed_log` BLOB," +
+            "`stored_at` INTEGER," +
+            "`target_id` INTEGER);";
 
     /**
      * SQL command to drop logs table
@@ -159,22 +294,214 @@ public class DatabasePersistence extends Persistence {
     private static final String CREATE_PRIORITY_INDEX_LOGS = "CREATE INDEX `ix_logs_priority` ON logs (`priority`)";
 
     /**
-     * Database manager instance to access Persistence database.
+     * SQL command to create index for selecting logs of a group.
+     * Available logs of a group are contiguous and already in {@link #GET_SORT_ORDER},
+     * so the query can stop after the limit and filter paused target keys without reading the table.
+     */
+    private static final String CREATE_GROUP_INDEX_LOGS = "CREATE INDEX `ix_logs_group` ON logs (`persistence_group`, `batch_id`, `priority` DESC, `oid`, `target_key`)";
+
+    /**
+     * SQL command to create index for batch identifiers, to delete a sent batch in one statement.
+     */
+    private static final String CREATE_BATCH_ID_INDEX_LOGS = "CREATE INDEX `ix_logs_batch_id` ON logs (`batch_id`)";
+
+    /**
+     * SQL command to create index for storage time, to delete expired logs of a group in one statement.
+     */
+    private static final String CREATE_STORED_AT_INDEX_LOGS = "CREATE INDEX `ix_logs_stored_at` ON logs (`persistence_group`, `stored_at`)";
+
+    /**
+     * SQL command to create index for storage time per target key, to read the oldest and newest log of a target key without scanning the group.
+     */
+    private static final String CREATE_TARGET_STORED_AT_INDEX_LOGS = "CREATE INDEX `ix_logs_target_stored_at` ON logs (`persistence_group`, `target_key`, `stored_at`)";
+
+    /**
+     * Name of the table counting logs per group and target key.
      */
     @VisibleForTesting
-    final DatabaseManager mDatabaseManager;
+    static final String TABLE_LOG_COUNTS = "log_counts";
+
+    /**
+     * Name of the count column in {@link #TABLE_LOG_COUNTS}.
+     */
+    @VisibleForTesting
+    static final String COLUMN_LOG_COUNT = "log_count";
+
+    /**
+     * Name of the column summing {@link #COLUMN_PAYLOAD_SIZE} in {@link #TABLE_LOG_COUNTS}.
+     */
+    @VisibleForTesting
+    static final String COLUMN_TOTAL_PAYLOAD_SIZE = "total_payload_size";
+
+    /**
+     * Name of the column counting logs stored in large payload files in {@link #TABLE_LOG_COUNTS}.
+     */
+    @VisibleForTesting
+    static final String COLUMN_LARGE_PAYLOAD_COUNT = "large_payload_count";
+
+    /**
+     * Name of the column counting logs of a group deleted because the database was full, in {@link #TABLE_LOG_COUNTS}.
+     * Deletion counters are kept per group in the row of logs without target key.
+     */
+    @VisibleForTesting
+    static final String COLUMN_EVICTED_COUNT = "evicted_count";
+
+    /**
+     * Name of the column counting expired logs of a group in {@link #TABLE_LOG_COUNTS}.
+     * Deletion counters are kept per group in the row of logs without target key.
+     */
+    @VisibleForTesting
+    static final String COLUMN_EXPIRED_COUNT = "expired_count";
+
+    /**
+     * Columns read from {@link #TABLE_LOG_COUNTS} by {@link #getStats()}.
+     */
+    private static final String[] LOG_STATS_COLUMNS = {COLUMN_GROUP, COLUMN_TARGET_KEY, COLUMN_LOG_COUNT, COLUMN_TOTAL_PAYLOAD_SIZE, COLUMN_LARGE_PAYLOAD_COUNT, COLUMN_EVICTED_COUNT, COLUMN_EXPIRED_COUNT};
+
+    /**
+     * Columns reading the storage time of a log by {@link #getStats()}.
+     */
+    private static final String[] STORED_AT_COLUMNS = {COLUMN_STORED_AT};
+
+    /**
+     * SQL command to create the table counting logs per group and target key.
+     * Logs without target key are counted with an empty key.
+     */
+    private static final String CREATE_LOG_COUNTS_SQL = "CREATE TABLE IF NOT EXISTS `log_counts`" +
+            "(`persistence_group` TEXT NOT NULL," +
+            "`target_key` TEXT NOT NULL," +
+            "`log_count` INTEGER NOT NULL," +
+            "`total_payload_size` INTEGER NOT NULL DEFAULT 0," +
+            "`large_payload_count` INTEGER NOT NULL DEFAULT 0," +
+            "`evicted_count` INTEGER NOT NULL DEFAULT 0," +
+            "`expired_count` INTEGER NOT NULL DEFAULT 0," +
+            "PRIMARY KEY (`persistence_group`, `target_key`))";
+
+    /**
+     * SQL command to create the trigger counting inserted logs, in the same transaction as the insert.
+     */
+    private static final String CREATE_LOG_COUNTS_INSERT_TRIGGER = "CREATE TRIGGER IF NOT EXISTS `tr_logs_count_insert` AFTER INSERT ON `logs` BEGIN " +
+            "INSERT OR IGNORE INTO `log_counts` (`persistence_group`, `target_key`, `log_count`) VALUES (NEW.`persistence_group`, IFNULL(NEW.`target_key`, ''), 0); " +
+            "UPDATE `log_counts` SET `log_count` = `log_count` + 1, " +
+            "`total_payload_size` = `total_payload_size` + IFNULL(NEW.`payload_size`, 0), " +
+            "`large_payload_count` = `large_payload_count` + (NEW.`log` IS NULL AND NEW.`compressed_log` IS NULL) WHERE `persistence_group` = NEW.`persistence_group` AND `target_key` = IFNULL(NEW.`target_key`, ''); " +
+            "END";
+
+    /**
+     * SQL command to create the trigger counting deleted logs, including logs evicted when the database is full.
+     * The row of a group and target key is deleted with its last log, unless it holds deletion counters.
+     */
+    private static final String CREATE_LOG_COUNTS_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS `tr_logs_count_delete` AFTER DELETE ON `logs` BEGIN " +
+            "UPDATE `log_counts` SET `log_count` = `log_count` - 1, " +
+            "`total_payload_size` = `total_payload_size` - IFNULL(OLD.`payload_size`, 0), " +
+            "`large_payload_count` = `large_payload_count` - (OLD.`log` IS NULL AND OLD.`compressed_log` IS NULL) WHERE `persistence_group` = OLD.`persistence_group` AND `target_key` = IFNULL(OLD.`target_key`, ''); " +
+            "DELETE FROM `log_counts` WHERE `persistence_group` = OLD.`persistence_group` AND `target_key` = IFNULL(OLD.`target_key`, '') AND `log_count` <= 0 AND `evicted_count` = 0 AND `expired_count` = 0; " +
+            "END";
+
+    /**
+     * SQL command to count logs stored before the log counts table existed.
+     */
+    private static final String FILL_LOG_COUNTS_SQL = "INSERT OR REPLACE INTO `log_counts` (`persistence_group`, `target_key`, `log_count`, `total_payload_size`, `large_payload_count`) " +
+            "SELECT `persistence_group`, IFNULL(`target_key`, ''), COUNT(*), IFNULL(SUM(`payload_size`), 0), " +
+            "SUM(`log` IS NULL AND `compressed_log` IS NULL) FROM `logs` WHERE `persistence_group` IS NOT NULL " +
+            "GROUP BY `persistence_group`, IFNULL(`target_key`, '')";
+
+    /**
+     * SQL command to add evicted count column when upgrading from {@link #VERSION_DELETED_COUNT_COLUMNS}.
+     */
+    private static final String ADD_EVICTED_COUNT_COLUMN_SQL = "ALTER TABLE `log_counts` ADD COLUMN `evicted_count` INTEGER NOT NULL DEFAULT 0";
+
+    /**
+     * SQL command to add expired count column when upgrading from {@link #VERSION_DELETED_COUNT_COLUMNS}.
+     */
+    private static final String ADD_EXPIRED_COUNT_COLUMN_SQL = "ALTER TABLE `log_counts` ADD COLUMN `expired_count` INTEGER NOT NULL DEFAULT 0";
+
+    /**
+     * SQL command to create the row holding the deletion counters of a group if missing.
+     */
+    private static final String INSERT_DELETED_COUNTS_SQL = "INSERT OR IGNORE INTO `log_counts` (`persistence_group`, `target_key`, `log_count`) VALUES (?, '', 0)";
 
     /**
-     * Pending log groups. Key is a UUID and value is a list of database identifiers.
+     * SQL command to drop the log counts table.
+     */
+    private static final String DROP_LOG_COUNTS_SQL = "DROP TABLE IF EXISTS `log_counts`";
+
+    /**
+     * SQL command to drop the trigger counting inserted logs.
+     */
+    private static final String DROP_LOG_COUNTS_INSERT_TRIGGER = "DROP TRIGGER IF EXISTS `tr_logs_count_insert`";
+
+    /**
+     * SQL command to drop the trigger counting deleted logs.
+     */
+    private static final String DROP_LOG_COUNTS_DELETE_TRIGGER = "DROP TRIGGER IF EXISTS `tr_logs_count_delete`";
+
+    /**
+     * Name of the table storing each encrypted target token once, referenced by {@link #COLUMN_TARGET_ID}.
      */
     @VisibleForTesting
-    final Map<String, List<Long>> mPendingDbIdentifiersGroups;
+    static final String TABLE_TARGETS = "targets";
+
+    /**
+     * SQL command to create the targets table.
+     */
+    private static final String CREATE_TARGETS_SQL = "CREATE TABLE IF NOT EXISTS `targets`" +
+            "(`oid` INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "`target_key` TEXT," +
+            "`target_token` TEXT)";
 
     /**
-     * Pending logs across all groups.
+     * Condition selecting target tokens no longer referenced by any log.
      */
     @VisibleForTesting
-    final Set<Long> mPendingDbIdentifiers;
+    static final String UNUSED_TARGETS_WHERE = "`oid` NOT IN (SELECT `target_id` FROM `logs` WHERE `target_id` IS NOT NULL)";
+
+    /**
+     * SQL query counting the rows of {@link #TABLE_TARGETS} with a given identifier and encrypted target token.
+     */
+    private static final String COUNT_TARGET_SQL = "SELECT COUNT(*) FROM `targets` WHERE `oid` = ? AND `target_token` = ?";
+
+    /**
+     * SQL command to add target identifier column when upgrading from {@link #VERSION_TARGETS_TABLE}.
+     */
+    private static final String ADD_TARGET_ID_COLUMN_SQL = "ALTER TABLE `logs` ADD COLUMN `target_id` INTEGER";
+
+    /**
+     * SQL command to add payload size column when upgrading from {@link #VERSION_PAYLOAD_SIZE_COLUMN}.
+     */
+    private static final String ADD_PAYLOAD_SIZE_COLUMN_SQL = "ALTER TABLE `logs` ADD COLUMN `payload_size` INTEGER";
+
+    /**
+     * SQL command to compute payload size of the logs stored before the column existed.
+     * Large payloads stored as files have a null log column, their size is resolved from the file.
+     */
+    private static final String UPDATE_PAYLOAD_SIZE_SQL = "UPDATE `logs` SET `payload_size` = length(CAST(`log` AS BLOB)) WHERE `log` IS NOT NULL";
+
+    /**
+     * SQL command to add batch identifier column when upgrading from {@link #VERSION_BATCH_ID_COLUMN}.
+     */
+    private static final String ADD_BATCH_ID_COLUMN_SQL = "ALTER TABLE `logs` ADD COLUMN `batch_id` TEXT";
+
+    /**
+     * SQL command to add compressed log column when upgrading from {@link #VERSION_COMPRESSED_LOG_COLUMN}.
+     */
+    private static final String ADD_COMPRESSED_LOG_COLUMN_SQL = "ALTER TABLE `logs` ADD COLUMN `compressed_log` BLOB";
+
+    /**
+     * SQL command to add storage time column when upgrading from {@link #VERSION_STORED_AT_COLUMN}.
+     */
+    private static final String ADD_STORED_AT_COLUMN_SQL = "ALTER TABLE `logs` ADD COLUMN `stored_at` INTEGER";
+
+    /**
+     * SQL command to set the storage time of the logs stored before the column existed to the upgrade time.
+     */
+    private static final String UPDATE_STORED_AT_SQL = "UPDATE `logs` SET `stored_at` = CAST(strftime('%s', 'now') AS INTEGER) * 1000";
+
+    /**
+     * Database manager instance to access Persistence database.
+     */
+    @VisibleForTesting
+    final DatabaseManager mDatabaseManager;
 
     /**
      * Application context.
@@ -187,141 +514,786 @@ public class DatabasePersistence extends Persistence {
     private final File mLargePayloadDirectory;
 
     /**
-     * Initializes variables with default values.
-     *
-     * @param context application context.
+     * Whether new logs are stored with {@link PayloadEncoder}.
+     */
+    private boolean mPayloadEncodingEnabled = true;
+
+    /**
+     * Identifiers in {@link #TABLE_TARGETS} by target token in clear text.
+     */
+    private final Map<String, Long> mTargetIds = new HashMap<>();
+
+    /**
+     * Target tokens in clear text by identifier in {@link #TABLE_TARGETS}.
+     */
+    private final Map<Long, String> mTargetTokens = new HashMap<>();
+
+    /**
+     * Whether {@link #TABLE_TARGETS} was read and decrypted in the caches.
+     */
+    private boolean mTargetsLoaded;
+
+    /**
+     * Largest database identifier checked by {@link #convertStoredLogs()}.
+     */
+    private long mLastConvertedId;
+
+    /**
+     * Whether all logs stored by previous versions were checked by {@link #convertStoredLogs()}.
+     */
+    private boolean mStoredLogsConverted;
+
+    /**
+     * Whether logs leased to batches by a previous process were made available again.
+     */
+    private boolean mLeasedLogsReclaimed;
+
+    /**
+     * Initializes variables with default values.
+     *
+     * @param context application context.
+     */
+    public DatabasePersistence(Context context) {
+        this(context, VERSION, SCHEMA);
+    }
+
+    /**
+     * Initializes variables.
+     *
+     * @param context application context.
+     * @param version The version of current schema.
+     * @param schema  schema.
+     */
+    DatabasePersistence(Context context, int version, @SuppressWarnings("SameParameterValue") final ContentValues schema) {
+        mContext = context;
+        mDatabaseManager = new DatabaseManager(context, DATABASE, TABLE, version, schema, CREATE_LOGS_SQL, new DatabaseManager.Listener() {
+
+
+            @Override
+            public void onCreate(SQLiteDatabase db) {
+                db.execSQL(CREATE_PRIORITY_INDEX_LOGS);
+                db.execSQL(CREATE_BATCH_ID_INDEX_LOGS);
+                db.execSQL(CREATE_GROUP_INDEX_LOGS);
+                db.execSQL(CREATE_STORED_AT_INDEX_LOGS);
+                db.execSQL(CREATE_TARGET_STORED_AT_INDEX_LOGS);
+                db.execSQL(CREATE_TARGETS_SQL);
+                createLogCounts(db);
+
+                /* The database can be recreated if it was corrupted, cached identifiers are no longer valid. */
+                clearTargetCaches();
+            }
+
+            @Override
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+
+                /*
+                 * With version 3.0 of the SDK we decided to remove timestamp column and as
+                 * it's a major SDK version and SQLite does not support removing column we just start over.
+                 */
+                if (oldVersion <= VERSION_TIMESTAMP_COLUMN) {
+                    db.execSQL(DROP_LOGS_SQL);
+                    db.execSQL(CREATE_LOGS_SQL);
+                    db.execSQL(CREATE_PRIORITY_INDEX_LOGS);
+                    db.execSQL(CREATE_BATCH_ID_INDEX_LOGS);
+                    db.execSQL(CREATE_GROUP_INDEX_LOGS);
+                    db.execSQL(CREATE_STORED_AT_INDEX_LOGS);
+                    db.execSQL(CREATE_TARGET_STORED_AT_INDEX_LOGS);
+                    db.execSQL(CREATE_TARGETS_SQL);
+                    db.execSQL(DROP_LOG_COUNTS_SQL);
+                    createLogCounts(db);
+                    return;
+                }
+
+                /* Otherwise add missing columns. */
+                if (oldVersion <= VERSION_PAYLOAD_SIZE_COLUMN) {
+                    db.execSQL(ADD_PAYLOAD_SIZE_COLUMN_SQL);
+                    db.execSQL(UPDATE_PAYLOAD_SIZE_SQL);
+                }
+                if (oldVersion <= VERSION_BATCH_ID_COLUMN) {
+                    db.execSQL(ADD_BATCH_ID_COLUMN_SQL);
+                    db.execSQL(CREATE_BATCH_ID_INDEX_LOGS);
+                }
+                if (oldVersion <= VERSION_GROUP_INDEX) {
+                    db.execSQL(CREATE_GROUP_INDEX_LOGS);
+                }
+                if (oldVersion <= VERSION_COMPRESSED_LOG_COLUMN) {
+                    db.execSQL(ADD_COMPRESSED_LOG_COLUMN_SQL);
+                }
+                if (oldVersion <= VERSION_LOG_STATS_COLUMNS) {
+
+                    /* The table is missing before VERSION_LOG_COUNTS_TABLE and lacks size columns after it. */
+                    db.execSQL(DROP_LOG_COUNTS_INSERT_TRIGGER);
+                    db.execSQL(DROP_LOG_COUNTS_DELETE_TRIGGER);
+                    db.execSQL(DROP_LOG_COUNTS_SQL);
+                    createLogCounts(db);
+                    db.execSQL(FILL_LOG_COUNTS_SQL);
+                } else if (oldVersion <= VERSION_DELETED_COUNT_COLUMNS) {
+
+                    /* The triggers must be created again to keep rows holding deletion counters. */
+                    db.execSQL(DROP_LOG_COUNTS_INSERT_TRIGGER);
+                    db.execSQL(DROP_LOG_COUNTS_DELETE_TRIGGER);
+                    db.execSQL(ADD_EVICTED_COUNT_COLUMN_SQL);
+                    db.execSQL(ADD_EXPIRED_COUNT_COLUMN_SQL);
+                    createLogCounts(db);
+                }
+                if (oldVersion <= VERSION_STORED_AT_COLUMN) {
+                    db.execSQL(ADD_STORED_AT_COLUMN_SQL);
+                    db.execSQL(UPDATE_STORED_AT_SQL);
+                    db.execSQL(CREATE_STORED_AT_INDEX_LOGS);
+                }
+                if (oldVersion <= VERSION_TARGETS_TABLE) {
+                    db.execSQL(ADD_TARGET_ID_COLUMN_SQL);
+                    db.execSQL(CREATE_TARGETS_SQL);
+                }
+                if (oldVersion <= VERSION_DELETED_COUNT_COLUMNS) {
+                    db.execSQL(CREATE_TARGET_STORED_AT_INDEX_LOGS);
+                }
+            }
+
+            @Override
+            public void onEvicted(SQLiteDatabase db, @NonNull Map<String, Long> evictedCounts) {
+                for (Map.Entry<String, Long> entry : evictedCounts.entrySet()) {
+                    addDeletedCount(db, COLUMN_EVICTED_COUNT, entry.getKey(), entry.getValue());
+                }
+            }
+        });
+        mLargePayloadDirectory = new File(Constants.FILES_PATH + PAYLOAD_LARGE_DIRECTORY);
+
+        //noinspection ResultOfMethodCallIgnored we handle errors at read/write time for each file.
+        mLargePayloadDirectory.mkdirs();
+        mDatabaseManager.setEvictionPolicy(getOldestNormalFirstEvictionPolicy());
+    }
+
+    /**
+     * Make logs leased to batches by a previous process available again, as these batches were never acknowledged.
+     * This is done on the first read rather than at construction, so that the database is opened lazily.
+     */
+    private void reclaimLeasedLogs() {
+        if (mLeasedLogsReclaimed) {
+            return;
+        }
+        mLeasedLogsReclaimed = true;
+        int reclaimedCount = mDatabaseManager.update(getBatchIdValues(null), COLUMN_BATCH_ID + " IS NOT NULL", null);
+        if (reclaimedCount > 0) {
+            AppCenterLog.debug(LOG_TAG, "Reclaimed " + reclaimedCount + " logs leased to batches that were not sent.");
+        }
+    }
+
+    /**
+     * Create the log counts table and the triggers maintaining it.
+     *
+     * @param db database.
+     */
+    private static void createLogCounts(SQLiteDatabase db) {
+        db.execSQL(CREATE_LOG_COUNTS_SQL);
+        db.execSQL(CREATE_LOG_COUNTS_INSERT_TRIGGER);
+        db.execSQL(CREATE_LOG_COUNTS_DELETE_TRIGGER);
+    }
+
+    /**
+     * Add deleted logs to a deletion counter of a group, in the transaction deleting them.
+     *
+     * @param db     database.
+     * @param column {@link #COLUMN_EVICTED_COUNT} or {@link #COLUMN_EXPIRED_COUNT}.
+     * @param group  group of the deleted logs, ignored if null.
+     * @param count  number of deleted logs.
+     */
+    private static void addDeletedCount(SQLiteDatabase db, String column, @Nullable String group, long count) {
+        if (group == null || count <= 0) {
+            return;
+        }
+        db.execSQL(INSERT_DELETED_COUNTS_SQL, new Object[]{group});
+        db.execSQL("UPDATE `log_counts` SET `" + column + "` = `" + column + "` + ? WHERE `persistence_group` = ? AND `target_key` = ''", new Object[]{count, group});
+    }
+
+    /**
+     * Instantiates {@link ContentValues} with the give values.
+     *
+     * @param group         The group of the storage for the log.
+     * @param logJ          The JSON string for a log.
+     * @param compressedLog The compressed JSON string for a log.
+     * @param targetToken   The encrypted target token of common schema logs stored before the targets table existed.
+     * @param targetId      The identifier of the target token in the targets table if the log is common schema.
+     * @param targetKey     The project identifier part of the target token in clear text.
+     * @param priority      The persistence priority.
+     * @param payloadSize   The size of the serialized log in bytes.
+     * @param storedAt      The storage time in milliseconds since epoch.
+     * @return A {@link ContentValues} instance.
+     */
+    private static ContentValues getContentValues(@Nullable String group, @Nullable String logJ, @Nullable byte[] compressedLog, String targetToken, Long targetId, String type, String targetKey, int priority, long payloadSize, long storedAt) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_GROUP, group);
+        values.put(COLUMN_LOG, logJ);
+        values.put(COLUMN_COMPRESSED_LOG, compressedLog);
+        values.put(COLUMN_TARGET_TOKEN, targetToken);
+        values.put(COLUMN_TARGET_ID, targetId);
+        values.put(COLUMN_DATA_TYPE, type);
+        values.put(COLUMN_TARGET_KEY, targetKey);
+        values.put(COLUMN_PRIORITY, priority);
+        values.put(COLUMN_PAYLOAD_SIZE, payloadSize);
+        values.put(COLUMN_STORED_AT, storedAt);
+        return values;
+    }
+
+    /**
+     * Instantiates {@link ContentValues} to lease logs to a batch or release them.
+     *
+     * @param batchId The batch identifier, null to release the logs.
+     * @return A {@link ContentValues} instance.
+     */
+    private static ContentValues getBatchIdValues(@Nullable String batchId) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_BATCH_ID, batchId);
+        return values;
+    }
+
+    /**
+     * Get the eviction policy deleting normal priority logs before critical ones, oldest first.
+     * This is the default policy.
+     *
+     * @return eviction policy.
+     */
+    @NonNull
+    public static EvictionPolicy getOldestNormalFirstEvictionPolicy() {
+        return newEvictionPolicy(COLUMN_PRIORITY + ", " + PRIMARY_KEY);
+    }
+
+    /**
+     * Get the eviction policy deleting the oldest logs first, regardless of priority.
+     * Critical logs are still never deleted to store a normal one.
+     *
+     * @return eviction policy.
+     */
+    @NonNull
+    public static EvictionPolicy getByAgeEvictionPolicy() {
+        return newEvictionPolicy(PRIMARY_KEY);
+    }
+
+    /**
+     * Get the eviction policy deleting logs of the given types first, then falling back to
+     * {@link #getOldestNormalFirstEvictionPolicy()}.
+     *
+     * @param types log types to delete first.
+     * @return eviction policy.
+     */
+    @NonNull
+    public static EvictionPolicy getByTypeEvictionPolicy(@NonNull String... types) {
+        if (types.length == 0) {
+            return getOldestNormalFirstEvictionPolicy();
+        }
+        StringBuilder typeList = new StringBuilder();
+        for (String type : types) {
+            typeList.append(DatabaseUtils.sqlEscapeString(type)).append(',');
+        }
+        typeList.deleteCharAt(typeList.length() - 1);
+        return newEvictionPolicy("CASE WHEN " + COLUMN_DATA_TYPE + " IN (" + typeList + ") THEN 0 ELSE 1 END, " + COLUMN_PRIORITY + ", " + PRIMARY_KEY);
+    }
+
+    private static EvictionPolicy newEvictionPolicy(String sortOrder) {
+        return new EvictionPolicy(sortOrder, COLUMN_GROUP, STORED_SIZE_EXPRESSION, EVICTION_MAX_LOGS, EVICTION_TARGET_BYTES);
+    }
+
+    /**
+     * Set how logs are deleted when the database is full.
+     *
+     * @param evictionPolicy eviction policy, for example {@link #getByAgeEvictionPolicy()}.
+     */
+    public void setEvictionPolicy(@NonNull EvictionPolicy evictionPolicy) {
+        mDatabaseManager.setEvictionPolicy(evictionPolicy);
+    }
+
+    /**
+     * Get the number of logs of a group deleted because the database was full, since the database was created.
+     *
+     * @param group the group.
+     * @return number of evicted logs.
+     */
+    public long getEvictedLogCount(@NonNull String group) {
+        SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+        builder.appendWhere(COLUMN_GROUP + " = ?");
+        long count = 0;
+        try {
+            Cursor cursor = mDatabaseManager.getCursor(TABLE_LOG_COUNTS, builder, new String[]{"SUM(" + COLUMN_EVICTED_COUNT + ")"}, new String[]{group}, null);
+            try {
+                cursor.moveToNext();
+                count = cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to get evicted logs count: ", e);
+        }
+        return count;
+    }
+
+    /**
+     * Set whether new logs are stored in the binary format of {@link PayloadEncoder}. Logs already stored are readable either way,
+     * and are also converted during maintenance when enabled.
+     *
+     * @param payloadEncodingEnabled true to encode new logs, false to store them as plain JSON.
+     */
+    public void setPayloadEncodingEnabled(boolean payloadEncodingEnabled) {
+        mPayloadEncodingEnabled = payloadEncodingEnabled;
+    }
+
+    /**
+     * Check whether the payload of a log row has to be stored in a separate file.
+     *
+     * @param values The values of the row.
+     * @return true if neither plain nor compressed payload is stored in the row.
+     */
+    private static boolean isLargePayload(ContentValues values) {
+        return values.getAsString(COLUMN_LOG) == null && values.getAsByteArray(COLUMN_COMPRESSED_LOG) == null;
+    }
+
+    @Override
+    public boolean setMaxStorageSize(long maxStorageSizeInBytes) {
+        return mDatabaseManager.setMaxSize(maxStorageSizeInBytes);
+    }
+
+    @Override
+    public void performMaintenance() {
+        convertStoredLogs();
+        deleteUnusedTargets();
+        mDatabaseManager.performMaintenance();
+    }
+
+    /**
+     * Delete the target tokens no longer referenced by any log, including tokens inserted with logs that failed to be stored.
+     */
+    private void deleteUnusedTargets() {
+        int deletedCount = mDatabaseManager.deleteWhere(TABLE_TARGETS, UNUSED_TARGETS_WHERE, null);
+        if (deletedCount > 0) {
+            AppCenterLog.debug(LOG_TAG, "Deleted " + deletedCount + " unused target tokens.");
+
+            /* Cached identifiers of deleted tokens are no longer valid. */
+            clearTargetCaches();
+        }
+    }
+
+    /**
+     * Encode a batch of logs stored as plain JSON by previous versions, if it makes them smaller. Logs are converted in database identifier order, a few at each maintenance.
+     */
+    private void convertStoredLogs() {
+        if (!mPayloadEncodingEnabled || mStoredLogsConverted) {
+            return;
+        }
+        SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+        builder.appendWhere(PRIMARY_KEY + " > ? AND " + COLUMN_LOG + " IS NOT NULL");
+        String[] whereArgs = new String[]{String.valueOf(mLastConvertedId)};
+        RowReader reader;
+        try {
+            reader = new RowReader(mDatabaseManager.getCursor(builder, CONVERSION_COLUMNS, whereArgs, PRIMARY_KEY, CONVERSION_BATCH_SIZE));
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to get logs to convert: ", e);
+            return;
+        }
+
+        /* Read the whole batch before updating rows. */
+        List<Long> ids = new ArrayList<>();
+        List<byte[]> encodedPayloads = new ArrayList<>();
+        int count = 0;
+        try {
+            int idIndex = reader.getColumnIndex(PRIMARY_KEY);
+            int logIndex = reader.getColumnIndex(COLUMN_LOG);
+            while (reader.moveToNext()) {
+                count++;
+                long id = reader.getLong(idIndex, -1);
+                mLastConvertedId = Math.max(mLastConvertedId, id);
+                try {
+                    String payload = reader.getString(logIndex);
+                    if (payload == null) {
+                        continue;
+                    }
+                    byte[] encodedPayload = PayloadEncoder.encode(payload);
+                    if (encodedPayload.length < getUtf8Length(payload)) {
+                        ids.add(id);
+                        encodedPayloads.add(encodedPayload);
+                    }
+                } catch (IOException e) {
+
+                    /* Leave it as is, reading it will fail the same way. */
+                    AppCenterLog.error(LOG_TAG, "Cannot convert a log in the database", e);
+                }
+            }
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to read logs to convert: ", e);
+            return;
+        } finally {
+            reader.close();
+        }
+        mStoredLogsConverted = count < CONVERSION_BATCH_SIZE;
+        for (int i = 0; i < ids.size(); i++) {
+            ContentValues values = new ContentValues();
+            values.putNull(COLUMN_LOG);
+            values.put(COLUMN_COMPRESSED_LOG, encodedPayloads.get(i));
+            mDatabaseManager.update(values, PRIMARY_KEY + " = ?", new String[]{String.valueOf(ids.get(i))});
+        }
+        AppCenterLog.debug(LOG_TAG, "Converted " + ids.size() + " stored logs to the binary encoding.");
+    }
+
+    @Override
+    public long putLog(@NonNull Log log, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) throws PersistenceException {
+
+        /* Convert log to JSON string and put in the database. */
+        try {
+            AppCenterLog.debug(LOG_TAG, "Storing a log to the Persistence database for log type " + log.getType() + " with flags=" + flags);
+            String payload = getLogSerializer().serializeLog(log);
+            TargetPreparer targetPreparer = new TargetPreparer();
+            ContentValues contentValues = getLogContentValues(log, group, flags, payload, targetPreparer);
+            long databaseId = mDatabaseManager.put(contentValues, COLUMN_PRIORITY, targetPreparer.getPreparer());
+            if (databaseId == -1) {
+                throw new PersistenceException("Failed to store a log to the Persistence database for log type " + log.getType() + ".");
+            }
+            targetPreparer.onStored(contentValues);
+            AppCenterLog.debug(LOG_TAG, "Stored a log to the Persistence database for log type " + log.getType() + " with databaseId=" + databaseId);
+            if (isLargePayload(contentValues)) {
+                writeLargePayload(group, databaseId, payload);
+            }
+            return databaseId;
+        } catch (JSONException e) {
+            throw new PersistenceException("Cannot convert to JSON string.", e);
+        } catch (IOException e) {
+            throw new PersistenceException("Cannot save large payload in a file.", e);
+        }
+    }
+
+    @NonNull
+    @Override
+    public long[] putLogs(@NonNull List<Log> logs, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) {
+        AppCenterLog.debug(LOG_TAG, "Storing " + logs.size() + " logs to the Persistence database with flags=" + flags);
+        long[] databaseIds = new long[logs.size()];
+        String[] payloads = new String[logs.size()];
+        List<ContentValues> valuesList = new ArrayList<>(logs.size());
+        List<Integer> valuesIndexes = new ArrayList<>(logs.size());
+        TargetPreparer targetPreparer = new TargetPreparer();
+
+        /* Serialize and validate all logs before opening the transaction. */
+        for (int i = 0; i < logs.size(); i++) {
+            Log log = logs.get(i);
+            databaseIds[i] = -1;
+            try {
+                payloads[i] = getLogSerializer().serializeLog(log);
+                valuesList.add(getLogContentValues(log, group, flags, payloads[i], targetPreparer));
+                valuesIndexes.add(i);
+            } catch (JSONException | IOException | PersistenceException e) {
+                AppCenterLog.error(LOG_TAG, "Cannot store a log of type " + log.getType() + " to the Persistence database.", e);
+            }
+        }
+
+        /* Insert all rows in a single transaction. */
+        long[] insertedIds = mDatabaseManager.put(valuesList, COLUMN_PRIORITY, targetPreparer.getPreparer());
+        for (int i = 0; i < insertedIds.length; i++) {
+            int index = valuesIndexes.get(i);
+            long databaseId = insertedIds[i];
+            if (databaseId != -1) {
+                targetPreparer.onStored(valuesList.get(i));
+            }
+            if (databaseId != -1 && isLargePayload(valuesList.get(i))) {
+                try {
+                    writeLargePayload(group, databaseId, payloads[index]);
+                } catch (IOException e) {
+                    AppCenterLog.error(LOG_TAG, "Cannot save large payload in a file.", e);
+                    databaseId = -1;
+                }
+            }
+            databaseIds[index] = databaseId;
+        }
+        AppCenterLog.debug(LOG_TAG, "Stored " + valuesList.size() + " logs to the Persistence database for group " + group);
+        return databaseIds;
+    }
+
+    /**
+     * Get the values of the database row for a log.
+     *
+     * @param log            log to store.
+     * @param group          group of the log.
+     * @param flags          persistence flags.
+     * @param payload        serialized log.
+     * @param targetPreparer preparer inserting the target token with the log if it is not stored yet.
+     * @return the values to insert, with null log columns if the payload has to be stored in a file.
+     * @throws PersistenceException if the log cannot be stored.
+     * @throws IOException          if the payload cannot be encoded.
+     */
+    private ContentValues getLogContentValues(@NonNull Log log, @NonNull String group, int flags, @NonNull String payload, @NonNull TargetPreparer targetPreparer) throws PersistenceException, IOException {
+
+        int payloadSize = getUtf8Length(payload);
+        boolean isLargePayload = payloadSize >= PAYLOAD_MAX_SIZE;
+        String targetToken = null;
+        String targetKey;
+        Long targetId;
+        if (log instanceof CommonSchemaLog) {
+            if (isLargePayload) {
+                throw new PersistenceException("Log is larger than " + PAYLOAD_MAX_SIZE + " bytes, cannot send to OneCollector.");
+            }
+            targetToken = log.getTransmissionTargetTokens().iterator().next();
+            targetKey = PartAUtils.getTargetKey(targetToken);
+            targetId = getTargetId(targetToken);
+        } else {
+            targetKey = null;
+            targetId = null;
+        }
+        long maxSize = mDatabaseManager.getMaxSize();
+        if (maxSize == -1) {
+            throw new PersistenceException("Failed to store a log to the Persistence database.");
+        }
+        if (!isLargePayload && maxSize <= payloadSize) {
+            throw new PersistenceException("Log is too large (" + payloadSize + " bytes) to store in database. " +
+                    "Current maximum database size is " + maxSize + " bytes.");
+        }
+        String plainPayload = isLargePayload ? null : payload;
+        byte[] encodedPayload = null;
+        if (plainPayload != null && mPayloadEncodingEnabled) {
+
+            /* Keep plain JSON for the few logs that would not get smaller. */
+            encodedPayload = PayloadEncoder.encode(payload);
+            if (encodedPayload.length < payloadSize) {
+                plainPayload = null;
+            } else {
+                encodedPayload = null;
+            }
+        }
+        ContentValues values = getContentValues(group, plainPayload, encodedPayload, null, targetId, log.getType(), targetKey, Flags.getPersistenceFlag(flags, false), payloadSize, System.currentTimeMillis());
+        if (targetToken != null && targetId == null) {
+            targetPreparer.addNewTarget(values, targetToken);
+        }
+        return values;
+    }
+
+    /**
+     * Get the identifier of a target token in {@link #TABLE_TARGETS}.
+     *
+     * @param targetToken target token in clear text.
+     * @return identifier of the target token, null if it is not stored yet.
+     * @throws PersistenceException if the target tokens cannot be read.
+     */
+    @Nullable
+    private Long getTargetId(@NonNull String targetToken) throws PersistenceException {
+        loadTargets();
+
+        /* The token may already be stored if the table could not be read, don't insert it again. */
+        if (!mTargetsLoaded) {
+            throw new PersistenceException("Failed to read target tokens from the Persistence database.");
+        }
+        return mTargetIds.get(targetToken);
+    }
+
+    /**
+     * Get a target token in clear text from its identifier in {@link #TABLE_TARGETS}.
+     *
+     * @param targetId identifier of the target token.
+     * @return target token in clear text, null if unknown.
+     */
+    @Nullable
+    private String getTargetToken(long targetId) {
+        loadTargets();
+        return mTargetTokens.get(targetId);
+    }
+
+    /**
+     * Read and decrypt all target tokens in the caches, if not done yet.
+     * Only a few tokens are used by an application, so each of them is decrypted once per process.
+     */
+    private void loadTargets() {
+        if (mTargetsLoaded) {
+            return;
+        }
+        Map<Long, String> reencryptedTokens = new HashMap<>();
+        RowReader reader = null;
+        try {
+            reader = new RowReader(mDatabaseManager.getCursor(TABLE_TARGETS, null, new String[]{PRIMARY_KEY, COLUMN_TARGET_TOKEN}, null, null));
+            int idIndex = reader.getColumnIndex(PRIMARY_KEY);
+            int tokenIndex = reader.getColumnIndex(COLUMN_TARGET_TOKEN);
+            CryptoUtils cryptoUtils = CryptoUtils.getInstance(mContext);
+            while (reader.moveToNext()) {
+                String encryptedToken = reader.getString(tokenIndex);
+                if (reader.isNull(idIndex) || encryptedToken == null) {
+                    continue;
+                }
+                long targetId = reader.getLong(idIndex, -1);
+                CryptoUtils.DecryptedData data;
+                try {
+                    data = cryptoUtils.decrypt(encryptedToken);
+                } catch (RuntimeException e) {
+
+                    /* Logs referencing this token cannot be sent anyway, they are deleted when read. */
+                    AppCenterLog.error(LOG_TAG, "Failed to decrypt target token " + targetId + ": ", e);
+                    continue;
+                }
+                String targetToken = data.getDecryptedData();
+                mTargetIds.put(targetToken, targetId);
+                mTargetTokens.put(targetId, targetToken);
+
+                /* Tokens are kept as long as logs reference them, re-encrypt them when the key rotates. */
+                if (data.getNewEncryptedData() != null) {
+                    reencryptedTokens.put(targetId, data.getNewEncryptedData());
+                }
+            }
+            mTargetsLoaded = true;
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to read target tokens: ", e);
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+        for (Map.Entry<Long, String> entry : reencryptedTokens.entrySet()) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_TARGET_TOKEN, entry.getValue());
+            mDatabaseManager.update(TABLE_TARGETS, values, PRIMARY_KEY + " = ?", new String[]{String.valueOf(entry.getKey())});
+        }
+    }
+
+    /**
+     * Clear the target token caches so that they are read again from the database.
      */
-    public DatabasePersistence(Context context) {
-        this(context, VERSION, SCHEMA);
+    private void clearTargetCaches() {
+        mTargetIds.clear();
+        mTargetTokens.clear();
+        mTargetsLoaded = false;
     }
 
     /**
-     * Initializes variables.
-     *
-     * @param context application context.
-     * @param version The version of current schema.
-     * @param schema  schema.
+     * Inserts target tokens seen for the first time in {@link #TABLE_TARGETS}, in the transaction inserting their logs.
+     * The caches are only updated once a log referencing the token is stored.
      */
-    DatabasePersistence(Context context, int version, @SuppressWarnings("SameParameterValue") final ContentValues schema) {
-        mContext = context;
-        mPendingDbIdentifiersGroups = new HashMap<>();
-        mPendingDbIdentifiers = new HashSet<>();
-        mDatabaseManager = new DatabaseManager(context, DATABASE, TABLE, version, schema, CREATE_LOGS_SQL, new DatabaseManager.Listener() {
+    private class TargetPreparer implements DatabaseManager.EntryPreparer {
+
+        /**
+         * Target tokens in clear text that are not stored yet, by values of the logs referencing them.
+         */
+        private Map<ContentValues, String> mNewTargetTokens;
+
+        /**
+         * Identifiers of the target tokens inserted by this preparer, by target token in clear text.
+         * An identifier is no longer valid if its transaction was rolled back.
+         */
+        private final Map<String, Long> mInsertedIds = new HashMap<>();
+
+        /**
+         * Encrypted target tokens inserted by this preparer, by target token in clear text.
+         */
+        private final Map<String, String> mEncryptedTokens = new HashMap<>();
+
+        /**
+         * Register a log referencing a target token that is not stored yet.
+         *
+         * @param values      values of the log.
+         * @param targetToken target token in clear text.
+         */
+        void addNewTarget(@NonNull ContentValues values, @NonNull String targetToken) {
+            if (mNewTargetTokens == null) {
+                mNewTargetTokens = new IdentityHashMap<>();
+            }
+            mNewTargetTokens.put(values, targetToken);
+        }
 
+        /**
+         * Get the preparer to pass to the database manager.
+         *
+         * @return this preparer, or null if all logs reference stored target tokens.
+         */
+        @Nullable
+        DatabaseManager.EntryPreparer getPreparer() {
+            return mNewTargetTokens == null ? null : this;
+        }
 
-            @Override
-            public void onCreate(SQLiteDatabase db) {
-                db.execSQL(CREATE_PRIORITY_INDEX_LOGS);
+        @NonNull
+        @Override
+        public ContentValues prepare(SQLiteDatabase db, @NonNull ContentValues values) {
+            String targetToken = mNewTargetTokens == null ? null : mNewTargetTokens.get(values);
+            if (targetToken == null) {
+                return values;
             }
 
-            @Override
-            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-
-                /*
-                 * With version 3.0 of the SDK we decided to remove timestamp column and as
-                 * it's a major SDK version and SQLite does not support removing column we just start over.
-                 * When adding a new column in a future version, update this code by something like
-                 * if (oldVersion <= VERSION_TIMESTAMP_COLUMN) {drop/create} else {add missing columns}
-                 */
-                db.execSQL(DROP_LOGS_SQL);
-                db.execSQL(CREATE_LOGS_SQL);
-                db.execSQL(CREATE_PRIORITY_INDEX_LOGS);
+            /* Insert the token once per transaction, again if the transaction that inserted it was rolled back. */
+            Long targetId = mInsertedIds.get(targetToken);
+            String encryptedToken = mEncryptedTokens.get(targetToken);
+            if (targetId == null || DatabaseUtils.longForQuery(db, COUNT_TARGET_SQL, new String[]{String.valueOf(targetId), encryptedToken}) == 0) {
+                if (encryptedToken == null) {
+                    encryptedToken = CryptoUtils.getInstance(mContext).encrypt(targetToken);
+                    mEncryptedTokens.put(targetToken, encryptedToken);
+                }
+                ContentValues targetValues = new ContentValues();
+                targetValues.put(COLUMN_TARGET_KEY, values.getAsString(COLUMN_TARGET_KEY));
+                targetValues.put(COLUMN_TARGET_TOKEN, encryptedToken);
+                targetId = db.insertOrThrow(TABLE_TARGETS, null, targetValues);
+                mInsertedIds.put(targetToken, targetId);
             }
-        });
-        mLargePayloadDirectory = new File(Constants.FILES_PATH + PAYLOAD_LARGE_DIRECTORY);
+            ContentValues preparedValues = new ContentValues(values);
+            preparedValues.put(COLUMN_TARGET_ID, targetId);
+            return preparedValues;
+        }
 
-        //noinspection ResultOfMethodCallIgnored we handle errors at read/write time for each file.
-        mLargePayloadDirectory.mkdirs();
+        /**
+         * Cache the target token of a stored log, its transaction inserted the token if it was new.
+         *
+         * @param values values of the stored log.
+         */
+        void onStored(@NonNull ContentValues values) {
+            String targetToken = mNewTargetTokens == null ? null : mNewTargetTokens.get(values);
+            Long targetId = targetToken == null ? null : mInsertedIds.get(targetToken);
+            if (targetId != null) {
+                mTargetIds.put(targetToken, targetId);
+                mTargetTokens.put(targetId, targetToken);
+            }
+        }
     }
 
     /**
-     * Instantiates {@link ContentValues} with the give values.
+     * Get the size of a string encoded in UTF-8 without encoding it, as payloads can be several megabytes.
      *
-     * @param group       The group of the storage for the log.
-     * @param logJ        The JSON string for a log.
-     * @param targetToken The target token if the log is common schema.
-     * @param targetKey   The project identifier part of the target token in clear text.
-     * @param priority    The persistence priority.
-     * @return A {@link ContentValues} instance.
+     * @param value string to measure.
+     * @return number of bytes.
      */
-    private static ContentValues getContentValues(@Nullable String group, @Nullable String logJ, String targetToken, String type, String targetKey, int priority) {
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_GROUP, group);
-        values.put(COLUMN_LOG, logJ);
-        values.put(COLUMN_TARGET_TOKEN, targetToken);
-        values.put(COLUMN_DATA_TYPE, type);
-        values.put(COLUMN_TARGET_KEY, targetKey);
-        values.put(COLUMN_PRIORITY, priority);
-        return values;
-    }
+    @VisibleForTesting
+    static int getUtf8Length(@NonNull CharSequence value) {
+        int length = value.length();
+        int size = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    size++;
+                } else if (!Character.isSurrogate(c)) {
+                    size += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+
+                    /* 4 bytes for 2 characters. */
+                    size += 2;
+                    i++;
+                }
 
-    @Override
-    public boolean setMaxStorageSize(long maxStorageSizeInBytes) {
-        return mDatabaseManager.setMaxSize(maxStorageSizeInBytes);
+                /* An unpaired surrogate is encoded as a 1 byte replacement character. */
+            }
+        }
+        return size;
     }
 
-    @Override
-    public long putLog(@NonNull Log log, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) throws PersistenceException {
+    /**
+     * Write a payload too large for SQLite in a separate file, removing the database entry on failure.
+     *
+     * @param group      group of the log.
+     * @param databaseId database identifier of the log.
+     * @param payload    serialized log.
+     * @throws IOException if the file cannot be written.
+     */
+    private void writeLargePayload(@NonNull String group, long databaseId, @NonNull String payload) throws IOException {
+        AppCenterLog.debug(LOG_TAG, "Payload is larger than what SQLite supports, storing payload in a separate file.");
+        File directory = getLargePayloadGroupDirectory(group);
 
-        /* Convert log to JSON string and put in the database. */
+        //noinspection ResultOfMethodCallIgnored we'll get an error anyway at write time.
+        directory.mkdir();
+        File payloadFile = getLargePayloadFile(directory, databaseId);
         try {
-            AppCenterLog.debug(LOG_TAG, "Storing a log to the Persistence database for log type " + log.getType() + " with flags=" + flags);
-            String payload = getLogSerializer().serializeLog(log);
-            ContentValues contentValues;
-
-            //noinspection CharsetObjectCanBeUsed min API level 19 required to fix this warning.
-            int payloadSize = payload.getBytes("UTF-8").length;
-            boolean isLargePayload = payloadSize >= PAYLOAD_MAX_SIZE;
-            String targetKey;
-            String targetToken;
-            if (log instanceof CommonSchemaLog) {
-                if (isLargePayload) {
-                    throw new PersistenceException("Log is larger than " + PAYLOAD_MAX_SIZE + " bytes, cannot send to OneCollector.");
-                }
-                targetToken = log.getTransmissionTargetTokens().iterator().next();
-                targetKey = PartAUtils.getTargetKey(targetToken);
-                targetToken = CryptoUtils.getInstance(mContext).encrypt(targetToken);
-            } else {
-                targetKey = null;
-                targetToken = null;
-            }
-            long maxSize = mDatabaseManager.getMaxSize();
-            if (maxSize == -1) {
-                throw new PersistenceException("Failed to store a log to the Persistence database.");
-            }
-            if (!isLargePayload && maxSize <= payloadSize) {
-                throw new PersistenceException("Log is too large (" + payloadSize + " bytes) to store in database. " +
-                        "Current maximum database size is " + maxSize + " bytes.");
-            }
-            contentValues = getContentValues(group, isLargePayload ? null : payload, targetToken, log.getType(), targetKey, Flags.getPersistenceFlag(flags, false));
-            long databaseId = mDatabaseManager.put(contentValues, COLUMN_PRIORITY);
-            if (databaseId == -1) {
-                throw new PersistenceException("Failed to store a log to the Persistence database for log type " + log.getType() + ".");
-            }
-            AppCenterLog.debug(LOG_TAG, "Stored a log to the Persistence database for log type " + log.getType() + " with databaseId=" + databaseId);
-            if (isLargePayload) {
-                AppCenterLog.debug(LOG_TAG, "Payload is larger than what SQLite supports, storing payload in a separate file.");
-                File directory = getLargePayloadGroupDirectory(group);
-
-                //noinspection ResultOfMethodCallIgnored we'll get an error anyway at write time.
-                directory.mkdir();
-                File payloadFile = getLargePayloadFile(directory, databaseId);
-                try {
-                    FileManager.write(payloadFile, payload);
-                } catch (IOException e) {
-
-                    /* Remove database entry if we cannot save payload as a file. */
-                    mDatabaseManager.delete(databaseId);
-                    throw e;
-                }
-                AppCenterLog.debug(LOG_TAG, "Payload written to " + payloadFile);
-            }
-            return databaseId;
-        } catch (JSONException e) {
-            throw new PersistenceException("Cannot convert to JSON string.", e);
+            FileManager.writeUtf8(payloadFile, payload);
         } catch (IOException e) {
-            throw new PersistenceException("Cannot save large payload in a file.", e);
+
+            /* Remove database entry if we cannot save payload as a file. */
+            mDatabaseManager.delete(databaseId);
+            throw e;
         }
+        AppCenterLog.debug(LOG_TAG, "Payload written to " + payloadFile);
     }
 
     @NonNull
@@ -350,16 +1322,22 @@ public class DatabasePersistence extends Persistence {
         AppCenterLog.debug(LOG_TAG, "Deleting logs from the Persistence database for " + group + " with " + id);
         AppCenterLog.debug(LOG_TAG, "The IDs for deleting log(s) is/are:");
 
-        /* Delete logs. */
-        List<Long> dbIdentifiers = mPendingDbIdentifiersGroups.remove(group + id);
+        /* Delete large payload files first, they are the only logs of the batch without a payload column. */
         File directory = getLargePayloadGroupDirectory(group);
-        if (dbIdentifiers != null) {
-            for (Long dbIdentifier : dbIdentifiers) {
+        if (directory.exists()) {
+            SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+            builder.appendWhere(COLUMN_BATCH_ID + " = ? AND " + COLUMN_LOG + " IS NULL AND " + COLUMN_COMPRESSED_LOG + " IS NULL");
+            for (Long dbIdentifier : getLogsIds(builder, new String[]{id})) {
                 AppCenterLog.debug(LOG_TAG, "\t" + dbIdentifier);
-                deleteLog(directory, dbIdentifier);
-                mPendingDbIdentifiers.remove(dbIdentifier);
+
+                //noinspection ResultOfMethodCallIgnored SQLite delete does not have return type either.
+                getLargePayloadFile(directory, dbIdentifier).delete();
             }
         }
+
+        /* Delete the rows of the batch in one statement. */
+        int deletedCount = mDatabaseManager.delete(COLUMN_BATCH_ID, id);
+        AppCenterLog.debug(LOG_TAG, "Deleted " + deletedCount + " logs.");
     }
 
     @Override
@@ -385,25 +1363,201 @@ public class DatabasePersistence extends Persistence {
         /* Delete from database. */
         int deletedCount = mDatabaseManager.delete(COLUMN_GROUP, group);
         AppCenterLog.debug(LOG_TAG, "Deleted " + deletedCount + " logs.");
+    }
+
+    @Override
+    public int deleteExpiredLogs(@NonNull String group, long storedBefore, @IntRange(from = 1) int limit, @Nullable List<Log> outLogs) {
+        AppCenterLog.debug(LOG_TAG, "Deleting logs stored before " + storedBefore + " from the Persistence database for " + group);
+        reclaimLeasedLogs();
+
+        /* Logs being sent are not expired, the batch outcome decides. */
+        String whereClause = COLUMN_GROUP + " = ? AND " + COLUMN_STORED_AT + " < ? AND " + COLUMN_BATCH_ID + " IS NULL";
+        String[] whereArgs = new String[]{group, String.valueOf(storedBefore)};
+        SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+        builder.appendWhere(whereClause);
+        File largePayloadGroupDirectory = getLargePayloadGroupDirectory(group);
+        int deletedCount;
+        if (outLogs == null) {
+
+            /* Delete large payload files first, they are the only logs without a payload column. */
+            if (largePayloadGroupDirectory.exists()) {
+                builder.appendWhere(" AND " + COLUMN_LOG + " IS NULL AND " + COLUMN_COMPRESSED_LOG + " IS NULL");
+                for (Long id : getLogsIds(builder, whereArgs)) {
+
+                    //noinspection ResultOfMethodCallIgnored SQLite delete does not have return type either.
+                    getLargePayloadFile(largePayloadGroupDirectory, id).delete();
+                }
+            }
+
+            /* Then delete all expired logs in one statement using the storage time index. */
+            deletedCount = deleteExpiredLogs(group, whereClause, whereArgs);
+        } else {
+
+            /* Read a chunk of expired logs for the caller. */
+            RowReader reader = null;
+            try {
+                reader = new RowReader(mDatabaseManager.getCursor(builder, LOG_COLUMNS, whereArgs, PRIMARY_KEY, limit));
+            } catch (RuntimeException e) {
+                AppCenterLog.error(LOG_TAG, "Failed to get expired logs: ", e);
+            }
+            StringBuilder expiredIdentifiers = new StringBuilder();
+            if (reader != null) {
+                try {
+                    LogColumns columns = new LogColumns(reader);
+                    while (reader.moveToNext()) {
+                        if (reader.isNull(columns.mId)) {
+                            continue;
+                        }
+                        long dbIdentifier = reader.getLong(columns.mId, -1);
+                        try {
+                            outLogs.add(readLog(reader, columns, largePayloadGroupDirectory, dbIdentifier));
+                        } catch (JSONException | IOException e) {
+
+                            /* Still delete it, it cannot be sent anyway. */
+                            AppCenterLog.error(LOG_TAG, "Cannot deserialize an expired log in the database", e);
+                        }
+
+                        //noinspection ResultOfMethodCallIgnored SQLite delete does not have return type either.
+                        getLargePayloadFile(largePayloadGroupDirectory, dbIdentifier).delete();
+                        expiredIdentifiers.append(dbIdentifier).append(',');
+                    }
+                } catch (RuntimeException e) {
+                    AppCenterLog.error(LOG_TAG, "Failed to read expired logs: ", e);
+                } finally {
+                    reader.close();
+                }
+            }
+            if (expiredIdentifiers.length() == 0) {
+                return 0;
+            }
+            expiredIdentifiers.deleteCharAt(expiredIdentifiers.length() - 1);
+            deletedCount = deleteExpiredLogs(group, PRIMARY_KEY + " IN (" + expiredIdentifiers + ")", null);
+        }
+        AppCenterLog.debug(LOG_TAG, "Deleted " + deletedCount + " expired logs.");
+        return deletedCount;
+    }
+
+    /**
+     * Delete expired logs and count them in the same transaction.
+     *
+     * @param group       group of the logs.
+     * @param whereClause condition selecting expired logs of the group.
+     * @param whereArgs   arguments of the condition.
+     * @return number of deleted logs.
+     */
+    private int deleteExpiredLogs(@NonNull final String group, @NonNull final String whereClause, @Nullable final String[] whereArgs) {
+        Integer deletedCount = mDatabaseManager.runInTransaction(new DatabaseManager.Transaction<Integer>() {
+
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                int deletedCount = db.delete(TABLE, whereClause, whereArgs);
+                addDeletedCount(db, COLUMN_EXPIRED_COUNT, group, deletedCount);
+                return deletedCount;
+            }
+        });
+        return deletedCount == null ? 0 : deletedCount;
+    }
+
+    @NonNull
+    @Override
+    public PersistenceStats getStats() {
+        PersistenceStats stats = new PersistenceStats();
+
+        /* Counts and sizes are maintained by triggers, read them as they are. */
+        RowReader reader = null;
+        try {
+            reader = new RowReader(mDatabaseManager.getCursor(TABLE_LOG_COUNTS, null, LOG_STATS_COLUMNS, null, null));
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to get log statistics: ", e);
+        }
+        if (reader != null) {
+            try {
+                while (reader.moveToNext()) {
+                    String group = reader.getString(0);
+                    if (group == null) {
+                        continue;
+                    }
+                    String targetKey = reader.getString(1);
+                    if (targetKey == null) {
+                        targetKey = "";
+                    }
+                    PersistenceStats.GroupStats groupStats = stats.getOrCreateGroup(group);
+                    long logCount = reader.getLong(2, 0);
+
+                    /* A row without logs only holds the deletion counters of its group. */
+                    if (logCount > 0) {
+                        String nullableTargetKey = targetKey.isEmpty() ? null : targetKey;
+                        long oldestStoredAt = getStoredAt(group, nullableTargetKey, false);
+                        long newestStoredAt = getStoredAt(group, nullableTargetKey, true);
+                        groupStats.addTargetKey(nullableTargetKey, logCount, reader.getLong(3, 0), reader.getLong(4, 0), oldestStoredAt, newestStoredAt);
+                    }
+                    long evictedCount = reader.getLong(5, 0);
+                    long expiredCount = reader.getLong(6, 0);
+                    if (evictedCount > 0 || expiredCount > 0) {
+                        groupStats.setDeletedLogCounts(evictedCount, expiredCount);
+                    }
+                }
+            } catch (RuntimeException e) {
+                AppCenterLog.error(LOG_TAG, "Failed to read log statistics: ", e);
+            } finally {
+                reader.close();
+            }
+        }
+        return stats;
+    }
 
-        /* Delete from pending state. */
-        for (Iterator<String> iterator = mPendingDbIdentifiersGroups.keySet().iterator(); iterator.hasNext(); ) {
-            String key = iterator.next();
-            if (key.startsWith(group)) {
-                iterator.remove();
+    /**
+     * Get the storage time of the oldest or newest log of a group and target key.
+     * The time cannot be maintained by triggers when logs are deleted, it is read from the storage time index of the target key.
+     *
+     * @param group     group.
+     * @param targetKey target key, null for logs without target key.
+     * @param newest    true to get the newest log, false to get the oldest one.
+     * @return storage time in milliseconds since epoch, 0 if unknown.
+     */
+    private long getStoredAt(@NonNull String group, @Nullable String targetKey, boolean newest) {
+        SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
+        String[] selectionArgs;
+        if (targetKey == null) {
+            builder.appendWhere(COLUMN_GROUP + " = ? AND " + COLUMN_TARGET_KEY + " IS NULL AND " + COLUMN_STORED_AT + " IS NOT NULL");
+            selectionArgs = new String[]{group};
+        } else {
+            builder.appendWhere(COLUMN_GROUP + " = ? AND " + COLUMN_TARGET_KEY + " = ? AND " + COLUMN_STORED_AT + " IS NOT NULL");
+            selectionArgs = new String[]{group, targetKey};
+        }
+        long storedAt = 0;
+        try {
+            Cursor cursor = mDatabaseManager.getCursor(builder, STORED_AT_COLUMNS, selectionArgs, newest ? COLUMN_STORED_AT + " DESC" : COLUMN_STORED_AT, 1);
+            try {
+                if (cursor.moveToNext()) {
+                    storedAt = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
             }
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to get log storage time: ", e);
         }
+        return storedAt;
     }
 
     @Override
     public int countLogs(@NonNull String group) {
+        return countLogs(group, Collections.<String>emptyList());
+    }
+
+    @Override
+    public int countLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys) {
 
-        /* Query database and get scanner. */
+        /* Sum the counters of the group maintained by triggers, instead of counting the logs. */
         SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
         builder.appendWhere(COLUMN_GROUP + " = ?");
+        List<String> selectionArgs = new ArrayList<>();
+        selectionArgs.add(group);
+        appendPausedTargetKeysFilter(builder, pausedTargetKeys, selectionArgs);
         int count = 0;
         try {
-            Cursor cursor = mDatabaseManager.getCursor(builder, new String[]{"COUNT(*)"}, new String[]{group}, null);
+            Cursor cursor = mDatabaseManager.getCursor(TABLE_LOG_COUNTS, builder, new String[]{"SUM(" + COLUMN_LOG_COUNT + ")"}, selectionArgs.toArray(new String[0]), null);
             try {
                 cursor.moveToNext();
                 count = cursor.getInt(0);
@@ -418,110 +1572,130 @@ public class DatabasePersistence extends Persistence {
 
     @Override
     @Nullable
-    public String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs) {
+    public String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @IntRange(from = 1) long maxBytes, @NonNull List<Log> outLogs) {
+        return getLogs(group, pausedTargetKeys, limit, maxBytes, outLogs, null);
+    }
+
+    @Override
+    public boolean isRawLogsSupported() {
+        return true;
+    }
+
+    @Override
+    @Nullable
+    public String getRawLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @IntRange(from = 1) long maxBytes, @NonNull List<String> outPayloads) {
+        return getLogs(group, pausedTargetKeys, limit, maxBytes, null, outPayloads);
+    }
+
+    @Override
+    @Nullable
+    public String getLogsWithPayloads(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @IntRange(from = 1) long maxBytes, @NonNull List<Log> outLogs, @NonNull List<String> outPayloads) {
+        return getLogs(group, pausedTargetKeys, limit, maxBytes, outLogs, outPayloads);
+    }
+
+    /**
+     * Gets logs for the given {@code group} as {@link Log} objects, as stored payloads or both.
+     *
+     * @param group            The group of the storage for logs.
+     * @param pausedTargetKeys List of target token keys to exclude from the log query.
+     * @param limit            The max number of logs to be returned.
+     * @param maxBytes         The max total payload size in bytes of the logs to be returned.
+     * @param outLogs          A list to receive {@link Log} objects, null to not deserialize logs.
+     * @param outPayloads      A list to receive serialized logs, null to not return payloads.
+     * @return An ID for the returned logs. {@code null} if no logs exist.
+     */
+    @Nullable
+    private String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, int limit, long maxBytes, @Nullable List<Log> outLogs, @Nullable List<String> outPayloads) {
 
         /* Log. */
-        AppCenterLog.debug(LOG_TAG, "Trying to get " + limit + " logs from the Persistence database for " + group);
+        AppCenterLog.debug(LOG_TAG, "Trying to get " + limit + " logs (max " + maxBytes + " bytes) from the Persistence database for " + group);
+        reclaimLeasedLogs();
 
         /* Query database. */
         SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
         builder.appendWhere(COLUMN_GROUP + " = ?");
+        builder.appendWhere(" AND ");
+        builder.appendWhere(COLUMN_BATCH_ID + " IS NULL");
         List<String> selectionArgs = new ArrayList<>();
         selectionArgs.add(group);
-        if (!pausedTargetKeys.isEmpty()) {
-            StringBuilder filter = new StringBuilder();
-            for (int i = 0; i < pausedTargetKeys.size(); i++) {
-                filter.append("?,");
-            }
-            filter.deleteCharAt(filter.length() - 1);
-            builder.appendWhere(" AND ");
-            builder.appendWhere(COLUMN_TARGET_KEY + " NOT IN (" + filter.toString() + ")");
-            selectionArgs.addAll(pausedTargetKeys);
-        }
+        appendPausedTargetKeysFilter(builder, pausedTargetKeys, selectionArgs);
 
         /* Add logs to output parameter after deserialization if logs are not already sent. */
         int count = 0;
-        Map<Long, Log> candidates = new LinkedHashMap<>();
+        long totalSize = 0;
+        List<Long> candidates = new ArrayList<>();
+        int outLogsOffset = outLogs != null ? outLogs.size() : 0;
         List<Long> failedDbIdentifiers = new ArrayList<>();
         File largePayloadGroupDirectory = getLargePayloadGroupDirectory(group);
         String[] selectionArgsArray = selectionArgs.toArray(new String[0]);
-        Cursor cursor = null;
-        ContentValues values;
+        RowReader reader = null;
         try {
-            cursor = mDatabaseManager.getCursor(builder, null, selectionArgsArray, GET_SORT_ORDER);
+            reader = new RowReader(mDatabaseManager.getCursor(builder, LOG_COLUMNS, selectionArgsArray, GET_SORT_ORDER, limit));
         } catch (RuntimeException e) {
             AppCenterLog.error(LOG_TAG, "Failed to get logs: ", e);
         }
-        while (cursor != null &&
-                (values = mDatabaseManager.nextValues(cursor)) != null &&
-                count < limit) {
-            Long dbIdentifier = values.getAsLong(PRIMARY_KEY);
-
-            /*
-             * When we can't even read the identifier (in this case ContentValues is most likely empty).
-             * That probably means it contained a record larger than 2MB (from a previous SDK version)
-             * and we hit the cursor limit.
-             * Get rid of first non pending log.
-             */
-            if (dbIdentifier == null) {
-                AppCenterLog.error(LOG_TAG, "Empty database record, probably content was larger than 2MB, need to delete as it's now corrupted.");
-                List<Long> corruptedIds = getLogsIds(builder, selectionArgsArray);
-                for (Long corruptedId : corruptedIds) {
-                    if (!mPendingDbIdentifiers.contains(corruptedId) && !candidates.containsKey(corruptedId)) {
-
-                        /* Found the record to delete that we could not read when selecting all fields. */
-                        deleteLog(largePayloadGroupDirectory, corruptedId);
-                        AppCenterLog.error(LOG_TAG, "Empty database corrupted empty record deleted, id=" + corruptedId);
-                        break;
+        if (reader != null) {
+            try {
+                LogColumns columns = new LogColumns(reader);
+                while (count < limit && reader.moveToNext()) {
+
+                    /*
+                     * When we can't even read the identifier (in this case the row is most likely empty).
+                     * That probably means it contained a record larger than 2MB (from a previous SDK version)
+                     * and we hit the cursor limit.
+                     * Get rid of first non pending log.
+                     */
+                    if (reader.isNull(columns.mId)) {
+                        AppCenterLog.error(LOG_TAG, "Empty database record, probably content was larger than 2MB, need to delete as it's now corrupted.");
+                        List<Long> corruptedIds = getLogsIds(builder, selectionArgsArray);
+                        for (Long corruptedId : corruptedIds) {
+                            if (!candidates.contains(corruptedId)) {
+
+                                /* Found the record to delete that we could not read when selecting all fields. */
+                                deleteLog(largePayloadGroupDirectory, corruptedId);
+                                AppCenterLog.error(LOG_TAG, "Empty database corrupted empty record deleted, id=" + corruptedId);
+                                break;
+                            }
+                        }
+                        continue;
                     }
-                }
-                continue;
-            }
 
-            /* If the log is already in pending state, then skip. Otherwise put the log to candidate container. */
-            if (!mPendingDbIdentifiers.contains(dbIdentifier)) {
-                try {
+                    /* Logs leased to other batches are excluded by the query. */
+                    long dbIdentifier = reader.getLong(columns.mId, -1);
 
-                    /* Deserialize JSON to Log. */
-                    String logPayload;
-                    String databasePayload = values.getAsString(COLUMN_LOG);
-                    if (databasePayload == null) {
-                        File file = getLargePayloadFile(largePayloadGroupDirectory, dbIdentifier);
-                        AppCenterLog.debug(LOG_TAG, "Read payload file " + file);
-                        logPayload = FileManager.read(file);
-                        if (logPayload == null) {
-                            throw new JSONException("Log payload is null and not stored as a file.");
-                        }
-                    } else {
-                        logPayload = databasePayload;
-                    }
-                    String databasePayloadType = values.getAsString(COLUMN_DATA_TYPE);
-                    Log log = getLogSerializer().deserializeLog(logPayload, databasePayloadType);
-
-                    /* Restore target token. */
-                    String targetToken = values.getAsString(COLUMN_TARGET_TOKEN);
-                    if (targetToken != null) {
-                        CryptoUtils.DecryptedData data = CryptoUtils.getInstance(mContext).decrypt(targetToken);
-                        log.addTransmissionTarget(data.getDecryptedData());
+                    /* Stop before exceeding the byte budget, but always return at least 1 log. */
+                    long payloadSize = getPayloadSize(reader, columns, largePayloadGroupDirectory, dbIdentifier);
+                    if (count > 0 && totalSize + payloadSize > maxBytes) {
+                        break;
                     }
+                    try {
+                        String payload = readPayload(reader, columns, largePayloadGroupDirectory, dbIdentifier);
+                        if (outLogs != null) {
+                            outLogs.add(readLog(reader, columns, payload));
+                        }
+                        if (outPayloads != null) {
+
+                            /* Hand back the payload as stored, it is spliced as is in the request body. */
+                            outPayloads.add(payload);
+                        }
 
-                    /* Add log to list and count. */
-                    candidates.put(dbIdentifier, log);
-                    count++;
-                } catch (JSONException e) {
+                        /* Add log to candidates and count. */
+                        candidates.add(dbIdentifier);
+                        count++;
+                        totalSize += payloadSize;
+                    } catch (JSONException | IOException e) {
 
-                    /* If it is not able to deserialize, delete and get another log. */
-                    AppCenterLog.error(LOG_TAG, "Cannot deserialize a log in the database", e);
+                        /* If it is not able to deserialize, delete and get another log. */
+                        AppCenterLog.error(LOG_TAG, "Cannot deserialize a log in the database", e);
 
-                    /* Put the failed identifier to delete. */
-                    failedDbIdentifiers.add(dbIdentifier);
+                        /* Put the failed identifier to delete. */
+                        failedDbIdentifiers.add(dbIdentifier);
+                    }
                 }
-            }
-        }
-        if (cursor != null) {
-            try {
-                cursor.close();
-            } catch (RuntimeException ignore) {
+            } catch (RuntimeException e) {
+                AppCenterLog.error(LOG_TAG, "Failed to read logs: ", e);
+            } finally {
+                reader.close();
             }
         }
 
@@ -543,37 +1717,149 @@ public class DatabasePersistence extends Persistence {
         String id = UUID.randomUUID().toString();
 
         /* Log. */
-        AppCenterLog.debug(LOG_TAG, "Returning " + candidates.size() + " log(s) with an ID, " + id);
+        AppCenterLog.debug(LOG_TAG, "Returning " + candidates.size() + " log(s) (" + totalSize + " bytes) with an ID, " + id);
         AppCenterLog.debug(LOG_TAG, "The SID/ID pairs for returning log(s) is/are:");
-        List<Long> pendingDbIdentifiersGroup = new ArrayList<>();
-        for (Map.Entry<Long, Log> entry : candidates.entrySet()) {
-            Long dbIdentifier = entry.getKey();
+        StringBuilder leasedIdentifiers = new StringBuilder();
+        for (int i = 0; i < candidates.size(); i++) {
+            Long dbIdentifier = candidates.get(i);
+            leasedIdentifiers.append(dbIdentifier).append(',');
 
-            /* Change a database identifier to pending state. */
-            mPendingDbIdentifiers.add(dbIdentifier);
+            /* Log. */
+            AppCenterLog.debug(LOG_TAG, "\t" + (outLogs != null ? outLogs.get(outLogsOffset + i).getSid() : null) + " / " + dbIdentifier);
+        }
 
-            /* Store a database identifier to a group of the ID. */
-            pendingDbIdentifiersGroup.add(dbIdentifier);
+        /* Lease the logs to the batch, excluding them from next queries until deleted or released. */
+        leasedIdentifiers.deleteCharAt(leasedIdentifiers.length() - 1);
+        mDatabaseManager.update(getBatchIdValues(id), PRIMARY_KEY + " IN (" + leasedIdentifiers + ")", null);
+        return id;
+    }
 
-            /* Add to output parameter. */
-            outLogs.add(entry.getValue());
+    /**
+     * Exclude logs of paused target keys from a query.
+     *
+     * @param builder          The query builder.
+     * @param pausedTargetKeys List of target token keys to exclude.
+     * @param selectionArgs    The selection arguments to add the keys to.
+     */
+    private static void appendPausedTargetKeysFilter(SQLiteQueryBuilder builder, Collection<String> pausedTargetKeys, List<String> selectionArgs) {
+        if (!pausedTargetKeys.isEmpty()) {
+            StringBuilder filter = new StringBuilder();
+            for (int i = 0; i < pausedTargetKeys.size(); i++) {
+                filter.append("?,");
+            }
+            filter.deleteCharAt(filter.length() - 1);
+            builder.appendWhere(" AND ");
+            builder.appendWhere(COLUMN_TARGET_KEY + " NOT IN (" + filter.toString() + ")");
+            selectionArgs.addAll(pausedTargetKeys);
+        }
+    }
 
-            /* Log. */
-            AppCenterLog.debug(LOG_TAG, "\t" + entry.getValue().getSid() + " / " + dbIdentifier);
+    /**
+     * Read the stored payload of a log, decoding it or reading its large payload file if needed.
+     *
+     * @param reader                     The reader positioned on the log row.
+     * @param columns                    The column indexes.
+     * @param largePayloadGroupDirectory The large payload directory of the group.
+     * @param dbIdentifier               The database identifier.
+     * @return The serialized log.
+     * @throws IOException if the payload cannot be read.
+     */
+    @NonNull
+    private String readPayload(RowReader reader, LogColumns columns, File largePayloadGroupDirectory, long dbIdentifier) throws IOException {
+        String databasePayload = reader.getString(columns.mLog);
+        if (databasePayload != null) {
+            return databasePayload;
+        }
+        byte[] compressedPayload = reader.getBlob(columns.mCompressedLog);
+        if (compressedPayload != null) {
+            return PayloadEncoder.decode(compressedPayload);
         }
+        File file = getLargePayloadFile(largePayloadGroupDirectory, dbIdentifier);
+        AppCenterLog.debug(LOG_TAG, "Read payload file " + file);
+        return FileManager.readUtf8(file, true);
+    }
 
-        /* Update pending IDs. */
-        mPendingDbIdentifiersGroups.put(group + id, pendingDbIdentifiersGroup);
-        return id;
+    /**
+     * Read and deserialize a log and restore its target token.
+     *
+     * @param reader                     The reader positioned on the log row.
+     * @param columns                    The column indexes.
+     * @param largePayloadGroupDirectory The large payload directory of the group.
+     * @param dbIdentifier               The database identifier.
+     * @return The log.
+     * @throws IOException   if the payload cannot be read.
+     * @throws JSONException if the payload cannot be deserialized or the target token is unknown.
+     */
+    @NonNull
+    private Log readLog(RowReader reader, LogColumns columns, File largePayloadGroupDirectory, long dbIdentifier) throws IOException, JSONException {
+        return readLog(reader, columns, readPayload(reader, columns, largePayloadGroupDirectory, dbIdentifier));
+    }
+
+    /**
+     * Deserialize a log already read from its row and restore its target token.
+     *
+     * @param reader  The reader positioned on the log row.
+     * @param columns The column indexes.
+     * @param payload The payload read from the row.
+     * @return The log.
+     * @throws JSONException if the payload cannot be deserialized or the target token is unknown.
+     */
+    @NonNull
+    private Log readLog(RowReader reader, LogColumns columns, String payload) throws JSONException {
+        Log log = getLogSerializer().deserializeLog(payload, reader.getString(columns.mType));
+        if (!reader.isNull(columns.mTargetId)) {
+            long targetId = reader.getLong(columns.mTargetId, -1);
+            String targetToken = getTargetToken(targetId);
+            if (targetToken == null) {
+                throw new JSONException("Unknown target token identifier " + targetId);
+            }
+            log.addTransmissionTarget(targetToken);
+        } else {
+
+            /* Logs stored before the targets table have their own encrypted token. */
+            String targetToken = reader.getString(columns.mTargetToken);
+            if (targetToken != null) {
+                CryptoUtils.DecryptedData data = CryptoUtils.getInstance(mContext).decrypt(targetToken);
+                log.addTransmissionTarget(data.getDecryptedData());
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Get the persisted payload size of a log without reading large payload files.
+     *
+     * @param reader                     The reader positioned on the log row.
+     * @param columns                    The column indexes.
+     * @param largePayloadGroupDirectory The large payload directory of the group.
+     * @param dbIdentifier               The database identifier.
+     * @return The payload size in bytes.
+     */
+    private long getPayloadSize(RowReader reader, LogColumns columns, File largePayloadGroupDirectory, long dbIdentifier) {
+        if (!reader.isNull(columns.mPayloadSize)) {
+            return reader.getLong(columns.mPayloadSize, 0);
+        }
+
+        /* Size column can be missing for large payloads stored before the column existed. */
+        String databasePayload = reader.getString(columns.mLog);
+        if (databasePayload != null) {
+            return getUtf8Length(databasePayload);
+        }
+        return getLargePayloadFile(largePayloadGroupDirectory, dbIdentifier).length();
     }
 
     @Override
     public void clearPendingLogState() {
-        mPendingDbIdentifiers.clear();
-        mPendingDbIdentifiersGroups.clear();
+        mDatabaseManager.update(getBatchIdValues(null), COLUMN_BATCH_ID + " IS NOT NULL", null);
         AppCenterLog.debug(LOG_TAG, "Cleared pending log states");
     }
 
+    @Override
+    public void clearPendingLogState(@NonNull String group, @NonNull String id) {
+        mDatabaseManager.update(getBatchIdValues(null), COLUMN_BATCH_ID + " = ?", new String[]{id});
+        AppCenterLog.debug(LOG_TAG, "Cleared pending log state for " + group + " with " + id);
+    }
+
     @Override
     public void close() {
         mDatabaseManager.close();
@@ -585,16 +1871,68 @@ public class DatabasePersistence extends Persistence {
             Cursor cursor = mDatabaseManager.getCursor(builder, SELECT_PRIMARY_KEY, selectionArgs, null);
             try {
                 while (cursor.moveToNext()) {
-                    ContentValues idValues = mDatabaseManager.buildValues(cursor);
-                    Long id = idValues.getAsLong(PRIMARY_KEY);
-                    result.add(id);
+                    result.add(cursor.getLong(0));
                 }
             } finally {
-                cursor.close();
+                try {
+                    cursor.close();
+                } catch (RuntimeException ignore) {
+                }
             }
         } catch (RuntimeException e) {
             AppCenterLog.error(LOG_TAG, "Failed to get corrupted ids: ", e);
         }
         return result;
     }
+
+    /**
+     * Indexes of {@link #LOG_COLUMNS} in a cursor, resolved once per query.
+     */
+    private static class LogColumns {
+
+        /**
+         * Database identifier.
+         */
+        final int mId;
+
+        /**
+         * Plain payload.
+         */
+        final int mLog;
+
+        /**
+         * Compressed payload.
+         */
+        final int mCompressedLog;
+
+        /**
+         * Payload size.
+         */
+        final int mPayloadSize;
+
+        /**
+         * Log type.
+         */
+        final int mType;
+
+        /**
+         * Target token identifier.
+         */
+        final int mTargetId;
+
+        /**
+         * Encrypted target token of logs stored before the targets table.
+         */
+        final int mTargetToken;
+
+        LogColumns(RowReader reader) {
+            mId = reader.getColumnIndex(PRIMARY_KEY);
+            mLog = reader.getColumnIndex(COLUMN_LOG);
+            mCompressedLog = reader.getColumnIndex(COLUMN_COMPRESSED_LOG);
+            mPayloadSize = reader.getColumnIndex(COLUMN_PAYLOAD_SIZE);
+            mType = reader.getColumnIndex(COLUMN_DATA_TYPE);
+            mTargetId = reader.getColumnIndex(COLUMN_TARGET_ID);
+            mTargetToken = reader.getColumnIndex(COLUMN_TARGET_TOKEN);
+        }
+    }
 }
@@ -0,0 +1,735 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import com.microsoft.appcenter.ingestion.models.json.JSONDateUtils;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of log payloads stored in the database.
+ * <p>
+ * Stored payloads are only read by the SDK, which sends them as JSON again, so they are stored
+ * as a stream of typed JSON tokens instead of JSON text:
+ * <ul>
+ * <li>lengths and integers are varints,</li>
+ * <li>keys and values that most logs use (log envelope, device, error and typed property types)
+ * are single byte references to a static string table,</li>
+ * <li>other strings are written once per payload and then referenced by their index,</li>
+ * <li>dates and identifiers are written as numbers.</li>
+ * </ul>
+ * The first byte is the format version.
+ * Decoding writes the JSON text back the way {@link org.json.JSONStringer} wrote it.
+ */
+class PayloadEncoder {
+
+    /**
+     * Current format version.
+     */
+    @VisibleForTesting
+    static final byte FORMAT_VERSION = 1;
+
+    /**
+     * Charset of strings.
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Tag closing an object or an array.
+     */
+    private static final int END = 0;
+
+    /**
+     * Tag opening an object, followed by key and value pairs.
+     */
+    private static final int OBJECT = 1;
+
+    /**
+     * Tag opening an array, followed by values.
+     */
+    private static final int ARRAY = 2;
+
+    /**
+     * Tag of null.
+     */
+    private static final int NULL = 3;
+
+    /**
+     * Tag of true.
+     */
+    private static final int TRUE = 4;
+
+    /**
+     * Tag of false.
+     */
+    private static final int FALSE = 5;
+
+    /**
+     * Tag of an integer, followed by its zigzag varint.
+     */
+    private static final int INTEGER = 6;
+
+    /**
+     * Tag of another number, followed by its text.
+     */
+    private static final int NUMBER = 7;
+
+    /**
+     * Tag of a string seen the first time in the payload, followed by its UTF-8 length and bytes.
+     */
+    private static final int STRING = 8;
+
+    /**
+     * Tag of a string already seen in the payload, followed by its index in order of appearance.
+     */
+    private static final int STRING_REFERENCE = 9;
+
+    /**
+     * Tag of a string formatted by {@link JSONDateUtils}, followed by the time varint.
+     */
+    private static final int DATE = 10;
+
+    /**
+     * Tag of a lower case UUID string, followed by its 16 bytes.
+     */
+    private static final int UUID = 11;
+
+    /**
+     * First tag referencing {@link #STATIC_STRINGS}, tags are single bytes so there can be up to 224 static strings.
+     */
+    private static final int STATIC_STRING = 32;
+
+    /**
+     * Length of a UUID string.
+     */
+    private static final int UUID_LENGTH = 36;
+
+    /**
+     * Static string table of format version 2. Strings must never be changed or reordered
+     * without changing the format version.
+     */
+    @VisibleForTesting
+    static final String[] STATIC_STRINGS = {
+
+            /* Log envelope and types. */
+            "type", "timestamp", "sid", "distributionGroupId", "userId", "device", "id", "name",
+            "properties", "typedProperties", "value", "services", "isOneCollectorEnabled",
+            "startService", "startSession", "event", "page", "managedError", "handledError",
+            "errorAttachment", "distributionStartSession", "commonSchemaEvent",
+
+            /* Device. */
+            "sdkName", "sdkVersion", "wrapperSdkVersion", "wrapperSdkName", "wrapperRuntimeVersion",
+            "liveUpdateReleaseLabel", "liveUpdateDeploymentKey", "liveUpdatePackageHash",
+            "model", "oemName", "osName", "osVersion", "osBuild", "osApiLevel", "locale",
+            "timeZoneOffset", "screenSize", "appVersion", "carrierName", "carrierCountry",
+            "appBuild", "appNamespace", "appcenter.android", "Android",
+
+            /* Typed property types. */
+            "string", "long", "double", "boolean", "dateTime",
+
+            /* Errors and attachments. */
+            "processId", "processName", "parentProcessId", "parentProcessName", "errorThreadId",
+            "errorThreadName", "fatal", "appLaunchTimestamp", "architecture", "exception",
+            "threads", "frames", "className", "methodName", "lineNumber", "fileName", "stackTrace",
+            "message", "innerExceptions", "minidumpFilePath", "errorId", "contentType", "data",
+            "text/plain", "application/octet-stream",
+
+            /* Common schema. */
+            "ver", "time", "iKey", "flags", "cV", "ext", "baseType", "baseData", "metadata", "f",
+            "protocol", "ticketKeys", "devMake", "devModel", "user", "localId", "os", "app",
+            "net", "provider", "sdk", "libVer", "epoch", "seq", "installId", "loc", "tz",
+            "popSample"
+    };
+
+    /**
+     * Indexes of {@link #STATIC_STRINGS}.
+     */
+    private static final Map<String, Integer> STATIC_STRING_INDEXES = new HashMap<>();
+
+    /**
+     * Lower case hexadecimal digits.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    static {
+        for (int i = 0; i < STATIC_STRINGS.length; i++) {
+            STATIC_STRING_INDEXES.put(STATIC_STRINGS[i], i);
+        }
+    }
+
+    @VisibleForTesting
+    PayloadEncoder() {
+    }
+
+    /**
+     * Encode a payload.
+     *
+     * @param payload serialized log.
+     * @return encoded payload, starting with the format version.
+     * @throws IOException if the payload is not valid JSON.
+     */
+    @NonNull
+    static byte[] encode(@NonNull String payload) throws IOException {
+        return new Encoder(payload).encode();
+    }
+
+    /**
+     * Decode a payload encoded by {@link #encode(String)}.
+     *
+     * @param encodedPayload stored payload.
+     * @return serialized log.
+     * @throws IOException if the payload is corrupted or uses an unknown format.
+     */
+    @NonNull
+    static String decode(@NonNull byte[] encodedPayload) throws IOException {
+        if (encodedPayload.length == 0 || encodedPayload[0] != FORMAT_VERSION) {
+            throw new IOException("Unknown encoded payload format.");
+        }
+        return new Decoder(encodedPayload).decode();
+    }
+
+    /**
+     * Get the time of a string if it was formatted by {@link JSONDateUtils}.
+     *
+     * @param value string.
+     * @return the time, or -1 if the string is not a date formatted the same way.
+     */
+    private static long getTime(String value) {
+        if (value.length() != 24 || value.charAt(10) != 'T' || value.charAt(23) != 'Z') {
+            return -1;
+        }
+        try {
+            long time = JSONDateUtils.toTime(value);
+            if (time >= 0 && JSONDateUtils.toString(time).equals(value)) {
+                return time;
+            }
+        } catch (JSONException ignore) {
+        }
+        return -1;
+    }
+
+    /**
+     * Check whether a string is a lower case UUID.
+     *
+     * @param value string.
+     * @return true if the string is formatted like {@link java.util.UUID#toString()}.
+     */
+    private static boolean isUuid(String value) {
+        if (value.length() != UUID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            char c = value.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Transcodes JSON text to the binary encoding.
+     */
+    private static class Encoder {
+
+        /**
+         * JSON text.
+         */
+        private final String mJson;
+
+        /**
+         * Encoded payload.
+         */
+        private final ByteArrayOutputStream mOutput;
+
+        /**
+         * Indexes of strings already written in the payload.
+         */
+        private final Map<String, Integer> mStrings = new HashMap<>();
+
+        /**
+         * Position in {@link #mJson}.
+         */
+        private int mPosition;
+
+        Encoder(String json) {
+            mJson = json;
+            mOutput = new ByteArrayOutputStream(json.length() / 2 + 16);
+        }
+
+        byte[] encode() throws IOException {
+            mOutput.write(FORMAT_VERSION);
+            writeValue();
+            skipWhitespace();
+            if (mPosition != mJson.length()) {
+                throw syntaxError();
+            }
+            return mOutput.toByteArray();
+        }
+
+        private void writeValue() throws IOException {
+            skipWhitespace();
+            if (mPosition >= mJson.length()) {
+                throw syntaxError();
+            }
+            switch (mJson.charAt(mPosition)) {
+                case '{':
+                    mPosition++;
+                    mOutput.write(OBJECT);
+                    if (!consume('}')) {
+                        do {
+                            skipWhitespace();
+                            writeString(readString());
+                            if (!consume(':')) {
+                                throw syntaxError();
+                            }
+                            writeValue();
+                        } while (consume(','));
+                        if (!consume('}')) {
+                            throw syntaxError();
+                        }
+                    }
+                    mOutput.write(END);
+                    break;
+
+                case '[':
+                    mPosition++;
+                    mOutput.write(ARRAY);
+                    if (!consume(']')) {
+                        do {
+                            writeValue();
+                        } while (consume(','));
+                        if (!consume(']')) {
+                            throw syntaxError();
+                        }
+                    }
+                    mOutput.write(END);
+                    break;
+
+                case '"':
+                    writeString(readString());
+                    break;
+
+                case 't':
+                    readLiteral("true");
+                    mOutput.write(TRUE);
+                    break;
+
+                case 'f':
+                    readLiteral("false");
+                    mOutput.write(FALSE);
+                    break;
+
+                case 'n':
+                    readLiteral("null");
+                    mOutput.write(NULL);
+                    break;
+
+                default:
+                    writeNumber(readNumber());
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            Integer index = STATIC_STRING_INDEXES.get(value);
+            if (index != null) {
+                mOutput.write(STATIC_STRING + index);
+                return;
+            }
+            if (isUuid(value)) {
+                mOutput.write(UUID);
+                for (int i = 0; i < UUID_LENGTH; i += 2) {
+                    if (value.charAt(i) == '-') {
+                        i++;
+                    }
+                    mOutput.write(Character.digit(value.charAt(i), 16) << 4 | Character.digit(value.charAt(i + 1), 16));
+                }
+                return;
+            }
+            long time = getTime(value);
+            if (time >= 0) {
+                mOutput.write(DATE);
+                writeVarint(time);
+                return;
+            }
+            index = mStrings.get(value);
+            if (index != null) {
+                mOutput.write(STRING_REFERENCE);
+                writeVarint(index);
+                return;
+            }
+            mStrings.put(value, mStrings.size());
+            mOutput.write(STRING);
+            writeUtf8(value);
+        }
+
+        private void writeNumber(String value) throws IOException {
+
+            /* Integers written back the same way are the most common numbers. */
+            try {
+                long number = Long.parseLong(value);
+                if (Long.toString(number).equals(value)) {
+                    mOutput.write(INTEGER);
+                    writeVarint(number << 1 ^ number >> 63);
+                    return;
+                }
+            } catch (NumberFormatException ignore) {
+            }
+            mOutput.write(NUMBER);
+            writeUtf8(value);
+        }
+
+        private void writeUtf8(String value) throws IOException {
+            byte[] bytes = value.getBytes(CHARSET);
+            writeVarint(bytes.length);
+            mOutput.write(bytes, 0, bytes.length);
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                mOutput.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mOutput.write((int) value);
+        }
+
+        private String readString() throws IOException {
+            if (mPosition >= mJson.length() || mJson.charAt(mPosition) != '"') {
+                throw syntaxError();
+            }
+            int start = ++mPosition;
+
+            /* Only copy characters when there are escape sequences. */
+            StringBuilder builder = null;
+            while (mPosition < mJson.length()) {
+                char c = mJson.charAt(mPosition++);
+                if (c == '"') {
+                    if (builder == null) {
+                        return mJson.substring(start, mPosition - 1);
+                    }
+                    return builder.append(mJson, start, mPosition - 1).toString();
+                }
+                if (c == '\\') {
+                    if (builder == null) {
+                        builder = new StringBuilder();
+                    }
+                    builder.append(mJson, start, mPosition - 1).append(readEscapedCharacter());
+                    start = mPosition;
+                }
+            }
+            throw syntaxError();
+        }
+
+        private char readEscapedCharacter() throws IOException {
+            if (mPosition >= mJson.length()) {
+                throw syntaxError();
+            }
+            char c = mJson.charAt(mPosition++);
+            switch (c) {
+                case 'u':
+                    if (mPosition + 4 > mJson.length()) {
+                        throw syntaxError();
+                    }
+                    try {
+                        c = (char) Integer.parseInt(mJson.substring(mPosition, mPosition + 4), 16);
+                    } catch (NumberFormatException e) {
+                        throw syntaxError();
+                    }
+                    mPosition += 4;
+                    return c;
+
+                case 'b':
+                    return '\b';
+
+                case 'f':
+                    return '\f';
+
+                case 'n':
+                    return '\n';
+
+                case 'r':
+                    return '\r';
+
+                case 't':
+                    return '\t';
+
+                case '"':
+                case '\\':
+                case '/':
+                    return c;
+
+                default:
+                    throw syntaxError();
+            }
+        }
+
+        private String readNumber() throws IOException {
+            int start = mPosition;
+            while (mPosition < mJson.length() && "+-0123456789.eE".indexOf(mJson.charAt(mPosition)) >= 0) {
+                mPosition++;
+            }
+            if (start == mPosition) {
+                throw syntaxError();
+            }
+            return mJson.substring(start, mPosition);
+        }
+
+        private void readLiteral(String literal) throws IOException {
+            if (!mJson.startsWith(literal, mPosition)) {
+                throw syntaxError();
+            }
+            mPosition += literal.length();
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if (mPosition < mJson.length() && mJson.charAt(mPosition) == c) {
+                mPosition++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (mPosition < mJson.length() && Character.isWhitespace(mJson.charAt(mPosition))) {
+                mPosition++;
+            }
+        }
+
+        private IOException syntaxError() {
+            return new IOException("Invalid JSON payload at character " + mPosition + ".");
+        }
+    }
+
+    /**
+     * Transcodes the binary encoding to JSON text.
+     */
+    private static class Decoder {
+
+        /**
+         * Encoded payload.
+         */
+        private final byte[] mInput;
+
+        /**
+         * JSON text.
+         */
+        private final StringBuilder mOutput;
+
+        /**
+         * Strings already read in the payload.
+         */
+        private final List<String> mStrings = new ArrayList<>();
+
+        /**
+         * Position in {@link #mInput}, after the format version.
+         */
+        private int mPosition = 1;
+
+        Decoder(byte[] input) {
+            mInput = input;
+            mOutput = new StringBuilder(input.length * 3);
+        }
+
+        String decode() throws IOException {
+            readValue(readTag());
+            if (mPosition != mInput.length) {
+                throw new IOException("Corrupted encoded payload.");
+            }
+            return mOutput.toString();
+        }
+
+        private void readValue(int tag) throws IOException {
+            switch (tag) {
+                case OBJECT:
+                    mOutput.append('{');
+                    for (tag = readTag(); tag != END; tag = readTag()) {
+                        appendString(readString(tag));
+                        mOutput.append(':');
+                        readValue(readTag());
+                        mOutput.append(',');
+                    }
+                    closeContainer('{', '}');
+                    break;
+
+                case ARRAY:
+                    mOutput.append('[');
+                    for (tag = readTag(); tag != END; tag = readTag()) {
+                        readValue(tag);
+                        mOutput.append(',');
+                    }
+                    closeContainer('[', ']');
+                    break;
+
+                case NULL:
+                    mOutput.append("null");
+                    break;
+
+                case TRUE:
+                    mOutput.append("true");
+                    break;
+
+                case FALSE:
+                    mOutput.append("false");
+                    break;
+
+                case INTEGER:
+                    long value = readVarint();
+                    mOutput.append(value >>> 1 ^ -(value & 1));
+                    break;
+
+                case NUMBER:
+                    mOutput.append(readUtf8());
+                    break;
+
+                default:
+                    appendString(readString(tag));
+            }
+        }
+
+        private String readString(int tag) throws IOException {
+            if (tag >= STATIC_STRING) {
+                int index = tag - STATIC_STRING;
+                if (index >= STATIC_STRINGS.length) {
+                    throw new IOException("Corrupted encoded payload.");
+                }
+                return STATIC_STRINGS[index];
+            }
+            switch (tag) {
+                case STRING:
+                    String value = readUtf8();
+                    mStrings.add(value);
+                    return value;
+
+                case STRING_REFERENCE:
+                    long index = readVarint();
+                    if (index >= mStrings.size()) {
+                        throw new IOException("Corrupted encoded payload.");
+                    }
+                    return mStrings.get((int) index);
+
+                case DATE:
+                    return JSONDateUtils.toString(readVarint());
+
+                case UUID:
+                    char[] uuid = new char[UUID_LENGTH];
+                    for (int i = 0; i < UUID_LENGTH; i += 2) {
+                        if (i == 8 || i == 13 || i == 18 || i == 23) {
+                            uuid[i++] = '-';
+                        }
+                        int b = readTag();
+                        uuid[i] = HEX_DIGITS[b >> 4];
+                        uuid[i + 1] = HEX_DIGITS[b & 0xF];
+                    }
+                    return new String(uuid);
+
+                default:
+                    throw new IOException("Corrupted encoded payload.");
+            }
+        }
+
+        /**
+         * Replace the trailing comma after the last element, if any, by the closing character.
+         */
+        private void closeContainer(char open, char close) {
+            int last = mOutput.length() - 1;
+            if (mOutput.charAt(last) == open) {
+                mOutput.append(close);
+            } else {
+                mOutput.setCharAt(last, close);
+            }
+        }
+
+        /**
+         * Append a string escaped like {@link org.json.JSONStringer} does.
+         */
+        private void appendString(String value) {
+            mOutput.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        mOutput.append('\\').append(c);
+                        break;
+
+                    case '\t':
+                        mOutput.append("\\t");
+                        break;
+
+                    case '\b':
+                        mOutput.append("\\b");
+                        break;
+
+                    case '\n':
+                        mOutput.append("\\n");
+                        break;
+
+                    case '\r':
+                        mOutput.append("\\r");
+                        break;
+
+                    case '\f':
+                        mOutput.append("\\f");
+                        break;
+
+                    default:
+                        if (c <= 0x1F) {
+                            mOutput.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+                        } else {
+                            mOutput.append(c);
+                        }
+                }
+            }
+            mOutput.append('"');
+        }
+
+        private String readUtf8() throws IOException {
+            long length = readVarint();
+            if (length > mInput.length - mPosition) {
+                throw new IOException("Truncated encoded payload.");
+            }
+            String value = new String(mInput, mPosition, (int) length, CHARSET);
+            mPosition += (int) length;
+            return value;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readTag();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupted encoded payload.");
+        }
+
+        private int readTag() throws IOException {
+            if (mPosition >= mInput.length) {
+                throw new IOException("Truncated encoded payload.");
+            }
+            return mInput[mPosition++] & 0xFF;
+        }
+    }
+}
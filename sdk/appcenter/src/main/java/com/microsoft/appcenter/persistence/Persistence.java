@@ -12,12 +12,15 @@ import androidx.annotation.Nullable;
 import com.microsoft.appcenter.Flags;
 import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+import com.microsoft.appcenter.utils.AppCenterLog;
 
 import java.io.Closeable;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
+import static com.microsoft.appcenter.AppCenter.LOG_TAG;
+
 /**
  * Abstract class for Persistence service.
  */
@@ -40,6 +43,30 @@ public abstract class Persistence implements Closeable {
     public abstract long putLog(@NonNull Log log, @NonNull String group,
                                 @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) throws PersistenceException;
 
+    /**
+     * Writes logs to the storage with the given {@code group}. Implementations should write all the logs
+     * in a single transaction when possible, the default implementation writes them one by one.
+     *
+     * @param logs  The logs to be placed in the storage.
+     * @param group The group of the storage for the logs.
+     * @param flags The persistence flags.
+     * @return Log identifiers from persistence in the same order as {@code logs}, -1 for logs that could not be written.
+     */
+    @NonNull
+    public long[] putLogs(@NonNull List<Log> logs, @NonNull String group,
+                          @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) {
+        long[] ids = new long[logs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            try {
+                ids[i] = putLog(logs.get(i), group, flags);
+            } catch (PersistenceException e) {
+                AppCenterLog.error(LOG_TAG, "Error persisting log", e);
+                ids[i] = -1;
+            }
+        }
+        return ids;
+    }
+
     /**
      * Deletes a log with the give ID from the {@code group}.
      *
@@ -55,6 +82,20 @@ public abstract class Persistence implements Closeable {
      */
     public abstract void deleteLogs(String group);
 
+    /**
+     * Deletes logs of the {@code group} stored before the given time, except logs being sent.
+     * Persistence implementations that do not track the storage time of logs do not delete anything.
+     *
+     * @param group        The group of the storage for logs.
+     * @param storedBefore Time in milliseconds since epoch, logs stored before it are deleted.
+     * @param limit        The max number of logs to delete, used only if {@code outLogs} is not null.
+     * @param outLogs      A list to receive the deleted logs, or null to delete all expired logs at once without reading them.
+     * @return The number of deleted logs.
+     */
+    public int deleteExpiredLogs(@NonNull String group, long storedBefore, @IntRange(from = 1) int limit, @Nullable List<Log> outLogs) {
+        return 0;
+    }
+
     /**
      * Gets the number of logs for the given {@code group}.
      *
@@ -63,6 +104,18 @@ public abstract class Persistence implements Closeable {
      */
     public abstract int countLogs(@NonNull String group);
 
+    /**
+     * Gets the number of logs for the given {@code group}, excluding logs of paused target keys.
+     * The default implementation does not exclude any log.
+     *
+     * @param group            The group of the storage for logs.
+     * @param pausedTargetKeys List of target token keys to exclude from the count.
+     * @return The number of logs for the given {@code group}.
+     */
+    public int countLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys) {
+        return countLogs(group);
+    }
+
     /**
      * Gets an array of logs for the given {@code group}.
      *
@@ -73,13 +126,101 @@ public abstract class Persistence implements Closeable {
      * @return An ID for {@code outLogs}. {@code null} if no logs exist.
      */
     @Nullable
-    public abstract String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs);
+    public String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs) {
+        return getLogs(group, pausedTargetKeys, limit, Long.MAX_VALUE, outLogs);
+    }
+
+    /**
+     * Gets an array of logs for the given {@code group}, stopping before the total persisted payload
+     * size exceeds {@code maxBytes}. The first log is always returned even if larger than {@code maxBytes}.
+     *
+     * @param group            The group of the storage for logs.
+     * @param pausedTargetKeys List of target token keys to exclude from the log query.
+     * @param limit            The max number of logs to be returned.
+     * @param maxBytes         The max total payload size in bytes of the logs to be returned.
+     * @param outLogs          A list to receive {@link Log} objects.
+     * @return An ID for {@code outLogs}. {@code null} if no logs exist.
+     */
+    @Nullable
+    public abstract String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @IntRange(from = 1) long maxBytes, @NonNull List<Log> outLogs);
 
     /**
-     * Clears all associations between logs of the {@code group} and ids returned by {@link #getLogs(String, Collection, int, List)}}.
+     * Checks whether {@link #getRawLogs(String, Collection, int, long, List)} and
+     * {@link #getLogsWithPayloads(String, Collection, int, long, List, List)} are supported.
+     *
+     * @return true if stored payloads can be returned without deserializing logs, false otherwise.
+     */
+    public boolean isRawLogsSupported() {
+        return false;
+    }
+
+    /**
+     * Gets logs for the given {@code group} as they are stored, without deserializing them.
+     * Logs are leased to the returned ID exactly like with {@link #getLogs(String, Collection, int, long, List)}.
+     *
+     * @param group            The group of the storage for logs.
+     * @param pausedTargetKeys List of target token keys to exclude from the log query.
+     * @param limit            The max number of logs to be returned.
+     * @param maxBytes         The max total payload size in bytes of the logs to be returned.
+     * @param outPayloads      A list to receive serialized logs.
+     * @return An ID for {@code outPayloads}. {@code null} if no logs exist.
+     * @throws UnsupportedOperationException if {@link #isRawLogsSupported()} returns false.
+     */
+    @Nullable
+    public String getRawLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @IntRange(from = 1) long maxBytes, @NonNull List<String> outPayloads) {
+        throw new UnsupportedOperationException("Raw logs are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Gets logs for the given {@code group} both as {@link Log} objects and as they are stored,
+     * so that logs can be inspected while their stored payloads are sent without serializing them again.
+     * Logs are leased to the returned ID exactly like with {@link #getLogs(String, Collection, int, long, List)}.
+     *
+     * @param group            The group of the storage for logs.
+     * @param pausedTargetKeys List of target token keys to exclude from the log query.
+     * @param limit            The max number of logs to be returned.
+     * @param maxBytes         The max total payload size in bytes of the logs to be returned.
+     * @param outLogs          A list to receive {@link Log} objects.
+     * @param outPayloads      A list to receive serialized logs, in the same order as {@code outLogs}.
+     * @return An ID for {@code outLogs} and {@code outPayloads}. {@code null} if no logs exist.
+     * @throws UnsupportedOperationException if {@link #isRawLogsSupported()} returns false.
+     */
+    @Nullable
+    public String getLogsWithPayloads(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @IntRange(from = 1) long maxBytes, @NonNull List<Log> outLogs, @NonNull List<String> outPayloads) {
+        throw new UnsupportedOperationException("Raw logs are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Clears all associations between logs of the {@code group} and ids returned by {@link #getLogs(String, Collection, int, long, List)}}.
      */
     public abstract void clearPendingLogState();
 
+    /**
+     * Clears the association between logs of the {@code group} and the given ID returned by
+     * {@link #getLogs(String, Collection, int, long, List)}}, so that these logs can be returned again.
+     *
+     * @param group   The group of the storage for logs.
+     * @param batchId The ID for a set of logs.
+     */
+    public abstract void clearPendingLogState(@NonNull String group, @NonNull String batchId);
+
+    /**
+     * Gets statistics of the stored logs per group and target key.
+     *
+     * @return The statistics, or null if this persistence does not support them.
+     */
+    @Nullable
+    public PersistenceStats getStats() {
+        return null;
+    }
+
+    /**
+     * Performs storage maintenance, such as releasing the space of deleted logs.
+     * Called while no logs were stored or deleted for a while. Does nothing by default.
+     */
+    public void performMaintenance() {
+    }
+
     /**
      * Gets a {@link LogSerializer}.
      *
@@ -117,8 +258,7 @@ public abstract class Persistence implements Closeable {
             super(detailMessage, throwable);
         }
 
-        @SuppressWarnings("SameParameterValue")
-        PersistenceException(String detailMessage) {
+        public PersistenceException(String detailMessage) {
             super(detailMessage);
         }
     }
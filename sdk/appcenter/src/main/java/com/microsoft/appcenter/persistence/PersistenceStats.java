@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Snapshot of the logs stored by a {@link Persistence}, per group and per target key.
+ */
+public class PersistenceStats {
+
+    /**
+     * Statistics by group name.
+     */
+    private final Map<String, GroupStats> mGroups = new HashMap<>();
+
+    /**
+     * Get the statistics of all groups with stored logs or with evicted or expired logs.
+     *
+     * @return statistics by group name.
+     */
+    @NonNull
+    public Map<String, GroupStats> getGroups() {
+        return Collections.unmodifiableMap(mGroups);
+    }
+
+    /**
+     * Get the statistics of a group.
+     *
+     * @param group group name.
+     * @return statistics of the group, null if the group has no stored, evicted or expired logs.
+     */
+    @Nullable
+    public GroupStats getGroup(@NonNull String group) {
+        return mGroups.get(group);
+    }
+
+    /**
+     * Get the statistics of a group, creating them if needed.
+     *
+     * @param group group name.
+     * @return statistics of the group.
+     */
+    @NonNull
+    GroupStats getOrCreateGroup(@NonNull String group) {
+        GroupStats groupStats = mGroups.get(group);
+        if (groupStats == null) {
+            groupStats = new GroupStats();
+            mGroups.put(group, groupStats);
+        }
+        return groupStats;
+    }
+
+    @Override
+    public String toString() {
+        return "PersistenceStats{groups=" + mGroups + '}';
+    }
+
+    /**
+     * Statistics of stored logs.
+     */
+    public static class LogStats {
+
+        /**
+         * Number of stored logs.
+         */
+        private long mLogCount;
+
+        /**
+         * Total size of the serialized logs, in bytes.
+         */
+        private long mPayloadSize;
+
+        /**
+         * Number of logs whose payload is stored in a separate file.
+         */
+        private long mLargePayloadCount;
+
+        /**
+         * Storage time of the oldest log, in milliseconds since epoch, 0 if unknown.
+         */
+        private long mOldestStoredAt;
+
+        /**
+         * Storage time of the newest log, in milliseconds since epoch, 0 if unknown.
+         */
+        private long mNewestStoredAt;
+
+        /**
+         * Get the number of stored logs.
+         *
+         * @return number of stored logs.
+         */
+        public long getLogCount() {
+            return mLogCount;
+        }
+
+        /**
+         * Get the total size of the serialized logs, before compression.
+         *
+         * @return size in bytes.
+         */
+        public long getPayloadSize() {
+            return mPayloadSize;
+        }
+
+        /**
+         * Get the number of logs too large to be stored in the database, whose payload is stored in a separate file.
+         *
+         * @return number of large payload files.
+         */
+        public long getLargePayloadCount() {
+            return mLargePayloadCount;
+        }
+
+        /**
+         * Get the storage time of the oldest log.
+         *
+         * @return time in milliseconds since epoch, 0 if there are no logs or the time is unknown.
+         */
+        public long getOldestStoredAt() {
+            return mOldestStoredAt;
+        }
+
+        /**
+         * Get the storage time of the newest log.
+         *
+         * @return time in milliseconds since epoch, 0 if there are no logs or the time is unknown.
+         */
+        public long getNewestStoredAt() {
+            return mNewestStoredAt;
+        }
+
+        /**
+         * Add logs to these statistics.
+         *
+         * @param logCount          number of logs.
+         * @param payloadSize       total size of the logs in bytes.
+         * @param largePayloadCount number of logs stored in separate files.
+         * @param oldestStoredAt    storage time of the oldest log, 0 if unknown.
+         * @param newestStoredAt    storage time of the newest log, 0 if unknown.
+         */
+        void add(long logCount, long payloadSize, long largePayloadCount, long oldestStoredAt, long newestStoredAt) {
+            mLogCount += logCount;
+            mPayloadSize += payloadSize;
+            mLargePayloadCount += largePayloadCount;
+            if (oldestStoredAt > 0 && (mOldestStoredAt == 0 || oldestStoredAt < mOldestStoredAt)) {
+                mOldestStoredAt = oldestStoredAt;
+            }
+            mNewestStoredAt = Math.max(mNewestStoredAt, newestStoredAt);
+        }
+
+        @Override
+        public String toString() {
+            return "{logCount=" + mLogCount +
+                    ", payloadSize=" + mPayloadSize +
+                    ", largePayloadCount=" + mLargePayloadCount +
+                    ", oldestStoredAt=" + mOldestStoredAt +
+                    ", newestStoredAt=" + mNewestStoredAt + '}';
+        }
+    }
+
+    /**
+     * Statistics of a group, including logs of all target keys.
+     */
+    public static class GroupStats extends LogStats {
+
+        /**
+         * Statistics by target key, for One Collector logs.
+         */
+        private final Map<String, LogStats> mTargetKeys = new HashMap<>();
+
+        /**
+         * Number of logs deleted because storage was full.
+         */
+        private long mEvictedLogCount;
+
+        /**
+         * Number of logs deleted because their time to live elapsed.
+         */
+        private long mExpiredLogCount;
+
+        /**
+         * Get the statistics of the logs of each target key. Logs without target key are only included in group totals.
+         *
+         * @return statistics by target key.
+         */
+        @NonNull
+        public Map<String, LogStats> getTargetKeys() {
+            return Collections.unmodifiableMap(mTargetKeys);
+        }
+
+        /**
+         * Get the number of logs deleted because storage was full, since the storage was created.
+         *
+         * @return number of evicted logs.
+         */
+        public long getEvictedLogCount() {
+            return mEvictedLogCount;
+        }
+
+        /**
+         * Get the number of logs deleted because their time to live elapsed, since the storage was created.
+         *
+         * @return number of expired logs.
+         */
+        public long getExpiredLogCount() {
+            return mExpiredLogCount;
+        }
+
+        /**
+         * Add logs of a target key to these statistics and to the group totals.
+         *
+         * @param targetKey         target key, null for logs without target key.
+         * @param logCount          number of logs.
+         * @param payloadSize       total size of the logs in bytes.
+         * @param largePayloadCount number of logs stored in separate files.
+         * @param oldestStoredAt    storage time of the oldest log, 0 if unknown.
+         * @param newestStoredAt    storage time of the newest log, 0 if unknown.
+         */
+        void addTargetKey(@Nullable String targetKey, long logCount, long payloadSize, long largePayloadCount, long oldestStoredAt, long newestStoredAt) {
+            add(logCount, payloadSize, largePayloadCount, oldestStoredAt, newestStoredAt);
+            if (targetKey != null) {
+                LogStats logStats = mTargetKeys.get(targetKey);
+                if (logStats == null) {
+                    logStats = new LogStats();
+                    mTargetKeys.put(targetKey, logStats);
+                }
+                logStats.add(logCount, payloadSize, largePayloadCount, oldestStoredAt, newestStoredAt);
+            }
+        }
+
+        /**
+         * Set the eviction and expiration counters.
+         *
+         * @param evictedLogCount number of evicted logs.
+         * @param expiredLogCount number of expired logs.
+         */
+        void setDeletedLogCounts(long evictedLogCount, long expiredLogCount) {
+            mEvictedLogCount = evictedLogCount;
+            mExpiredLogCount = expiredLogCount;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + super.toString() +
+                    ", evictedLogCount=" + mEvictedLogCount +
+                    ", expiredLogCount=" + mExpiredLogCount +
+                    ", targetKeys=" + mTargetKeys + '}';
+        }
+    }
+}
@@ -0,0 +1,1211 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import android.content.Context;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.microsoft.appcenter.Constants;
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.one.CommonSchemaLog;
+import com.microsoft.appcenter.ingestion.models.one.PartAUtils;
+import com.microsoft.appcenter.utils.AppCenterLog;
+import com.microsoft.appcenter.utils.crypto.CryptoUtils;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import static com.microsoft.appcenter.AppCenter.LOG_TAG;
+
+/**
+ * Persistence storing logs in append-only segment files instead of SQLite.
+ * <p>
+ * Each group has its own directory of segment files. A log is appended to the current segment of its
+ * group as a record made of its length, a CRC32 checksum, a small header (identifier, priority, type
+ * and target token) and the serialized log. Segments roll over when they reach {@link #SEGMENT_MAX_SIZE}.
+ * <p>
+ * Sent logs are not rewritten: their identifiers are appended to an acknowledgement file of the group,
+ * and a segment file is deleted as a whole once all its logs are acknowledged. When the storage is full,
+ * the least recently written segment is deleted, preferring segments without critical logs.
+ * <p>
+ * An index of the records of a group (without payloads) is built the first time the group is used,
+ * by reading only the record headers. A truncated record at the end of a segment (process killed while
+ * writing) is discarded, and a record with an invalid checksum is dropped when read.
+ * <p>
+ * Segment and acknowledgement files are never synced to disk: written logs survive the process being
+ * killed, but the last logs written or acknowledged before a power loss or an operating system crash
+ * may be lost or sent again.
+ */
+public class SegmentedFilePersistence extends Persistence {
+
+    /**
+     * Sub path of the directory storing segments.
+     */
+    private static final String DIRECTORY = "/appcenter/segmented_persistence";
+
+    /**
+     * Segment file extension.
+     */
+    @VisibleForTesting
+    static final String SEGMENT_FILE_EXTENSION = ".seg";
+
+    /**
+     * Name of the acknowledgement file of a group.
+     */
+    @VisibleForTesting
+    static final String ACK_FILE_NAME = "acks";
+
+    /**
+     * Size after which a new segment is started.
+     */
+    @VisibleForTesting
+    static final long SEGMENT_MAX_SIZE = 256 * 1024;
+
+    /**
+     * Storage size used until {@link #setMaxStorageSize(long)} is called.
+     */
+    private static final long DEFAULT_MAX_STORAGE_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * Record format version.
+     */
+    @VisibleForTesting
+    static final byte RECORD_FORMAT_VERSION = 1;
+
+    /**
+     * Size of the record length and checksum preceding the record body.
+     */
+    @VisibleForTesting
+    static final int RECORD_PREFIX_SIZE = 8;
+
+    /**
+     * Number of bytes read to parse a record header while indexing, enough for most headers.
+     */
+    private static final int HEADER_READ_SIZE = 512;
+
+    /**
+     * Charset of payloads and file names.
+     */
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Application context.
+     */
+    private final Context mContext;
+
+    /**
+     * Base directory.
+     */
+    private final File mDirectory;
+
+    /**
+     * Loaded groups.
+     */
+    private final Map<String, GroupStore> mGroupStores = new HashMap<>();
+
+    /**
+     * Total size of segment files.
+     */
+    private long mStorageSize;
+
+    /**
+     * Maximum total size of segment files.
+     */
+    private long mMaxStorageSize = DEFAULT_MAX_STORAGE_SIZE;
+
+    /**
+     * Init.
+     *
+     * @param context application context.
+     */
+    public SegmentedFilePersistence(@NonNull Context context) {
+        this(context, new File(Constants.FILES_PATH + DIRECTORY));
+    }
+
+    /**
+     * Init.
+     *
+     * @param context   application context.
+     * @param directory base directory.
+     */
+    @VisibleForTesting
+    SegmentedFilePersistence(@NonNull Context context, @NonNull File directory) {
+        mContext = context;
+        mDirectory = directory;
+
+        //noinspection ResultOfMethodCallIgnored we handle errors at read/write time for each file.
+        mDirectory.mkdirs();
+
+        /* Only file sizes are needed at this point, groups are indexed when used. */
+        File[] groupDirectories = mDirectory.listFiles();
+        if (groupDirectories != null) {
+            for (File groupDirectory : groupDirectories) {
+                for (File segmentFile : listSegmentFiles(groupDirectory)) {
+                    mStorageSize += segmentFile.length();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized long putLog(@NonNull Log log, @NonNull String group, @IntRange(from = Flags.NORMAL, to = Flags.CRITICAL) int flags) throws PersistenceException {
+        AppCenterLog.debug(LOG_TAG, "Storing a log to the segmented persistence for log type " + log.getType() + " with flags=" + flags);
+        byte[] payload;
+        try {
+            payload = getLogSerializer().serializeLog(log).getBytes(CHARSET);
+        } catch (JSONException | UnsupportedEncodingException e) {
+            throw new PersistenceException("Cannot convert to JSON string.", e);
+        }
+        String targetKey = null;
+        String targetToken = null;
+        if (log instanceof CommonSchemaLog) {
+            targetToken = log.getTransmissionTargetTokens().iterator().next();
+            targetKey = PartAUtils.getTargetKey(targetToken);
+            targetToken = CryptoUtils.getInstance(mContext).encrypt(targetToken);
+        }
+        GroupStore groupStore = getGroupStore(group);
+        Record record = new Record(groupStore.mNextId, Flags.getPersistenceFlag(flags, false), log.getType(), targetKey, targetToken);
+        byte[] bytes;
+        try {
+            bytes = record.encode(payload);
+        } catch (IOException e) {
+            throw new PersistenceException("Cannot encode log record.", e);
+        }
+
+        /* Make room by deleting whole segments. */
+        if (bytes.length > mMaxStorageSize) {
+            throw new PersistenceException("Log is too large (" + bytes.length + " bytes) to store. Current maximum storage size is " + mMaxStorageSize + " bytes.");
+        }
+        while (mStorageSize + bytes.length > mMaxStorageSize) {
+            if (!evictSegment()) {
+                throw new PersistenceException("Storage is full and no segment can be deleted.");
+            }
+        }
+
+        /* Append to the current segment of the group. */
+        try {
+            groupStore.append(record, bytes);
+        } catch (IOException e) {
+            throw new PersistenceException("Failed to store a log to the segmented persistence for log type " + log.getType() + ".", e);
+        }
+        AppCenterLog.debug(LOG_TAG, "Stored a log to the segmented persistence for log type " + log.getType() + " with id=" + record.mId);
+        return record.mId;
+    }
+
+    @Override
+    public synchronized void deleteLogs(@NonNull String group, @NonNull String batchId) {
+        AppCenterLog.debug(LOG_TAG, "Deleting logs from the segmented persistence for " + group + " with " + batchId);
+        GroupStore groupStore = mGroupStores.get(group);
+        if (groupStore != null) {
+            groupStore.acknowledge(batchId);
+        }
+    }
+
+    @Override
+    public synchronized void deleteLogs(String group) {
+        AppCenterLog.debug(LOG_TAG, "Deleting all logs from the segmented persistence for " + group);
+        GroupStore groupStore = getGroupStore(group);
+        mGroupStores.remove(group);
+        groupStore.deleteAll();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The storage time of a log is the last write time of its segment, so logs expire by whole segments.
+     */
+    @Override
+    public synchronized int deleteExpiredLogs(@NonNull String group, long storedBefore, @IntRange(from = 1) int limit, @Nullable List<Log> outLogs) {
+        GroupStore groupStore = getGroupStore(group);
+        List<Record> expiredRecords = new ArrayList<>();
+        for (Record record : groupStore.getRecordsInSendingOrder()) {
+            if (outLogs != null && expiredRecords.size() >= limit) {
+                break;
+            }
+            if (record.mBatchId != null || record.mSegment.mLastWriteTime >= storedBefore) {
+                continue;
+            }
+            if (outLogs != null) {
+                try {
+                    outLogs.add(toLog(record, groupStore.readPayload(record)));
+                } catch (JSONException | IOException e) {
+
+                    /* Still delete it, it cannot be sent anyway. */
+                    AppCenterLog.error(LOG_TAG, "Cannot read an expired log in the segmented persistence", e);
+                }
+            }
+            expiredRecords.add(record);
+        }
+        if (!expiredRecords.isEmpty()) {
+            groupStore.acknowledge(expiredRecords);
+            AppCenterLog.debug(LOG_TAG, "Deleted " + expiredRecords.size() + " expired logs from the segmented persistence for " + group);
+        }
+        return expiredRecords.size();
+    }
+
+    @Override
+    public int countLogs(@NonNull String group) {
+        return countLogs(group, Collections.<String>emptyList());
+    }
+
+    @Override
+    public synchronized int countLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys) {
+        GroupStore groupStore = getGroupStore(group);
+        int count = groupStore.mRecordCount;
+        for (String targetKey : pausedTargetKeys) {
+            Integer targetKeyCount = groupStore.mTargetKeyCounts.get(targetKey);
+            if (targetKeyCount != null) {
+                count -= targetKeyCount;
+            }
+        }
+        return count;
+    }
+
+    @Nullable
+    @Override
+    public String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @IntRange(from = 1) long maxBytes, @NonNull List<Log> outLogs) {
+        return getLogs(group, pausedTargetKeys, limit, maxBytes, outLogs, null);
+    }
+
+    @Override
+    public boolean isRawLogsSupported() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public String getRawLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @IntRange(from = 1) long maxBytes, @NonNull List<String> outPayloads) {
+        return getLogs(group, pausedTargetKeys, limit, maxBytes, null, outPayloads);
+    }
+
+    @Nullable
+    @Override
+    public String getLogsWithPayloads(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, @IntRange(from = 0) int limit, @IntRange(from = 1) long maxBytes, @NonNull List<Log> outLogs, @NonNull List<String> outPayloads) {
+        return getLogs(group, pausedTargetKeys, limit, maxBytes, outLogs, outPayloads);
+    }
+
+    /**
+     * Gets logs for the given {@code group} as {@link Log} objects, as stored payloads or both.
+     *
+     * @param group            The group of the storage for logs.
+     * @param pausedTargetKeys List of target token keys to exclude.
+     * @param limit            The max number of logs to be returned.
+     * @param maxBytes         The max total payload size in bytes of the logs to be returned.
+     * @param outLogs          A list to receive {@link Log} objects, null to not deserialize logs.
+     * @param outPayloads      A list to receive serialized logs, null to not return payloads.
+     * @return An ID for the returned logs. {@code null} if no logs exist.
+     */
+    @Nullable
+    private synchronized String getLogs(@NonNull String group, @NonNull Collection<String> pausedTargetKeys, int limit, long maxBytes, @Nullable List<Log> outLogs, @Nullable List<String> outPayloads) {
+        AppCenterLog.debug(LOG_TAG, "Trying to get " + limit + " logs (max " + maxBytes + " bytes) from the segmented persistence for " + group);
+        GroupStore groupStore = getGroupStore(group);
+        List<Record> candidates = new ArrayList<>();
+        List<Record> corruptedRecords = new ArrayList<>();
+        long totalSize = 0;
+        for (Record record : groupStore.getRecordsInSendingOrder()) {
+            if (candidates.size() >= limit) {
+                break;
+            }
+            if (record.mBatchId != null || (record.mTargetKey != null && pausedTargetKeys.contains(record.mTargetKey))) {
+                continue;
+            }
+
+            /* Stop before exceeding the byte budget, but always return at least 1 log. */
+            if (!candidates.isEmpty() && totalSize + record.mPayloadSize > maxBytes) {
+                break;
+            }
+            try {
+                String payload = groupStore.readPayload(record);
+                if (outLogs != null) {
+                    outLogs.add(toLog(record, payload));
+                }
+                if (outPayloads != null) {
+                    outPayloads.add(payload);
+                }
+                candidates.add(record);
+                totalSize += record.mPayloadSize;
+            } catch (JSONException | IOException e) {
+                AppCenterLog.error(LOG_TAG, "Cannot read a log in the segmented persistence", e);
+                corruptedRecords.add(record);
+            }
+        }
+
+        /* Drop logs that cannot be read. */
+        if (!corruptedRecords.isEmpty()) {
+            groupStore.acknowledge(corruptedRecords);
+            AppCenterLog.warn(LOG_TAG, "Deleted logs that cannot be read");
+        }
+        if (candidates.isEmpty()) {
+            AppCenterLog.debug(LOG_TAG, "No logs found in the segmented persistence at the moment");
+            return null;
+        }
+
+        /* Lease the logs to a new batch. */
+        String batchId = UUID.randomUUID().toString();
+        for (Record record : candidates) {
+            record.mBatchId = batchId;
+        }
+        groupStore.mBatches.put(batchId, candidates);
+        AppCenterLog.debug(LOG_TAG, "Returning " + candidates.size() + " log(s) (" + totalSize + " bytes) with an ID, " + batchId);
+        return batchId;
+    }
+
+    /**
+     * Deserialize a log and restore its target token.
+     *
+     * @param record  index entry of the log.
+     * @param payload serialized log.
+     * @return log.
+     * @throws JSONException if the payload cannot be deserialized.
+     */
+    @NonNull
+    private Log toLog(@NonNull Record record, @NonNull String payload) throws JSONException {
+        Log log = getLogSerializer().deserializeLog(payload, record.mType);
+        if (record.mTargetToken != null) {
+            CryptoUtils.DecryptedData data = CryptoUtils.getInstance(mContext).decrypt(record.mTargetToken);
+            log.addTransmissionTarget(data.getDecryptedData());
+        }
+        return log;
+    }
+
+    @Override
+    public synchronized void clearPendingLogState() {
+        for (GroupStore groupStore : mGroupStores.values()) {
+            for (String batchId : new ArrayList<>(groupStore.mBatches.keySet())) {
+                groupStore.release(batchId);
+            }
+        }
+        AppCenterLog.debug(LOG_TAG, "Cleared pending log states");
+    }
+
+    @Override
+    public synchronized void clearPendingLogState(@NonNull String group, @NonNull String batchId) {
+        GroupStore groupStore = mGroupStores.get(group);
+        if (groupStore != null) {
+            groupStore.release(batchId);
+        }
+        AppCenterLog.debug(LOG_TAG, "Cleared pending log state for " + group + " with " + batchId);
+    }
+
+    @Override
+    public synchronized boolean setMaxStorageSize(long maxStorageSizeInBytes) {
+        mMaxStorageSize = maxStorageSizeInBytes;
+
+        /* Delete segments right away if needed, like the database is shrunk. */
+        if (mStorageSize > maxStorageSizeInBytes) {
+            AppCenterLog.info(LOG_TAG, "Stored logs (" + mStorageSize + " bytes) exceed the new maximum size, deleting the oldest segments.");
+            while (mStorageSize > maxStorageSizeInBytes) {
+                if (!evictSegment()) {
+                    AppCenterLog.error(LOG_TAG, "Cannot reduce stored logs (" + mStorageSize + " bytes) to the new maximum size.");
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (GroupStore groupStore : mGroupStores.values()) {
+            groupStore.close();
+        }
+        mGroupStores.clear();
+    }
+
+    /**
+     * Get the total size of segment files.
+     *
+     * @return size in bytes.
+     */
+    @VisibleForTesting
+    synchronized long getStorageSize() {
+        return mStorageSize;
+    }
+
+    /**
+     * Get the store of a group, indexing its segments if not done yet.
+     *
+     * @param group group.
+     * @return group store.
+     */
+    @NonNull
+    private GroupStore getGroupStore(@NonNull String group) {
+        GroupStore groupStore = mGroupStores.get(group);
+        if (groupStore == null) {
+            groupStore = new GroupStore(new File(mDirectory, encodeGroup(group)));
+            groupStore.load();
+            mGroupStores.put(group, groupStore);
+        }
+        return groupStore;
+    }
+
+    /**
+     * Delete the least recently written segment across all groups, preferring segments without critical logs.
+     *
+     * @return true if a segment was deleted, false if there is no segment.
+     */
+    private boolean evictSegment() {
+
+        /* Index all groups on disk. */
+        File[] groupDirectories = mDirectory.listFiles();
+        if (groupDirectories != null) {
+            for (File groupDirectory : groupDirectories) {
+                String group = decodeGroup(groupDirectory.getName());
+                if (group != null) {
+                    getGroupStore(group);
+                }
+            }
+        }
+
+        /* Select the segment. */
+        GroupStore victimStore = null;
+        Segment victim = null;
+        for (GroupStore groupStore : mGroupStores.values()) {
+            for (Segment segment : groupStore.mSegments) {
+                if (victim == null || isEvictedBefore(segment, victim)) {
+                    victim = segment;
+                    victimStore = groupStore;
+                }
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        AppCenterLog.warn(LOG_TAG, "Storage is full, deleting " + victim.mRecordCount + " logs of " + victim.mFile);
+        victimStore.deleteSegment(victim);
+        return true;
+    }
+
+    /**
+     * Check if a segment should be evicted before another one.
+     */
+    private static boolean isEvictedBefore(Segment segment, Segment other) {
+        boolean critical = segment.mCriticalCount > 0;
+        boolean otherCritical = other.mCriticalCount > 0;
+        if (critical != otherCritical) {
+            return otherCritical;
+        }
+        return segment.mLastWriteTime < other.mLastWriteTime;
+    }
+
+    /**
+     * List segment files of a group directory ordered by first record identifier.
+     */
+    @NonNull
+    private static List<File> listSegmentFiles(@NonNull File groupDirectory) {
+        File[] files = groupDirectory.listFiles();
+        List<File> segmentFiles = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SEGMENT_FILE_EXTENSION) && getFirstId(file) >= 0) {
+                    segmentFiles.add(file);
+                }
+            }
+        }
+        Collections.sort(segmentFiles, new Comparator<File>() {
+
+            @Override
+            public int compare(File file1, File file2) {
+                long id1 = getFirstId(file1);
+                long id2 = getFirstId(file2);
+                return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+            }
+        });
+        return segmentFiles;
+    }
+
+    /**
+     * Get the first record identifier of a segment from its file name.
+     *
+     * @return identifier, -1 if the name is invalid.
+     */
+    private static long getFirstId(@NonNull File segmentFile) {
+        String name = segmentFile.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Encode a group name as a directory name (group names can contain '/').
+     */
+    @NonNull
+    @VisibleForTesting
+    static String encodeGroup(@NonNull String group) {
+        try {
+            return URLEncoder.encode(group, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+
+            /* UTF-8 is always supported. */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decode a group name from a directory name.
+     *
+     * @return group name or null if invalid.
+     */
+    @Nullable
+    private static String decodeGroup(@NonNull String directoryName) {
+        try {
+            return URLDecoder.decode(directoryName, CHARSET);
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read exactly the buffer remaining bytes at a position.
+     *
+     * @throws EOFException if the end of the file is reached first.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of segment.");
+            }
+            position += count;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Stored logs of a group.
+     */
+    private class GroupStore {
+
+        /**
+         * Group directory.
+         */
+        final File mDirectory;
+
+        /**
+         * Acknowledgement file.
+         */
+        final File mAckFile;
+
+        /**
+         * Segments ordered by first record identifier, the last one is the one being written.
+         */
+        final List<Segment> mSegments = new ArrayList<>();
+
+        /**
+         * Critical records not acknowledged, by identifier in insertion order.
+         */
+        final Map<Long, Record> mCriticalRecords = new LinkedHashMap<>();
+
+        /**
+         * Normal records not acknowledged, by identifier in insertion order.
+         */
+        final Map<Long, Record> mNormalRecords = new LinkedHashMap<>();
+
+        /**
+         * Acknowledged identifiers of records of existing segments.
+         */
+        final Map<Long, Segment> mAcknowledgedIds = new HashMap<>();
+
+        /**
+         * Number of records not acknowledged per target key.
+         */
+        final Map<String, Integer> mTargetKeyCounts = new HashMap<>();
+
+        /**
+         * Batches being sent.
+         */
+        final Map<String, List<Record>> mBatches = new HashMap<>();
+
+        /**
+         * Number of records not acknowledged.
+         */
+        int mRecordCount;
+
+        /**
+         * Next record identifier.
+         */
+        long mNextId;
+
+        GroupStore(File directory) {
+            mDirectory = directory;
+            mAckFile = new File(directory, ACK_FILE_NAME);
+        }
+
+        /**
+         * Index segments and acknowledgements of the group.
+         */
+        void load() {
+            Set<Long> acknowledgedIds = readAcknowledgedIds();
+            boolean compactAcknowledgements = false;
+            for (File file : listSegmentFiles(mDirectory)) {
+                Segment segment = new Segment(file, getFirstId(file));
+                mNextId = Math.max(mNextId, segment.mFirstId);
+                long initialSize = segment.mSize;
+                try {
+                    for (Record record : segment.index()) {
+                        mNextId = Math.max(mNextId, record.mId + 1);
+                        if (acknowledgedIds.remove(record.mId)) {
+                            mAcknowledgedIds.put(record.mId, segment);
+                        } else {
+                            add(record);
+                        }
+                    }
+                } catch (IOException e) {
+                    AppCenterLog.error(LOG_TAG, "Failed to index segment " + file, e);
+                }
+                mStorageSize += segment.mSize - initialSize;
+                mSegments.add(segment);
+                if (segment.mRecordCount == 0) {
+                    deleteSegment(segment);
+                    compactAcknowledgements = true;
+                }
+            }
+
+            /* Forget acknowledgements of records that no longer exist. */
+            if (compactAcknowledgements || !acknowledgedIds.isEmpty()) {
+                writeAcknowledgedIds();
+            }
+            AppCenterLog.debug(LOG_TAG, "Indexed " + mRecordCount + " logs in " + mSegments.size() + " segments for " + mDirectory.getName());
+        }
+
+        /**
+         * Get records not acknowledged, critical first then in insertion order.
+         */
+        Iterable<Record> getRecordsInSendingOrder() {
+            List<Record> records = new ArrayList<>(mRecordCount);
+            records.addAll(mCriticalRecords.values());
+            records.addAll(mNormalRecords.values());
+            return records;
+        }
+
+        /**
+         * Append a record to the current segment.
+         */
+        void append(Record record, byte[] bytes) throws IOException {
+            Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+            if (segment == null || segment.mSize >= SEGMENT_MAX_SIZE) {
+
+                //noinspection ResultOfMethodCallIgnored we'll get an error anyway at write time.
+                mDirectory.mkdirs();
+                segment = new Segment(new File(mDirectory, record.mId + SEGMENT_FILE_EXTENSION), record.mId);
+                mSegments.add(segment);
+            }
+            long size = segment.mSize;
+            segment.append(record, bytes);
+            mStorageSize += segment.mSize - size;
+            mNextId = record.mId + 1;
+            add(record);
+        }
+
+        /**
+         * Read the payload of a record.
+         */
+        String readPayload(Record record) throws IOException {
+            return record.mSegment.readPayload(record);
+        }
+
+        /**
+         * Acknowledge the records of a batch.
+         */
+        void acknowledge(String batchId) {
+            List<Record> records = mBatches.remove(batchId);
+            if (records != null) {
+                acknowledge(records);
+            }
+        }
+
+        /**
+         * Acknowledge records, deleting segments whose records are all acknowledged.
+         */
+        void acknowledge(List<Record> records) {
+            ByteBuffer buffer = ByteBuffer.allocate(records.size() * 8);
+            Set<Segment> emptySegments = new HashSet<>();
+            for (Record record : records) {
+                if (remove(record)) {
+                    buffer.putLong(record.mId);
+                    mAcknowledgedIds.put(record.mId, record.mSegment);
+                    if (record.mSegment.mRecordCount == 0) {
+                        emptySegments.add(record.mSegment);
+                    }
+                }
+            }
+            if (emptySegments.isEmpty()) {
+                appendAcknowledgedIds(buffer);
+            } else {
+                for (Segment segment : emptySegments) {
+                    deleteSegment(segment);
+                }
+                writeAcknowledgedIds();
+            }
+        }
+
+        /**
+         * Make the records of a batch available again.
+         */
+        void release(String batchId) {
+            List<Record> records = mBatches.remove(batchId);
+            if (records != null) {
+                for (Record record : records) {
+                    record.mBatchId = null;
+                }
+            }
+        }
+
+        /**
+         * Delete a segment file and forget its records.
+         */
+        void deleteSegment(Segment segment) {
+            segment.close();
+            mStorageSize -= segment.mSize;
+            if (!segment.mFile.delete() && segment.mFile.exists()) {
+                AppCenterLog.warn(LOG_TAG, "Failed to delete segment " + segment.mFile);
+            }
+            mSegments.remove(segment);
+            for (Map<Long, Record> records : Arrays.asList(mCriticalRecords, mNormalRecords)) {
+                for (Iterator<Record> iterator = records.values().iterator(); iterator.hasNext(); ) {
+                    Record record = iterator.next();
+                    if (record.mSegment == segment) {
+                        iterator.remove();
+                        decrementCounts(record);
+                    }
+                }
+            }
+            for (Iterator<Segment> iterator = mAcknowledgedIds.values().iterator(); iterator.hasNext(); ) {
+                if (iterator.next() == segment) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * Delete all files of the group.
+         */
+        void deleteAll() {
+            for (Segment segment : new ArrayList<>(mSegments)) {
+                deleteSegment(segment);
+            }
+            mBatches.clear();
+
+            //noinspection ResultOfMethodCallIgnored best effort.
+            mAckFile.delete();
+
+            //noinspection ResultOfMethodCallIgnored best effort.
+            mDirectory.delete();
+        }
+
+        void close() {
+            for (Segment segment : mSegments) {
+                segment.close();
+            }
+        }
+
+        private void add(Record record) {
+            (record.mPriority == Flags.CRITICAL ? mCriticalRecords : mNormalRecords).put(record.mId, record);
+            record.mSegment.mRecordCount++;
+            if (record.mPriority == Flags.CRITICAL) {
+                record.mSegment.mCriticalCount++;
+            }
+            mRecordCount++;
+            if (record.mTargetKey != null) {
+                Integer count = mTargetKeyCounts.get(record.mTargetKey);
+                mTargetKeyCounts.put(record.mTargetKey, count == null ? 1 : count + 1);
+            }
+        }
+
+        private boolean remove(Record record) {
+            Record removed = (record.mPriority == Flags.CRITICAL ? mCriticalRecords : mNormalRecords).remove(record.mId);
+            if (removed == null) {
+
+                /* Already acknowledged or evicted. */
+                return false;
+            }
+            decrementCounts(record);
+            return true;
+        }
+
+        private void decrementCounts(Record record) {
+            record.mSegment.mRecordCount--;
+            if (record.mPriority == Flags.CRITICAL) {
+                record.mSegment.mCriticalCount--;
+            }
+            mRecordCount--;
+            if (record.mTargetKey != null) {
+                Integer count = mTargetKeyCounts.get(record.mTargetKey);
+                if (count != null && count > 1) {
+                    mTargetKeyCounts.put(record.mTargetKey, count - 1);
+                } else {
+                    mTargetKeyCounts.remove(record.mTargetKey);
+                }
+            }
+        }
+
+        private Set<Long> readAcknowledgedIds() {
+            Set<Long> ids = new HashSet<>();
+            if (!mAckFile.exists()) {
+                return ids;
+            }
+            try {
+                RandomAccessFile file = new RandomAccessFile(mAckFile, "r");
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate((int) (file.length() / 8 * 8));
+                    readFully(file.getChannel(), buffer, 0);
+                    while (buffer.remaining() >= 8) {
+                        ids.add(buffer.getLong());
+                    }
+                } finally {
+                    file.close();
+                }
+            } catch (IOException e) {
+                AppCenterLog.error(LOG_TAG, "Failed to read acknowledgements " + mAckFile, e);
+            }
+            return ids;
+        }
+
+        private void appendAcknowledgedIds(ByteBuffer buffer) {
+            if (buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            try {
+                FileOutputStream outputStream = new FileOutputStream(mAckFile, true);
+                try {
+                    outputStream.getChannel().write(buffer);
+                } finally {
+                    outputStream.close();
+                }
+            } catch (IOException e) {
+                AppCenterLog.error(LOG_TAG, "Failed to write acknowledgements " + mAckFile, e);
+            }
+        }
+
+        private void writeAcknowledgedIds() {
+            if (mAcknowledgedIds.isEmpty()) {
+
+                //noinspection ResultOfMethodCallIgnored best effort, ids are ignored if they don't match a record.
+                mAckFile.delete();
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(mAcknowledgedIds.size() * 8);
+            for (Long id : mAcknowledgedIds.keySet()) {
+                buffer.putLong(id);
+            }
+            //noinspection ResultOfMethodCallIgnored rewritten below.
+            mAckFile.delete();
+            appendAcknowledgedIds(buffer);
+        }
+    }
+
+    /**
+     * Segment file.
+     */
+    private static class Segment {
+
+        /**
+         * File.
+         */
+        final File mFile;
+
+        /**
+         * Identifier of the first record.
+         */
+        final long mFirstId;
+
+        /**
+         * Size of valid records in bytes.
+         */
+        long mSize;
+
+        /**
+         * Number of records not acknowledged.
+         */
+        int mRecordCount;
+
+        /**
+         * Number of critical records not acknowledged.
+         */
+        int mCriticalCount;
+
+        /**
+         * Time of the last write.
+         */
+        long mLastWriteTime;
+
+        /**
+         * File opened on first access.
+         */
+        private RandomAccessFile mRandomAccessFile;
+
+        Segment(File file, long firstId) {
+            mFile = file;
+            mFirstId = firstId;
+            mSize = file.length();
+            mLastWriteTime = file.lastModified();
+        }
+
+        private FileChannel getChannel() throws IOException {
+            if (mRandomAccessFile == null) {
+                mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            }
+            return mRandomAccessFile.getChannel();
+        }
+
+        /**
+         * Read record headers, discarding a truncated or invalid tail.
+         */
+        List<Record> index() throws IOException {
+            List<Record> records = new ArrayList<>();
+            FileChannel channel = getChannel();
+            long fileSize = channel.size();
+            long position = 0;
+            ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX_SIZE);
+            while (position < fileSize) {
+                Record record = null;
+                if (position + RECORD_PREFIX_SIZE <= fileSize) {
+                    prefix.clear();
+                    readFully(channel, prefix, position);
+                    int length = prefix.getInt();
+                    if (length > 0 && position + RECORD_PREFIX_SIZE + length <= fileSize) {
+                        record = readHeader(channel, position, length);
+                    }
+                }
+                if (record == null) {
+                    AppCenterLog.warn(LOG_TAG, "Discarding " + (fileSize - position) + " invalid bytes at the end of " + mFile);
+                    channel.truncate(position);
+                    break;
+                }
+                records.add(record);
+                position += RECORD_PREFIX_SIZE + record.mLength;
+            }
+            mSize = position;
+            return records;
+        }
+
+        @Nullable
+        private Record readHeader(FileChannel channel, long position, int length) throws IOException {
+            int readSize = Math.min(length, HEADER_READ_SIZE);
+            while (true) {
+                ByteBuffer buffer = ByteBuffer.allocate(readSize);
+                readFully(channel, buffer, position + RECORD_PREFIX_SIZE);
+                try {
+                    Record record = Record.decodeHeader(buffer.array());
+                    if (record == null) {
+                        return null;
+                    }
+                    record.mSegment = this;
+                    record.mOffset = position;
+                    record.mLength = length;
+                    record.mPayloadSize = length - record.mHeaderSize;
+                    return record;
+                } catch (EOFException e) {
+
+                    /* Header larger than what was read. */
+                    if (readSize == length) {
+                        return null;
+                    }
+                    readSize = length;
+                }
+            }
+        }
+
+        void append(Record record, byte[] bytes) throws IOException {
+            FileChannel channel = getChannel();
+            long position = mSize;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            } catch (IOException e) {
+
+                /* Do not leave a partial record. */
+                channel.truncate(mSize);
+                throw e;
+            }
+            record.mSegment = this;
+            record.mOffset = mSize;
+            record.mLength = bytes.length - RECORD_PREFIX_SIZE;
+            record.mPayloadSize = record.mLength - record.mHeaderSize;
+            mSize = position;
+            mLastWriteTime = System.currentTimeMillis();
+        }
+
+        String readPayload(Record record) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_PREFIX_SIZE + record.mLength);
+            readFully(getChannel(), buffer, record.mOffset);
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), RECORD_PREFIX_SIZE, record.mLength);
+            if (length != record.mLength || checksum != (int) crc.getValue()) {
+                throw new IOException("Invalid checksum for record " + record.mId + " in " + mFile);
+            }
+            return new String(buffer.array(), RECORD_PREFIX_SIZE + record.mHeaderSize, record.mPayloadSize, CHARSET);
+        }
+
+        void close() {
+            if (mRandomAccessFile != null) {
+                try {
+                    mRandomAccessFile.close();
+                } catch (IOException e) {
+                    AppCenterLog.warn(LOG_TAG, "Failed to close segment " + mFile, e);
+                }
+                mRandomAccessFile = null;
+            }
+        }
+    }
+
+    /**
+     * Index entry of a stored log.
+     */
+    private static class Record {
+
+        /**
+         * Identifier, unique in the group.
+         */
+        final long mId;
+
+        /**
+         * Persistence priority.
+         */
+        final int mPriority;
+
+        /**
+         * Log type.
+         */
+        final String mType;
+
+        /**
+         * Target token key in clear text, null if none.
+         */
+        final String mTargetKey;
+
+        /**
+         * Encrypted target token, null if none.
+         */
+        final String mTargetToken;
+
+        /**
+         * Size of the encoded header in the record body.
+         */
+        int mHeaderSize;
+
+        /**
+         * Segment containing the record.
+         */
+        Segment mSegment;
+
+        /**
+         * Offset of the record in the segment.
+         */
+        long mOffset;
+
+        /**
+         * Size of the record body (header and payload).
+         */
+        int mLength;
+
+        /**
+         * Size of the serialized log.
+         */
+        int mPayloadSize;
+
+        /**
+         * Batch the record is leased to, null if available.
+         */
+        String mBatchId;
+
+        Record(long id, int priority, String type, String targetKey, String targetToken) {
+            mId = id;
+            mPriority = priority;
+            mType = type;
+            mTargetKey = targetKey;
+            mTargetToken = targetToken;
+        }
+
+        /**
+         * Encode the record with its length and checksum prefix.
+         */
+        byte[] encode(byte[] payload) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(payload.length + 64);
+            DataOutputStream output = new DataOutputStream(body);
+            output.writeByte(RECORD_FORMAT_VERSION);
+            output.writeLong(mId);
+            output.writeByte(mPriority);
+            output.writeUTF(mType == null ? "" : mType);
+            output.writeUTF(mTargetKey == null ? "" : mTargetKey);
+            output.writeUTF(mTargetToken == null ? "" : mTargetToken);
+            mHeaderSize = output.size();
+            output.write(payload);
+            output.flush();
+            byte[] bodyBytes = body.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bodyBytes);
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_PREFIX_SIZE + bodyBytes.length);
+            buffer.putInt(bodyBytes.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(bodyBytes);
+            return buffer.array();
+        }
+
+        /**
+         * Decode a record header.
+         *
+         * @return record or null if the format is unknown.
+         * @throws EOFException if the header is larger than the bytes.
+         */
+        @Nullable
+        static Record decodeHeader(byte[] bytes) throws IOException {
+            ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
+            DataInputStream input = new DataInputStream(inputStream);
+            if (input.readByte() != RECORD_FORMAT_VERSION) {
+                return null;
+            }
+            long id = input.readLong();
+            int priority = input.readByte();
+            String type = input.readUTF();
+            String targetKey = input.readUTF();
+            String targetToken = input.readUTF();
+            Record record = new Record(id, priority, type.isEmpty() ? null : type, targetKey.isEmpty() ? null : targetKey, targetToken.isEmpty() ? null : targetToken);
+            record.mHeaderSize = bytes.length - inputStream.available();
+            return record;
+        }
+    }
+}
@@ -21,7 +21,11 @@ import androidx.annotation.VisibleForTesting;
 import com.microsoft.appcenter.utils.AppCenterLog;
 
 import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static com.microsoft.appcenter.utils.AppCenterLog.LOG_TAG;
 
@@ -40,6 +44,24 @@ public class DatabaseManager implements Closeable {
      */
     public static final String[] SELECT_PRIMARY_KEY = {PRIMARY_KEY};
 
+    /**
+     * Page size of new databases, in bytes.
+     */
+    @VisibleForTesting
+    static final int PAGE_SIZE = 4096;
+
+    /**
+     * Value of the auto_vacuum pragma when free pages are released by incremental_vacuum.
+     */
+    @VisibleForTesting
+    static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Maximum number of free pages released by one maintenance.
+     */
+    @VisibleForTesting
+    static final int MAX_VACUUM_PAGES = 1024;
+
     /**
      * Application context instance.
      */
@@ -70,6 +92,16 @@ public class DatabaseManager implements Closeable {
      */
     private SQLiteOpenHelper mSQLiteOpenHelper;
 
+    /**
+     * Eviction policy, if null the oldest row with the lowest priority is evicted one at a time.
+     */
+    private EvictionPolicy mEvictionPolicy;
+
+    /**
+     * True once the auto vacuum mode of the database was checked by {@link #performMaintenance()}.
+     */
+    private boolean mAutoVacuumChecked;
+
     /**
      * Initializes the table in the database.
      *
@@ -89,6 +121,11 @@ public class DatabaseManager implements Closeable {
         mListener = listener;
         mSQLiteOpenHelper = new SQLiteOpenHelper(context, database, null, version) {
 
+            @Override
+            public void onConfigure(SQLiteDatabase db) {
+                configure(db);
+            }
+
             @Override
             public void onCreate(SQLiteDatabase db) {
                 db.execSQL(sqlCreateCommand);
@@ -102,6 +139,20 @@ public class DatabaseManager implements Closeable {
         };
     }
 
+    /**
+     * Configures a database connection before it is created or upgraded.
+     *
+     * @param db The database.
+     */
+    @VisibleForTesting
+    static void configure(SQLiteDatabase db) {
+
+        /* Page size and auto vacuum mode only apply to a database without tables, they must be set before switching to WAL. */
+        db.execSQL("PRAGMA page_size = " + PAGE_SIZE);
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.enableWriteAheadLogging();
+    }
+
     /**
      * Converts a cursor to an entry.
      *
@@ -171,8 +222,9 @@ public class DatabaseManager implements Closeable {
     }
 
     /**
-     * Stores the entry to the table. If the table is full, the oldest logs are discarded until the
-     * new one can fit. If the log is larger than the max table size, database will be cleared and
+     * Stores the entry to the table. If the table is full, logs are discarded according to the
+     * {@link EvictionPolicy} (by default the oldest logs) until the new one can fit.
+     * If the log is larger than the max table size, database will be cleared and
      * the log is not inserted.
      *
      * @param values         The entry to be stored.
@@ -180,29 +232,31 @@ public class DatabaseManager implements Closeable {
      * @return If a log was inserted, the database identifier. Otherwise -1.
      */
     public long put(@NonNull ContentValues values, @NonNull String priorityColumn) {
+        return put(values, priorityColumn, null);
+    }
+
+    /**
+     * Stores the entry to the table like {@link #put(ContentValues, String)}, letting a preparer
+     * complete it in the same transaction.
+     *
+     * @param values         The entry to be stored.
+     * @param priorityColumn When storage full and deleting data, use this column to determine which entries to delete first.
+     * @param preparer       The optional preparer, called again each time the insert is retried after eviction.
+     * @return If a log was inserted, the database identifier. Otherwise -1.
+     */
+    public long put(@NonNull ContentValues values, @NonNull String priorityColumn, @Nullable EntryPreparer preparer) {
         Long id = null;
-        Cursor cursor = null;
         try {
             while (id == null) {
                 try {
 
                     /* Insert data. */
-                    id = getDatabase().insertOrThrow(mDefaultTable, null, values);
+                    id = insert(getDatabase(), values, preparer);
                 } catch (SQLiteFullException e) {
 
-                    /* Delete the oldest log. */
-                    AppCenterLog.debug(LOG_TAG, "Storage is full, trying to delete the oldest log that has the lowest priority which is lower or equal priority than the new log");
-                    if (cursor == null) {
-                        String priority = values.getAsString(priorityColumn);
-                        SQLiteQueryBuilder queryBuilder = SQLiteUtils.newSQLiteQueryBuilder();
-                        queryBuilder.appendWhere(priorityColumn + " <= ?");
-                        cursor = getCursor(queryBuilder, SELECT_PRIMARY_KEY, new String[]{priority}, priorityColumn + " , " + PRIMARY_KEY);
-                    }
-                    if (cursor.moveToNext()) {
-                        long deletedId = cursor.getLong(0);
-                        delete(deletedId);
-                        AppCenterLog.debug(LOG_TAG, "Deleted log id=" + deletedId);
-                    } else {
+                    /* Delete the oldest logs. */
+                    AppCenterLog.debug(LOG_TAG, "Storage is full, trying to delete the oldest logs that have lower or equal priority than the new log");
+                    if (evict(values, priorityColumn) == 0) {
                         throw e;
                     }
                 }
@@ -211,13 +265,235 @@ public class DatabaseManager implements Closeable {
             id = -1L;
             AppCenterLog.error(LOG_TAG, String.format("Failed to insert values (%s) to database %s.", values.toString(), mDatabase), e);
         }
-        if (cursor != null) {
+        return id;
+    }
+
+    /**
+     * Inserts an entry in the default table, in a transaction with its preparer if any.
+     *
+     * @param database The database.
+     * @param values   The entry to be stored.
+     * @param preparer The optional preparer.
+     * @return The database identifier.
+     * @throws RuntimeException If an error occurs, the transaction is then rolled back.
+     */
+    private long insert(@NonNull SQLiteDatabase database, @NonNull ContentValues values, @Nullable EntryPreparer preparer) throws RuntimeException {
+        if (preparer == null) {
+            return database.insertOrThrow(mDefaultTable, null, values);
+        }
+        database.beginTransaction();
+        try {
+            long id = database.insertOrThrow(mDefaultTable, null, preparer.prepare(database, values));
+            database.setTransactionSuccessful();
+            return id;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes a chunk of rows with lower or equal priority than the entry to insert, in a single statement.
+     *
+     * @param values         The entry to be stored.
+     * @param priorityColumn The priority column.
+     * @return The number of deleted rows.
+     * @throws RuntimeException If an error occurs.
+     */
+    private int evict(@NonNull ContentValues values, @NonNull String priorityColumn) throws RuntimeException {
+        EvictionPolicy policy = mEvictionPolicy;
+        if (policy == null) {
+            policy = new EvictionPolicy(priorityColumn + " , " + PRIMARY_KEY, null, null, 1, 0);
+        }
+        String groupColumn = policy.getGroupColumn();
+        String sizeColumn = policy.getSizeColumn();
+        List<String> columns = new ArrayList<>();
+        columns.add(PRIMARY_KEY);
+        if (groupColumn != null) {
+            columns.add(groupColumn);
+        }
+        if (sizeColumn != null) {
+            columns.add(sizeColumn);
+        }
+
+        /* Select the rows to evict. */
+        long targetBytes = policy.getTargetBytes();
+        if (sizeColumn != null) {
+            targetBytes = Math.max(targetBytes, getStoredSize(values));
+        }
+        StringBuilder evictedIds = new StringBuilder();
+        Map<String, Long> evictedCounts = new HashMap<>();
+        SQLiteQueryBuilder queryBuilder = SQLiteUtils.newSQLiteQueryBuilder();
+        queryBuilder.appendWhere(priorityColumn + " <= ?");
+        Cursor cursor = getCursor(queryBuilder, columns.toArray(new String[0]), new String[]{values.getAsString(priorityColumn)}, policy.getSortOrder(), policy.getMaxRows());
+        try {
+            long freedBytes = 0;
+            while (cursor.moveToNext()) {
+                evictedIds.append(cursor.getLong(0)).append(',');
+                if (groupColumn != null) {
+                    String group = cursor.getString(1);
+                    Long count = evictedCounts.get(group);
+                    evictedCounts.put(group, count == null ? 1 : count + 1);
+                }
+                if (sizeColumn != null) {
+                    freedBytes += cursor.getLong(columns.size() - 1);
+                    if (freedBytes >= targetBytes) {
+                        break;
+                    }
+                }
+            }
+        } finally {
             try {
                 cursor.close();
             } catch (RuntimeException ignore) {
             }
         }
-        return id;
+        if (evictedIds.length() == 0) {
+            return 0;
+        }
+
+        /* Delete them all at once, the listener counts them in the same transaction. */
+        evictedIds.deleteCharAt(evictedIds.length() - 1);
+        SQLiteDatabase database = getDatabase();
+        int deletedCount;
+        database.beginTransaction();
+        try {
+            deletedCount = database.delete(mDefaultTable, PRIMARY_KEY + " IN (" + evictedIds + ")", null);
+            if (!evictedCounts.isEmpty()) {
+                mListener.onEvicted(database, evictedCounts);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        AppCenterLog.debug(LOG_TAG, "Deleted " + deletedCount + " logs, ids=" + evictedIds);
+        return deletedCount;
+    }
+
+    /**
+     * Get the number of bytes the text and binary values of an entry take in the database.
+     * Text is counted by characters, which is exact for the ASCII content of most entries.
+     *
+     * @param values The entry to be stored.
+     * @return size in bytes.
+     */
+    private static long getStoredSize(@NonNull ContentValues values) {
+        long size = 0;
+        for (String key : values.keySet()) {
+            Object value = values.get(key);
+            if (value instanceof byte[]) {
+                size += ((byte[]) value).length;
+            } else if (value instanceof String) {
+                size += ((String) value).length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Set how rows are deleted when the database is full.
+     *
+     * @param evictionPolicy eviction policy, null to delete the oldest row with the lowest priority one at a time.
+     */
+    public void setEvictionPolicy(@Nullable EvictionPolicy evictionPolicy) {
+        mEvictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Runs statements in a single transaction, which is committed only if they all succeed.
+     *
+     * @param transaction The statements to run.
+     * @param <T>         The type of the result.
+     * @return The result of the statements, or null if the transaction failed and was rolled back.
+     */
+    @Nullable
+    public <T> T runInTransaction(@NonNull Transaction<T> transaction) {
+        try {
+            SQLiteDatabase database = getDatabase();
+            database.beginTransaction();
+            try {
+                T result = transaction.run(database);
+                database.setTransactionSuccessful();
+                return result;
+            } finally {
+                database.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to run transaction in database " + mDatabase, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the entries to the table in a single transaction. If the table is full, the transaction
+     * is rolled back and each entry is then stored on its own like in {@link #put(ContentValues, String)},
+     * as SQLite may have rolled back the entries inserted before the failure.
+     *
+     * @param valuesList     The entries to be stored.
+     * @param priorityColumn When storage full and deleting data, use this column to determine which entries to delete first.
+     * @return The database identifiers in the same order as {@code valuesList}, -1 for entries that were not inserted.
+     */
+    @NonNull
+    public long[] put(@NonNull List<ContentValues> valuesList, @NonNull String priorityColumn) {
+        return put(valuesList, priorityColumn, null);
+    }
+
+    /**
+     * Stores the entries to the table like {@link #put(List, String)}, letting a preparer
+     * complete each of them in the same transaction.
+     *
+     * @param valuesList     The entries to be stored.
+     * @param priorityColumn When storage full and deleting data, use this column to determine which entries to delete first.
+     * @param preparer       The optional preparer, called again for each entry stored on its own after the transaction is rolled back.
+     * @return The database identifiers in the same order as {@code valuesList}, -1 for entries that were not inserted.
+     */
+    @NonNull
+    public long[] put(@NonNull List<ContentValues> valuesList, @NonNull String priorityColumn, @Nullable EntryPreparer preparer) {
+        long[] ids = new long[valuesList.size()];
+        Arrays.fill(ids, -1L);
+        SQLiteDatabase database;
+        try {
+            database = getDatabase();
+            database.beginTransaction();
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to begin transaction in database " + mDatabase, e);
+            return ids;
+        }
+        boolean full = false;
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                ContentValues values = valuesList.get(i);
+                try {
+                    ids[i] = database.insertOrThrow(mDefaultTable, null, preparer == null ? values : preparer.prepare(database, values));
+                } catch (SQLiteFullException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+
+                    /* Only this statement is rolled back. */
+                    AppCenterLog.error(LOG_TAG, String.format("Failed to insert values (%s) to database %s.", values.toString(), mDatabase), e);
+                }
+            }
+            database.setTransactionSuccessful();
+        } catch (SQLiteFullException e) {
+            full = true;
+        } finally {
+            try {
+                database.endTransaction();
+            } catch (RuntimeException e) {
+
+                /* Nothing was committed. */
+                Arrays.fill(ids, -1L);
+                AppCenterLog.error(LOG_TAG, "Failed to commit transaction in database " + mDatabase, e);
+            }
+        }
+
+        /* Evicting needs its own statements, store entries one by one. */
+        if (full) {
+            AppCenterLog.debug(LOG_TAG, "Storage is full, storing " + ids.length + " entries one by one.");
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = put(valuesList.get(i), priorityColumn, preparer);
+            }
+        }
+        return ids;
     }
 
     /**
@@ -240,6 +516,64 @@ public class DatabaseManager implements Closeable {
         return delete(mDefaultTable, key, value);
     }
 
+    /**
+     * Deletes the entries matching a where clause.
+     *
+     * @param whereClause The WHERE clause without WHERE itself.
+     * @param whereArgs   The values for the WHERE clause placeholders.
+     * @return the number of rows affected.
+     */
+    public int deleteWhere(@NonNull String whereClause, @Nullable String[] whereArgs) {
+        return deleteWhere(mDefaultTable, whereClause, whereArgs);
+    }
+
+    /**
+     * Deletes the entries of a table matching a where clause.
+     *
+     * @param table       The table to perform the operation on.
+     * @param whereClause The WHERE clause without WHERE itself.
+     * @param whereArgs   The values for the WHERE clause placeholders.
+     * @return the number of rows affected.
+     */
+    public int deleteWhere(@NonNull String table, @NonNull String whereClause, @Nullable String[] whereArgs) {
+        try {
+            return getDatabase().delete(table, whereClause, whereArgs);
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, String.format("Failed to delete values that match condition=\"%s\" and values=\"%s\" from database %s.", whereClause, Arrays.toString(whereArgs), mDatabase), e);
+            return 0;
+        }
+    }
+
+    /**
+     * Updates the entries matching a where clause.
+     *
+     * @param values      The new values, a null value clears the column.
+     * @param whereClause The optional WHERE clause without WHERE itself, null updates all rows.
+     * @param whereArgs   The values for the WHERE clause placeholders.
+     * @return the number of rows affected.
+     */
+    public int update(@NonNull ContentValues values, @Nullable String whereClause, @Nullable String[] whereArgs) {
+        return update(mDefaultTable, values, whereClause, whereArgs);
+    }
+
+    /**
+     * Updates the entries of a table matching a where clause.
+     *
+     * @param table       The table to perform the operation on.
+     * @param values      The new values, a null value clears the column.
+     * @param whereClause The optional WHERE clause without WHERE itself, null updates all rows.
+     * @param whereArgs   The values for the WHERE clause placeholders.
+     * @return the number of rows affected.
+     */
+    public int update(@NonNull String table, @NonNull ContentValues values, @Nullable String whereClause, @Nullable String[] whereArgs) {
+        try {
+            return getDatabase().update(table, values, whereClause, whereArgs);
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, String.format("Failed to update values that match condition=\"%s\" and values=\"%s\" in database %s.", whereClause, Arrays.toString(whereArgs), mDatabase), e);
+            return 0;
+        }
+    }
+
     /**
      * Deletes the entries that matches key == value.
      *
@@ -311,6 +645,25 @@ public class DatabaseManager implements Closeable {
         return getCursor(mDefaultTable, queryBuilder, columns, selectionArgs, sortOrder);
     }
 
+    /**
+     * Gets a cursor for at most the given number of rows in the table, all rows where key matches value if specified.
+     *
+     * @param queryBuilder  The query builder that contains SQL query.
+     * @param columns       Columns to select, null for all.
+     * @param selectionArgs The array of values for selection.
+     * @param sortOrder     Sorting order (ORDER BY clause without ORDER BY itself).
+     * @param limit         Maximum number of rows to return.
+     * @return A cursor for the rows that matches the given criteria.
+     * @throws RuntimeException If an error occurs.
+     */
+    public Cursor getCursor(@Nullable SQLiteQueryBuilder queryBuilder, String[] columns, @Nullable String[] selectionArgs, @Nullable String sortOrder, @IntRange(from = 0) int limit) throws RuntimeException {
+        if (queryBuilder == null) {
+            queryBuilder = SQLiteUtils.newSQLiteQueryBuilder();
+        }
+        queryBuilder.setTables(mDefaultTable);
+        return queryBuilder.query(getDatabase(), columns, null, selectionArgs, null, null, sortOrder, String.valueOf(limit));
+    }
+
     /**
      * Gets a cursor for all rows in the table, all rows where key matches value if specified.
      *
@@ -322,7 +675,7 @@ public class DatabaseManager implements Closeable {
      * @return A cursor for all rows that matches the given criteria.
      * @throws RuntimeException If an error occurs.
      */
-    Cursor getCursor(@NonNull String table, @Nullable SQLiteQueryBuilder queryBuilder, String[] columns, @Nullable String[] selectionArgs, @Nullable String sortOrder) throws RuntimeException {
+    public Cursor getCursor(@NonNull String table, @Nullable SQLiteQueryBuilder queryBuilder, String[] columns, @Nullable String[] selectionArgs, @Nullable String sortOrder) throws RuntimeException {
         if (queryBuilder == null) {
             queryBuilder = SQLiteUtils.newSQLiteQueryBuilder();
         }
@@ -418,6 +771,48 @@ public class DatabaseManager implements Closeable {
         }
     }
 
+    /**
+     * Releases free pages and checkpoints the write-ahead log, meant to be called while the database is idle.
+     * A database created before incremental auto vacuum was enabled is converted once with a full VACUUM.
+     */
+    public void performMaintenance() {
+        try {
+            SQLiteDatabase db = getDatabase();
+            if (!mAutoVacuumChecked) {
+                mAutoVacuumChecked = true;
+                if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+                    AppCenterLog.info(LOG_TAG, "Enabling incremental auto vacuum of database " + mDatabase + ".");
+                    db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                    db.execSQL("VACUUM");
+                }
+            }
+            long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            if (freePages > 0) {
+
+                /* Each step of the statement releases one page, so the cursor must be read to the end. */
+                Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + MAX_VACUUM_PAGES + ")", null);
+                try {
+                    while (cursor.moveToNext()) {
+                        /* Nothing to read. */
+                    }
+                } finally {
+                    cursor.close();
+                }
+                AppCenterLog.debug(LOG_TAG, "Released up to " + Math.min(freePages, MAX_VACUUM_PAGES) + " free pages of database " + mDatabase + ".");
+            }
+
+            /* TRUNCATE falls back to a passive checkpoint on SQLite versions older than 3.8.8. */
+            Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to perform maintenance of database " + mDatabase + ".", e);
+        }
+    }
+
     /**
      * Database listener.
      */
@@ -441,5 +836,47 @@ public class DatabaseManager implements Closeable {
          * @param newVersion new version of the schema.
          */
         void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+
+        /**
+         * Called in the transaction deleting rows evicted when the database is full,
+         * so that they can be counted with the data.
+         *
+         * @param db            The database.
+         * @param evictedCounts The number of evicted rows, by value of the group column of the eviction policy.
+         */
+        void onEvicted(SQLiteDatabase db, @NonNull Map<String, Long> evictedCounts);
+    }
+
+    /**
+     * Completes entries in the transaction inserting them, for example to insert the rows they reference.
+     */
+    public interface EntryPreparer {
+
+        /**
+         * Prepares an entry before it is inserted. This is called again if the transaction is rolled back
+         * and the insert retried, so the entry itself must not be modified.
+         *
+         * @param db     The database, in the transaction inserting the entry.
+         * @param values The entry to be stored.
+         * @return The values to insert.
+         */
+        @NonNull
+        ContentValues prepare(SQLiteDatabase db, @NonNull ContentValues values);
+    }
+
+    /**
+     * Statements run by {@link #runInTransaction(Transaction)}.
+     *
+     * @param <T> The type of the result.
+     */
+    public interface Transaction<T> {
+
+        /**
+         * Runs the statements, throwing an exception rolls the transaction back.
+         *
+         * @param db The database.
+         * @return The result.
+         */
+        T run(SQLiteDatabase db);
     }
 }
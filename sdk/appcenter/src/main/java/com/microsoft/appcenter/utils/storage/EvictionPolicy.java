@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.utils.storage;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Defines which rows {@link DatabaseManager} deletes when the database is full, and how many
+ * rows are deleted at once.
+ * <p>
+ * Rows are evicted in chunks: rows are taken in {@link #getSortOrder()} until either
+ * {@link #getMaxRows()} rows are selected or the selected rows are at least
+ * {@link #getTargetBytes()} large, then deleted in a single statement.
+ */
+public class EvictionPolicy {
+
+    /**
+     * Order in which rows are evicted.
+     */
+    private final String mSortOrder;
+
+    /**
+     * Column used to count evicted rows per group.
+     */
+    private final String mGroupColumn;
+
+    /**
+     * Column or expression computing the number of bytes a row takes in the database.
+     */
+    private final String mSizeColumn;
+
+    /**
+     * Maximum number of rows deleted at once.
+     */
+    private final int mMaxRows;
+
+    /**
+     * Number of bytes to free at once.
+     */
+    private final long mTargetBytes;
+
+    /**
+     * Init.
+     *
+     * @param sortOrder   order in which rows are evicted (ORDER BY clause without ORDER BY itself).
+     * @param groupColumn column used to count evicted rows per group, null to not count per group.
+     * @param sizeColumn  column or expression computing the number of bytes a row takes in the database, null to evict chunks of {@code maxRows} rows.
+     * @param maxRows     maximum number of rows deleted at once.
+     * @param targetBytes number of bytes to free at once, at least the size of the row being inserted is freed.
+     */
+    public EvictionPolicy(@NonNull String sortOrder, @Nullable String groupColumn, @Nullable String sizeColumn, @IntRange(from = 1) int maxRows, @IntRange(from = 0) long targetBytes) {
+        mSortOrder = sortOrder;
+        mGroupColumn = groupColumn;
+        mSizeColumn = sizeColumn;
+        mMaxRows = maxRows;
+        mTargetBytes = targetBytes;
+    }
+
+    /**
+     * Get the order in which rows are evicted.
+     *
+     * @return ORDER BY clause without ORDER BY itself.
+     */
+    @NonNull
+    public String getSortOrder() {
+        return mSortOrder;
+    }
+
+    /**
+     * Get the column used to count evicted rows per group.
+     *
+     * @return column name or null.
+     */
+    @Nullable
+    public String getGroupColumn() {
+        return mGroupColumn;
+    }
+
+    /**
+     * Get the column or expression computing the number of bytes a row takes in the database.
+     *
+     * @return column name, expression or null.
+     */
+    @Nullable
+    public String getSizeColumn() {
+        return mSizeColumn;
+    }
+
+    /**
+     * Get the maximum number of rows deleted at once.
+     *
+     * @return maximum number of rows.
+     */
+    public int getMaxRows() {
+        return mMaxRows;
+    }
+
+    /**
+     * Get the number of bytes to free at once.
+     *
+     * @return number of bytes.
+     */
+    public long getTargetBytes() {
+        return mTargetBytes;
+    }
+}
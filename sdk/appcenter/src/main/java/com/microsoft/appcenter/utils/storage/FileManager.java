@@ -9,6 +9,7 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import android.text.TextUtils;
 
 import com.microsoft.appcenter.AppCenter;
@@ -19,16 +20,37 @@ import java.io.BufferedWriter;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * File manager for internal/external storage access
  */
 public class FileManager {
 
+    /**
+     * Size of the buffer used to stream file contents.
+     */
+    @VisibleForTesting
+    static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Charset used by {@link #readUtf8(File, boolean)} and {@link #writeUtf8(File, CharSequence)}.
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     /**
      * Application context instance.
      */
@@ -115,6 +137,117 @@ public class FileManager {
         return null;
     }
 
+    /**
+     * Read a UTF-8 file as is, without the line by line processing of {@link #read(File)}.
+     * The file is decoded directly into the returned string storage, through either a small
+     * fixed size buffer or a read only memory mapping of the file, so the heap never holds
+     * another copy of the contents.
+     *
+     * @param file         The file to read from.
+     * @param memoryMapped true to map the file in memory instead of reading it through a buffer.
+     * @return The contents of the file.
+     * @throws IOException If an I/O error occurs.
+     */
+    @NonNull
+    public static String readUtf8(@NonNull File file, boolean memoryMapped) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+
+        //noinspection TryFinallyCanBeTryWithResources
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            if (size == 0) {
+                return "";
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to be read in memory: " + file.getAbsolutePath());
+            }
+
+            /* UTF-8 never decodes to more characters than bytes. */
+            CharBuffer contents = CharBuffer.allocate((int) size);
+            CharsetDecoder decoder = UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            if (memoryMapped) {
+                checkResult(decoder.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), contents, true));
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, STREAM_BUFFER_SIZE));
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    checkResult(decoder.decode(buffer, contents, false));
+
+                    /* Keep the bytes of an incomplete character for the next read. */
+                    buffer.compact();
+                    if (!buffer.hasRemaining()) {
+                        throw new IOException("Cannot decode file " + file.getAbsolutePath());
+                    }
+                }
+                buffer.flip();
+                checkResult(decoder.decode(buffer, contents, true));
+            }
+            checkResult(decoder.flush(contents));
+            contents.flip();
+            return contents.toString();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Write contents to a file in UTF-8, encoding them through a small fixed size buffer
+     * instead of converting the whole contents to bytes first.
+     *
+     * @param file     The file instance.
+     * @param contents The contents to be written to the file.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void writeUtf8(@NonNull File file, @NonNull CharSequence contents) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+
+        //noinspection TryFinallyCanBeTryWithResources
+        try {
+            FileChannel channel = stream.getChannel();
+            CharsetEncoder encoder = UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer input = CharBuffer.wrap(contents);
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(STREAM_BUFFER_SIZE, Math.max(16, contents.length() * 3L)));
+            CoderResult result;
+            do {
+                result = encoder.encode(input, buffer, true);
+                checkResult(result);
+                drain(channel, buffer);
+            } while (result.isOverflow());
+            do {
+                result = encoder.flush(buffer);
+                checkResult(result);
+                drain(channel, buffer);
+            } while (result.isOverflow());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Throw if a charset coder reported an error.
+     */
+    private static void checkResult(CoderResult result) throws CharacterCodingException {
+        if (result.isError()) {
+            result.throwException();
+        }
+    }
+
+    /**
+     * Write the buffer contents to the channel and clear the buffer.
+     */
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
     /**
      * Write contents to a file.
      *
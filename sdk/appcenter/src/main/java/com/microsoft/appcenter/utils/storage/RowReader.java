@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.utils.storage;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.microsoft.appcenter.utils.AppCenterLog;
+
+import java.io.Closeable;
+
+import static com.microsoft.appcenter.AppCenter.LOG_TAG;
+
+/**
+ * Reads typed values from the rows of a cursor without building {@link ContentValues} for each row.
+ * <p>
+ * Column indexes are resolved once per cursor with {@link #getColumnIndex(String)}, then each row
+ * is read by index. A column missing from the query is read as null.
+ */
+public class RowReader implements Closeable {
+
+    /**
+     * Cursor to read.
+     */
+    private final Cursor mCursor;
+
+    /**
+     * Init.
+     *
+     * @param cursor cursor to read, closed with this reader.
+     */
+    public RowReader(@NonNull Cursor cursor) {
+        mCursor = cursor;
+    }
+
+    /**
+     * Get the index of a column.
+     *
+     * @param column column name.
+     * @return column index, -1 if the column is not part of the query.
+     */
+    public int getColumnIndex(@NonNull String column) {
+        return mCursor.getColumnIndex(column);
+    }
+
+    /**
+     * Move to the next row.
+     *
+     * @return false if there are no more rows or if the cursor failed.
+     */
+    public boolean moveToNext() {
+        try {
+            return mCursor.moveToNext();
+        } catch (RuntimeException e) {
+            AppCenterLog.error(LOG_TAG, "Failed to move to the next row: ", e);
+            return false;
+        }
+    }
+
+    /**
+     * Check if a column of the current row is null.
+     *
+     * @param columnIndex column index.
+     * @return true if the value is null or the column is missing.
+     */
+    public boolean isNull(int columnIndex) {
+        return columnIndex < 0 || mCursor.isNull(columnIndex);
+    }
+
+    /**
+     * Read an integer column of the current row.
+     *
+     * @param columnIndex  column index.
+     * @param defaultValue value returned for null.
+     * @return column value.
+     */
+    public int getInt(int columnIndex, int defaultValue) {
+        return isNull(columnIndex) ? defaultValue : mCursor.getInt(columnIndex);
+    }
+
+    /**
+     * Read an integer column of the current row as a long.
+     *
+     * @param columnIndex  column index.
+     * @param defaultValue value returned for null.
+     * @return column value.
+     */
+    public long getLong(int columnIndex, long defaultValue) {
+        return isNull(columnIndex) ? defaultValue : mCursor.getLong(columnIndex);
+    }
+
+    /**
+     * Read a text column of the current row.
+     *
+     * @param columnIndex column index.
+     * @return column value, null if null.
+     */
+    @Nullable
+    public String getString(int columnIndex) {
+        return isNull(columnIndex) ? null : mCursor.getString(columnIndex);
+    }
+
+    /**
+     * Read a blob column of the current row.
+     *
+     * @param columnIndex column index.
+     * @return column value, null if null.
+     */
+    @Nullable
+    public byte[] getBlob(int columnIndex) {
+        return isNull(columnIndex) ? null : mCursor.getBlob(columnIndex);
+    }
+
+    /**
+     * Close the cursor, ignoring errors.
+     */
+    @Override
+    public void close() {
+        try {
+            mCursor.close();
+        } catch (RuntimeException ignore) {
+        }
+    }
+}
@@ -5,15 +5,30 @@
 
 package com.microsoft.appcenter;
 
+import android.content.Context;
+import android.os.Handler;
+
+import com.microsoft.appcenter.channel.DefaultChannel;
+import com.microsoft.appcenter.http.HttpClient;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+import com.microsoft.appcenter.persistence.PersistenceStats;
+import com.microsoft.appcenter.utils.AppCenterLog;
 import com.microsoft.appcenter.utils.async.AppCenterFuture;
 
 import org.junit.Test;
 
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.verifyNew;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 import static org.powermock.api.mockito.PowerMockito.when;
 
 public class AppCenterStorageTest extends AbstractAppCenterTest {
@@ -106,4 +121,49 @@ public class AppCenterStorageTest extends AbstractAppCenterTest {
         /* And result returned to developer. */
         assertTrue(future.get());
     }
+
+    @Test
+    public void getStorageStats() {
+
+        /* Not available before start. */
+        assertNull(AppCenter.getStorageStats().get());
+        verify(mChannel, never()).getStorageStats();
+
+        /* Read from the channel after start. */
+        PersistenceStats stats = mock(PersistenceStats.class);
+        when(mChannel.getStorageStats()).thenReturn(stats);
+        AppCenter.start(mApplication, DUMMY_APP_SECRET, DummyService.class);
+        assertSame(stats, AppCenter.getStorageStats().get());
+    }
+
+    @Test
+    public void configureLogBufferSize() throws Exception {
+
+        /* Invalid value is ignored. */
+        AppCenter.setLogBufferSize(-1);
+
+        /* Configure before start. */
+        AppCenter.setLogBufferSize(100);
+        AppCenter.start(mApplication, DUMMY_APP_SECRET, DummyService.class);
+        verifyNew(DefaultChannel.class).withArguments(any(Context.class), eq(DUMMY_APP_SECRET), any(LogSerializer.class), any(HttpClient.class), any(Handler.class), eq(100), eq(false));
+
+        /* Cannot change after start. */
+        AppCenter.setLogBufferSize(0);
+        verifyStatic();
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), eq("setLogBufferSize may not be called after App Center has been configured."));
+    }
+
+    @Test
+    public void configureSegmentedFileStorage() throws Exception {
+
+        /* Configure before start. */
+        AppCenter.setSegmentedFileStorageEnabled(true);
+        AppCenter.start(mApplication, DUMMY_APP_SECRET, DummyService.class);
+        verifyNew(DefaultChannel.class).withArguments(any(Context.class), eq(DUMMY_APP_SECRET), any(LogSerializer.class), any(HttpClient.class), any(Handler.class), eq(0), eq(true));
+
+        /* Cannot change after start. */
+        AppCenter.setSegmentedFileStorageEnabled(false);
+        verifyStatic();
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), eq("setSegmentedFileStorageEnabled may not be called after App Center has been configured."));
+    }
 }
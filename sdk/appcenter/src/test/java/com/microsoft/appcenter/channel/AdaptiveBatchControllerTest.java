@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import org.junit.Test;
+
+import static com.microsoft.appcenter.channel.AdaptiveBatchController.FAST_ROUND_TRIP_TIME;
+import static com.microsoft.appcenter.channel.AdaptiveBatchController.MAX_LOGS_PER_BATCH_FACTOR;
+import static com.microsoft.appcenter.channel.AdaptiveBatchController.SLOW_ROUND_TRIP_TIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveBatchControllerTest {
+
+    @Test
+    public void startsWithConfiguredValues() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(50, 3);
+        assertEquals(50, controller.getMaxLogsPerBatch());
+        assertEquals(3, controller.getMaxParallelBatches());
+        assertEquals(0f, controller.getFailureRate(), 0);
+        assertEquals(0, controller.getLastRoundTripTime());
+    }
+
+    @Test
+    public void invalidConfiguredValues() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(0, 0);
+        assertEquals(1, controller.getMaxLogsPerBatch());
+        assertEquals(1, controller.getMaxParallelBatches());
+    }
+
+    @Test
+    public void fastFullBatchIncreasesUpToBound() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(50, 3);
+        controller.onBatchSucceeded(50, FAST_ROUND_TRIP_TIME);
+        assertEquals(75, controller.getMaxLogsPerBatch());
+        assertEquals(3, controller.getMaxParallelBatches());
+        assertEquals(FAST_ROUND_TRIP_TIME, controller.getLastRoundTripTime());
+        for (int i = 0; i < 100; i++) {
+            controller.onBatchSucceeded(controller.getMaxLogsPerBatch(), 0);
+        }
+        assertEquals(50 * MAX_LOGS_PER_BATCH_FACTOR, controller.getMaxLogsPerBatch());
+        assertEquals(3, controller.getMaxParallelBatches());
+    }
+
+    @Test
+    public void partialOrMediumBatchKeepsLimits() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(50, 3);
+        controller.onBatchSucceeded(10, 0);
+        assertEquals(50, controller.getMaxLogsPerBatch());
+        controller.onBatchSucceeded(50, FAST_ROUND_TRIP_TIME + 1);
+        assertEquals(50, controller.getMaxLogsPerBatch());
+        assertEquals(3, controller.getMaxParallelBatches());
+    }
+
+    @Test
+    public void slowBatchDecreases() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(50, 3);
+        controller.onBatchSucceeded(50, SLOW_ROUND_TRIP_TIME);
+        assertEquals(25, controller.getMaxLogsPerBatch());
+        assertEquals(1, controller.getMaxParallelBatches());
+        assertEquals(0f, controller.getFailureRate(), 0);
+    }
+
+    @Test
+    public void failureDecreasesAndLimitsParallelismRecovery() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(4, 4);
+        controller.onBatchFailed(100);
+        assertEquals(2, controller.getMaxLogsPerBatch());
+        assertEquals(2, controller.getMaxParallelBatches());
+        assertEquals(100, controller.getLastRoundTripTime());
+        assertTrue(controller.getFailureRate() > 0.1f);
+        for (int i = 0; i < 10; i++) {
+            controller.onBatchFailed(0);
+        }
+        assertEquals(1, controller.getMaxLogsPerBatch());
+        assertEquals(1, controller.getMaxParallelBatches());
+
+        /* Batch size recovers right away but parallelism waits for the failure rate to decrease. */
+        controller.onBatchSucceeded(1, 0);
+        assertEquals(3, controller.getMaxLogsPerBatch());
+        assertEquals(1, controller.getMaxParallelBatches());
+        for (int i = 0; i < 20; i++) {
+            controller.onBatchSucceeded(controller.getMaxLogsPerBatch(), 0);
+        }
+        assertTrue(controller.getFailureRate() <= 0.1f);
+        assertEquals(4, controller.getMaxParallelBatches());
+    }
+
+    @Test
+    public void reset() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(50, 3);
+        controller.onBatchFailed(SLOW_ROUND_TRIP_TIME);
+        controller.reset();
+        assertEquals(50, controller.getMaxLogsPerBatch());
+        assertEquals(3, controller.getMaxParallelBatches());
+        assertEquals(0f, controller.getFailureRate(), 0);
+        assertEquals(0, controller.getLastRoundTripTime());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.channel;
+
+import org.junit.Test;
+
+import static com.microsoft.appcenter.channel.CircuitBreaker.CLOSED;
+import static com.microsoft.appcenter.channel.CircuitBreaker.HALF_OPEN;
+import static com.microsoft.appcenter.channel.CircuitBreaker.INITIAL_BACKOFF;
+import static com.microsoft.appcenter.channel.CircuitBreaker.MAX_BACKOFF;
+import static com.microsoft.appcenter.channel.CircuitBreaker.OPEN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void closedByDefault() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        assertEquals(CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest(0));
+        assertEquals(0, circuitBreaker.getRetryDelay(0));
+        circuitBreaker.onRequestSent();
+        assertEquals(CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void openThenProbe() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        assertEquals(INITIAL_BACKOFF, circuitBreaker.onFailure(1000));
+        assertEquals(OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest(1000));
+        assertEquals(INITIAL_BACKOFF - 1, circuitBreaker.getRetryDelay(1001));
+
+        /* Batches that were in flight before opening do not extend the backoff. */
+        assertEquals(INITIAL_BACKOFF - 10, circuitBreaker.onFailure(1010));
+
+        /* Only one probe is allowed after the backoff. */
+        assertTrue(circuitBreaker.allowRequest(1000 + INITIAL_BACKOFF));
+        circuitBreaker.onRequestSent();
+        assertEquals(HALF_OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest(1000 + INITIAL_BACKOFF));
+        assertEquals(0, circuitBreaker.getRetryDelay(1000 + INITIAL_BACKOFF));
+
+        /* Probe success closes the circuit. */
+        circuitBreaker.onSuccess();
+        assertEquals(CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest(0));
+        assertEquals(INITIAL_BACKOFF, circuitBreaker.onFailure(0));
+    }
+
+    @Test
+    public void probeFailureDoublesBackoffUpToMaximum() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        long now = 0;
+        long expectedBackoff = INITIAL_BACKOFF;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(expectedBackoff, circuitBreaker.onFailure(now));
+            now += expectedBackoff;
+            assertTrue(circuitBreaker.allowRequest(now));
+            circuitBreaker.onRequestSent();
+            expectedBackoff = Math.min(MAX_BACKOFF, expectedBackoff * 2);
+        }
+        assertEquals(MAX_BACKOFF, circuitBreaker.onFailure(now));
+    }
+
+    @Test
+    public void reset() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.onFailure(0);
+        circuitBreaker.onRequestSent();
+        circuitBreaker.onFailure(0);
+        circuitBreaker.reset();
+        assertEquals(CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest(0));
+        assertEquals(INITIAL_BACKOFF, circuitBreaker.onFailure(0));
+    }
+}
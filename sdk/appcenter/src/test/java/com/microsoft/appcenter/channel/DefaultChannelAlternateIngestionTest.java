@@ -17,12 +17,15 @@ import com.microsoft.appcenter.persistence.Persistence;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.net.SocketException;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
@@ -79,7 +82,7 @@ public class DefaultChannelAlternateIngestionTest extends AbstractDefaultChannel
         when(defaultIngestion.isEnabled()).thenReturn(true);
         Ingestion alternateIngestion = mock(Ingestion.class);
         when(alternateIngestion.isEnabled()).thenReturn(true);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, defaultIngestion, mAppCenterHandler);
         channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, alternateIngestion, null);
 
@@ -118,7 +121,7 @@ public class DefaultChannelAlternateIngestionTest extends AbstractDefaultChannel
 
         /* Simulate we have 1 pending log in storage. */
         when(mockPersistence.countLogs(anyString())).thenReturn(1);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
 
         /* Create channel and groups. */
         DefaultChannel channel = new DefaultChannel(mock(Context.class), null, mockPersistence, defaultIngestion, mAppCenterHandler);
@@ -164,7 +167,7 @@ public class DefaultChannelAlternateIngestionTest extends AbstractDefaultChannel
         when(defaultIngestion.isEnabled()).thenReturn(true);
         Ingestion alternateIngestion = mock(Ingestion.class);
         when(alternateIngestion.isEnabled()).thenReturn(true);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
 
         /* Simulate we have 1 pending log in storage. */
         when(mockPersistence.countLogs(anyString())).thenReturn(1);
@@ -193,7 +196,7 @@ public class DefaultChannelAlternateIngestionTest extends AbstractDefaultChannel
         when(defaultIngestion.isEnabled()).thenReturn(true);
         Ingestion alternateIngestion = mock(Ingestion.class);
         when(alternateIngestion.isEnabled()).thenReturn(true);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
 
         /* Simulate we have 1 pending log in storage for App Center. */
         when(mockPersistence.countLogs(appCenterGroup)).thenReturn(1);
@@ -218,4 +221,40 @@ public class DefaultChannelAlternateIngestionTest extends AbstractDefaultChannel
         verify(defaultIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
         verify(alternateIngestion, never()).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
     }
+
+    @Test
+    public void recoverableFailureOnAlternateIngestionDoesNotStopOtherGroups() throws IOException {
+
+        /* Set up channel with a failing alternate ingestion. */
+        String appCenterGroup = "test_group1";
+        String oneCollectorGroup = "test_group2";
+        Persistence mockPersistence = mock(Persistence.class);
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
+        Ingestion defaultIngestion = mock(Ingestion.class);
+        when(defaultIngestion.isEnabled()).thenReturn(true);
+        when(defaultIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+        Ingestion alternateIngestion = mock(Ingestion.class);
+        when(alternateIngestion.isEnabled()).thenReturn(true);
+        when(alternateIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new SocketException()));
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, defaultIngestion, mAppCenterHandler);
+        channel.addGroup(appCenterGroup, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.addGroup(oneCollectorGroup, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, alternateIngestion, null);
+
+        /* Fail the alternate ingestion. */
+        channel.enqueue(mock(Log.class), oneCollectorGroup, Flags.DEFAULTS);
+        verify(alternateIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        assertEquals(CircuitBreaker.OPEN, channel.getGroupState(oneCollectorGroup).mCircuitBreaker.getState());
+        assertEquals(1, channel.getGroupState(oneCollectorGroup).mPendingLogCount);
+
+        /* The other group still sends logs without any ingestion being closed. */
+        channel.enqueue(mock(Log.class), appCenterGroup, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), appCenterGroup, Flags.DEFAULTS);
+        verify(defaultIngestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(mockPersistence, times(2)).deleteLogs(eq(appCenterGroup), anyString());
+        assertTrue(channel.isEnabled());
+        verify(defaultIngestion, never()).close();
+        verify(alternateIngestion, never()).close();
+        verify(mockPersistence, never()).clearPendingLogState();
+        verify(mockPersistence).clearPendingLogState(eq(oneCollectorGroup), anyString());
+    }
 }
@@ -14,11 +14,19 @@ import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.persistence.Persistence;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.util.List;
 import java.util.UUID;
 
+import static com.microsoft.appcenter.Constants.DEFAULT_MAX_BYTES_PER_BATCH;
+import static com.microsoft.appcenter.channel.DefaultChannel.CLEAR_BATCH_SIZE;
+import static com.microsoft.appcenter.channel.DefaultChannel.EXPIRED_LOGS_PURGE_INTERVAL;
+import static com.microsoft.appcenter.channel.DefaultChannel.STORAGE_MAINTENANCE_IDLE_DELAY;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
@@ -27,10 +35,12 @@ import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -96,7 +106,7 @@ public class DefaultChannelOtherOperationsTest extends AbstractDefaultChannelTes
         AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
         when(mockIngestion.isEnabled()).thenReturn(true);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), Matchers.<List<Log>>any()))
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), Matchers.<List<Log>>any()))
                 .then(getGetLogsAnswer(1));
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
         channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
@@ -214,4 +224,99 @@ public class DefaultChannelOtherOperationsTest extends AbstractDefaultChannelTes
         assertTrue(channel.setMaxStorageSize(20480));
         assertFalse(channel.setMaxStorageSize(2));
     }
+
+    @Test
+    public void deleteExpiredLogsWithoutGroupListener() {
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.countLogs(TEST_GROUP)).thenReturn(3);
+        when(persistence.deleteExpiredLogs(eq(TEST_GROUP), anyLong(), anyInt(), anyListOf(Log.class))).thenReturn(2);
+        when(System.currentTimeMillis()).thenReturn(100000L);
+        long timeToLive = 2 * EXPIRED_LOGS_PURGE_INTERVAL;
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, mock(AppCenterIngestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, DEFAULT_MAX_BYTES_PER_BATCH, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, timeToLive, null, null);
+
+        /* Expired logs are deleted in bulk and removed from pending count. */
+        verify(persistence).deleteExpiredLogs(eq(TEST_GROUP), eq(100000L - timeToLive), eq(CLEAR_BATCH_SIZE), isNull(List.class));
+        assertEquals(1, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+
+        /* Not again until the purge interval elapsed. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(persistence).deleteExpiredLogs(anyString(), anyLong(), anyInt(), anyListOf(Log.class));
+        when(System.currentTimeMillis()).thenReturn(100000L + EXPIRED_LOGS_PURGE_INTERVAL);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(persistence).deleteExpiredLogs(eq(TEST_GROUP), eq(100000L + EXPIRED_LOGS_PURGE_INTERVAL - timeToLive), eq(CLEAR_BATCH_SIZE), isNull(List.class));
+    }
+
+    @Test
+    public void deleteExpiredLogsWithGroupListener() {
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.countLogs(TEST_GROUP)).thenReturn(CLEAR_BATCH_SIZE + 1);
+        when(persistence.deleteExpiredLogs(eq(TEST_GROUP), anyLong(), anyInt(), anyListOf(Log.class))).then(getDeleteExpiredLogsAnswer(CLEAR_BATCH_SIZE)).then(getDeleteExpiredLogsAnswer(1));
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, mock(AppCenterIngestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, DEFAULT_MAX_BYTES_PER_BATCH, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, 1000L, null, listener);
+
+        /* Expired logs are reported by chunks until a chunk is not full. */
+        verify(persistence, times(2)).deleteExpiredLogs(eq(TEST_GROUP), eq(-1000L), eq(CLEAR_BATCH_SIZE), anyListOf(Log.class));
+        verify(listener, times(CLEAR_BATCH_SIZE + 1)).onBeforeSending(any(Log.class));
+        verify(listener, times(CLEAR_BATCH_SIZE + 1)).onFailure(any(Log.class), any(LogExpiredException.class));
+        assertEquals(0, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+    }
+
+    @Test
+    public void noTimeToLiveDoesNotDeleteLogs() {
+        Persistence persistence = mock(Persistence.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, mock(AppCenterIngestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(persistence, never()).deleteExpiredLogs(anyString(), anyLong(), anyInt(), anyListOf(Log.class));
+    }
+
+    @Test
+    public void storageMaintenanceAfterIdleDelay() {
+        Persistence persistence = mock(Persistence.class);
+        when(System.currentTimeMillis()).thenReturn(1000L);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, mock(AppCenterIngestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+
+        /* Storing logs alone does not schedule maintenance. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        verify(mAppCenterHandler, never()).postDelayed(any(Runnable.class), eq(STORAGE_MAINTENANCE_IDLE_DELAY));
+
+        /* Deleting logs schedules maintenance once. */
+        channel.clear(TEST_GROUP);
+        channel.clear(TEST_GROUP);
+        ArgumentCaptor<Runnable> runnable = ArgumentCaptor.forClass(Runnable.class);
+        verify(mAppCenterHandler).postDelayed(runnable.capture(), eq(STORAGE_MAINTENANCE_IDLE_DELAY));
+
+        /* Storing a log before the delay postpones maintenance. */
+        when(System.currentTimeMillis()).thenReturn(11000L);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        when(System.currentTimeMillis()).thenReturn(1000L + STORAGE_MAINTENANCE_IDLE_DELAY);
+        runnable.getValue().run();
+        verify(persistence, never()).performMaintenance();
+        verify(mAppCenterHandler).postDelayed(runnable.getValue(), 10000L);
+
+        /* Maintenance runs once storage is idle, and is scheduled again by the next deletion. */
+        when(System.currentTimeMillis()).thenReturn(11000L + STORAGE_MAINTENANCE_IDLE_DELAY);
+        runnable.getValue().run();
+        verify(persistence).performMaintenance();
+        channel.clear(TEST_GROUP);
+        verify(mAppCenterHandler, times(2)).postDelayed(runnable.getValue(), STORAGE_MAINTENANCE_IDLE_DELAY);
+    }
+
+    private static Answer<Integer> getDeleteExpiredLogsAnswer(final int size) {
+        return new Answer<Integer>() {
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Integer answer(InvocationOnMock invocation) {
+                List<Log> logs = (List<Log>) invocation.getArguments()[3];
+                for (int i = 0; i < size; i++) {
+                    logs.add(mock(Log.class));
+                }
+                return size;
+            }
+        };
+    }
 }
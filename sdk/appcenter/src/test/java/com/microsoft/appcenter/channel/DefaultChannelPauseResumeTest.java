@@ -26,6 +26,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyLong;
@@ -50,7 +51,7 @@ public class DefaultChannelPauseResumeTest extends AbstractDefaultChannelTest {
         AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer(50));
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(50));
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
         when(mockIngestion.isEnabled()).thenReturn(true);
 
@@ -148,8 +149,8 @@ public class DefaultChannelPauseResumeTest extends AbstractDefaultChannelTest {
         channel.pauseGroup(TEST_GROUP, targetToken);
 
         /* Mock the database to return logs now. */
-        when(persistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
-        when(persistence.countLogs(TEST_GROUP)).thenReturn(1);
+        when(persistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
+        when(persistence.countLogs(eq(TEST_GROUP), anyCollectionOf(String.class))).thenReturn(1);
 
         /* Enqueue a log. */
         Log log = mock(Log.class);
@@ -159,12 +160,12 @@ public class DefaultChannelPauseResumeTest extends AbstractDefaultChannelTest {
         /* Verify persisted but not incrementing and checking logs. */
         verify(persistence).putLog(log, TEST_GROUP, Flags.NORMAL);
         assertEquals(0, channel.getGroupState(TEST_GROUP).mPendingLogCount);
-        verify(persistence, never()).countLogs(TEST_GROUP);
+        verify(persistence, never()).countLogs(eq(TEST_GROUP), anyCollectionOf(String.class));
         verify(ingestion, never()).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
 
         /* Pausing a second time has no effect. */
         channel.pauseGroup(TEST_GROUP, targetToken);
-        verify(persistence, never()).countLogs(TEST_GROUP);
+        verify(persistence, never()).countLogs(eq(TEST_GROUP), anyCollectionOf(String.class));
 
         /* Enqueueing a log from another transmission target works. */
         Log otherLog = mock(Log.class);
@@ -215,8 +216,8 @@ public class DefaultChannelPauseResumeTest extends AbstractDefaultChannelTest {
         channel.pauseGroup(TEST_GROUP, targetToken);
 
         /* Mock the database to return logs now. */
-        when(persistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
-        when(persistence.countLogs(TEST_GROUP)).thenReturn(1);
+        when(persistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
+        when(persistence.countLogs(eq(TEST_GROUP), anyCollectionOf(String.class))).thenReturn(1);
 
         /* Enqueue a log. */
         Log log = mock(Log.class);
@@ -234,6 +235,7 @@ public class DefaultChannelPauseResumeTest extends AbstractDefaultChannelTest {
 
         /* Resume token, send the log now. */
         channel.resumeGroup(TEST_GROUP, targetToken);
+        verify(persistence).countLogs(TEST_GROUP, Collections.<String>emptySet());
         verify(ingestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
     }
 
@@ -282,7 +284,7 @@ public class DefaultChannelPauseResumeTest extends AbstractDefaultChannelTest {
 
         /* When we enqueue a log while being paused. */
         channel.pauseGroup(TEST_GROUP, null);
-        when(persistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
+        when(persistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
         when(persistence.countLogs(TEST_GROUP)).thenReturn(1);
         channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
 
@@ -326,7 +328,7 @@ public class DefaultChannelPauseResumeTest extends AbstractDefaultChannelTest {
 
         /* When we enqueue a log while being paused. */
         channel.pauseGroup(TEST_GROUP, null);
-        when(persistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
+        when(persistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
         when(persistence.countLogs(TEST_GROUP)).thenReturn(1);
         channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
 
@@ -18,6 +18,7 @@ import com.microsoft.appcenter.ingestion.Ingestion;
 import com.microsoft.appcenter.ingestion.models.Device;
 import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.ingestion.models.LogContainer;
+import com.microsoft.appcenter.persistence.BufferedPersistence;
 import com.microsoft.appcenter.persistence.Persistence;
 import com.microsoft.appcenter.utils.DeviceInfoHelper;
 import com.microsoft.appcenter.utils.storage.SharedPreferencesManager;
@@ -31,14 +32,18 @@ import org.mockito.stubbing.Answer;
 import java.io.IOException;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
+import static com.microsoft.appcenter.Constants.DEFAULT_MAX_BYTES_PER_BATCH;
 import static com.microsoft.appcenter.Flags.NORMAL;
 import static com.microsoft.appcenter.channel.DefaultChannel.START_TIMER_PREFIX;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyListOf;
@@ -81,7 +86,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
         when(mockIngestion.isEnabled()).thenReturn(true);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class)))
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class)))
                 .then(getGetLogsAnswer(50)).then(getGetLogsAnswer(1)).then(getGetLogsAnswer(2));
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class)))
                 .then(getSendAsyncAnswer());
@@ -167,12 +172,85 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         verify(mockPersistence).deleteLogs(eq(TEST_GROUP));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void rawBatchWithoutListener() {
+        Persistence mockPersistence = mock(Persistence.class);
+        AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
+        when(mockIngestion.isEnabled()).thenReturn(true);
+        when(mockPersistence.isRawLogsSupported()).thenReturn(true);
+        final String batchId = UUID.randomUUID().toString();
+        when(mockPersistence.getRawLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(String.class))).then(new Answer<String>() {
+
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                List<String> payloads = (List<String>) invocation.getArguments()[4];
+                payloads.add("{\"type\":\"mock\"}");
+                payloads.add("{\"type\":\"mock\"}");
+                return batchId;
+            }
+        }).thenReturn(null);
+        ArgumentCaptor<LogContainer> logContainer = ArgumentCaptor.forClass(LogContainer.class);
+        when(mockIngestion.sendAsync(anyString(), any(UUID.class), logContainer.capture(), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+
+        /* Reach the trigger count. */
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+
+        /* Stored payloads are sent without materializing logs. */
+        verify(mockPersistence, never()).getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class));
+        assertEquals(Arrays.asList("{\"type\":\"mock\"}", "{\"type\":\"mock\"}"), logContainer.getValue().getRawLogs());
+        verify(mockPersistence).deleteLogs(TEST_GROUP, batchId);
+        assertEquals(0, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void batchWithPayloadsWithListener() {
+        Persistence mockPersistence = mock(Persistence.class);
+        AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
+        when(mockIngestion.isEnabled()).thenReturn(true);
+        when(mockPersistence.isRawLogsSupported()).thenReturn(true);
+        final String batchId = UUID.randomUUID().toString();
+        when(mockPersistence.getLogsWithPayloads(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class), anyListOf(String.class))).then(new Answer<String>() {
+
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                List<Log> logs = (List<Log>) invocation.getArguments()[4];
+                List<String> payloads = (List<String>) invocation.getArguments()[5];
+                for (int i = 0; i < 2; i++) {
+                    logs.add(mock(Log.class));
+                    payloads.add("{\"type\":\"mock\"}");
+                }
+                return batchId;
+            }
+        }).thenReturn(null);
+        ArgumentCaptor<LogContainer> logContainer = ArgumentCaptor.forClass(LogContainer.class);
+        when(mockIngestion.sendAsync(anyString(), any(UUID.class), logContainer.capture(), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+        Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+
+        /* The listener needs the logs, the stored payloads are still sent as is. */
+        verify(mockPersistence, never()).getRawLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(String.class));
+        verify(mockPersistence, never()).getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class));
+        assertEquals(2, logContainer.getValue().getLogs().size());
+        assertEquals(Arrays.asList("{\"type\":\"mock\"}", "{\"type\":\"mock\"}"), logContainer.getValue().getRawLogs());
+        verify(mockListener, times(2)).onBeforeSending(any(Log.class));
+        verify(mockListener, times(2)).onSuccess(any(Log.class));
+        verify(mockPersistence).deleteLogs(TEST_GROUP, batchId);
+    }
+
     @Test
     public void lessLogsThanExpected() {
         Persistence mockPersistence = mock(Persistence.class);
         AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), Matchers.<ArrayList<Log>>any()))
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), Matchers.<ArrayList<Log>>any()))
                 .then(getGetLogsAnswer(40))
                 .then(getGetLogsAnswer(0));
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
@@ -209,7 +287,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(mockIngestion.isEnabled()).thenReturn(true);
 
         /* We make second request return less logs than expected to make sure counter is reset properly. */
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class)))
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class)))
                 .then(getGetLogsAnswer())
                 .then(getGetLogsAnswer(49))
                 .then(getGetLogsAnswer())
@@ -272,7 +350,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Persistence mockPersistence = mock(Persistence.class);
         AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
         when(mockPersistence.countLogs(any(String.class))).thenReturn(100);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer());
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer());
         final List<ServiceCallback> callbacks = new ArrayList<>();
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(new Answer<Object>() {
             public Object answer(InvocationOnMock invocation) {
@@ -324,15 +402,19 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Persistence mockPersistence = mock(Persistence.class);
         AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class)))
-                .then(getGetLogsAnswer(50))
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class)))
                 .then(getGetLogsAnswer(50))
-                .then(getGetLogsAnswer(20));
+                .then(getGetLogsAnswer(25))
+                .then(getGetLogsAnswer(45));
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new SocketException())).then(getSendAsyncAnswer());
         when(mockIngestion.isEnabled()).thenReturn(true);
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
         channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
 
+        /* Prepare to mock timer. */
+        ArgumentCaptor<Runnable> delayedRunnable = ArgumentCaptor.forClass(Runnable.class);
+        when(mAppCenterHandler.postDelayed(delayedRunnable.capture(), anyLong())).thenReturn(true);
+
         /* Enqueuing 50 events. */
         for (int i = 0; i < 50; i++) {
             channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
@@ -349,33 +431,33 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         /* Verify that we have not called deleteLogs on the Persistence. */
         verify(mockPersistence, never()).deleteLogs(any(String.class), any(String.class));
 
-        /* Verify that the Channel is disabled. */
-        assertFalse(channel.isEnabled());
-        verify(mockPersistence).clearPendingLogState();
+        /* Verify that the channel is still enabled, only the group waits before retrying. */
+        assertTrue(channel.isEnabled());
+        verify(mockPersistence).clearPendingLogState(eq(TEST_GROUP), anyString());
+        verify(mockPersistence, never()).clearPendingLogState();
         verify(mockPersistence, never()).deleteLogs(TEST_GROUP);
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(CircuitBreaker.INITIAL_BACKOFF));
+        assertEquals(50, channel.getGroupState(TEST_GROUP).mPendingLogCount);
 
-        /* Enqueuing 20 more events. */
+        /* Enqueuing 20 more events does not send anything while the circuit is open. */
         for (int i = 0; i < 20; i++) {
             channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
         }
+        verify(mockIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
 
         /* The counter keeps being increased. */
         assertEquals(70, channel.getGroupState(TEST_GROUP).mPendingLogCount);
 
-        /* Prepare to mock timer. */
-        ArgumentCaptor<Runnable> delayedRunnable = ArgumentCaptor.forClass(Runnable.class);
-        when(mAppCenterHandler.postDelayed(delayedRunnable.capture(), anyLong())).thenReturn(true);
-
-        /* Enable channel. */
-        channel.setEnabled(true);
-
-        /* Upon enabling, 1st batch of 50 is sent immediately, 20 logs are remaining. */
-        assertEquals(20, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+        /* When the backoff elapses, a probe batch is sent with the reduced batch size, 45 logs are remaining. */
+        when(System.currentTimeMillis()).thenReturn(CircuitBreaker.INITIAL_BACKOFF);
+        delayedRunnable.getValue().run();
+        verify(mockPersistence).getLogs(eq(TEST_GROUP), anyListOf(String.class), eq(25), anyLong(), anyListOf(Log.class));
+        assertEquals(45, channel.getGroupState(TEST_GROUP).mPendingLogCount);
 
         /* Wait for timer. */
         delayedRunnable.getValue().run();
 
-        /* The counter should be 0 after the second batch. */
+        /* The counter should be 0 after the last batch. */
         assertEquals(0, channel.getGroupState(TEST_GROUP).mPendingLogCount);
 
         /* Verify that we have called sendAsync on the ingestion 3 times total. */
@@ -384,7 +466,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         /* Verify that we have called deleteLogs on the Persistence (2 successful batches, the first call was a recoverable failure). */
         verify(mockPersistence, times(2)).deleteLogs(any(String.class), any(String.class));
 
-        /* Verify that we have called onBeforeSending in the listener. getLogs will return 50, 50 and 20. */
+        /* Verify that we have called onBeforeSending in the listener. getLogs will return 50, 25 and 45. */
         verify(mockListener, times(120)).onBeforeSending(any(Log.class));
 
         /* Intermediate failures never forwarded to listener, only final success */
@@ -400,7 +482,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
     public void analyticsFatal() throws Exception {
         Persistence mockPersistence = mock(Persistence.class);
         AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class)))
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class)))
                 .then(getGetLogsAnswer(50))
 
                 /* Second 50 logs will be used for clearing pending states. */
@@ -482,7 +564,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Persistence mockPersistence = mock(Persistence.class);
         Ingestion mockIngestion = mock(Ingestion.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer());
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer());
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
         when(mockIngestion.isEnabled()).thenReturn(true);
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
@@ -521,13 +603,17 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Ingestion mockIngestion = mock(Ingestion.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new SocketException())).then(getSendAsyncAnswer());
         when(mockIngestion.isEnabled()).thenReturn(true);
 
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
         channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
 
+        /* Prepare to mock timer. */
+        ArgumentCaptor<Runnable> delayedRunnable = ArgumentCaptor.forClass(Runnable.class);
+        when(mAppCenterHandler.postDelayed(delayedRunnable.capture(), anyLong())).thenReturn(true);
+
         /* Enqueuing n errors. */
         int logNumber = 5;
         for (int i = 0; i < logNumber; i++)
@@ -545,25 +631,30 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         /* Verify that we have called onBeforeSending in the listener. */
         verify(mockListener).onBeforeSending(any(Log.class));
 
-        /* Verify that we have not called the failure listener. It's a transient exception that will be retried later when the channel is re-enabled. */
+        /* Verify that we have not called the failure listener. It's a transient exception that will be retried later. */
         verify(mockListener, never()).onFailure(any(Log.class), any(Exception.class));
 
-        /* Verify that the Channel is disabled. */
-        assertFalse(channel.isEnabled());
-        verify(mockPersistence).clearPendingLogState();
+        /* Verify that the channel is still enabled and the failed log released. */
+        assertTrue(channel.isEnabled());
+        verify(mockPersistence).clearPendingLogState(eq(TEST_GROUP), anyString());
+        verify(mockPersistence, never()).clearPendingLogState();
         verify(mockPersistence, never()).deleteLogs(TEST_GROUP);
 
         /* Verify timer. */
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(CircuitBreaker.INITIAL_BACKOFF));
         verify(mAppCenterHandler, never()).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL));
         verify(mAppCenterHandler, never()).removeCallbacks(any(Runnable.class));
 
-        channel.setEnabled(true);
+        /* Probe ingestion after the backoff. */
+        when(System.currentTimeMillis()).thenReturn(CircuitBreaker.INITIAL_BACKOFF);
+        delayedRunnable.getValue().run();
 
-        /* Verify that we have called sendAsync on the ingestion n+1 times total: 1 failure before re-enabling, n success after. */
+        /* Verify that we have called sendAsync on the ingestion n+1 times total: 1 failure before the backoff, n success after. */
         verify(mockIngestion, times(logNumber + 1)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
 
         /* Verify that we have called deleteLogs on the Persistence n times. */
         verify(mockPersistence, times(logNumber)).deleteLogs(any(String.class), any(String.class));
+        assertEquals(0, channel.getGroupState(TEST_GROUP).mPendingLogCount);
 
         /* Verify timer. */
         verify(mAppCenterHandler, never()).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL));
@@ -586,7 +677,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Persistence mockPersistence = mock(Persistence.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
         when(mockPersistence.countLogs(anyString())).thenReturn(30);
-        when(mockPersistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(10));
+        when(mockPersistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(10));
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class)))
                 /* Simulate waiting for response for the first batch. */
                 .then(new Answer<Object>() {
@@ -620,7 +711,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Ingestion mockIngestion = mock(Ingestion.class);
         Persistence mockPersistence = mock(Persistence.class);
         when(mockPersistence.countLogs(anyString())).thenReturn(3);
-        when(mockPersistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(1));
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class)))
                 /* Simulate waiting for response for the first batch. */
                 .then(new Answer<Object>() {
@@ -643,7 +734,10 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
         channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
 
-        assertFalse(channel.isEnabled());
+        /* Only the group is suspended. */
+        assertTrue(channel.isEnabled());
+        assertEquals(CircuitBreaker.OPEN, channel.getGroupState(TEST_GROUP).mCircuitBreaker.getState());
+        verify(mockPersistence).clearPendingLogState(eq(TEST_GROUP), anyString());
     }
 
     @Test
@@ -684,7 +778,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(ingestion.isEnabled()).thenReturn(true);
         doThrow(new IOException()).when(ingestion).close();
         Persistence persistence = mock(Persistence.class);
-        when(persistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(1));
+        when(persistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(1));
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, ingestion, mAppCenterHandler);
         Channel.Listener listener = spy(new AbstractChannelListener());
         channel.addListener(listener);
@@ -717,7 +811,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(ingestion.isEnabled()).thenReturn(true);
         Persistence persistence = mock(Persistence.class);
         final DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, ingestion, mAppCenterHandler);
-        when(persistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(1));
+        when(persistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(1));
         when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).thenAnswer(new Answer<Void>() {
             @Override
             public Void answer(InvocationOnMock invocation) {
@@ -744,7 +838,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         doThrow(new IOException()).when(ingestion).close();
         Persistence persistence = mock(Persistence.class);
         when(persistence.countLogs(anyString())).thenReturn(3);
-        when(persistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(3));
+        when(persistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(3));
 
         /* Create channel. */
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, ingestion, mAppCenterHandler);
@@ -766,7 +860,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         doThrow(new IOException()).when(ingestion).close();
         Persistence persistence = mock(Persistence.class);
         when(persistence.countLogs(anyString())).thenReturn(103);
-        when(persistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(50)).thenAnswer(getGetLogsAnswer(50)).thenAnswer(getGetLogsAnswer(3));
+        when(persistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(50)).thenAnswer(getGetLogsAnswer(50)).thenAnswer(getGetLogsAnswer(3));
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, ingestion, mAppCenterHandler);
         channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
         verify(ingestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
@@ -786,7 +880,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         doThrow(new IOException()).when(ingestion).close();
         Persistence persistence = mock(Persistence.class);
         when(persistence.countLogs(anyString())).thenReturn(3);
-        when(persistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(3));
+        when(persistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).thenAnswer(getGetLogsAnswer(3));
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), persistence, ingestion, mAppCenterHandler);
         channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
         assertEquals(3, channel.getGroupState(TEST_GROUP).mPendingLogCount);
@@ -846,7 +940,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(mockIngestion.isEnabled()).thenReturn(true);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
-        when(mockPersistence.getLogs(eq(TEST_GROUP), anyListOf(String.class), anyInt(), anyListOf(Log.class)))
+        when(mockPersistence.getLogs(eq(TEST_GROUP), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class)))
                 .then(getGetLogsAnswer(1))
                 /* Logs from here will be used TEST_GROUP to clear pending states. */
                 .then(getGetLogsAnswer(DefaultChannel.CLEAR_BATCH_SIZE))
@@ -878,7 +972,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
         /* Simulate a lot of logs already in database. */
-        when(mockPersistence.getLogs(eq(TEST_GROUP), anyListOf(String.class), anyInt(), anyListOf(Log.class)))
+        when(mockPersistence.getLogs(eq(TEST_GROUP), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class)))
                 .then(getGetLogsAnswer(1))
                 .then(getGetLogsAnswer(1))
                 .then(getGetLogsAnswer(DefaultChannel.CLEAR_BATCH_SIZE));
@@ -909,7 +1003,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         when(mockIngestion.isEnabled()).thenReturn(true);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
-        when(mockPersistence.getLogs(eq(TEST_GROUP), anyListOf(String.class), anyInt(), anyListOf(Log.class)))
+        when(mockPersistence.getLogs(eq(TEST_GROUP), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class)))
                 .then(getGetLogsAnswer(1));
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(new HttpResponse(503))));
 
@@ -929,8 +1023,10 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         /* Verify no log was deleted. */
         verify(mockPersistence, never()).deleteLogs(TEST_GROUP);
 
-        /* But that we cleared batch state. */
-        verify(mockPersistence).clearPendingLogState();
+        /* But that we cleared batch state of the failed group only. */
+        verify(mockPersistence).clearPendingLogState(eq(TEST_GROUP), anyString());
+        verify(mockPersistence, never()).clearPendingLogState();
+        assertEquals(CircuitBreaker.CLOSED, channel.getGroupState(TEST_GROUP + "2").mCircuitBreaker.getState());
     }
 
     @Test
@@ -1072,7 +1168,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         /* Create channel and group. */
         Persistence mockPersistence = mock(Persistence.class);
         when(mockPersistence.countLogs(TEST_GROUP)).thenReturn(5);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer(5));
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(5));
         AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
         when(mockIngestion.isEnabled()).thenReturn(true);
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
@@ -1098,7 +1194,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
 
         /* Mock persistence. */
         Persistence mockPersistence = mock(Persistence.class);
-        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyListOf(Log.class)))
+        when(mockPersistence.getLogs(any(String.class), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class)))
                 .then(getGetLogsAnswer())
                 .then(getGetLogsAnswer(50))
                 .then(getGetLogsAnswer(50))
@@ -1162,7 +1258,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         /* Create channel and group. */
         Persistence mockPersistence = mock(Persistence.class);
         when(mockPersistence.countLogs(TEST_GROUP)).thenReturn(5);
-        when(mockPersistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(1));
         AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
 
@@ -1190,4 +1286,191 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         channel.setNetworkRequests(true);
         verify(mockIngestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
     }
+
+    @Test
+    public void byteBudgetedBatches() {
+
+        /* Mock persistence returning batches cut by the byte budget. */
+        Persistence mockPersistence = mock(Persistence.class);
+        when(mockPersistence.countLogs(TEST_GROUP)).thenReturn(10);
+        when(mockPersistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class)))
+                .then(getGetLogsAnswer(4))
+                .then(getGetLogsAnswer(6));
+        AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
+        when(mockIngestion.isEnabled()).thenReturn(true);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+
+        /* Prepare to mock timer. */
+        ArgumentCaptor<Runnable> delayedRunnable = ArgumentCaptor.forClass(Runnable.class);
+        when(mAppCenterHandler.postDelayed(delayedRunnable.capture(), anyLong())).thenReturn(true);
+
+        /* Add group with a byte budget. */
+        channel.addGroup(TEST_GROUP, 10, 1000, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        verify(mockPersistence).getLogs(eq(TEST_GROUP), anyListOf(String.class), eq(10), eq(1000L), anyListOf(Log.class));
+        verify(mockIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+
+        /* Logs that did not fit in the budget are still pending. */
+        assertEquals(6, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+        delayedRunnable.getValue().run();
+        verify(mockPersistence).getLogs(eq(TEST_GROUP), anyListOf(String.class), eq(6), eq(1000L), anyListOf(Log.class));
+        verify(mockIngestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        assertEquals(0, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+    }
+
+    @Test
+    public void defaultByteBudget() {
+        Persistence mockPersistence = mock(Persistence.class);
+        when(mockPersistence.countLogs(TEST_GROUP)).thenReturn(1);
+        AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
+        when(mockIngestion.isEnabled()).thenReturn(true);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+        verify(mockPersistence).getLogs(eq(TEST_GROUP), anyListOf(String.class), eq(1), eq(DEFAULT_MAX_BYTES_PER_BATCH), anyListOf(Log.class));
+    }
+
+    @Test
+    public void adaptiveBatching() {
+        Persistence mockPersistence = mock(Persistence.class);
+        when(mockPersistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class)))
+                .then(getGetLogsAnswer(10))
+                .then(getGetLogsAnswer(15));
+        AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
+        final List<ServiceCallback> callbacks = new ArrayList<>();
+        when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                callbacks.add((ServiceCallback) invocation.getArguments()[3]);
+                return null;
+            }
+        });
+        when(mockIngestion.isEnabled()).thenReturn(true);
+        Channel.Listener listener = mock(Channel.Listener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.addListener(listener);
+        channel.addGroup(TEST_GROUP, 10, BATCH_TIME_INTERVAL, 1, null, null);
+
+        /* Fill a first batch, then accumulate more logs while it's being sent. */
+        for (int i = 0; i < 25; i++) {
+            channel.enqueue(mock(Log.class), TEST_GROUP, Flags.DEFAULTS);
+        }
+        verify(mockPersistence).getLogs(eq(TEST_GROUP), anyListOf(String.class), eq(10), anyLong(), anyListOf(Log.class));
+        verify(mockIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        assertEquals(15, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+
+        /* A fast and full batch increases the batch size for the next one. */
+        callbacks.get(0).onCallSucceeded(new HttpResponse(200, ""));
+        verify(listener).onBatchingUpdated(TEST_GROUP, 15, 1, 0L, 0f);
+        verify(mockPersistence).getLogs(eq(TEST_GROUP), anyListOf(String.class), eq(15), anyLong(), anyListOf(Log.class));
+        assertEquals(0, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+
+        /* A slow batch halves the batch size. */
+        when(System.currentTimeMillis()).thenReturn(AdaptiveBatchController.SLOW_ROUND_TRIP_TIME);
+        callbacks.get(1).onCallSucceeded(new HttpResponse(200, ""));
+        verify(listener).onBatchingUpdated(TEST_GROUP, 7, 1, AdaptiveBatchController.SLOW_ROUND_TRIP_TIME, 0f);
+        verify(mockPersistence, times(2)).deleteLogs(eq(TEST_GROUP), anyString());
+    }
+
+    @Test
+    public void enqueueAll() {
+        Persistence mockPersistence = mock(Persistence.class);
+        AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
+        when(mockIngestion.isEnabled()).thenReturn(true);
+        Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
+        Channel.Listener listener = mock(Channel.Listener.class);
+        channel.addListener(listener);
+
+        /* Filter out one log and fail to persist another one. */
+        Log filteredLog = mock(Log.class);
+        Log failedLog = mock(Log.class);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        when(listener.shouldFilter(filteredLog)).thenReturn(true);
+        when(mockPersistence.putLogs(Arrays.asList(log1, failedLog, log2), TEST_GROUP, NORMAL)).thenReturn(new long[]{1, -1, 2});
+
+        /* Enqueue all logs. */
+        channel.enqueueAll(Arrays.asList(log1, filteredLog, failedLog, log2), TEST_GROUP, Flags.DEFAULTS);
+
+        /* Verify logs persisted at once. */
+        verify(listener).onPreparingLog(filteredLog, TEST_GROUP);
+        verify(listener).onPreparedLog(log2, TEST_GROUP, Flags.DEFAULTS);
+        verify(mockPersistence).putLogs(Arrays.asList(log1, failedLog, log2), TEST_GROUP, NORMAL);
+        verify(mockListener).onBeforeSending(failedLog);
+        verify(mockListener).onFailure(eq(failedLog), any(Persistence.PersistenceException.class));
+        verify(mockListener, never()).onFailure(eq(log1), any(Exception.class));
+
+        /* Verify ingestion scheduled once. */
+        assertEquals(2, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+        verify(mAppCenterHandler).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL));
+    }
+
+    @Test
+    public void bufferedLogWriteFailure() throws Persistence.PersistenceException {
+        BufferedPersistence mockPersistence = mock(BufferedPersistence.class);
+        AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
+        when(mockIngestion.isEnabled()).thenReturn(true);
+        Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        ArgumentCaptor<BufferedPersistence.WriteFailureListener> writeFailureListener = ArgumentCaptor.forClass(BufferedPersistence.WriteFailureListener.class);
+        verify(mockPersistence).setWriteFailureListener(writeFailureListener.capture());
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
+
+        /* Enqueue 2 logs, one of them is lost when the buffer is written. */
+        Log log = mock(Log.class);
+        Log failedLog = mock(Log.class);
+        channel.enqueue(log, TEST_GROUP, Flags.DEFAULTS);
+        channel.enqueue(failedLog, TEST_GROUP, Flags.DEFAULTS);
+        assertEquals(2, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+        writeFailureListener.getValue().onWriteFailure(TEST_GROUP, failedLog);
+
+        /* The log is no longer pending and reported as failed. */
+        assertEquals(1, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+        verify(mockListener).onBeforeSending(failedLog);
+        verify(mockListener).onFailure(eq(failedLog), any(Persistence.PersistenceException.class));
+        verify(mockListener, never()).onFailure(eq(log), any(Exception.class));
+
+        /* Ignore unknown groups. */
+        writeFailureListener.getValue().onWriteFailure("unknown", failedLog);
+        verify(mockListener).onFailure(any(Log.class), any(Exception.class));
+    }
+
+    @Test
+    public void enqueueAllTriggersIngestion() {
+        Persistence mockPersistence = mock(Persistence.class);
+        when(mockPersistence.putLogs(anyListOf(Log.class), eq(TEST_GROUP), eq(NORMAL))).thenReturn(new long[]{1, 2, 3});
+        when(mockPersistence.getLogs(anyString(), anyListOf(String.class), anyInt(), anyLong(), anyListOf(Log.class))).then(getGetLogsAnswer(2));
+        AppCenterIngestion mockIngestion = mock(AppCenterIngestion.class);
+        when(mockIngestion.isEnabled()).thenReturn(true);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mockIngestion, mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, null);
+
+        /* Enqueue more logs than a batch. */
+        channel.enqueueAll(Arrays.asList(mock(Log.class), mock(Log.class), mock(Log.class)), TEST_GROUP, Flags.DEFAULTS);
+        verify(mockPersistence, never()).putLog(any(Log.class), anyString(), anyInt());
+        verify(mockPersistence).getLogs(eq(TEST_GROUP), anyListOf(String.class), eq(2), anyLong(), anyListOf(Log.class));
+        verify(mockIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        assertEquals(1, channel.getGroupState(TEST_GROUP).mPendingLogCount);
+    }
+
+    @Test
+    public void enqueueAllInvalidGroupOrDiscarded() {
+        Persistence mockPersistence = mock(Persistence.class);
+        Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUID.randomUUID().toString(), mockPersistence, mock(AppCenterIngestion.class), mAppCenterHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null, mockListener);
+
+        /* Invalid group. */
+        channel.enqueueAll(Collections.singletonList(mock(Log.class)), "invalid", Flags.DEFAULTS);
+
+        /* Disabled channel. */
+        channel.setEnabled(false);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        channel.enqueueAll(Arrays.asList(log1, log2), TEST_GROUP, Flags.DEFAULTS);
+        verify(mockListener).onFailure(eq(log1), any(CancellationException.class));
+        verify(mockListener).onFailure(eq(log2), any(CancellationException.class));
+        verify(mockPersistence, never()).putLogs(anyListOf(Log.class), anyString(), anyInt());
+    }
 }
@@ -34,6 +34,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
@@ -47,6 +48,7 @@ import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HttpsURLConnection;
@@ -1074,6 +1076,102 @@ public class DefaultHttpClientTest {
         }));
     }
 
+    @Test
+    public void sendLargeStreamingPayloadWithGzip() throws Exception {
+
+        /* Mock no verbose logging. */
+        mockStatic(AppCenterLog.class);
+        when(AppCenterLog.getLogLevel()).thenReturn(Log.DEBUG);
+
+        /* Configure mock HTTPS. */
+        String urlString = "https://mock";
+        HttpsURLConnection urlConnection = mockConnection(urlString);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        when(urlConnection.getOutputStream()).thenReturn(buffer);
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+
+        /* Configure API client with a payload larger than the gzip threshold written in 2 parts. */
+        final String value = new String(new char[2000]).replace('\0', 'x');
+        HttpClient.StreamingCallTemplate callTemplate = mock(HttpClient.StreamingCallTemplate.class);
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Writer writer = (Writer) invocation.getArguments()[0];
+                writer.write("{\"a\":");
+                writer.write("\"\u00e9" + value + "\"}");
+                return null;
+            }
+        }).when(callTemplate).writeRequestBody(any(Writer.class));
+        DefaultHttpClient httpClient = new DefaultHttpClient();
+
+        /* Test calling code. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        mockCall();
+        httpClient.callAsync(urlString, METHOD_POST, new HashMap<String, String>(), callTemplate, serviceCallback);
+        verify(serviceCallback).onCallSucceeded(new HttpResponse(200, "OK", Collections.<String, String>emptyMap()));
+        verify(urlConnection).setRequestProperty("Content-Type", "application/json");
+        verify(urlConnection).setRequestProperty("Content-Encoding", "gzip");
+        verify(urlConnection).setDoOutput(true);
+        verify(urlConnection).setChunkedStreamingMode(anyInt());
+        verify(urlConnection, never()).setFixedLengthStreamingMode(anyInt());
+        verify(callTemplate).onBeforeCalling(any(URL.class), anyMapOf(String.class, String.class));
+        verify(callTemplate, never()).buildRequestBody();
+        httpClient.close();
+
+        /* Verify payload compressed and UTF-8 encoded. */
+        InputStreamReader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(buffer.toByteArray())), StandardCharsets.UTF_8);
+        StringBuilder payload = new StringBuilder();
+        char[] chars = new char[1024];
+        int length;
+        while ((length = reader.read(chars)) > 0) {
+            payload.append(chars, 0, length);
+        }
+        assertEquals("{\"a\":\"\u00e9" + value + "\"}", payload.toString());
+    }
+
+    @Test
+    public void sendSmallStreamingPayloadWithoutGzipAtAnyLogLevel() throws Exception {
+        for (int logLevel : new int[]{Log.DEBUG, Log.VERBOSE}) {
+            mockStatic(AppCenterLog.class);
+            when(AppCenterLog.getLogLevel()).thenReturn(logLevel);
+
+            /* Configure mock HTTPS. */
+            String urlString = "https://mock";
+            HttpsURLConnection urlConnection = mockConnection(urlString);
+            when(urlConnection.getResponseCode()).thenReturn(200);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            when(urlConnection.getOutputStream()).thenReturn(buffer);
+            when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+
+            /* Configure API client. */
+            HttpClient.StreamingCallTemplate callTemplate = mock(HttpClient.StreamingCallTemplate.class);
+            doAnswer(new Answer<Void>() {
+
+                @Override
+                public Void answer(InvocationOnMock invocation) throws Throwable {
+                    ((Writer) invocation.getArguments()[0]).write("{a:1}");
+                    return null;
+                }
+            }).when(callTemplate).writeRequestBody(any(Writer.class));
+            DefaultHttpClient httpClient = new DefaultHttpClient();
+
+            /* The body is streamed and sent uncompressed with a fixed length, whatever the log level. */
+            ServiceCallback serviceCallback = mock(ServiceCallback.class);
+            mockCall();
+            httpClient.callAsync(urlString, METHOD_POST, new HashMap<String, String>(), callTemplate, serviceCallback);
+            verify(serviceCallback).onCallSucceeded(new HttpResponse(200, "OK", Collections.<String, String>emptyMap()));
+            verify(callTemplate, never()).buildRequestBody();
+            verify(callTemplate).onBeforeCalling(any(URL.class), anyMapOf(String.class, String.class));
+            verify(urlConnection).setFixedLengthStreamingMode(5);
+            verify(urlConnection, never()).setChunkedStreamingMode(anyInt());
+            verify(urlConnection, never()).setRequestProperty(eq("Content-Encoding"), anyString());
+            httpClient.close();
+            assertEquals("{a:1}", buffer.toString("UTF-8"));
+        }
+    }
+
     @Test
     public void sendNoGzipWhenCompressionDisabled() throws Exception {
 
@@ -36,6 +36,7 @@ import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.rule.PowerMockRule;
 
+import java.io.StringWriter;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -172,6 +173,9 @@ public class OneCollectorIngestionTest {
         verify(mHttpClient).callAsync(eq("http://mock"), eq(METHOD_POST), eq(expectedHeaders), notNull(HttpClient.CallTemplate.class), eq(serviceCallback));
         assertNotNull(callTemplate.getValue());
         assertEquals("mockPayload1\nmockPayload2\n", callTemplate.getValue().buildRequestBody());
+        StringWriter writer = new StringWriter();
+        ((HttpClient.StreamingCallTemplate) callTemplate.getValue()).writeRequestBody(writer);
+        assertEquals("mockPayload1\nmockPayload2\n", writer.toString());
 
         /* Verify close. */
         ingestion.close();
@@ -182,6 +186,39 @@ public class OneCollectorIngestionTest {
         verify(mHttpClient).reopen();
     }
 
+    @Test
+    public void sendAsyncWithRawLogs() throws Exception {
+
+        /* Logs are still used for headers but stored payloads are sent as is. */
+        Extensions ext = new Extensions() {{
+            setProtocol(new ProtocolExtension());
+        }};
+        final CommonSchemaLog log1 = mock(CommonSchemaLog.class);
+        when(log1.getExt()).thenReturn(ext);
+        when(log1.getTransmissionTargetTokens()).thenReturn(Collections.singleton("token1"));
+        final CommonSchemaLog log2 = mock(CommonSchemaLog.class);
+        when(log2.getExt()).thenReturn(ext);
+        when(log2.getTransmissionTargetTokens()).thenReturn(Collections.singleton("token2"));
+        LogContainer container = new LogContainer();
+        container.setLogs(Arrays.<Log>asList(log1, log2));
+        container.setRawLogs(Arrays.asList("rawPayload1", "rawPayload2"));
+        LogSerializer serializer = mock(LogSerializer.class);
+
+        /* Configure mock HTTP. */
+        ArgumentCaptor<HttpClient.CallTemplate> callTemplate = ArgumentCaptor.forClass(HttpClient.CallTemplate.class);
+        when(mHttpClient.callAsync(anyString(), anyString(), mHeadersCaptor.capture(), callTemplate.capture(), any(ServiceCallback.class))).thenReturn(mock(ServiceCall.class));
+
+        /* Test calling code. */
+        OneCollectorIngestion ingestion = new OneCollectorIngestion(mHttpClient, serializer);
+        ingestion.sendAsync(null, null, container, mock(ServiceCallback.class));
+        assertEquals("token1,token2", mHeadersCaptor.getValue().get(OneCollectorIngestion.API_KEY));
+        assertEquals("rawPayload1\nrawPayload2\n", callTemplate.getValue().buildRequestBody());
+        StringWriter writer = new StringWriter();
+        ((HttpClient.StreamingCallTemplate) callTemplate.getValue()).writeRequestBody(writer);
+        assertEquals("rawPayload1\nrawPayload2\n", writer.toString());
+        verify(serializer, never()).serializeLog(any(Log.class));
+    }
+
     @Test
     public void passTicketsDebug() {
         Constants.APPLICATION_DEBUGGABLE = true;
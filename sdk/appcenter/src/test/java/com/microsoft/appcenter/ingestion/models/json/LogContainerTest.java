@@ -52,5 +52,17 @@ public class LogContainerTest {
         container2.setLogs(Collections.singletonList(log2));
         TestUtils.compareSelfNullClass(container1);
         TestUtils.checkNotEquals(container1, container2);
+
+        /* Serialized logs. */
+        container2.setLogs(Collections.singletonList(log1));
+        container1.setRawLogs(Collections.singletonList("{}"));
+        TestUtils.compareSelfNullClass(container1);
+        TestUtils.checkNotEquals(container1, container2);
+
+        container2.setRawLogs(Collections.singletonList("{}"));
+        TestUtils.checkEquals(container1, container2);
+
+        container2.setRawLogs(Collections.singletonList("[]"));
+        TestUtils.checkNotEquals(container1, container2);
     }
 }
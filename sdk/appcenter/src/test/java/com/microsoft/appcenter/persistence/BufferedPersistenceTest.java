@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import android.os.Handler;
+
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+import com.microsoft.appcenter.utils.AppCenterLog;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.microsoft.appcenter.Flags.CRITICAL;
+import static com.microsoft.appcenter.Flags.NORMAL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@PrepareForTest(AppCenterLog.class)
+public class BufferedPersistenceTest {
+
+    private static final String TEST_GROUP = "group_test";
+
+    @Rule
+    public PowerMockRule mPowerMockRule = new PowerMockRule();
+
+    private Persistence mPersistence;
+
+    private Handler mHandler;
+
+    private BufferedPersistence mBufferedPersistence;
+
+    @Before
+    public void setUp() {
+        mockStatic(AppCenterLog.class);
+        mPersistence = mock(Persistence.class);
+        when(mPersistence.putLogs(anyListOf(Log.class), anyString(), anyInt())).then(new Answer<long[]>() {
+
+            @Override
+            public long[] answer(InvocationOnMock invocation) {
+                long[] ids = new long[((List<?>) invocation.getArguments()[0]).size()];
+                Arrays.fill(ids, 1);
+                return ids;
+            }
+        });
+        mHandler = mock(Handler.class);
+        mBufferedPersistence = new BufferedPersistence(mPersistence, mHandler, 3);
+    }
+
+    @Test
+    public void flushWhenFull() throws Persistence.PersistenceException {
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        Log log3 = mock(Log.class);
+        assertEquals(0, mBufferedPersistence.putLog(log1, TEST_GROUP, NORMAL));
+        mBufferedPersistence.putLog(log2, TEST_GROUP, NORMAL);
+        verify(mHandler).postDelayed(any(Runnable.class), eq(BufferedPersistence.FLUSH_INTERVAL));
+        verify(mPersistence, never()).putLogs(anyListOf(Log.class), anyString(), anyInt());
+        verify(mPersistence, never()).putLog(any(Log.class), anyString(), anyInt());
+        assertEquals(2, mBufferedPersistence.getBufferedLogCount());
+
+        /* Third log fills the buffer. */
+        mBufferedPersistence.putLog(log3, TEST_GROUP, NORMAL);
+        verify(mPersistence).putLogs(Arrays.asList(log1, log2, log3), TEST_GROUP, NORMAL);
+        verify(mHandler).removeCallbacks(any(Runnable.class));
+        assertEquals(0, mBufferedPersistence.getBufferedLogCount());
+    }
+
+    @Test
+    public void flushOnTimer() throws Persistence.PersistenceException {
+        ArgumentCaptor<Runnable> runnable = ArgumentCaptor.forClass(Runnable.class);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        mBufferedPersistence.putLog(log1, TEST_GROUP, NORMAL);
+        mBufferedPersistence.putLog(log2, TEST_GROUP + "2", NORMAL);
+        verify(mHandler).postDelayed(runnable.capture(), eq(BufferedPersistence.FLUSH_INTERVAL));
+
+        /* One bulk write per group. */
+        runnable.getValue().run();
+        verify(mPersistence).putLogs(Collections.singletonList(log1), TEST_GROUP, NORMAL);
+        verify(mPersistence).putLogs(Collections.singletonList(log2), TEST_GROUP + "2", NORMAL);
+
+        /* Nothing to flush anymore. */
+        runnable.getValue().run();
+        verify(mPersistence, times(2)).putLogs(anyListOf(Log.class), anyString(), anyInt());
+    }
+
+    @Test
+    public void reportWriteFailures() throws Persistence.PersistenceException {
+        BufferedPersistence.WriteFailureListener listener = mock(BufferedPersistence.WriteFailureListener.class);
+        mBufferedPersistence.setWriteFailureListener(listener);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        when(mPersistence.putLogs(Arrays.asList(log1, log2), TEST_GROUP, NORMAL)).thenReturn(new long[]{-1, 2});
+        mBufferedPersistence.putLog(log1, TEST_GROUP, NORMAL);
+        mBufferedPersistence.putLog(log2, TEST_GROUP, NORMAL);
+        mBufferedPersistence.flush();
+
+        /* Failures are reported after the current operation. */
+        ArgumentCaptor<Runnable> runnable = ArgumentCaptor.forClass(Runnable.class);
+        verify(mHandler).post(runnable.capture());
+        verify(listener, never()).onWriteFailure(anyString(), any(Log.class));
+        runnable.getValue().run();
+        verify(listener).onWriteFailure(TEST_GROUP, log1);
+        verify(listener, never()).onWriteFailure(TEST_GROUP, log2);
+
+        /* No notification without failure. */
+        mBufferedPersistence.putLog(log1, TEST_GROUP, NORMAL);
+        mBufferedPersistence.flush();
+        verify(mHandler).post(any(Runnable.class));
+    }
+
+    @Test
+    public void criticalLogsAreWrittenThrough() throws Persistence.PersistenceException {
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        mBufferedPersistence.putLog(log1, TEST_GROUP, NORMAL);
+        mBufferedPersistence.putLog(log2, TEST_GROUP, CRITICAL);
+        InOrder inOrder = inOrder(mPersistence);
+        inOrder.verify(mPersistence).putLogs(Collections.singletonList(log1), TEST_GROUP, NORMAL);
+        inOrder.verify(mPersistence).putLog(log2, TEST_GROUP, CRITICAL);
+        assertEquals(0, mBufferedPersistence.getBufferedLogCount());
+    }
+
+    @Test
+    public void readsFlushFirst() throws Exception {
+        mBufferedPersistence.putLog(mock(Log.class), TEST_GROUP, NORMAL);
+        mBufferedPersistence.countLogs(TEST_GROUP);
+        verify(mPersistence).putLogs(anyListOf(Log.class), eq(TEST_GROUP), eq(NORMAL));
+        verify(mPersistence).countLogs(TEST_GROUP);
+
+        mBufferedPersistence.putLog(mock(Log.class), TEST_GROUP, NORMAL);
+        List<Log> logs = new ArrayList<>();
+        mBufferedPersistence.getLogs(TEST_GROUP, Collections.<String>emptyList(), 10, 100L, logs);
+        verify(mPersistence, times(2)).putLogs(anyListOf(Log.class), eq(TEST_GROUP), eq(NORMAL));
+        verify(mPersistence).getLogs(TEST_GROUP, Collections.<String>emptyList(), 10, 100L, logs);
+
+        mBufferedPersistence.putLog(mock(Log.class), TEST_GROUP, NORMAL);
+        List<String> payloads = new ArrayList<>();
+        mBufferedPersistence.getRawLogs(TEST_GROUP, Collections.<String>emptyList(), 10, 100L, payloads);
+        verify(mPersistence, times(3)).putLogs(anyListOf(Log.class), eq(TEST_GROUP), eq(NORMAL));
+        verify(mPersistence).getRawLogs(TEST_GROUP, Collections.<String>emptyList(), 10, 100L, payloads);
+
+        mBufferedPersistence.putLog(mock(Log.class), TEST_GROUP, NORMAL);
+        mBufferedPersistence.getLogsWithPayloads(TEST_GROUP, Collections.<String>emptyList(), 10, 100L, logs, payloads);
+        verify(mPersistence, times(4)).putLogs(anyListOf(Log.class), eq(TEST_GROUP), eq(NORMAL));
+        verify(mPersistence).getLogsWithPayloads(TEST_GROUP, Collections.<String>emptyList(), 10, 100L, logs, payloads);
+
+        mBufferedPersistence.putLog(mock(Log.class), TEST_GROUP, NORMAL);
+        mBufferedPersistence.clearPendingLogState();
+        verify(mPersistence, times(5)).putLogs(anyListOf(Log.class), eq(TEST_GROUP), eq(NORMAL));
+        verify(mPersistence).clearPendingLogState();
+
+        mBufferedPersistence.putLog(mock(Log.class), TEST_GROUP, NORMAL);
+        List<Log> bulk = Collections.singletonList(mock(Log.class));
+        mBufferedPersistence.putLogs(bulk, TEST_GROUP, NORMAL);
+        verify(mPersistence, times(7)).putLogs(anyListOf(Log.class), eq(TEST_GROUP), eq(NORMAL));
+
+        mBufferedPersistence.putLog(mock(Log.class), TEST_GROUP, NORMAL);
+        mBufferedPersistence.setMaxStorageSize(1024);
+        verify(mPersistence, times(8)).putLogs(anyListOf(Log.class), eq(TEST_GROUP), eq(NORMAL));
+        verify(mPersistence).setMaxStorageSize(1024);
+
+        mBufferedPersistence.putLog(mock(Log.class), TEST_GROUP, NORMAL);
+        PersistenceStats stats = new PersistenceStats();
+        when(mPersistence.getStats()).thenReturn(stats);
+        assertSame(stats, mBufferedPersistence.getStats());
+        verify(mPersistence, times(9)).putLogs(anyListOf(Log.class), eq(TEST_GROUP), eq(NORMAL));
+
+        mBufferedPersistence.putLog(mock(Log.class), TEST_GROUP, NORMAL);
+        mBufferedPersistence.close();
+        verify(mPersistence, times(10)).putLogs(anyListOf(Log.class), eq(TEST_GROUP), eq(NORMAL));
+        verify(mPersistence).close();
+    }
+
+    @Test
+    public void deleteGroupDropsBufferedLogs() throws Persistence.PersistenceException {
+        Log log = mock(Log.class);
+        mBufferedPersistence.putLog(mock(Log.class), TEST_GROUP, NORMAL);
+        mBufferedPersistence.putLog(log, TEST_GROUP + "2", NORMAL);
+        mBufferedPersistence.deleteLogs(TEST_GROUP);
+        verify(mPersistence).deleteLogs(TEST_GROUP);
+        assertEquals(1, mBufferedPersistence.getBufferedLogCount());
+        mBufferedPersistence.flush();
+        verify(mPersistence).putLogs(Collections.singletonList(log), TEST_GROUP + "2", NORMAL);
+        verify(mPersistence, never()).putLogs(anyListOf(Log.class), eq(TEST_GROUP), anyInt());
+    }
+
+    @Test
+    public void delegates() {
+        mBufferedPersistence.deleteLogs(TEST_GROUP, "id");
+        verify(mPersistence).deleteLogs(TEST_GROUP, "id");
+        mBufferedPersistence.clearPendingLogState(TEST_GROUP, "id");
+        verify(mPersistence).clearPendingLogState(TEST_GROUP, "id");
+        when(mPersistence.isRawLogsSupported()).thenReturn(true);
+        assertTrue(mBufferedPersistence.isRawLogsSupported());
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        mBufferedPersistence.setLogSerializer(logSerializer);
+        verify(mPersistence).setLogSerializer(logSerializer);
+        assertEquals(logSerializer, mBufferedPersistence.getLogSerializer());
+        List<Log> logs = new ArrayList<>();
+        when(mPersistence.deleteExpiredLogs(TEST_GROUP, 10L, 5, logs)).thenReturn(2);
+        assertEquals(2, mBufferedPersistence.deleteExpiredLogs(TEST_GROUP, 10L, 5, logs));
+        mBufferedPersistence.performMaintenance();
+        verify(mPersistence).performMaintenance();
+    }
+}
@@ -9,14 +9,18 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDiskIOException;
 import android.database.sqlite.SQLiteQueryBuilder;
 
 import com.microsoft.appcenter.AppCenter;
 import com.microsoft.appcenter.ingestion.models.Log;
 import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+import com.microsoft.appcenter.ingestion.models.one.CommonSchemaLog;
 import com.microsoft.appcenter.persistence.Persistence.PersistenceException;
 import com.microsoft.appcenter.utils.AppCenterLog;
+import com.microsoft.appcenter.utils.crypto.CryptoUtils;
 import com.microsoft.appcenter.utils.storage.DatabaseManager;
 
 import org.json.JSONException;
@@ -28,22 +32,28 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.rule.PowerMockRule;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
 import static com.microsoft.appcenter.Flags.NORMAL;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNotNull;
 import static org.mockito.Matchers.isNull;
+import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -51,7 +61,7 @@ import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 
 @SuppressWarnings("unused")
-@PrepareForTest({AppCenterLog.class, DatabaseManager.class, DatabasePersistence.class})
+@PrepareForTest({AppCenterLog.class, CryptoUtils.class, DatabaseManager.class, DatabasePersistence.class, DatabaseUtils.class})
 public class DatabasePersistenceTest {
 
     @Rule
@@ -66,7 +76,7 @@ public class DatabasePersistenceTest {
         whenNew(DatabaseManager.class).withAnyArguments().thenReturn(mockDatabaseManager);
         Cursor mockCursor = mock(Cursor.class);
         when(mockCursor.moveToNext()).thenThrow(new RuntimeException());
-        when(mockDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(String[].class), any(String[].class), anyString())).thenReturn(mockCursor);
+        when(mockDatabaseManager.getCursor(eq(DatabasePersistence.TABLE_LOG_COUNTS), any(SQLiteQueryBuilder.class), any(String[].class), any(String[].class), anyString())).thenReturn(mockCursor);
         DatabasePersistence persistence = new DatabasePersistence(mock(Context.class), 1, DatabasePersistence.SCHEMA);
 
         /* Try to get logs count. */
@@ -84,6 +94,31 @@ public class DatabasePersistenceTest {
         AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
     }
 
+    @Test
+    public void getStatsWithGetCursorException() throws Exception {
+
+        /* Mock instances. */
+        mockStatic(AppCenterLog.class);
+        DatabaseManager mockDatabaseManager = mock(DatabaseManager.class);
+        whenNew(DatabaseManager.class).withAnyArguments().thenReturn(mockDatabaseManager);
+        when(mockDatabaseManager.getCursor(eq(DatabasePersistence.TABLE_LOG_COUNTS), any(SQLiteQueryBuilder.class), any(String[].class), any(String[].class), anyString())).thenThrow(new RuntimeException());
+        DatabasePersistence persistence = new DatabasePersistence(mock(Context.class), 1, DatabasePersistence.SCHEMA);
+
+        /* No statistics are reported. */
+        //noinspection TryFinallyCanBeTryWithResources
+        try {
+            assertTrue(persistence.getStats().getGroups().isEmpty());
+        } finally {
+
+            /* Close. */
+            persistence.close();
+        }
+
+        /* There is an error log. */
+        verifyStatic();
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
+    }
+
     @Test
     public void clearPendingLogState() throws Exception {
 
@@ -107,12 +142,10 @@ public class DatabasePersistenceTest {
         /* Mock instances. */
         DatabaseManager mockDatabaseManager = mock(DatabaseManager.class);
         whenNew(DatabaseManager.class).withAnyArguments().thenReturn(mockDatabaseManager);
-        when(mockDatabaseManager.nextValues(any(Cursor.class))).thenCallRealMethod();
 
         for (int i = 0; i < groupCount; i++) {
             MockCursor mockCursor = new MockCursor(list.get(i));
-            mockCursor.mockBuildValues(mockDatabaseManager);
-            when(mockDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(String[].class), eq(new String[]{String.valueOf(i)}), anyString()))
+            when(mockDatabaseManager.getCursor(any(SQLiteQueryBuilder.class), any(String[].class), eq(new String[]{String.valueOf(i)}), anyString(), anyInt()))
                     .thenReturn(mockCursor);
         }
 
@@ -128,14 +161,12 @@ public class DatabasePersistenceTest {
             persistence.getLogs(String.valueOf(i), Collections.<String>emptyList(), logCount, new ArrayList<Log>());
         }
 
-        /* Verify there are 4 pending groups. */
-        assertEquals(groupCount, persistence.mPendingDbIdentifiersGroups.size());
-        assertEquals(groupCount * logCount, persistence.mPendingDbIdentifiers.size());
+        /* Verify the logs of the 4 groups are leased to batches. */
+        verify(mockDatabaseManager, times(groupCount)).update(any(ContentValues.class), startsWith(DatabaseManager.PRIMARY_KEY + " IN ("), isNull(String[].class));
 
-        /* Clear all pending groups and verify. */
+        /* Clear all pending groups and verify, leases were also reclaimed once on the first read. */
         persistence.clearPendingLogState();
-        assertEquals(0, persistence.mPendingDbIdentifiersGroups.size());
-        assertEquals(0, persistence.mPendingDbIdentifiers.size());
+        verify(mockDatabaseManager, times(2)).update(any(ContentValues.class), eq(DatabasePersistence.COLUMN_BATCH_ID + " IS NOT NULL"), isNull(String[].class));
     }
 
     @Test
@@ -145,8 +176,7 @@ public class DatabasePersistenceTest {
         mockStatic(AppCenterLog.class);
         DatabaseManager databaseManager = mock(DatabaseManager.class);
         whenNew(DatabaseManager.class).withAnyArguments().thenReturn(databaseManager);
-        when(databaseManager.nextValues(any(Cursor.class))).thenCallRealMethod();
-        when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), any(String[].class), any(String[].class), anyString())).thenThrow(new RuntimeException());
+        when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), any(String[].class), any(String[].class), anyString(), anyInt())).thenThrow(new RuntimeException());
         DatabasePersistence persistence = new DatabasePersistence(mock(Context.class), 1, DatabasePersistence.SCHEMA);
 
         /* Try to get logs. */
@@ -166,10 +196,9 @@ public class DatabasePersistenceTest {
         mockStatic(AppCenterLog.class);
         DatabaseManager databaseManager = mock(DatabaseManager.class);
         whenNew(DatabaseManager.class).withAnyArguments().thenReturn(databaseManager);
-        when(databaseManager.nextValues(any(Cursor.class))).thenCallRealMethod();
         Cursor mockCursor = mock(Cursor.class);
         when(mockCursor.moveToNext()).thenThrow(new RuntimeException());
-        when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), any(String[].class), any(String[].class), anyString())).thenReturn(mockCursor);
+        when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), any(String[].class), any(String[].class), anyString(), anyInt())).thenReturn(mockCursor);
         DatabasePersistence persistence = new DatabasePersistence(mock(Context.class), 1, DatabasePersistence.SCHEMA);
 
         /* Try to get logs. */
@@ -189,7 +218,6 @@ public class DatabasePersistenceTest {
         mockStatic(AppCenterLog.class);
         DatabaseManager databaseManager = mock(DatabaseManager.class);
         whenNew(DatabaseManager.class).withAnyArguments().thenReturn(databaseManager);
-        when(databaseManager.nextValues(any(Cursor.class))).thenCallRealMethod();
 
         /* Make corrupted log. */
         List<ContentValues> fieldValues = new ArrayList<>();
@@ -202,8 +230,7 @@ public class DatabasePersistenceTest {
 
         /* Mock log sequence retrieved from cursor. */
         MockCursor mockCursor = new MockCursor(fieldValues);
-        mockCursor.mockBuildValues(databaseManager);
-        when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), isNull(String[].class), any(String[].class), anyString())).thenReturn(mockCursor);
+        when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), eq(DatabasePersistence.LOG_COLUMNS), any(String[].class), anyString(), anyInt())).thenReturn(mockCursor);
 
         /* Mock second cursor with identifiers only. */
         Cursor failingCursor = mock(Cursor.class);
@@ -228,7 +255,6 @@ public class DatabasePersistenceTest {
         int logCount = 3;
         DatabaseManager databaseManager = mock(DatabaseManager.class);
         whenNew(DatabaseManager.class).withAnyArguments().thenReturn(databaseManager);
-        when(databaseManager.nextValues(any(Cursor.class))).thenCallRealMethod();
 
         /* Make 3 logs, the second one will be corrupted. */
         List<ContentValues> fieldValues = new ArrayList<>(logCount);
@@ -255,8 +281,7 @@ public class DatabasePersistenceTest {
 
         /* Mock log sequence retrieved from cursor. */
         MockCursor mockCursor = new MockCursor(fieldValues);
-        mockCursor.mockBuildValues(databaseManager);
-        when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), isNull(String[].class), any(String[].class), anyString())).thenReturn(mockCursor);
+        when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), eq(DatabasePersistence.LOG_COLUMNS), any(String[].class), anyString(), anyInt())).thenReturn(mockCursor);
 
         /* Mock second cursor with identifiers only. */
         List<ContentValues> idValues = new ArrayList<>(logCount);
@@ -266,7 +291,6 @@ public class DatabasePersistenceTest {
             idValues.add(contentValues);
         }
         MockCursor mockIdCursor = new MockCursor(idValues);
-        mockIdCursor.mockBuildValues(databaseManager);
         when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(String[].class), any(String[].class), anyString())).thenReturn(mockIdCursor);
 
         /* Mock serializer and eventually the database. */
@@ -301,27 +325,13 @@ public class DatabasePersistenceTest {
         assertEquals(0, outLogs.size());
 
         /*
-         * Add new logs with corruption again. First 2 logs are still there.
+         * Add new logs with corruption again. First 2 logs are still there but leased, so the query excludes them.
          * Also this time the corrupted log will not even return its identifier when scanning
          * with only id fields, to test that the delete fails gracefully and that we can still
          * work with other logs.
          */
-        logCount = 4;
+        logCount = 2;
         fieldValues = new ArrayList<>(logCount);
-        {
-            /* Valid record. */
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(0L);
-            when(contentValues.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("first");
-            fieldValues.add(contentValues);
-        }
-        {
-            /* Valid record. */
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(2L);
-            when(contentValues.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("last");
-            fieldValues.add(contentValues);
-        }
         {
             /* New corrupted record. */
             ContentValues contentValues = mock(ContentValues.class);
@@ -344,17 +354,10 @@ public class DatabasePersistenceTest {
                 throw new RuntimeException();
             }
         };
-        mockCursor.mockBuildValues(databaseManager);
-        when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), isNull(String[].class), any(String[].class), anyString())).thenReturn(mockCursor);
-        idValues = new ArrayList<>(4);
+        when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), eq(DatabasePersistence.LOG_COLUMNS), any(String[].class), anyString(), anyInt())).thenReturn(mockCursor);
 
         /* Here the id cursor will also skip the new corrupted log which id would be 3. */
-        for (long i = 0; i < logCount; i += 2) {
-            ContentValues contentValues = mock(ContentValues.class);
-            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(i);
-            idValues.add(contentValues);
-        }
-        mockIdCursor = new MockCursor(idValues) {
+        mockIdCursor = new MockCursor(Collections.<ContentValues>emptyList()) {
 
             @Override
             public void close() {
@@ -363,10 +366,9 @@ public class DatabasePersistenceTest {
                 throw new RuntimeException();
             }
         };
-        mockIdCursor.mockBuildValues(databaseManager);
         when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), isNotNull(String[].class), any(String[].class), anyString())).thenReturn(mockIdCursor);
 
-        /* Verify next call is only the new valid log as others are marked pending. */
+        /* Verify next call is only the new valid log. */
         outLogs = new ArrayList<>();
         persistence.getLogs("mock", Collections.<String>emptyList(), 50, outLogs);
         assertEquals(1, outLogs.size());
@@ -423,6 +425,283 @@ public class DatabasePersistenceTest {
         persistence.putLog(mock(Log.class), "test-p1", NORMAL);
     }
 
+    @Test
+    public void putLogsWithFailures() throws Exception {
+        mockStatic(AppCenterLog.class);
+        DatabaseManager databaseManager = mock(DatabaseManager.class);
+        whenNew(DatabaseManager.class).withAnyArguments().thenReturn(databaseManager);
+        when(databaseManager.getMaxSize()).thenReturn(-1L);
+        when(databaseManager.put(anyListOf(ContentValues.class), anyString(), any(DatabaseManager.EntryPreparer.class))).thenReturn(new long[0]);
+        DatabasePersistence persistence = new DatabasePersistence(mock(Context.class));
+
+        /* Set a mock log serializer failing for the first log. */
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenThrow(new JSONException("JSON exception")).thenReturn("mock");
+        persistence.setLogSerializer(logSerializer);
+
+        /* Persist logs: first cannot be serialized, second cannot be stored. */
+        long[] ids = persistence.putLogs(Arrays.asList(mock(Log.class), mock(Log.class)), "test-p1", NORMAL);
+        assertArrayEquals(new long[]{-1, -1}, ids);
+        verify(databaseManager).put(eq(Collections.<ContentValues>emptyList()), eq(DatabasePersistence.COLUMN_PRIORITY), isNull(DatabaseManager.EntryPreparer.class));
+        verifyStatic(times(2));
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(Exception.class));
+    }
+
+    @Test
+    public void batchLease() throws Exception {
+        DatabaseManager databaseManager = mock(DatabaseManager.class);
+        whenNew(DatabaseManager.class).withAnyArguments().thenReturn(databaseManager);
+        List<ContentValues> fieldValues = new ArrayList<>();
+        for (long i = 1; i <= 2; i++) {
+            ContentValues contentValues = mock(ContentValues.class);
+            when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(i);
+            when(contentValues.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("{}");
+            fieldValues.add(contentValues);
+        }
+        MockCursor mockCursor = new MockCursor(fieldValues);
+        when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), eq(DatabasePersistence.LOG_COLUMNS), any(String[].class), anyString(), eq(50))).thenReturn(mockCursor);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.deserializeLog(anyString(), anyString())).thenReturn(mock(Log.class));
+
+        /* Leases of a previous process are not reclaimed at construction, so that the database opens lazily. */
+        DatabasePersistence persistence = new DatabasePersistence(mock(Context.class));
+        persistence.setLogSerializer(logSerializer);
+        verify(databaseManager, never()).update(any(ContentValues.class), anyString(), any(String[].class));
+
+        /* They are on the first read, then logs are leased to the batch. */
+        List<Log> outLogs = new ArrayList<>();
+        String batchId = persistence.getLogs("mock", Collections.<String>emptyList(), 50, outLogs);
+        verify(databaseManager).update(any(ContentValues.class), eq(DatabasePersistence.COLUMN_BATCH_ID + " IS NOT NULL"), isNull(String[].class));
+        assertEquals(2, outLogs.size());
+        verify(databaseManager).update(any(ContentValues.class), eq(DatabaseManager.PRIMARY_KEY + " IN (1,2)"), isNull(String[].class));
+
+        /* Releasing the batch clears the lease. */
+        persistence.clearPendingLogState("mock", batchId);
+        verify(databaseManager).update(any(ContentValues.class), eq(DatabasePersistence.COLUMN_BATCH_ID + " = ?"), eq(new String[]{batchId}));
+
+        /* Deleting a batch is a single statement. */
+        persistence.deleteLogs("mock", batchId);
+        verify(databaseManager).delete(DatabasePersistence.COLUMN_BATCH_ID, batchId);
+        verify(databaseManager, never()).delete(anyLong());
+    }
+
+    @Test
+    public void targetTokensAreEncryptedOnce() throws Exception {
+        mockStatic(CryptoUtils.class);
+        CryptoUtils cryptoUtils = mock(CryptoUtils.class);
+        when(CryptoUtils.getInstance(any(Context.class))).thenReturn(cryptoUtils);
+        when(cryptoUtils.encrypt(anyString())).thenReturn("encrypted");
+        DatabaseManager databaseManager = mock(DatabaseManager.class);
+        whenNew(DatabaseManager.class).withAnyArguments().thenReturn(databaseManager);
+        when(databaseManager.getMaxSize()).thenReturn(1024 * 1024L);
+        SQLiteDatabase sqLiteDatabase = mock(SQLiteDatabase.class);
+        when(sqLiteDatabase.insertOrThrow(eq(DatabasePersistence.TABLE_TARGETS), isNull(String.class), any(ContentValues.class))).thenReturn(7L);
+        mockStatic(DatabaseUtils.class);
+        when(DatabaseUtils.longForQuery(eq(sqLiteDatabase), anyString(), any(String[].class))).thenReturn(1L);
+        when(databaseManager.put(anyListOf(ContentValues.class), anyString(), any(DatabaseManager.EntryPreparer.class))).then(getPreparingPutAnswer(sqLiteDatabase, 1));
+        MockCursor targetsCursor = new MockCursor(Collections.<ContentValues>emptyList());
+        when(databaseManager.getCursor(eq(DatabasePersistence.TABLE_TARGETS), isNull(SQLiteQueryBuilder.class), any(String[].class), isNull(String[].class), isNull(String.class))).thenReturn(targetsCursor);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        DatabasePersistence persistence = new DatabasePersistence(mock(Context.class));
+        persistence.setLogSerializer(logSerializer);
+
+        /* Logs with the same token share one encrypted row, inserted in the transaction of the logs. */
+        CommonSchemaLog log = mock(CommonSchemaLog.class);
+        when(log.getTransmissionTargetTokens()).thenReturn(Collections.singleton("key-secret"));
+        assertArrayEquals(new long[]{1, 2}, persistence.putLogs(Arrays.<Log>asList(log, log), "test", NORMAL));
+        verify(cryptoUtils).encrypt("key-secret");
+        verify(sqLiteDatabase).insertOrThrow(eq(DatabasePersistence.TABLE_TARGETS), isNull(String.class), any(ContentValues.class));
+
+        /* Once stored, the token is no longer inserted. */
+        assertArrayEquals(new long[]{3}, persistence.putLogs(Collections.<Log>singletonList(log), "test", NORMAL));
+        verify(databaseManager).put(anyListOf(ContentValues.class), anyString(), isNull(DatabaseManager.EntryPreparer.class));
+        verify(cryptoUtils).encrypt("key-secret");
+
+        /* Reading logs restores the token from the cache. */
+        ContentValues contentValues = mock(ContentValues.class);
+        when(contentValues.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(1L);
+        when(contentValues.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("{}");
+        when(contentValues.getAsLong(DatabasePersistence.COLUMN_TARGET_ID)).thenReturn(7L);
+        MockCursor mockCursor = new MockCursor(Collections.singletonList(contentValues));
+        when(databaseManager.getCursor(any(SQLiteQueryBuilder.class), eq(DatabasePersistence.LOG_COLUMNS), any(String[].class), anyString(), anyInt())).thenReturn(mockCursor);
+        Log readLog = mock(Log.class);
+        when(logSerializer.deserializeLog(anyString(), anyString())).thenReturn(readLog);
+        List<Log> outLogs = new ArrayList<>();
+        persistence.getLogs("test", Collections.<String>emptyList(), 50, outLogs);
+        assertEquals(Collections.singletonList(readLog), outLogs);
+        verify(readLog).addTransmissionTarget("key-secret");
+        verify(cryptoUtils, never()).decrypt(anyString());
+    }
+
+    @Test
+    public void targetTokenIsInsertedAgainAfterRollback() throws Exception {
+        mockStatic(CryptoUtils.class);
+        CryptoUtils cryptoUtils = mock(CryptoUtils.class);
+        when(CryptoUtils.getInstance(any(Context.class))).thenReturn(cryptoUtils);
+        when(cryptoUtils.encrypt(anyString())).thenReturn("encrypted");
+        DatabaseManager databaseManager = mock(DatabaseManager.class);
+        whenNew(DatabaseManager.class).withAnyArguments().thenReturn(databaseManager);
+        when(databaseManager.getMaxSize()).thenReturn(1024 * 1024L);
+        when(databaseManager.getCursor(eq(DatabasePersistence.TABLE_TARGETS), isNull(SQLiteQueryBuilder.class), any(String[].class), isNull(String[].class), isNull(String.class))).thenReturn(new MockCursor(Collections.<ContentValues>emptyList()));
+        final SQLiteDatabase sqLiteDatabase = mock(SQLiteDatabase.class);
+        when(sqLiteDatabase.insertOrThrow(eq(DatabasePersistence.TABLE_TARGETS), isNull(String.class), any(ContentValues.class))).thenReturn(7L);
+
+        /* The first insert is rolled back by eviction, then the log is stored. */
+        mockStatic(DatabaseUtils.class);
+        when(DatabaseUtils.longForQuery(eq(sqLiteDatabase), anyString(), any(String[].class))).thenReturn(0L);
+        when(databaseManager.put(any(ContentValues.class), anyString(), any(DatabaseManager.EntryPreparer.class))).then(new Answer<Long>() {
+
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                ContentValues values = (ContentValues) invocation.getArguments()[0];
+                DatabaseManager.EntryPreparer preparer = (DatabaseManager.EntryPreparer) invocation.getArguments()[2];
+                preparer.prepare(sqLiteDatabase, values);
+                preparer.prepare(sqLiteDatabase, values);
+                return 1L;
+            }
+        });
+        when(databaseManager.put(anyListOf(ContentValues.class), anyString(), any(DatabaseManager.EntryPreparer.class))).thenReturn(new long[]{2});
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        DatabasePersistence persistence = new DatabasePersistence(mock(Context.class));
+        persistence.setLogSerializer(logSerializer);
+        CommonSchemaLog log = mock(CommonSchemaLog.class);
+        when(log.getTransmissionTargetTokens()).thenReturn(Collections.singleton("key-secret"));
+        assertEquals(1, persistence.putLog(log, "test", NORMAL));
+        verify(cryptoUtils).encrypt("key-secret");
+        verify(sqLiteDatabase, times(2)).insertOrThrow(eq(DatabasePersistence.TABLE_TARGETS), isNull(String.class), any(ContentValues.class));
+
+        /* The stored token is cached. */
+        persistence.putLogs(Collections.<Log>singletonList(log), "test", NORMAL);
+        verify(databaseManager).put(anyListOf(ContentValues.class), anyString(), isNull(DatabaseManager.EntryPreparer.class));
+    }
+
+    @Test
+    public void targetTokenIsNotCachedWhenLogIsNotStored() throws Exception {
+        mockStatic(CryptoUtils.class);
+        CryptoUtils cryptoUtils = mock(CryptoUtils.class);
+        when(CryptoUtils.getInstance(any(Context.class))).thenReturn(cryptoUtils);
+        when(cryptoUtils.encrypt(anyString())).thenReturn("encrypted");
+        DatabaseManager databaseManager = mock(DatabaseManager.class);
+        whenNew(DatabaseManager.class).withAnyArguments().thenReturn(databaseManager);
+        when(databaseManager.getMaxSize()).thenReturn(1024 * 1024L);
+        when(databaseManager.getCursor(eq(DatabasePersistence.TABLE_TARGETS), isNull(SQLiteQueryBuilder.class), any(String[].class), isNull(String[].class), isNull(String.class))).thenReturn(new MockCursor(Collections.<ContentValues>emptyList()));
+        SQLiteDatabase sqLiteDatabase = mock(SQLiteDatabase.class);
+        when(sqLiteDatabase.insertOrThrow(eq(DatabasePersistence.TABLE_TARGETS), isNull(String.class), any(ContentValues.class))).thenReturn(7L);
+        when(databaseManager.put(anyListOf(ContentValues.class), anyString(), any(DatabaseManager.EntryPreparer.class))).then(getPreparingPutAnswer(sqLiteDatabase, -1));
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        DatabasePersistence persistence = new DatabasePersistence(mock(Context.class));
+        persistence.setLogSerializer(logSerializer);
+        CommonSchemaLog log = mock(CommonSchemaLog.class);
+        when(log.getTransmissionTargetTokens()).thenReturn(Collections.singleton("key-secret"));
+
+        /* The token was rolled back with the log, it is inserted again with the next log. */
+        assertArrayEquals(new long[]{-1}, persistence.putLogs(Collections.<Log>singletonList(log), "test", NORMAL));
+        persistence.putLogs(Collections.<Log>singletonList(log), "test", NORMAL);
+        verify(databaseManager, times(2)).put(anyListOf(ContentValues.class), anyString(), isNotNull(DatabaseManager.EntryPreparer.class));
+        verify(sqLiteDatabase, times(2)).insertOrThrow(eq(DatabasePersistence.TABLE_TARGETS), isNull(String.class), any(ContentValues.class));
+    }
+
+    @Test
+    public void targetTokensAreNotStoredWhenTargetsCannotBeRead() throws Exception {
+        mockStatic(CryptoUtils.class);
+        CryptoUtils cryptoUtils = mock(CryptoUtils.class);
+        when(CryptoUtils.getInstance(any(Context.class))).thenReturn(cryptoUtils);
+        when(cryptoUtils.encrypt(anyString())).thenReturn("encrypted");
+        DatabaseManager databaseManager = mock(DatabaseManager.class);
+        whenNew(DatabaseManager.class).withAnyArguments().thenReturn(databaseManager);
+        when(databaseManager.getMaxSize()).thenReturn(1024 * 1024L);
+        SQLiteDatabase sqLiteDatabase = mock(SQLiteDatabase.class);
+        when(databaseManager.put(anyListOf(ContentValues.class), anyString(), any(DatabaseManager.EntryPreparer.class))).then(getPreparingPutAnswer(sqLiteDatabase, 1));
+        when(databaseManager.getCursor(eq(DatabasePersistence.TABLE_TARGETS), isNull(SQLiteQueryBuilder.class), any(String[].class), isNull(String[].class), isNull(String.class)))
+                .thenThrow(new SQLiteDiskIOException())
+                .thenReturn(new MockCursor(Collections.<ContentValues>emptyList()));
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        DatabasePersistence persistence = new DatabasePersistence(mock(Context.class));
+        persistence.setLogSerializer(logSerializer);
+        CommonSchemaLog log = mock(CommonSchemaLog.class);
+        when(log.getTransmissionTargetTokens()).thenReturn(Collections.singleton("key-secret"));
+
+        /* The token may already be stored, it is not inserted while the table cannot be read. */
+        assertArrayEquals(new long[]{-1}, persistence.putLogs(Collections.<Log>singletonList(log), "test", NORMAL));
+        verify(sqLiteDatabase, never()).insertOrThrow(eq(DatabasePersistence.TABLE_TARGETS), isNull(String.class), any(ContentValues.class));
+
+        /* Once the table is read, the token is stored. */
+        assertArrayEquals(new long[]{1}, persistence.putLogs(Collections.<Log>singletonList(log), "test", NORMAL));
+        verify(sqLiteDatabase).insertOrThrow(eq(DatabasePersistence.TABLE_TARGETS), isNull(String.class), any(ContentValues.class));
+    }
+
+    @Test
+    public void performMaintenanceDeletesUnusedTargets() throws Exception {
+        mockStatic(CryptoUtils.class);
+        CryptoUtils cryptoUtils = mock(CryptoUtils.class);
+        when(CryptoUtils.getInstance(any(Context.class))).thenReturn(cryptoUtils);
+        when(cryptoUtils.encrypt(anyString())).thenReturn("encrypted");
+        DatabaseManager databaseManager = mock(DatabaseManager.class);
+        whenNew(DatabaseManager.class).withAnyArguments().thenReturn(databaseManager);
+        when(databaseManager.getMaxSize()).thenReturn(1024 * 1024L);
+        SQLiteDatabase sqLiteDatabase = mock(SQLiteDatabase.class);
+        when(sqLiteDatabase.insertOrThrow(eq(DatabasePersistence.TABLE_TARGETS), isNull(String.class), any(ContentValues.class))).thenReturn(7L);
+        when(databaseManager.put(anyListOf(ContentValues.class), anyString(), any(DatabaseManager.EntryPreparer.class))).then(getPreparingPutAnswer(sqLiteDatabase, 1));
+        when(databaseManager.getCursor(eq(DatabasePersistence.TABLE_TARGETS), isNull(SQLiteQueryBuilder.class), any(String[].class), isNull(String[].class), isNull(String.class))).thenReturn(new MockCursor(Collections.<ContentValues>emptyList()));
+        when(databaseManager.deleteWhere(eq(DatabasePersistence.TABLE_TARGETS), anyString(), isNull(String[].class))).thenReturn(0, 1);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        DatabasePersistence persistence = new DatabasePersistence(mock(Context.class));
+        persistence.setLogSerializer(logSerializer);
+        persistence.setPayloadEncodingEnabled(false);
+        CommonSchemaLog log = mock(CommonSchemaLog.class);
+        when(log.getTransmissionTargetTokens()).thenReturn(Collections.singleton("key-secret"));
+        persistence.putLogs(Collections.<Log>singletonList(log), "test", NORMAL);
+
+        /* While the token is referenced, it stays cached. */
+        persistence.performMaintenance();
+        persistence.putLogs(Collections.<Log>singletonList(log), "test", NORMAL);
+        verify(databaseManager).put(anyListOf(ContentValues.class), anyString(), isNull(DatabaseManager.EntryPreparer.class));
+
+        /* Once deleted, the caches are read again and the token is inserted with the next log. */
+        persistence.performMaintenance();
+        verify(databaseManager, times(2)).deleteWhere(DatabasePersistence.TABLE_TARGETS, DatabasePersistence.UNUSED_TARGETS_WHERE, null);
+        persistence.putLogs(Collections.<Log>singletonList(log), "test", NORMAL);
+        verify(databaseManager, times(2)).put(anyListOf(ContentValues.class), anyString(), isNotNull(DatabaseManager.EntryPreparer.class));
+        verify(databaseManager, times(2)).getCursor(eq(DatabasePersistence.TABLE_TARGETS), isNull(SQLiteQueryBuilder.class), any(String[].class), isNull(String[].class), isNull(String.class));
+    }
+
+    /**
+     * Get an answer to {@link DatabaseManager#put(List, String, DatabaseManager.EntryPreparer)} preparing every entry.
+     *
+     * @param sqLiteDatabase database passed to the preparer.
+     * @param firstId        identifier of the first entry, -1 to fail all of them.
+     * @return answer.
+     */
+    private static Answer<long[]> getPreparingPutAnswer(final SQLiteDatabase sqLiteDatabase, final long firstId) {
+        return new Answer<long[]>() {
+
+            private long mNextId = firstId;
+
+            @Override
+            public long[] answer(InvocationOnMock invocation) {
+                @SuppressWarnings("unchecked")
+                List<ContentValues> valuesList = (List<ContentValues>) invocation.getArguments()[0];
+                DatabaseManager.EntryPreparer preparer = (DatabaseManager.EntryPreparer) invocation.getArguments()[2];
+                long[] ids = new long[valuesList.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    if (preparer != null) {
+                        preparer.prepare(sqLiteDatabase, valuesList.get(i));
+                    }
+                    ids[i] = mNextId == -1 ? -1 : mNextId++;
+                }
+                return ids;
+            }
+        };
+    }
+
+    /**
+     * Cursor over mocked rows, with the columns of {@link DatabasePersistence#LOG_COLUMNS}.
+     */
     private static class MockCursor extends CursorWrapper {
 
         private final List<ContentValues> mList;
@@ -440,17 +719,39 @@ public class DatabasePersistenceTest {
         }
 
         @Override
-        public void close() {
+        public int getColumnIndex(String columnName) {
+            return Arrays.asList(DatabasePersistence.LOG_COLUMNS).indexOf(columnName);
         }
 
-        private void mockBuildValues(DatabaseManager databaseManager) {
-            when(databaseManager.buildValues(eq(this))).then(new Answer<ContentValues>() {
+        @Override
+        public boolean isNull(int columnIndex) {
+            return mList.get(mIndex).getAsLong(DatabasePersistence.LOG_COLUMNS[columnIndex]) == null && getString(columnIndex) == null && getBlob(columnIndex) == null;
+        }
 
-                @Override
-                public ContentValues answer(InvocationOnMock invocation) {
-                    return mList.get(mIndex);
-                }
-            });
+        @Override
+        public long getLong(int columnIndex) {
+            return mList.get(mIndex).getAsLong(DatabasePersistence.LOG_COLUMNS[columnIndex]);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            return mList.get(mIndex).getAsString(DatabasePersistence.LOG_COLUMNS[columnIndex]);
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            return mList.get(mIndex).getAsByteArray(DatabasePersistence.LOG_COLUMNS[columnIndex]);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void getUtf8Length() throws Exception {
+        for (String value : new String[]{"", "ascii", "\u00e9t\u00e9", "\u4e8b\u4ef6", "\ud83d\ude00", "\ud83d", "a\ude00b"}) {
+            assertEquals(value, value.getBytes("UTF-8").length, DatabasePersistence.getUtf8Length(value));
         }
     }
 }
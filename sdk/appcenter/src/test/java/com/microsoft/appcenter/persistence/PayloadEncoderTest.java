@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadEncoderTest {
+
+    private static final String PAYLOAD = "{\"type\":\"event\",\"timestamp\":\"2021-10-16T10:00:00.000Z\",\"sid\":\"9c3a3c5b-1f4e-4cf4-8d68-28b8a08e8a3b\"," +
+            "\"device\":{\"sdkName\":\"appcenter.android\",\"sdkVersion\":\"4.4.4\",\"model\":\"Pixel 5\",\"oemName\":\"Google\"," +
+            "\"osName\":\"Android\",\"osVersion\":\"12\",\"osBuild\":\"SP1A.210812.015\",\"osApiLevel\":31,\"locale\":\"en_US\"," +
+            "\"timeZoneOffset\":-120,\"screenSize\":\"1080x2340\",\"appVersion\":\"1.0\",\"carrierName\":\"carrier\"," +
+            "\"carrierCountry\":\"us\",\"appBuild\":\"1\",\"appNamespace\":\"com.example\"}," +
+            "\"id\":\"8f2d1bc8-64b2-4e49-a1a4-d0d8f1bfc3c2\",\"name\":\"click\",\"properties\":{\"key\":\"value\",\"other\":\"value\"}," +
+            "\"typedProperties\":[{\"type\":\"double\",\"name\":\"d\",\"value\":1.5},{\"type\":\"long\",\"name\":\"l\",\"value\":9223372036854775807}," +
+            "{\"type\":\"boolean\",\"name\":\"b\",\"value\":false},{\"type\":\"dateTime\",\"name\":\"t\",\"value\":\"1970-01-01T00:00:00.000Z\"}]}";
+
+    @Test
+    public void init() {
+        new PayloadEncoder();
+    }
+
+    @Test
+    public void encodeAndDecode() throws IOException {
+        byte[] encoded = PayloadEncoder.encode(PAYLOAD);
+        assertEquals(PayloadEncoder.FORMAT_VERSION, encoded[0]);
+        assertEquals(PAYLOAD, PayloadEncoder.decode(encoded));
+        assertTrue(encoded.length < PAYLOAD.length());
+    }
+
+    @Test
+    public void encodeAndDecodeValues() throws IOException {
+        String[] payloads = {
+                "{}",
+                "[]",
+                "{\"a\":[],\"b\":{},\"c\":[null,true,false,[{}]]}",
+                "[0,-1,1.0E10,-0,1e-5,-9223372036854775808,9223372036854775808]",
+                "[\"\",\"a\",\"a\",\"typed\",\"string\",\"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u0001\"]",
+                "[\"\u00e9v\u00e9nement \u4e8b\u4ef6\",\"\ud83d\ude00\"]",
+                "[\"8F2D1BC8-64B2-4E49-A1A4-D0D8F1BFC3C2\",\"8f2d1bc8_64b2-4e49-a1a4-d0d8f1bfc3c2\",\"8f2d1bc8-64b2-4e49-a1a4-d0d8f1bfc3c\"]",
+                "[\"2021-10-16T10:00:00.000Z\",\"2021-10-16T10:00:00.00Z\",\"2021-13-16T10:00:00.000Z\",\"1969-12-31T23:59:59.999Z\"]"
+        };
+        for (String payload : payloads) {
+            assertEquals(payload, PayloadEncoder.decode(PayloadEncoder.encode(payload)));
+        }
+    }
+
+    @Test
+    public void encodeWithWhitespaceAndEscapes() throws IOException {
+        assertEquals("{\"a\\/b\":[1,\"\\u001f\"]}", PayloadEncoder.decode(PayloadEncoder.encode(" { \"a/b\" : [ 1 , \"\\u001F\" ] } ")));
+    }
+
+    @Test
+    public void staticStringsAreUnique() {
+        assertEquals(PayloadEncoder.STATIC_STRINGS.length, new HashSet<>(Arrays.asList(PayloadEncoder.STATIC_STRINGS)).size());
+        assertTrue(PayloadEncoder.STATIC_STRINGS.length <= 224);
+    }
+
+    @Test
+    public void encodeInvalidJson() {
+        String[] payloads = {"", "{", "{\"a\"}", "{\"a\":1,}", "[1,]", "[1 2]", "\"abc", "\"\\x\"", "\"\\u12\"", "tru", "{} x"};
+        for (String payload : payloads) {
+            try {
+                PayloadEncoder.encode(payload);
+                throw new AssertionError("Expected an error for " + payload);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeEmpty() throws IOException {
+        PayloadEncoder.decode(new byte[0]);
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeUnknownFormat() throws IOException {
+        byte[] encoded = PayloadEncoder.encode(PAYLOAD);
+        encoded[0] = PayloadEncoder.FORMAT_VERSION + 1;
+        PayloadEncoder.decode(encoded);
+    }
+
+    @Test
+    public void decodeTruncated() throws IOException {
+        byte[] encoded = PayloadEncoder.encode(PAYLOAD);
+        for (int length = 1; length < encoded.length; length++) {
+            try {
+                PayloadEncoder.decode(Arrays.copyOf(encoded, length));
+                throw new AssertionError("Expected an error for length " + length);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeTrailingData() throws IOException {
+        byte[] encoded = PayloadEncoder.encode(PAYLOAD);
+        PayloadEncoder.decode(Arrays.copyOf(encoded, encoded.length + 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeUnknownStringReference() throws IOException {
+        PayloadEncoder.decode(new byte[]{PayloadEncoder.FORMAT_VERSION, 9, 0});
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeUnknownStaticString() throws IOException {
+        PayloadEncoder.decode(new byte[]{PayloadEncoder.FORMAT_VERSION, (byte) 0xFF});
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeUnknownTag() throws IOException {
+        PayloadEncoder.decode(new byte[]{PayloadEncoder.FORMAT_VERSION, 20});
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeVarintOverflow() throws IOException {
+        byte[] encoded = new byte[12];
+        Arrays.fill(encoded, (byte) 0xFF);
+        encoded[0] = PayloadEncoder.FORMAT_VERSION;
+        encoded[1] = 6;
+        PayloadEncoder.decode(encoded);
+    }
+}
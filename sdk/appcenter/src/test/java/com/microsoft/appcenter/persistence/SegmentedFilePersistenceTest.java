@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.persistence;
+
+import android.content.Context;
+
+import com.microsoft.appcenter.Flags;
+import com.microsoft.appcenter.ingestion.models.Log;
+import com.microsoft.appcenter.ingestion.models.json.LogSerializer;
+import com.microsoft.appcenter.ingestion.models.one.CommonSchemaLog;
+import com.microsoft.appcenter.persistence.Persistence.PersistenceException;
+import com.microsoft.appcenter.utils.AppCenterLog;
+import com.microsoft.appcenter.utils.crypto.CryptoUtils;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@PrepareForTest({AppCenterLog.class, CryptoUtils.class})
+public class SegmentedFilePersistenceTest {
+
+    private static final String GROUP = "group/test";
+
+    @Rule
+    public PowerMockRule mPowerMockRule = new PowerMockRule();
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final Map<String, Log> mLogsByPayload = new HashMap<>();
+
+    private File mDirectory;
+
+    private LogSerializer mLogSerializer;
+
+    @Before
+    public void setUp() throws Exception {
+        mockStatic(AppCenterLog.class);
+        mockStatic(CryptoUtils.class);
+        CryptoUtils cryptoUtils = mock(CryptoUtils.class);
+        when(CryptoUtils.getInstance(any(Context.class))).thenReturn(cryptoUtils);
+        when(cryptoUtils.encrypt(anyString())).thenAnswer(new Answer<String>() {
+
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                return "encrypted:" + invocation.getArguments()[0];
+            }
+        });
+        when(cryptoUtils.decrypt(anyString())).thenAnswer(new Answer<CryptoUtils.DecryptedData>() {
+
+            @Override
+            public CryptoUtils.DecryptedData answer(InvocationOnMock invocation) {
+                String data = (String) invocation.getArguments()[0];
+                return new CryptoUtils.DecryptedData(data.substring("encrypted:".length()), null);
+            }
+        });
+        mDirectory = mTemporaryFolder.newFolder("segments");
+        mLogSerializer = mock(LogSerializer.class);
+        when(mLogSerializer.serializeLog(any(Log.class))).thenAnswer(new Answer<String>() {
+
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                for (Map.Entry<String, Log> entry : mLogsByPayload.entrySet()) {
+                    if (entry.getValue() == invocation.getArguments()[0]) {
+                        return entry.getKey();
+                    }
+                }
+                return null;
+            }
+        });
+        when(mLogSerializer.deserializeLog(anyString(), anyString())).thenAnswer(new Answer<Log>() {
+
+            @Override
+            public Log answer(InvocationOnMock invocation) throws JSONException {
+                Log log = mLogsByPayload.get(invocation.getArguments()[0]);
+                if (log == null) {
+                    throw new JSONException("mock");
+                }
+                return log;
+            }
+        });
+    }
+
+    private SegmentedFilePersistence createPersistence() {
+        SegmentedFilePersistence persistence = new SegmentedFilePersistence(mock(Context.class), mDirectory);
+        persistence.setLogSerializer(mLogSerializer);
+        return persistence;
+    }
+
+    private Log mockLog(String payload) {
+        Log log = mock(Log.class);
+        when(log.getType()).thenReturn("mock");
+        mLogsByPayload.put(payload, log);
+        return log;
+    }
+
+    private static String payloadOfSize(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    private File getSegmentFile(String group, long firstId) {
+        return new File(new File(mDirectory, SegmentedFilePersistence.encodeGroup(group)), firstId + SegmentedFilePersistence.SEGMENT_FILE_EXTENSION);
+    }
+
+    @Test
+    public void putAndGetLogsCriticalFirst() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        Log normal1 = mockLog("normal1");
+        Log critical = mockLog("critical");
+        Log normal2 = mockLog("normal2");
+        assertEquals(0, persistence.putLog(normal1, GROUP, Flags.NORMAL));
+        assertEquals(1, persistence.putLog(critical, GROUP, Flags.CRITICAL));
+        assertEquals(2, persistence.putLog(normal2, GROUP, Flags.NORMAL));
+        assertEquals(3, persistence.countLogs(GROUP));
+
+        /* Critical logs are returned first. */
+        List<Log> logs = new ArrayList<>();
+        String batchId = persistence.getLogs(GROUP, Collections.<String>emptyList(), 2, Long.MAX_VALUE, logs);
+        assertNotNull(batchId);
+        assertEquals(Arrays.asList(critical, normal1), logs);
+
+        /* Leased logs are skipped until released. */
+        logs.clear();
+        String secondBatchId = persistence.getLogs(GROUP, Collections.<String>emptyList(), 10, Long.MAX_VALUE, logs);
+        assertEquals(Collections.singletonList(normal2), logs);
+        logs.clear();
+        assertNull(persistence.getLogs(GROUP, Collections.<String>emptyList(), 10, Long.MAX_VALUE, logs));
+        persistence.clearPendingLogState(GROUP, secondBatchId);
+        assertNotNull(persistence.getLogs(GROUP, Collections.<String>emptyList(), 10, Long.MAX_VALUE, logs));
+        assertEquals(Collections.singletonList(normal2), logs);
+
+        /* Acknowledged logs are no longer counted. */
+        persistence.deleteLogs(GROUP, batchId);
+        assertEquals(1, persistence.countLogs(GROUP));
+        persistence.close();
+    }
+
+    @Test
+    public void getLogsRespectsMaxBytes() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        Log log1 = mockLog("log1");
+        Log log2 = mockLog("log2");
+        persistence.putLog(log1, GROUP, Flags.NORMAL);
+        persistence.putLog(log2, GROUP, Flags.NORMAL);
+
+        /* At least one log is returned even if larger than the limit. */
+        List<Log> logs = new ArrayList<>();
+        persistence.getLogs(GROUP, Collections.<String>emptyList(), 10, 1, logs);
+        assertEquals(Collections.singletonList(log1), logs);
+        persistence.close();
+    }
+
+    @Test
+    public void getRawLogs() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        assertTrue(persistence.isRawLogsSupported());
+        persistence.putLog(mockLog("{\"raw\":1}"), GROUP, Flags.NORMAL);
+        persistence.putLog(mockLog("{\"raw\":2}"), GROUP, Flags.NORMAL);
+        List<String> payloads = new ArrayList<>();
+        assertNotNull(persistence.getRawLogs(GROUP, Collections.<String>emptyList(), 10, Long.MAX_VALUE, payloads));
+        assertEquals(Arrays.asList("{\"raw\":1}", "{\"raw\":2}"), payloads);
+        persistence.close();
+    }
+
+    @Test
+    public void getLogsWithPayloads() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        Log log1 = mockLog("{\"raw\":1}");
+        Log log2 = mockLog("{\"raw\":2}");
+        persistence.putLog(log1, GROUP, Flags.NORMAL);
+        persistence.putLog(log2, GROUP, Flags.NORMAL);
+        List<Log> logs = new ArrayList<>();
+        List<String> payloads = new ArrayList<>();
+        assertNotNull(persistence.getLogsWithPayloads(GROUP, Collections.<String>emptyList(), 10, Long.MAX_VALUE, logs, payloads));
+        assertEquals(Arrays.asList(log1, log2), logs);
+        assertEquals(Arrays.asList("{\"raw\":1}", "{\"raw\":2}"), payloads);
+
+        /* Logs are leased like other batches. */
+        assertNull(persistence.getRawLogs(GROUP, Collections.<String>emptyList(), 10, Long.MAX_VALUE, new ArrayList<String>()));
+        persistence.close();
+    }
+
+    @Test
+    public void targetTokens() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        CommonSchemaLog commonSchemaLog = mock(CommonSchemaLog.class);
+        when(commonSchemaLog.getType()).thenReturn("commonSchema");
+        when(commonSchemaLog.getTransmissionTargetTokens()).thenReturn(Collections.singleton("key1-secret"));
+        mLogsByPayload.put("commonSchema", commonSchemaLog);
+        Log normal = mockLog("normal");
+        persistence.putLog(commonSchemaLog, GROUP, Flags.NORMAL);
+        persistence.putLog(normal, GROUP, Flags.NORMAL);
+        persistence.close();
+
+        /* Counts and filters by target key survive a restart. */
+        persistence = createPersistence();
+        assertEquals(2, persistence.countLogs(GROUP));
+        assertEquals(1, persistence.countLogs(GROUP, Collections.singleton("key1")));
+        List<Log> logs = new ArrayList<>();
+        persistence.getLogs(GROUP, Collections.singleton("key1"), 10, Long.MAX_VALUE, logs);
+        assertEquals(Collections.singletonList(normal), logs);
+        persistence.clearPendingLogState();
+        logs.clear();
+        persistence.getLogs(GROUP, Collections.<String>emptyList(), 10, Long.MAX_VALUE, logs);
+        assertEquals(Arrays.asList(commonSchemaLog, normal), logs);
+        verify(commonSchemaLog).addTransmissionTarget("key1-secret");
+        persistence.close();
+    }
+
+    @Test
+    public void acknowledgementsSurviveRestart() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        Log log1 = mockLog("log1");
+        Log log2 = mockLog("log2");
+        persistence.putLog(log1, GROUP, Flags.NORMAL);
+        persistence.putLog(log2, GROUP, Flags.NORMAL);
+        List<Log> logs = new ArrayList<>();
+        persistence.deleteLogs(GROUP, persistence.getLogs(GROUP, Collections.<String>emptyList(), 1, Long.MAX_VALUE, logs));
+        persistence.close();
+
+        /* Segment is kept while it has a log to send. */
+        assertTrue(getSegmentFile(GROUP, 0).exists());
+        persistence = createPersistence();
+        assertEquals(1, persistence.countLogs(GROUP));
+        logs.clear();
+        String batchId = persistence.getLogs(GROUP, Collections.<String>emptyList(), 10, Long.MAX_VALUE, logs);
+        assertEquals(Collections.singletonList(log2), logs);
+
+        /* New logs don't reuse identifiers, and segment is deleted once all its logs are sent. */
+        assertEquals(2, persistence.putLog(mockLog("log3"), GROUP, Flags.NORMAL));
+        persistence.deleteLogs(GROUP, batchId);
+        logs.clear();
+        persistence.deleteLogs(GROUP, persistence.getLogs(GROUP, Collections.<String>emptyList(), 10, Long.MAX_VALUE, logs));
+        assertEquals(0, persistence.countLogs(GROUP));
+        assertFalse(getSegmentFile(GROUP, 0).exists());
+        assertEquals(0, persistence.getStorageSize());
+        persistence.close();
+    }
+
+    @Test
+    public void truncatedRecordIsDiscarded() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        persistence.putLog(mockLog("log1"), GROUP, Flags.NORMAL);
+        persistence.close();
+
+        /* Simulate a process killed while writing a record. */
+        File segmentFile = getSegmentFile(GROUP, 0);
+        long validLength = segmentFile.length();
+        FileOutputStream outputStream = new FileOutputStream(segmentFile, true);
+        outputStream.write(new byte[]{0, 0, 1, 0, 42});
+        outputStream.close();
+        persistence = createPersistence();
+        assertEquals(1, persistence.countLogs(GROUP));
+        assertEquals(validLength, segmentFile.length());
+        assertEquals(validLength, persistence.getStorageSize());
+        persistence.close();
+    }
+
+    @Test
+    public void corruptedRecordIsDropped() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        Log log1 = mockLog("log1");
+        persistence.putLog(log1, GROUP, Flags.NORMAL);
+        persistence.putLog(mockLog("log2"), GROUP, Flags.NORMAL);
+        persistence.close();
+
+        /* Corrupt the last byte of the second payload. */
+        RandomAccessFile file = new RandomAccessFile(getSegmentFile(GROUP, 0), "rw");
+        file.seek(file.length() - 1);
+        file.write('z');
+        file.close();
+        persistence = createPersistence();
+        List<Log> logs = new ArrayList<>();
+        persistence.getLogs(GROUP, Collections.<String>emptyList(), 10, Long.MAX_VALUE, logs);
+        assertEquals(Collections.singletonList(log1), logs);
+        assertEquals(1, persistence.countLogs(GROUP));
+        persistence.close();
+    }
+
+    @Test
+    public void evictOldestSegmentsWhenFull() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        int payloadSize = (int) SegmentedFilePersistence.SEGMENT_MAX_SIZE / 2;
+        long maxStorageSize = SegmentedFilePersistence.SEGMENT_MAX_SIZE * 3;
+        assertTrue(persistence.setMaxStorageSize(maxStorageSize));
+
+        /* Critical segment is written first. */
+        Log critical = mockLog("critical");
+        persistence.putLog(critical, GROUP, Flags.CRITICAL);
+        for (int i = 0; i < 10; i++) {
+            persistence.putLog(mockLog(payloadOfSize(payloadSize) + i), "other", Flags.NORMAL);
+            assertTrue(persistence.getStorageSize() <= maxStorageSize);
+        }
+
+        /* Normal segments were evicted first. */
+        assertEquals(1, persistence.countLogs(GROUP));
+        assertTrue(persistence.countLogs("other") < 10);
+        List<Log> logs = new ArrayList<>();
+        persistence.getLogs("other", Collections.<String>emptyList(), 1, Long.MAX_VALUE, logs);
+
+        /* Remaining logs are the most recent ones. */
+        int remaining = persistence.countLogs("other");
+        assertEquals(mLogsByPayload.get(payloadOfSize(payloadSize) + (10 - remaining)), logs.get(0));
+        persistence.close();
+    }
+
+    @Test
+    public void evictOldestSegmentsWhenShrinkingStorage() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        int payloadSize = (int) SegmentedFilePersistence.SEGMENT_MAX_SIZE / 2;
+        for (int i = 0; i < 8; i++) {
+            persistence.putLog(mockLog(payloadOfSize(payloadSize) + i), GROUP, Flags.NORMAL);
+        }
+        long storageSize = persistence.getStorageSize();
+
+        /* Segments are deleted without waiting for the next write. */
+        assertTrue(persistence.setMaxStorageSize(storageSize / 2));
+        assertTrue(persistence.getStorageSize() <= storageSize / 2);
+        int remaining = persistence.countLogs(GROUP);
+        assertTrue(remaining > 0 && remaining < 8);
+
+        /* Remaining logs are the most recent ones. */
+        List<Log> logs = new ArrayList<>();
+        persistence.getLogs(GROUP, Collections.<String>emptyList(), 1, Long.MAX_VALUE, logs);
+        assertEquals(mLogsByPayload.get(payloadOfSize(payloadSize) + (8 - remaining)), logs.get(0));
+        persistence.close();
+    }
+
+    @Test(expected = PersistenceException.class)
+    public void logLargerThanStorage() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        persistence.setMaxStorageSize(1024);
+        persistence.putLog(mockLog(payloadOfSize(2048)), GROUP, Flags.NORMAL);
+    }
+
+    @Test
+    public void deleteGroup() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        persistence.putLog(mockLog("log1"), GROUP, Flags.NORMAL);
+        persistence.putLog(mockLog("log2"), "other", Flags.NORMAL);
+        persistence.deleteLogs(GROUP);
+        assertEquals(0, persistence.countLogs(GROUP));
+        assertFalse(getSegmentFile(GROUP, 0).exists());
+        assertEquals(1, persistence.countLogs("other"));
+        persistence.close();
+    }
+
+    @Test
+    public void deleteExpiredLogs() throws Exception {
+        SegmentedFilePersistence persistence = createPersistence();
+        Log log1 = mockLog("log1");
+        Log log2 = mockLog("log2");
+        Log log3 = mockLog("log3");
+        persistence.putLog(log1, GROUP, Flags.NORMAL);
+        persistence.putLog(log2, GROUP, Flags.NORMAL);
+        persistence.putLog(log3, GROUP, Flags.NORMAL);
+
+        /* Nothing stored before that time. */
+        List<Log> logs = new ArrayList<>();
+        assertEquals(0, persistence.deleteExpiredLogs(GROUP, 0, 10, logs));
+        assertEquals(3, persistence.countLogs(GROUP));
+
+        /* Logs being sent don't expire. */
+        long storedBefore = System.currentTimeMillis() + 1000;
+        persistence.getLogs(GROUP, Collections.<String>emptyList(), 1, Long.MAX_VALUE, logs);
+        logs.clear();
+        assertEquals(1, persistence.deleteExpiredLogs(GROUP, storedBefore, 1, logs));
+        assertEquals(Collections.singletonList(log2), logs);
+        assertEquals(1, persistence.deleteExpiredLogs(GROUP, storedBefore, 10, null));
+        assertEquals(1, persistence.countLogs(GROUP));
+        persistence.close();
+    }
+
+    @Test
+    public void clearPendingStateUnknownGroup() {
+        SegmentedFilePersistence persistence = createPersistence();
+        persistence.clearPendingLogState("unknown", "batch");
+        persistence.deleteLogs("unknown", "batch");
+        assertEquals(0, persistence.countLogs("unknown"));
+        persistence.close();
+    }
+}
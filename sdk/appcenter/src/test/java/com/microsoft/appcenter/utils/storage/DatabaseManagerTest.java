@@ -8,6 +8,8 @@ package com.microsoft.appcenter.utils.storage;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDiskIOException;
 import android.database.sqlite.SQLiteFullException;
@@ -20,19 +22,31 @@ import com.microsoft.appcenter.utils.AppCenterLog;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.internal.stubbing.answers.Returns;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -40,7 +54,7 @@ import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 
 @SuppressWarnings("unused")
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({SQLiteUtils.class, AppCenterLog.class})
+@PrepareForTest({SQLiteUtils.class, DatabaseUtils.class, AppCenterLog.class})
 public class DatabaseManagerTest {
 
     private static DatabaseManager getDatabaseManagerMock() {
@@ -65,6 +79,73 @@ public class DatabaseManagerTest {
         AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
     }
 
+    @Test
+    public void putListFailedToBeginTransaction() {
+        DatabaseManager databaseManagerMock = getDatabaseManagerMock();
+        long[] ids = databaseManagerMock.put(Arrays.asList(new ContentValues(), new ContentValues()), "priority");
+        assertArrayEquals(new long[]{-1, -1}, ids);
+        verifyStatic();
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
+    }
+
+    @Test
+    public void putListInTransaction() {
+        DatabaseManager databaseManager = spy(new DatabaseManager(null, "database", "table", 1, null, null, null));
+        SQLiteDatabase database = mock(SQLiteDatabase.class);
+        when(databaseManager.getDatabase()).thenReturn(database);
+        when(database.insertOrThrow(anyString(), anyString(), any(ContentValues.class))).thenReturn(1L, 2L);
+        long[] ids = databaseManager.put(Arrays.asList(new ContentValues(), new ContentValues()), "priority");
+        assertArrayEquals(new long[]{1, 2}, ids);
+        verify(database).beginTransaction();
+        verify(database).setTransactionSuccessful();
+        verify(database).endTransaction();
+    }
+
+    @Test
+    public void putListWithFailedEntry() {
+        DatabaseManager databaseManager = spy(new DatabaseManager(null, "database", "table", 1, null, null, null));
+        SQLiteDatabase database = mock(SQLiteDatabase.class);
+        when(databaseManager.getDatabase()).thenReturn(database);
+        when(database.insertOrThrow(anyString(), anyString(), any(ContentValues.class))).thenReturn(1L).thenThrow(new SQLiteConstraintException()).thenReturn(3L);
+        long[] ids = databaseManager.put(Arrays.asList(new ContentValues(), new ContentValues(), new ContentValues()), "priority");
+
+        /* Other entries are committed. */
+        assertArrayEquals(new long[]{1, -1, 3}, ids);
+        verify(database).setTransactionSuccessful();
+        verify(database).endTransaction();
+        verifyStatic();
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(SQLiteConstraintException.class));
+    }
+
+    @Test
+    public void putListWhenFull() {
+        DatabaseManager databaseManager = spy(new DatabaseManager(null, "database", "table", 1, null, null, null));
+        SQLiteDatabase database = mock(SQLiteDatabase.class);
+        when(databaseManager.getDatabase()).thenReturn(database);
+        when(database.insertOrThrow(anyString(), anyString(), any(ContentValues.class))).thenReturn(1L).thenThrow(new SQLiteFullException()).thenReturn(3L, 4L);
+        long[] ids = databaseManager.put(Arrays.asList(new ContentValues(), new ContentValues()), "priority");
+
+        /* The transaction is rolled back and entries are stored one by one. */
+        assertArrayEquals(new long[]{3, 4}, ids);
+        verify(database).beginTransaction();
+        verify(database, never()).setTransactionSuccessful();
+        verify(database).endTransaction();
+        verify(database, times(4)).insertOrThrow(anyString(), anyString(), any(ContentValues.class));
+    }
+
+    @Test
+    public void putListFailedToCommit() {
+        DatabaseManager databaseManager = spy(new DatabaseManager(null, "database", "table", 1, null, null, null));
+        SQLiteDatabase database = mock(SQLiteDatabase.class);
+        when(databaseManager.getDatabase()).thenReturn(database);
+        when(database.insertOrThrow(anyString(), anyString(), any(ContentValues.class))).thenReturn(1L, 2L);
+        doThrow(new SQLiteDiskIOException()).when(database).endTransaction();
+        long[] ids = databaseManager.put(Arrays.asList(new ContentValues(), new ContentValues()), "priority");
+        assertArrayEquals(new long[]{-1, -1}, ids);
+        verifyStatic();
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(SQLiteDiskIOException.class));
+    }
+
     @Test
     public void deleteFailed() {
         DatabaseManager databaseManagerMock = getDatabaseManagerMock();
@@ -73,6 +154,61 @@ public class DatabaseManagerTest {
         AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
     }
 
+    @Test
+    public void deleteWhereFailed() {
+        DatabaseManager databaseManagerMock = getDatabaseManagerMock();
+        assertEquals(0, databaseManagerMock.deleteWhere("oid < ?", new String[]{"1"}));
+        verifyStatic();
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
+    }
+
+    @Test
+    public void configure() {
+        SQLiteDatabase db = mock(SQLiteDatabase.class);
+        DatabaseManager.configure(db);
+        InOrder inOrder = inOrder(db);
+        inOrder.verify(db).execSQL("PRAGMA page_size = " + DatabaseManager.PAGE_SIZE);
+        inOrder.verify(db).execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        inOrder.verify(db).enableWriteAheadLogging();
+    }
+
+    @Test
+    public void performMaintenance() {
+        SQLiteDatabase db = mock(SQLiteDatabase.class);
+        DatabaseManager databaseManager = spy(new DatabaseManager(null, "database", "table", 1, null, null, null));
+        doReturn(db).when(databaseManager).getDatabase();
+        mockStatic(DatabaseUtils.class);
+        when(DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)).thenReturn(0L);
+        when(DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null)).thenReturn(3L).thenReturn(0L);
+        Cursor vacuumCursor = mock(Cursor.class);
+        when(vacuumCursor.moveToNext()).thenReturn(true, true, true, false);
+        when(db.rawQuery("PRAGMA incremental_vacuum(" + DatabaseManager.MAX_VACUUM_PAGES + ")", null)).thenReturn(vacuumCursor);
+        Cursor checkpointCursor = mock(Cursor.class);
+        when(db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null)).thenReturn(checkpointCursor);
+
+        /* First maintenance converts the database and releases free pages by reading the whole cursor. */
+        databaseManager.performMaintenance();
+        verify(db).execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        verify(db).execSQL("VACUUM");
+        verify(vacuumCursor, times(4)).moveToNext();
+        verify(vacuumCursor).close();
+        verify(checkpointCursor).close();
+
+        /* Next maintenance does not check auto vacuum again and has no free pages to release. */
+        databaseManager.performMaintenance();
+        verify(db).execSQL("VACUUM");
+        verify(db).rawQuery(startsWith("PRAGMA incremental_vacuum"), any(String[].class));
+        verify(checkpointCursor, times(2)).close();
+    }
+
+    @Test
+    public void performMaintenanceFailed() {
+        DatabaseManager databaseManagerMock = getDatabaseManagerMock();
+        databaseManagerMock.performMaintenance();
+        verifyStatic();
+        AppCenterLog.error(eq(AppCenter.LOG_TAG), anyString(), any(RuntimeException.class));
+    }
+
     @Test
     public void clearFailed() {
         DatabaseManager databaseManagerMock = getDatabaseManagerMock();
@@ -222,6 +358,7 @@ public class DatabaseManagerTest {
 
         /* Simulate that database is full only once (will work after purging 1 log). */
         when(sqLiteDatabase.insertOrThrow(anyString(), anyString(), any(ContentValues.class))).thenThrow(new SQLiteFullException()).thenReturn(1L);
+        when(sqLiteDatabase.delete(anyString(), anyString(), any(String[].class))).thenReturn(1);
 
         /* Instantiate real instance for DatabaseManager. */
         DatabaseManager databaseManager = new DatabaseManager(contextMock, "database", "table", 1, null, null, null);
@@ -231,4 +368,129 @@ public class DatabaseManagerTest {
         long id = databaseManager.put(mock(ContentValues.class), "priority");
         assertEquals(1, id);
     }
+
+    @Test
+    public void evictChunkWhenFull() {
+
+        /* Mocking instances. */
+        Context contextMock = mock(Context.class);
+        SQLiteOpenHelper helperMock = mock(SQLiteOpenHelper.class);
+        SQLiteDatabase sqLiteDatabase = mock(SQLiteDatabase.class);
+        when(helperMock.getWritableDatabase()).thenReturn(sqLiteDatabase);
+
+        /* Mock 3 rows to evict: 2 in group "a" and 1 in group "b", 100 bytes each. */
+        mockStatic(SQLiteUtils.class);
+        Cursor cursor = mock(Cursor.class);
+        when(cursor.moveToNext()).thenReturn(true, true, true, false);
+        when(cursor.getLong(0)).thenReturn(1L, 2L, 3L);
+        when(cursor.getString(1)).thenReturn("a", "a", "b");
+        when(cursor.getLong(2)).thenReturn(100L);
+        SQLiteQueryBuilder sqLiteQueryBuilder = mock(SQLiteQueryBuilder.class, new Returns(cursor));
+        when(SQLiteUtils.newSQLiteQueryBuilder()).thenReturn(sqLiteQueryBuilder);
+
+        /* Simulate that database is full only once. */
+        when(sqLiteDatabase.insertOrThrow(anyString(), anyString(), any(ContentValues.class))).thenThrow(new SQLiteFullException()).thenReturn(4L);
+        when(sqLiteDatabase.delete(anyString(), anyString(), any(String[].class))).thenReturn(2);
+
+        /* Evict rows until 150 bytes are freed. */
+        DatabaseManager.Listener listener = mock(DatabaseManager.Listener.class);
+        DatabaseManager databaseManager = new DatabaseManager(contextMock, "database", "table", 1, null, null, listener);
+        databaseManager.setSQLiteOpenHelper(helperMock);
+        databaseManager.setEvictionPolicy(new EvictionPolicy("oid", "group", "size", 10, 150));
+        ContentValues values = mock(ContentValues.class);
+        when(values.getAsString("priority")).thenReturn("1");
+        when(values.keySet()).thenReturn(Collections.singleton("log"));
+        when(values.get("log")).thenReturn(new byte[50]);
+        assertEquals(4, databaseManager.put(values, "priority"));
+
+        /* Verify the chunk was deleted in one statement and counted per group in the same transaction. */
+        verify(sqLiteQueryBuilder).query(eq(sqLiteDatabase), eq(new String[]{"oid", "group", "size"}), isNull(String.class), eq(new String[]{"1"}), isNull(String.class), isNull(String.class), eq("oid"), eq("10"));
+        InOrder inOrder = inOrder(sqLiteDatabase, listener);
+        inOrder.verify(sqLiteDatabase).beginTransaction();
+        inOrder.verify(sqLiteDatabase).delete("table", "oid IN (1,2)", null);
+        inOrder.verify(listener).onEvicted(sqLiteDatabase, Collections.singletonMap("a", 2L));
+        inOrder.verify(sqLiteDatabase).setTransactionSuccessful();
+        inOrder.verify(sqLiteDatabase).endTransaction();
+    }
+
+    @Test
+    public void putWithPreparerRetriesAfterEviction() {
+
+        /* Mocking instances. */
+        Context contextMock = mock(Context.class);
+        SQLiteOpenHelper helperMock = mock(SQLiteOpenHelper.class);
+        SQLiteDatabase sqLiteDatabase = mock(SQLiteDatabase.class);
+        when(helperMock.getWritableDatabase()).thenReturn(sqLiteDatabase);
+
+        /* Mock 1 row to evict. */
+        mockStatic(SQLiteUtils.class);
+        Cursor cursor = mock(Cursor.class);
+        when(cursor.moveToNext()).thenReturn(true, false);
+        when(cursor.getLong(0)).thenReturn(1L);
+        SQLiteQueryBuilder sqLiteQueryBuilder = mock(SQLiteQueryBuilder.class, new Returns(cursor));
+        when(SQLiteUtils.newSQLiteQueryBuilder()).thenReturn(sqLiteQueryBuilder);
+        when(sqLiteDatabase.delete(anyString(), anyString(), any(String[].class))).thenReturn(1);
+
+        /* Simulate that database is full only once. */
+        ContentValues values = mock(ContentValues.class);
+        when(values.getAsString("priority")).thenReturn("1");
+        ContentValues preparedValues = mock(ContentValues.class);
+        when(sqLiteDatabase.insertOrThrow("table", null, preparedValues)).thenThrow(new SQLiteFullException()).thenReturn(2L);
+        DatabaseManager.EntryPreparer preparer = mock(DatabaseManager.EntryPreparer.class);
+        when(preparer.prepare(sqLiteDatabase, values)).thenReturn(preparedValues);
+        DatabaseManager databaseManager = new DatabaseManager(contextMock, "database", "table", 1, null, null, mock(DatabaseManager.Listener.class));
+        databaseManager.setSQLiteOpenHelper(helperMock);
+        assertEquals(2, databaseManager.put(values, "priority", preparer));
+
+        /* Each attempt prepares the entry in its own transaction, only the last one is committed. */
+        InOrder inOrder = inOrder(sqLiteDatabase, preparer);
+        inOrder.verify(sqLiteDatabase).beginTransaction();
+        inOrder.verify(preparer).prepare(sqLiteDatabase, values);
+        inOrder.verify(sqLiteDatabase).insertOrThrow("table", null, preparedValues);
+        inOrder.verify(sqLiteDatabase).endTransaction();
+        inOrder.verify(sqLiteDatabase).delete("table", "oid IN (1)", null);
+        inOrder.verify(sqLiteDatabase).beginTransaction();
+        inOrder.verify(preparer).prepare(sqLiteDatabase, values);
+        inOrder.verify(sqLiteDatabase).insertOrThrow("table", null, preparedValues);
+        inOrder.verify(sqLiteDatabase).setTransactionSuccessful();
+        inOrder.verify(sqLiteDatabase).endTransaction();
+    }
+
+    @Test
+    public void runInTransaction() {
+
+        /* Mocking instances. */
+        Context contextMock = mock(Context.class);
+        SQLiteOpenHelper helperMock = mock(SQLiteOpenHelper.class);
+        SQLiteDatabase sqLiteDatabase = mock(SQLiteDatabase.class);
+        when(helperMock.getWritableDatabase()).thenReturn(sqLiteDatabase);
+        DatabaseManager databaseManager = new DatabaseManager(contextMock, "database", "table", 1, null, null, mock(DatabaseManager.Listener.class));
+        databaseManager.setSQLiteOpenHelper(helperMock);
+
+        /* A transaction returning normally is committed. */
+        assertEquals(Integer.valueOf(3), databaseManager.runInTransaction(new DatabaseManager.Transaction<Integer>() {
+
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                return db.delete("table", null, null) + 3;
+            }
+        }));
+        verify(sqLiteDatabase).setTransactionSuccessful();
+        verify(sqLiteDatabase).endTransaction();
+
+        /* A failing transaction is rolled back. */
+        mockStatic(AppCenterLog.class);
+        when(sqLiteDatabase.delete(anyString(), anyString(), any(String[].class))).thenThrow(new SQLiteDiskIOException());
+        assertNull(databaseManager.runInTransaction(new DatabaseManager.Transaction<Integer>() {
+
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                return db.delete("table", "oid = 1", null);
+            }
+        }));
+        verify(sqLiteDatabase).setTransactionSuccessful();
+        verify(sqLiteDatabase, times(2)).endTransaction();
+        verifyStatic();
+        AppCenterLog.error(anyString(), anyString(), any(SQLiteDiskIOException.class));
+    }
 }
\ No newline at end of file
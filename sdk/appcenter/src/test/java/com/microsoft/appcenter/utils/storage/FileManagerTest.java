@@ -114,6 +114,36 @@ public class FileManagerTest {
         verify(writer).close();
     }
 
+    @Test
+    public void readAndWriteUtf8() throws Exception {
+
+        /* Use multi-byte characters that span the stream buffer boundaries. */
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < FileManager.STREAM_BUFFER_SIZE * 3) {
+            builder.append("a\u00e9\u4e8b\ud83d\ude00\n");
+        }
+        String contents = builder.toString();
+        File file = mTemporaryFolder.newFile();
+        FileManager.writeUtf8(file, contents);
+        assertEquals(contents.getBytes("UTF-8").length, file.length());
+        assertEquals(contents, FileManager.readUtf8(file, false));
+        assertEquals(contents, FileManager.readUtf8(file, true));
+    }
+
+    @Test
+    public void readAndWriteUtf8Empty() throws Exception {
+        File file = mTemporaryFolder.newFile();
+        FileManager.writeUtf8(file, "");
+        assertEquals(0, file.length());
+        assertEquals("", FileManager.readUtf8(file, false));
+        assertEquals("", FileManager.readUtf8(file, true));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void readUtf8FileNotFound() throws Exception {
+        FileManager.readUtf8(new File(mTemporaryFolder.getRoot(), "missing"), false);
+    }
+
     @Test
     public void lastModifiedFile() {
         File dir = mock(File.class);
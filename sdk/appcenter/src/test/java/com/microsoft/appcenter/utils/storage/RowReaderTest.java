@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License.
+ */
+
+package com.microsoft.appcenter.utils.storage;
+
+import android.database.Cursor;
+
+import com.microsoft.appcenter.utils.AppCenterLog;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(AppCenterLog.class)
+public class RowReaderTest {
+
+    @Test
+    public void readValues() {
+        Cursor cursor = mock(Cursor.class);
+        when(cursor.getColumnIndex("id")).thenReturn(0);
+        when(cursor.getColumnIndex("name")).thenReturn(1);
+        when(cursor.getColumnIndex("data")).thenReturn(2);
+        when(cursor.getLong(0)).thenReturn(42L);
+        when(cursor.getInt(0)).thenReturn(42);
+        when(cursor.getString(1)).thenReturn("test");
+        when(cursor.getBlob(2)).thenReturn(new byte[]{1, 2});
+        RowReader reader = new RowReader(cursor);
+        assertEquals(0, reader.getColumnIndex("id"));
+        assertEquals(42L, reader.getLong(0, -1));
+        assertEquals(42, reader.getInt(0, -1));
+        assertEquals("test", reader.getString(1));
+        assertArrayEquals(new byte[]{1, 2}, reader.getBlob(2));
+    }
+
+    @Test
+    public void readNullValues() {
+        Cursor cursor = mock(Cursor.class);
+        when(cursor.isNull(anyInt())).thenReturn(true);
+        RowReader reader = new RowReader(cursor);
+        assertTrue(reader.isNull(0));
+        assertEquals(-1L, reader.getLong(0, -1));
+        assertEquals(-1, reader.getInt(0, -1));
+        assertNull(reader.getString(0));
+        assertNull(reader.getBlob(0));
+        verify(cursor, never()).getLong(anyInt());
+        verify(cursor, never()).getString(anyInt());
+    }
+
+    @Test
+    public void readMissingColumn() {
+        Cursor cursor = mock(Cursor.class);
+        when(cursor.getColumnIndex(anyString())).thenReturn(-1);
+        RowReader reader = new RowReader(cursor);
+        int index = reader.getColumnIndex("missing");
+        assertTrue(reader.isNull(index));
+        assertEquals(7L, reader.getLong(index, 7));
+        assertNull(reader.getString(index));
+        assertNull(reader.getBlob(index));
+        verify(cursor, never()).isNull(anyInt());
+    }
+
+    @Test
+    public void moveToNextFailure() {
+        mockStatic(AppCenterLog.class);
+        Cursor cursor = mock(Cursor.class);
+        when(cursor.moveToNext()).thenReturn(true).thenThrow(new RuntimeException());
+        RowReader reader = new RowReader(cursor);
+        assertTrue(reader.moveToNext());
+        assertFalse(reader.moveToNext());
+        verifyStatic();
+        AppCenterLog.error(anyString(), anyString(), any(RuntimeException.class));
+    }
+
+    @Test
+    public void closeIgnoresFailure() {
+        Cursor cursor = mock(Cursor.class);
+        doThrow(new RuntimeException()).when(cursor).close();
+        new RowReader(cursor).close();
+        verify(cursor).close();
+    }
+}